@@ -9,7 +9,13 @@ import com.fasterxml.jackson.databind.node.BooleanNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.sas.unravl.assertions.BaseUnRAVLAssertion;
+import com.sas.unravl.assertions.DigestAssertion;
 import com.sas.unravl.assertions.StatusAssertion;
 import com.sas.unravl.assertions.UnRAVLAssertion;
 import com.sas.unravl.assertions.UnRAVLAssertion.Stage;
@@ -17,35 +23,44 @@ import com.sas.unravl.assertions.UnRAVLAssertionException;
 import com.sas.unravl.auth.UnRAVLAuth;
 import com.sas.unravl.extractors.UnRAVLExtractor;
 import com.sas.unravl.generators.Binary;
+import com.sas.unravl.generators.ByteArrayBody;
 import com.sas.unravl.generators.JsonRequestBodyGenerator;
+import com.sas.unravl.generators.StreamingBody;
 import com.sas.unravl.generators.UnRAVLRequestBodyGenerator;
+import com.sas.unravl.http.AsyncUnRAVLTransport;
+import com.sas.unravl.http.BodyStore;
+import com.sas.unravl.http.CircuitBreaker;
+import com.sas.unravl.http.ConnectionPool;
+import com.sas.unravl.http.ContentCoding;
+import com.sas.unravl.http.ResponseBuffer;
+import com.sas.unravl.http.ResponseModel;
+import com.sas.unravl.http.ResponseStream;
+import com.sas.unravl.http.Timeouts;
+import com.sas.unravl.http.Timings;
+import com.sas.unravl.http.TransportRequest;
+import com.sas.unravl.http.TransportResponse;
+import com.sas.unravl.http.UnRAVLTransport;
 import com.sas.unravl.util.Json;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.Header;
 import org.apache.http.message.BasicHeader;
 import org.apache.log4j.Logger;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
-import org.springframework.http.client.ClientHttpRequest;
-import org.springframework.http.client.ClientHttpResponse;
-import org.springframework.web.client.HttpStatusCodeException;
-import org.springframework.web.client.RequestCallback;
-import org.springframework.web.client.ResourceAccessException;
-import org.springframework.web.client.ResponseExtractor;
-import org.springframework.web.client.RestClientException;
-import org.springframework.web.client.RestTemplate;
 
 /**
  * Encapsulate a runtime call to an API, as specified by an UnRAVL script. This
@@ -54,6 +69,13 @@ import org.springframework.web.client.RestTemplate;
  * calls the API, and stores the HTTP status, response headers, and response
  * body, then binds results as per extractors defined in the script, and runs
  * assertions.
+ * <p>
+ * The HTTP request is sent by the runtime's
+ * {@link UnRAVLRuntime#getTransport() transport}. {@link #run()} performs all
+ * these steps on the calling thread. {@link #runAsync()} performs the steps up
+ * to the HTTP request on the calling thread, sends the request without
+ * blocking, and runs the extractors and assertions when the response arrives.
+ * </p>
  *
  * @author sasdjb
  */
@@ -63,16 +85,23 @@ public class ApiCall {
     private static final String MASK = "************";
     private static final Logger logger = Logger.getLogger(ApiCall.class);
     private static final String JSON_GENERATOR_KEY = "json";
+    private static final String COMPRESS_KEY = "compress";
 
     private UnRAVL script;
     /**
      * @deprecated use requestStream instead
      */
     private ByteArrayOutputStream requestBody;
-    private ByteArrayOutputStream responseBody;
+    private ResponseBuffer responseBody;
     private InputStream requestStream;
 
     private int httpStatus;
+    private String protocolVersion;
+    // the content codings of the request and response bodies, and the body
+    // sizes before (length) and after (wire length) coding
+    private String requestEncoding, responseEncoding;
+    private long requestLength = -1, requestWireLength = -1,
+            responseWireLength = -1;
     private Header responseHeaders[];
 
     private List<UnRAVLAssertion> passedAssertions, failedAssertions,
@@ -81,6 +110,26 @@ public class ApiCall {
     private Method method;
     private String uri;
     private boolean cancelled = false, skipped = false;
+    // the circuit breaker let this call through and has not heard its outcome
+    private boolean circuitPending;
+    private volatile boolean done;
+    private Timeouts timeouts = Timeouts.NONE;
+    private Timeouts.Phase timeoutPhase;
+    private String skipReason;
+    private Timings timings;
+    private List<Header> requestHeaders;
+    private ResponseModel response;
+    // a streaming response, and the element its scriptlets are running on
+    private ResponseStream responseStream;
+    private ResponseModel elementResponse;
+
+    /**
+     * The variable bound to the {@link ResponseStream} of a streaming
+     * response, which has its element count and timings
+     */
+    public static final String STREAM = "unravlStream";
+
+    private static final ObjectMapper STREAM_MAPPER = new ObjectMapper();
 
     private static final ObjectNode STATUS_ASSERTION = new ObjectNode(
             JsonNodeFactory.instance);
@@ -101,23 +150,206 @@ public class ApiCall {
 
     public ApiCall run() throws UnRAVLException {
         try {
-            if (getScript().isRunnable() && conditionalExecution()) {
-                defineEnv();
-                bind("unravlScript", getScript());
-                if (runAssertions(UnRAVLAssertion.Stage.PRECONDITIONS)) {
-                    defineBody();
-                    executeAPI();
-                    extract();
-                    runAssertions(UnRAVLAssertion.Stage.ASSERT);
-                }             }
+            if (prepare()) {
+                executeAPI();
+                complete();
+            }
         } catch (UnRAVLException e) {
             throwException(e);
         } catch (IOException e) {
             throwException(e);
+        } finally {
+            finish();
         }
         return this;
     }
 
+    /**
+     * Run this API call without blocking on the HTTP request. The env,
+     * preconditions, request body and authentication are processed on the
+     * calling thread; the request is then sent with the runtime's transport.
+     * When the response arrives, the status assertion, extractors and
+     * assertions run on the runtime's
+     * {@link UnRAVLRuntime#getCompletionExecutor() completion executor}.
+     * <p>
+     * If the transport is not an {@link AsyncUnRAVLTransport} (for example,
+     * when a RestTemplate has been set with
+     * {@link UnRAVLPlugins#setRestTemplate(org.springframework.web.client.RestTemplate)}
+     * ), the call is made synchronously and the returned future is already
+     * done.
+     * </p>
+     *
+     * @return a future which yields this call when it is complete, or fails
+     *         with the UnRAVLException the call threw (also available from
+     *         {@link #getException()})
+     */
+    public ListenableFuture<ApiCall> runAsync() {
+        final SettableFuture<ApiCall> result = SettableFuture.create();
+        final UnRAVLRuntime runtime = getRuntime();
+        synchronized (runtime) {
+            try {
+                if (!prepare()) {
+                    finish();
+                    result.set(this);
+                    return result;
+                }
+                UnRAVLTransport transport = null;
+                if (prepareRequest()) {
+                    transport = transport();
+                    if (!(transport instanceof AsyncUnRAVLTransport)) {
+                        executeAPI(transport);
+                        transport = null;
+                    }
+                }
+                if (transport == null) {
+                    complete();
+                    finish();
+                    result.set(this);
+                    return result;
+                }
+                startRequest();
+                TransportRequest request = newTransportRequest(true);
+                ListenableFuture<TransportResponse> response = ((AsyncUnRAVLTransport) transport)
+                        .executeAsync(request, responseSink());
+                if (timeouts.getCall() > 0)
+                    response = Futures.withTimeout(response,
+                            timeouts.getCall(), TimeUnit.MILLISECONDS,
+                            runtime.getTimer());
+                Futures.addCallback(response,
+                        new FutureCallback<TransportResponse>() {
+
+                            @Override
+                            public void onSuccess(TransportResponse response) {
+                                completeAsync(result, response, null);
+                            }
+
+                            @Override
+                            public void onFailure(Throwable failure) {
+                                completeAsync(result, null, failure);
+                            }
+                        }, runtime.getCompletionExecutor());
+            } catch (UnRAVLException e) {
+                fail(result, e);
+            } catch (IOException e) {
+                fail(result, e);
+            } catch (RuntimeException e) {
+                fail(result, e);
+            }
+        }
+        return result;
+    }
+
+    // Runs on the runtime's completion executor. Exactly one of response or
+    // failure is non-null.
+    private void completeAsync(SettableFuture<ApiCall> result,
+            TransportResponse response, Throwable failure) {
+        synchronized (getRuntime()) {
+            try {
+                if (response != null) {
+                    readResponse(response);
+                } else if (failure instanceof CancellationException) {
+                    cancelled = true;
+                } else {
+                    requestFailed(failure);
+                }
+                complete();
+                finish();
+                result.set(this);
+            } catch (UnRAVLException e) {
+                fail(result, e);
+            } catch (RuntimeException e) {
+                fail(result, e);
+            }
+        }
+    }
+
+    private void fail(SettableFuture<ApiCall> result, Exception exception) {
+        try {
+            throwException(exception);
+        } catch (UnRAVLException e) {
+            finish();
+            result.setException(e);
+        }
+    }
+
+    // Process env and preconditions and define the request body.
+    // Return true if the call should proceed.
+    private boolean prepare() throws UnRAVLException, IOException {
+        if (getScript().isRunnable() && conditionalExecution()) {
+            defineEnv();
+            bind("unravlScript", getScript());
+            if (runAssertions(UnRAVLAssertion.Stage.PRECONDITIONS)) {
+                defineBody();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Run the extractors and assertions, after the API call.
+    private void complete() throws UnRAVLException {
+        if (skipReason != null)
+            return; // no request was sent, so there is nothing to check
+        extract();
+        runAssertions(UnRAVLAssertion.Stage.ASSERT);
+        checkStream();
+    }
+
+    // The call is done: store its bodies, then let the runtime apply its
+    // history policy
+    private void finish() {
+        // a call which was cancelled or threw before it got a response or a
+        // connection failure must not leave its host's circuit half open
+        if (circuitPending) {
+            circuitPending = false;
+            getRuntime().getCircuitBreaker().abandoned(getURI());
+        }
+        storeBodies();
+        done = true;
+        getRuntime().retain(this);
+    }
+
+    // When the call is done, move the request and response bodies which are
+    // in memory to the runtime's body store, which keeps one copy of
+    // identical bodies. The response model keeps the views which extractors
+    // and assertions parsed, and reads the stored body for any others.
+    private void storeBodies() {
+        BodyStore store = getRuntime().getBodyStore();
+        boolean compress = ConnectionPool.booleanOption(getRuntime(),
+                BodyStore.COMPRESS);
+        ByteBuffer request = null;
+        if (requestStream instanceof ByteArrayBody) {
+            ByteArrayBody body = (ByteArrayBody) requestStream;
+            // the transport has read the body; store all of it
+            body.reset();
+            request = body.toByteBuffer();
+        } else if (requestStream == null && requestBody != null)
+            request = ByteBuffer.wrap(requestBody.toByteArray());
+        if (request != null && request.hasRemaining()) {
+            requestStream = new BodyStore.StoredBody(store, store.put(request,
+                    compress));
+            requestBody = null;
+        }
+        if (responseBody != null)
+            responseBody.store(store, compress);
+    }
+
+    /**
+     * Release the request and response bodies of this call, which removes
+     * them from the runtime's body store when no other call uses them, and
+     * deletes the temporary file of a large response body. The bodies cannot
+     * be read after this.
+     */
+    public void dispose() {
+        if (requestStream instanceof BodyStore.StoredBody) {
+            ((BodyStore.StoredBody) requestStream).release();
+            requestStream = null;
+        }
+        if (responseBody != null)
+            responseBody.dispose();
+        response = null;
+    }
+
     private boolean canceled() {
         cancelled = cancelled || getScript().getRuntime().isCanceled();
         return cancelled;
@@ -130,6 +362,62 @@ public class ApiCall {
     public boolean wasSkipped() {
         return skipped;
     }
+
+    /**
+     * @return true if this call has finished: its assertions have run, or it
+     *         failed or was skipped
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return why this call was skipped without sending its request, such as
+     *         an open {@link CircuitBreaker circuit} for its host, or null
+     */
+    public String getSkipReason() {
+        return skipReason;
+    }
+
+    /**
+     * @return true if the request exceeded one of its {@link #getTimeouts()
+     *         timeouts}, or was not sent because the runtime's deadline had
+     *         passed
+     */
+    public boolean wasTimedOut() {
+        return timeoutPhase != null;
+    }
+
+    /**
+     * @return which limit the request exceeded, or null if it did not time
+     *         out
+     */
+    public Timeouts.Phase getTimeoutPhase() {
+        return timeoutPhase;
+    }
+
+    /**
+     * @return the time spent in each phase of the HTTP exchange, or null if
+     *         no request was sent
+     */
+    public Timings getTimings() {
+        return timings;
+    }
+
+    /**
+     * @return the request headers that were sent, with variables expanded, or
+     *         null if no request was sent
+     */
+    public List<Header> getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    /**
+     * @return the time limits applied to this call's request
+     */
+    public Timeouts getTimeouts() {
+        return timeouts;
+    }
     
 
     private boolean conditionalExecution() throws UnRAVLException {
@@ -177,6 +465,43 @@ public class ApiCall {
         }
     }
 
+    // Return the coding named by "compress" in a body object such as
+    // { "json" : {...}, "compress" : "gzip" }, or null. The "compress" field
+    // is an option only if a body generator names the rest of the object,
+    // so that a JSON body with a "compress" field is sent as is.
+    private String compression(UnRAVL script, ObjectNode body)
+            throws UnRAVLException {
+        JsonNode compress = body.get(COMPRESS_KEY);
+        if (compress == null || !compress.isTextual() || body.size() < 2)
+            return null;
+        for (Iterator<String> keys = body.fieldNames(); keys.hasNext();) {
+            String key = keys.next();
+            if (!key.equals(COMPRESS_KEY)) {
+                if (!getPlugins().getBodyGenerators().containsKey(key))
+                    return null;
+                break;
+            }
+        }
+        String coding = script.expand(compress.textValue());
+        if (!ContentCoding.isSupported(coding))
+            throw new UnRAVLException("Unsupported body compression "
+                    + coding + "; use \"gzip\" or \"deflate\"");
+        return coding;
+    }
+
+    private InputStream compress(InputStream body, String coding)
+            throws IOException {
+        CountingInputStream counted = new CountingInputStream(body);
+        ByteArrayBody encoded = ContentCoding.encode(counted, coding);
+        requestEncoding = coding;
+        requestLength = counted.getCount();
+        requestWireLength = encoded.available();
+        logger.info(String.format(
+                "Compressed request body with %s: %d to %d bytes", coding,
+                requestLength, requestWireLength));
+        return encoded;
+    }
+
     private void authenticate() throws UnRAVLException, IOException {
         authenticate(script);
     }
@@ -242,7 +567,7 @@ public class ApiCall {
             String s = script.expand(body.asText());
             if (!s.trim().startsWith(UnRAVL.REDIRECT_PREFIX)) {
                 try {
-                    requestStream = new ByteArrayInputStream(
+                    requestStream = new ByteArrayBody(
                             s.getBytes("UTF-8"));
                 } catch (IOException e) {
                     throw new UnRAVLException(
@@ -257,9 +582,18 @@ public class ApiCall {
         String generatorKey = null;
         Class<? extends UnRAVLRequestBodyGenerator> bgClass = null;
 
+        String coding = null;
         if (body.isObject() && body.fields().hasNext()) {
             bodyObj = Json.object(body);
-            generatorKey = body.fields().next().getKey();
+            coding = compression(script, bodyObj);
+            if (coding != null) {
+                // a shallow copy, so the body shares the script's nodes
+                ObjectNode copy = new ObjectNode(JsonNodeFactory.instance);
+                copy.setAll(bodyObj);
+                copy.remove(COMPRESS_KEY);
+                bodyObj = copy;
+            }
+            generatorKey = bodyObj.fields().next().getKey();
             bgClass = getPlugins().getBodyGenerators().get(generatorKey);
 
         }
@@ -274,6 +608,8 @@ public class ApiCall {
         try {
             UnRAVLRequestBodyGenerator gen = bgClass.newInstance();
             requestStream = gen.getBody(script, bodyObj, this);
+            if (coding != null && requestStream != null)
+                requestStream = compress(requestStream, coding);
         } catch (InstantiationException e) {
             throw new UnRAVLException(
                     "Could not instantiate body generator plugin for " + body);
@@ -303,57 +639,260 @@ public class ApiCall {
             if (canceled() || script == null)
                 return;
             extract(script.getTemplate());
-            JsonNode bind = script.getRoot().get("bind");
-            if (bind == null)
-                return;
-            if (bind.isObject()) {
-                bind = Json.wrapInArray(bind);
-            }
-            for (JsonNode j : Json.array(bind)) {
-                if (canceled())
-                    return;
-                ObjectNode ob = Json.object(j);
-                Map.Entry<String, JsonNode> first = Json.firstField(ob);
-                String key = first.getKey();
-                Class<? extends UnRAVLExtractor> ec = getPlugins()
-                        .getExtractors().get(key);
-                if (ec == null)
-                    if (!bind.isObject())
-                        throw new UnRAVLException("No defined extractor " + key);
-                UnRAVLExtractor ex;
-                try {
-                    ex = ec.newInstance();
-                    ex.extract(script, ob, this);
-                } catch (InstantiationException e1) {
-                    throw new UnRAVLException(
-                            "Could not instantiate extractor " + key
-                                    + " using class " + ec.getName(), e1);
-                } catch (IllegalAccessException e1) {
-                    throw new UnRAVLException(
-                            "Could not instantiate extractor " + key
-                                    + " using class " + ec.getName(), e1);
-                } catch (RuntimeException e1) {
-                    throw new UnRAVLException(e1.getMessage(), e1);
-                }
-            }
+            extract(script, script.getRoot().get("bind"));
         } finally {
             // Must do this after making more bindings
             getRuntime().resetBindings();
         }
     }
 
+    // Run the extractors of a "bind" element
+    private void extract(UnRAVL script, JsonNode bind) throws UnRAVLException {
+        if (bind == null)
+            return;
+        if (bind.isObject()) {
+            bind = Json.wrapInArray(bind);
+        }
+        for (JsonNode j : Json.array(bind)) {
+            if (canceled())
+                return;
+            ObjectNode ob = Json.object(j);
+            Map.Entry<String, JsonNode> first = Json.firstField(ob);
+            String key = first.getKey();
+            Class<? extends UnRAVLExtractor> ec = getPlugins()
+                    .getExtractors().get(key);
+            if (ec == null)
+                if (!bind.isObject())
+                    throw new UnRAVLException("No defined extractor " + key);
+            UnRAVLExtractor ex;
+            try {
+                ex = ec.newInstance();
+                ex.extract(script, ob, this);
+            } catch (InstantiationException e1) {
+                throw new UnRAVLException(
+                        "Could not instantiate extractor " + key
+                                + " using class " + ec.getName(), e1);
+            } catch (IllegalAccessException e1) {
+                throw new UnRAVLException(
+                        "Could not instantiate extractor " + key
+                                + " using class " + ec.getName(), e1);
+            } catch (RuntimeException e1) {
+                throw new UnRAVLException(e1.getMessage(), e1);
+            }
+        }
+    }
+
     private ObjectNode statusAssertion(UnRAVL script) throws UnRAVLException {
         return UnRAVL.statusAssertion(script);
     }
 
-    public Header getResponseHeader(String headerName) {
-        for (Header h : responseHeaders) {
-            if (h.getName().equalsIgnoreCase(headerName))
-                return h;
+    // The stream which receives the response body from the transport
+    private OutputStream responseSink() {
+        return responseStream != null ? responseStream : responseBody;
+    }
+
+    // The "stream" element of the script or its templates, or null
+    private ObjectNode streamScriptlet() throws UnRAVLException {
+        for (UnRAVL s = script; s != null; s = s.getTemplate()) {
+            JsonNode stream = s.getRoot().get("stream");
+            if (stream == null)
+                continue;
+            if (!stream.isObject())
+                throw new UnRAVLException("stream must be an object");
+            return (ObjectNode) stream;
         }
         return null;
     }
 
+    // A stream which runs the "stream" element on each element of the
+    // response as it arrives, or null to buffer the response body. For an
+    // asynchronous call, the elements are queued and run on the completion
+    // executor, holding the runtime's lock as completeAsync does, rather
+    // than on the transport's I/O thread.
+    private ResponseStream newResponseStream(boolean async)
+            throws UnRAVLException {
+        ObjectNode scriptlet = streamScriptlet();
+        if (scriptlet == null)
+            return null;
+        ResponseStream.Format format = scriptlet.has("sse") ? ResponseStream.Format.SSE
+                : ResponseStream.Format.NDJSON;
+        JsonNode var = scriptlet.get(format.name().toLowerCase());
+        if (var == null || !var.isTextual())
+            throw new UnRAVLException(
+                    "stream requires an \"ndjson\" or \"sse\" variable name");
+        JsonNode unwrap = scriptlet.get("unwrap");
+        final UnRAVLRuntime runtime = getRuntime();
+        Executor executor = null;
+        if (async) {
+            final Executor completion = runtime.getCompletionExecutor();
+            executor = new Executor() {
+                @Override
+                public void execute(final Runnable command) {
+                    completion.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (runtime) {
+                                command.run();
+                            }
+                        }
+                    });
+                }
+            };
+        }
+        return new ResponseStream(format, ConnectionPool.longOption(runtime,
+                ResponseStream.MAX_ELEMENT_SIZE,
+                ResponseStream.DEFAULT_MAX_ELEMENT_SIZE), timings, executor,
+                (int) ConnectionPool.longOption(runtime,
+                        ResponseStream.QUEUE_SIZE,
+                        ResponseStream.DEFAULT_QUEUE_SIZE),
+                new StreamListener(
+                scriptlet, var.textValue(), unwrap != null
+                        && unwrap.asBoolean()));
+    }
+
+    // Binds each element of a streaming response, then runs the "bind" and
+    // "assert" elements of the "stream" element on it, with the element as
+    // the response. This runs on the thread which reads the response, or
+    // on the completion executor for an asynchronous call.
+    private class StreamListener implements ResponseStream.Listener {
+        private final ObjectNode scriptlet;
+        private final String var;
+        private final boolean unwrap;
+
+        StreamListener(ObjectNode scriptlet, String var, boolean unwrap) {
+            this.scriptlet = scriptlet;
+            this.var = var;
+            this.unwrap = unwrap;
+        }
+
+        @Override
+        public void element(ResponseStream stream,
+                ResponseStream.Element element) throws UnRAVLException {
+            // an element queued when the call timed out arrives too late
+            if (done)
+                return;
+            String contentType = "application/json";
+            JsonNode value;
+            if (element.getEvent() == null) {
+                value = Json.parse(element.getText());
+            } else {
+                ObjectNode event = new ObjectNode(JsonNodeFactory.instance);
+                event.put("event", element.getEvent());
+                event.put("id", element.getId());
+                JsonNode data;
+                try {
+                    data = STREAM_MAPPER.readTree(element.getText());
+                } catch (IOException e) {
+                    data = null;
+                }
+                if (data == null) { // not JSON
+                    data = new TextNode(element.getText());
+                    contentType = "text/plain";
+                }
+                event.set("data", data);
+                value = event;
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream(
+                    element.getData().length);
+            body.write(element.getData(), 0, element.getData().length);
+            synchronized (ApiCall.this) {
+                elementResponse = new ResponseModel(body,
+                        new Header[] { new BasicHeader("Content-Type",
+                                contentType) });
+            }
+            try {
+                bind(var, unwrap ? STREAM_MAPPER.convertValue(value,
+                        Object.class) : value);
+                bind(STREAM, stream);
+                extract(script, scriptlet.get("bind"));
+                checkElement(scriptlet.get("assert"));
+            } finally {
+                synchronized (ApiCall.this) {
+                    elementResponse = null;
+                }
+            }
+        }
+    }
+
+    // Run the "assert" element of a "stream" element on one element. Passed
+    // assertions are not recorded, so that a long stream uses bounded memory.
+    private void checkElement(JsonNode assertionNode) throws UnRAVLException {
+        if (assertionNode == null)
+            return;
+        for (JsonNode s : Json.array(assertionArray(assertionNode,
+                Stage.ASSERT))) {
+            if (s.isTextual()) {
+                ObjectNode o = new ObjectNode(JsonNodeFactory.instance);
+                o.set(getRuntime().getScriptLanguage(), (TextNode) s);
+                s = o;
+            }
+            String aName = Json.firstFieldName(s);
+            Class<? extends UnRAVLAssertion> aClass = getPlugins()
+                    .getAssertions().get(aName);
+            if (aClass == null)
+                throw new UnRAVLException(
+                        "No such assertion class registered for stream keyword "
+                                + aName);
+            try {
+                UnRAVLAssertion a = aClass.newInstance();
+                a.setAssertion(Json.object(s));
+                a.check(script, Json.object(s), Stage.ASSERT, this);
+            } catch (InstantiationException e) {
+                throw new UnRAVLException("Assertion class " + aClass.getName()
+                        + " cannot be instantiated.", e);
+            } catch (IllegalAccessException e) {
+                throw new UnRAVLException("Assertion class " + aClass.getName()
+                        + " cannot be instantiated.", e);
+            }
+        }
+    }
+
+    // Fail if an element of a streaming response failed
+    private void checkStream() throws UnRAVLException {
+        if (canceled() || responseStream == null
+                || responseStream.getFailures() == 0)
+            return;
+        failedAssertions.add(BaseUnRAVLAssertion.of(script, streamScriptlet()));
+        UnRAVLException first = responseStream.getFirstFailure();
+        throw new UnRAVLAssertionException(String.format(
+                "%d of %d stream elements failed. %s",
+                responseStream.getFailures(), responseStream.getCount(),
+                first.getMessage()), first);
+    }
+
+    /**
+     * @return the stream which received the response body, if the script has
+     *         a <code>"stream"</code> element; else null
+     */
+    public ResponseStream getResponseStream() {
+        return responseStream;
+    }
+
+    /**
+     * @param headerName
+     *            a header name, in any case
+     * @return the first response header with the name, or null
+     */
+    public Header getResponseHeader(String headerName) {
+        return getResponse().getHeader(headerName);
+    }
+
+    /**
+     * Return the parsed views of the response, which extractors and
+     * assertions share so that the body is decoded and parsed at most once.
+     * While the scriptlets of a <code>"stream"</code> element run, this is
+     * the current element of the stream.
+     *
+     * @return the response model
+     */
+    public synchronized ResponseModel getResponse() {
+        if (elementResponse != null)
+            return elementResponse;
+        if (response == null)
+            response = new ResponseModel(responseBody, responseHeaders);
+        return response;
+    }
+
     // read all the values in "env" and bind them to this instance's env
     // Scalars are bound as Java scalar types; JSON arrays and objects
     // are bound as JsonNode objects
@@ -399,7 +938,8 @@ public class ApiCall {
                         break;
                     }
                 } else {
-                    value = Json.expand(n, script);
+                    // only the parts which contain variables are copied
+                    value = Json.expand(n, script, true);
                 }
                 script.bind(name, value);
             }
@@ -449,29 +989,60 @@ public class ApiCall {
         return getRuntime().bound(key);
     }
 
-    public InputStream getResponseBodyAsInputStream() {
-        ByteArrayInputStream i = new ByteArrayInputStream(getResponseBody()
-                .toByteArray());
-        return i;
+    /**
+     * @return a stream which reads the response body without copying it
+     * @throws UnRAVLException
+     *             if a body which was spilled to a file cannot be read
+     */
+    public InputStream getResponseBodyAsInputStream() throws UnRAVLException {
+        try {
+            return getResponseBody().getInputStream();
+        } catch (IOException e) {
+            throw new UnRAVLException(e.getMessage(), e);
+        }
     }
 
     public void executeAPI() throws UnRAVLException {
+        if (prepareRequest())
+            executeAPI(transport());
+    }
+
+    // The transport named by the "transport" element of the script or its
+    // templates, else the runtime's transport
+    private UnRAVLTransport transport() throws UnRAVLException {
+        for (UnRAVL s = script; s != null; s = s.getTemplate()) {
+            JsonNode name = s.getRoot().get("transport");
+            if (name != null && name.isTextual())
+                return getRuntime().getTransport(s.expand(name.textValue()));
+        }
+        return getRuntime().getTransport();
+    }
+
+    // Set the method and URI and authenticate.
+    // Return false if there is no request to send.
+    private boolean prepareRequest() throws UnRAVLException {
         if (canceled()) {
             cancelled = true;
-            return;
+            return false;
         }
         if (script.getMethod() == null || script.getURI() == null) {
             logger.warn("Warning: Non-template script " + script.getName()
                     + " does not define an HTTP method or URI.");
-            return;
+            return false;
         }
         setMethod(script.getMethod());
-        RestTemplate restTemplate = getRuntime().getPlugins().getRestTemplate();
-        executeAPIWithRestTemplate(restTemplate);
-    }
-
-    private void executeAPIWithRestTemplate(RestTemplate restTemplate)
-            throws UnRAVLException {
+        long remaining = getRuntime().getRemainingTime();
+        if (remaining <= 0) {
+            logger.error("Deadline "
+                    + getRuntime().binding(UnRAVLRuntime.DEADLINE)
+                    + "ms exceeded; not calling " + method + " "
+                    + script.getURI());
+            deadlineExceeded();
+            return false;
+        }
+        timeouts = timeouts(script);
+        if (remaining != Long.MAX_VALUE)
+            timeouts = timeouts.withDeadline(remaining);
         // authenticate first, since this may add new (Authentication) headers.
         // Set the expanded URI first, since auth nodes may access it
         setURI(script.expand(script.getURI()));
@@ -484,118 +1055,184 @@ public class ApiCall {
         // vars that should
         // be expanded in the URI
         setURI(script.expand(getURI()));
-        // Use RequestCallback and ResponseExtractor
-        // to handle all request bodies, including binary.
-        // RestTemplate.exchange can't handle binary byte[] body
-
-        final RequestCallback requestCallback = new RequestCallback() {
-
-            @Override
-            public void doWithRequest(final ClientHttpRequest request)
-                    throws IOException {
-                final HttpHeaders headers = mapHeaders(script
-                        .getRequestHeaders());
-                request.getHeaders().putAll(headers);
-                if (requestStream != null)
-                    Binary.copy(requestStream, request.getBody());
-                ;
-            }
-        };
-        final ResponseExtractor<InternalResponse> responseExtractor = new ResponseExtractor<InternalResponse>() {
-            @Override
-            public InternalResponse extractData(ClientHttpResponse response)
-                    throws IOException {
-                httpStatus = response.getStatusCode().value();
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                Binary.copy(response.getBody(), baos);
-                return new InternalResponse(response.getStatusCode(),
-                        baos.toByteArray(), response.getHeaders());
-            }
-        };
+        String reason = getRuntime().getCircuitBreaker().check(getURI());
+        if (reason != null) {
+            shortCircuit(reason);
+            return false;
+        }
+        circuitPending = true;
+        return true;
+    }
 
-        long start = System.currentTimeMillis();
+    // The host's circuit is open: do not wait for another connection
+    // failure. Mark this call skipped, with the preset status (501) and an
+    // empty response, but do not assert the status: the runtime counts
+    // skipped calls apart from failed assertions.
+    private void shortCircuit(String reason) throws UnRAVLException {
+        skipped = true;
+        skipReason = reason;
+        logger.warn(method.name() + " " + getURI() + " skipped: " + reason);
+        startRequest();
+        getRuntime().shortCircuited();
+    }
+
+    // The runtime's timeouts, overridden by the "timeout" elements of the
+    // script's templates and then the script
+    private Timeouts timeouts(UnRAVL script) throws UnRAVLException {
+        if (script == null)
+            return Timeouts.fromRuntime(getRuntime());
+        Timeouts inherited = timeouts(script.getTemplate());
+        JsonNode spec = script.getRoot().get("timeout");
+        return spec == null ? inherited : inherited.merge(spec);
+    }
+
+    // The runtime's deadline budget has run out: abandon this call and
+    // cancel the rest of the run
+    private void deadlineExceeded() {
+        timeoutPhase = Timeouts.Phase.DEADLINE;
+        cancelled = true;
+        getRuntime().cancel();
+    }
+
+    private void executeAPI(UnRAVLTransport transport) throws UnRAVLException {
+        startRequest();
         try {
-            logger.info(method.name() + " " + getURI());
-            // create response body and a valid HTTP response code before the
-            // call
-            // so that even on exceptions, we have a non-null response
-            responseBody = new ByteArrayOutputStream();
-            httpStatus = HttpStatus.NOT_IMPLEMENTED.value();
-            InternalResponse response = restTemplate.execute(getURI(),
-                    HttpMethod.valueOf(method.name()), requestCallback,
-                    responseExtractor);
-            setResponseHeaders(mapHeaders(response.headers));
-            responseBody.write(response.responseBody);
-            responseBody.close();
-            long end = System.currentTimeMillis();
-            logger.info(script.getMethod() + " took " + (end - start)
-                    + "ms, returned HTTP status " + response.status);
-            log("Response body:", responseBody, "Response headers:",
-                    response.headers);
-            assertStatus(httpStatus);
+            TransportRequest request = newTransportRequest(false);
+            TransportResponse response = transport.execute(request,
+                    responseSink());
+            readResponse(response);
         } catch (IOException e) {
-            throwException(e);
-        } catch (HttpStatusCodeException e) {
-            // this happens if the host name cannot be resolved.
-            // This and other exceptions below won't happen with the
-            // default RestTemplate created in UnRAVLPlugins, but may
-            // occur if the client injects their own RestTemplate
-            // instance that uses the default error handler which
-            // throws exceptions.
-            assertStatus(e.getStatusCode().value());
-        } catch (ResourceAccessException e) {
-            // execute can also throw ResourceAccessException if host does not
-            // resolve.
-            assertStatus(httpStatus);
-        } catch (RestClientException e) {
-            // execute can also throw RestClientException
-            // but that exception does not convey a HTTP status code.
-            // We assume 400 if we get RestClientException
-            assertStatus(httpStatus);
-        } catch (RuntimeException e) { // Spring RestTemplate can
-                                       // throw NestedRuntimeException
+            requestFailed(e);
+        } catch (RuntimeException e) {
             throwException(e);
         }
-
     }
 
-    private class InternalResponse {
-        private HttpStatus status;
-        private byte[] responseBody;
-        private HttpHeaders headers;
-
-        public InternalResponse(HttpStatus status, byte[] responseBody,
-                HttpHeaders headers) {
-            super();
-            this.status = status;
-            this.responseBody = responseBody;
-            this.headers = headers;
+    // create response body and a valid HTTP response code before the call
+    // so that even on exceptions, we have a non-null response
+    private void startRequest() throws UnRAVLException {
+        logger.info(method.name() + " " + getURI());
+        responseBody = new ResponseBuffer(ConnectionPool.longOption(
+                getRuntime(), ResponseBuffer.THRESHOLD,
+                ResponseBuffer.DEFAULT_THRESHOLD));
+        // digest the body as it arrives, rather than reading it again
+        try {
+            responseBody.computeDigests(DigestAssertion.algorithms(script));
+        } catch (NoSuchAlgorithmException e) {
+            // the assertion reports it
         }
+        responseHeaders = new Header[0];
+        httpStatus = HttpStatus.NOT_IMPLEMENTED.value();
+        response = null;
     }
 
-    // Convert from Apache Headers Spring Headers
-    private HttpHeaders mapHeaders(List<Header> requestHeaders) {
-        HttpHeaders headers = new HttpHeaders();
-        for (Header h : requestHeaders) {
+    // Start the clock, create the response stream, if any, which times its
+    // elements by that clock, and expand and log the request headers
+    private TransportRequest newTransportRequest(boolean async)
+            throws UnRAVLException {
+        timings = new Timings();
+        responseStream = newResponseStream(async);
+        List<Header> headers = new ArrayList<Header>();
+        for (Header h : script.getRequestHeaders()) {
             String value = getScript().expand(h.getValue());
             logger.info(String.format("Request header: %s: %s", h.getName(),
                     possiblyMaskedHeaderValue(h)));
-            headers.add(h.getName(), value);
+            headers.add(new BasicHeader(h.getName(), value));
         }
-        return headers;
+        requestHeaders = headers;
+        if (requestEncoding != null
+                && ContentCoding.contentEncoding(headers
+                        .toArray(new Header[headers.size()])) == null)
+            headers.add(new BasicHeader(ContentCoding.CONTENT_ENCODING,
+                    requestEncoding));
+        else if (requestEncoding == null
+                && requestStream instanceof ByteArrayBody)
+            requestLength = requestWireLength = ((ByteArrayBody) requestStream)
+                    .available();
+        else if (requestEncoding == null
+                && requestStream instanceof StreamingBody)
+            requestLength = requestWireLength = ((StreamingBody) requestStream)
+                    .length();
+        expectContinue(headers);
+        return new TransportRequest(method, getURI(), headers, requestStream,
+                timeouts, timings);
     }
 
-    // Convert from Spring Headers to Apache Headers
-    private Header[] mapHeaders(HttpHeaders responseHeaders) {
-        ArrayList<Header> h = new ArrayList<Header>(responseHeaders.size());
-        for (Entry<String, List<String>> es : responseHeaders.entrySet()) {
-            String name = es.getKey();
-            for (String v : es.getValue()) {
-                Header header = new BasicHeader(name, v);
-                h.add(header);
-            }
+    // Ask the server to accept a large request body before it is sent
+    private void expectContinue(List<Header> headers) {
+        long threshold = ConnectionPool.longOption(getRuntime(),
+                TransportRequest.EXPECT_CONTINUE, -1);
+        if (threshold < 0 || requestStream == null)
+            return;
+        if (requestWireLength >= 0 && requestWireLength < threshold)
+            return;
+        for (Header h : headers) {
+            if (TransportRequest.EXPECT.equalsIgnoreCase(h.getName()))
+                return;
         }
-        return h.toArray(new Header[h.size()]);
+        headers.add(new BasicHeader(TransportRequest.EXPECT, "100-continue"));
+    }
+
+    private void readResponse(TransportResponse response)
+            throws UnRAVLException {
+        timings.end();
+        circuitPending = false;
+        getRuntime().getCircuitBreaker().succeeded(getURI());
+        httpStatus = response.getStatus();
+        protocolVersion = response.getProtocolVersion();
+        responseWireLength = response.getWireLength();
+        responseEncoding = response.getContentEncoding();
+        setResponseHeaders(response.getHeaders());
+        try {
+            responseBody.close();
+        } catch (IOException e) {
+            throwException(e);
+        }
+        if (responseStream != null) {
+            // process a final element which has no line end, and any
+            // elements still queued for the completion executor
+            responseStream.close();
+            responseStream.drain();
+            bind(STREAM, responseStream);
+            logger.info("Stream: " + responseStream);
+        }
+        logger.info(script.getMethod() + " took "
+                + String.format("%.2f", Timings.millis(timings.getTotal()))
+                + "ms, returned HTTP status " + httpStatus
+                + (protocolVersion == null ? "" : " via " + protocolVersion)
+                + ", " + responseBody.length() + " bytes"
+                + (responseEncoding == null ? "" : " (" + responseWireLength
+                        + " bytes " + responseEncoding + ")"));
+        logger.info("Timings: " + timings);
+        log("Response body:", responseBody, "Response headers:",
+                responseHeaders);
+        assertStatus(httpStatus);
+    }
+
+    // The request could not be sent or the response could not be read,
+    // such as when the host does not resolve or a timeout expired.
+    // Assert the preset status (501)
+    private void requestFailed(Throwable failure) throws UnRAVLException {
+        if (timings != null)
+            timings.end();
+        circuitPending = false;
+        getRuntime().getCircuitBreaker().failed(getURI(), failure);
+        timeoutPhase = Timeouts.phase(failure);
+        if (timeoutPhase == null) {
+            logger.error(method.name() + " " + getURI() + " failed: "
+                    + failure.getMessage());
+        } else if (timeoutPhase == Timeouts.Phase.CALL
+                && timeouts.isDeadline()) {
+            logger.error(method.name() + " " + getURI()
+                    + " aborted: deadline exceeded");
+            deadlineExceeded();
+            return;
+        } else {
+            logger.error(method.name() + " " + getURI() + " timed out ("
+                    + timeoutPhase.name().toLowerCase() + " timeout, "
+                    + timeouts + "): " + failure.getMessage());
+        }
+        assertStatus(httpStatus);
     }
 
     private void setMethod(Method method) {
@@ -619,7 +1256,9 @@ public class ApiCall {
     }
 
     /**
-     * @return the request body, wrapped in a ByteArrayOutputStream
+     * @return the request body, wrapped in a ByteArrayOutputStream. A
+     *         {@link StreamingBody} is read into memory, but remains
+     *         available to send.
      * @deprecated Use getRequestStream() instead
      */
     public ByteArrayOutputStream getRequestBody() {
@@ -628,6 +1267,12 @@ public class ApiCall {
                 return null;
             requestBody = new ByteArrayOutputStream();
             try {
+                if (requestStream instanceof StreamingBody) {
+                    // read a copy, so the body can still be sent
+                    Binary.copy(((StreamingBody) requestStream).duplicate(),
+                            requestBody);
+                    return requestBody;
+                }
                 Binary.copy(requestStream, requestBody);
             } catch (IOException e) {
                 logger.error(e);
@@ -641,7 +1286,11 @@ public class ApiCall {
         return requestStream;
     }
 
-    public ByteArrayOutputStream getResponseBody() {
+    /**
+     * @return the response body, which is in a temporary file if it is larger
+     *         than <code>unravl.response.spillThreshold</code> bytes
+     */
+    public ResponseBuffer getResponseBody() {
         return responseBody;
     }
 
@@ -649,12 +1298,69 @@ public class ApiCall {
         return httpStatus;
     }
 
+    /**
+     * @return the protocol of the response, such as "HTTP/1.1" or "HTTP/2.0",
+     *         or null if the call was not made or the transport does not
+     *         report it
+     */
+    public String getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * @return the content coding of the request body, such as "gzip", from
+     *         the body's "compress" option, or null
+     */
+    public String getRequestEncoding() {
+        return requestEncoding;
+    }
+
+    /**
+     * @return the size of the request body before compression, or -1 if it
+     *         is not known
+     */
+    public long getRequestLength() {
+        return requestLength;
+    }
+
+    /**
+     * @return the size of the request body as sent, after compression, or -1
+     *         if it is not known
+     */
+    public long getRequestWireLength() {
+        return requestWireLength;
+    }
+
+    /**
+     * @return the content coding which was removed from the response body,
+     *         such as "gzip", or null if the response was not compressed
+     */
+    public String getResponseEncoding() {
+        return responseEncoding;
+    }
+
+    /**
+     * @return the size of the response body after decoding
+     */
+    public long getResponseLength() {
+        return responseBody == null ? -1 : responseBody.length();
+    }
+
+    /**
+     * @return the size of the response body as received, before decoding, or
+     *         -1 if the transport does not report it
+     */
+    public long getResponseWireLength() {
+        return responseWireLength;
+    }
+
     public Header[] getResponseHeaders() {
         return responseHeaders;
     }
 
-    public void setResponseHeaders(Header responseHeaders[]) {
+    public synchronized void setResponseHeaders(Header responseHeaders[]) {
         this.responseHeaders = responseHeaders;
+        response = null;
     }
 
     // Check that the httpStatusCode matches the expected status
@@ -815,21 +1521,19 @@ public class ApiCall {
     }
 
     private void log(String bodyLabel, ByteArrayOutputStream bytes,
-            String headersLabel, HttpHeaders headers) {
+            String headersLabel, Header[] headers) {
 
-        if (headers != null && headers.size() > 0) {
+        if (headers != null && headers.length > 0) {
             logger.info(headersLabel);
-            Header hs[] = mapHeaders(headers);
-            for (Header h : hs) {
+            for (Header h : headers) {
                 // Don't log easily decoded credentials
                 logger.info(h.getName() + ": " + possiblyMaskedHeaderValue(h));
             }
         }
-        MediaType contentType = headers.getContentType();
+        Header contentType = getResponseHeader("Content-Type");
         if (contentType == null)
             return;
-        Header ct[] = new Header[] { new BasicHeader("Content-Type",
-                contentType.toString()) };
+        Header ct[] = new Header[] { contentType };
         if (script.bodyIsTextual(ct))
             try {
                 if (bytes == null || bytes.size() == 0) {
@@ -837,6 +1541,12 @@ public class ApiCall {
                         logger.warn("Warning: Non-HEAD request returned a text Content-Type header but defines no body.");
                     return;
                 }
+                if (bytes instanceof ResponseBuffer
+                        && ((ResponseBuffer) bytes).isSpilled()) {
+                    logger.info(bodyLabel + " " + ((ResponseBuffer) bytes).length()
+                            + " bytes in " + ((ResponseBuffer) bytes).getFile());
+                    return;
+                }
                 if (logger.isInfoEnabled()) {
                     logger.info(bodyLabel);
                     if (script.bodyIsJson(ct) && bytes.size() > 0) {
@@ -900,6 +1610,18 @@ public class ApiCall {
             out.print('-');
         out.println();
         out.println(title);
+        if (getProtocolVersion() != null)
+            out.println("Protocol: " + getProtocolVersion());
+        if (getTimings() != null && getTimings().getTotal() >= 0)
+            out.println("Timings: " + getTimings());
+        if (getRequestEncoding() != null)
+            out.println(String.format("Request body: %d bytes, %d bytes %s",
+                    getRequestLength(), getRequestWireLength(),
+                    getRequestEncoding()));
+        if (getResponseEncoding() != null)
+            out.println(String.format("Response body: %d bytes, %d bytes %s",
+                    getResponseLength(), getResponseWireLength(),
+                    getResponseEncoding()));
 
         if (getException() != null) {
             out.println("Caught exception running test " + title);
@@ -908,9 +1630,17 @@ public class ApiCall {
         report(getPassedAssertions(), "Passed", out);
         report(getFailedAssertions(), "Failed", out);
         report(getSkippedAssertions(), "Skipped", out);
+        if (getTimeoutPhase() == Timeouts.Phase.DEADLINE)
+            out.println("The deadline was exceeded.");
+        else if (wasTimedOut())
+            out.println("This call timed out ("
+                    + getTimeoutPhase().name().toLowerCase() + " timeout).");
         if (wasCancelled())
             out.println("This call was cancelled.");
-        if (wasSkipped())
+        if (getSkipReason() != null)
+            out.println("This call was skipped because " + getSkipReason()
+                    + ".");
+        else if (wasSkipped())
             out.println("This call was skipped because preconditions.");
 
         out.flush();
@@ -1,5 +1,7 @@
 package com.sas.unravl;
 
+import com.sas.unravl.http.Cassette;
+import com.sas.unravl.http.Har;
 import com.sas.unravl.ui.UnRAVLFrame;
 
 import java.io.IOException;
@@ -68,13 +70,15 @@ public final class Main {
     static boolean redirectOutput = true;
 
     // Scan for --v | -verbose | -q | --quiet | --stdout and set the log4j configuration
+    // and for --record file | --replay file and set the cassette properties.
     // remove those args from the arg list and return the remainder
     // Print help and exit on -h | --help options.
     private static String[] preProcessArgs(String[] argv) {
         ArrayList<String> args = new ArrayList<String>();
         String log4j = null;
         ui = true;
-        for (String arg : argv) {
+        for (int i = 0; i < argv.length; i++) {
+            String arg = argv[i];
             if (arg.trim().length() == 0) // Ignore "" on command line
                 continue;
             else if (arg.matches("^--?h(elp)?"))
@@ -85,6 +89,17 @@ public final class Main {
                 log4j = "log4j-trace.properties";
             else if (arg.matches("^--?stdout"))
                 redirectOutput = false;
+            else if (arg.matches("^--?har")) {
+                if (i + 1 == argv.length)
+                    usage();
+                System.setProperty(Har.FILE, argv[++i]);
+            }
+            else if (arg.matches("^--?(record|replay)")) {
+                if (i + 1 == argv.length)
+                    usage();
+                System.setProperty(Cassette.FILE, argv[++i]);
+                System.setProperty(Cassette.MODE, arg.replaceFirst("^--?", ""));
+            }
             else {
                 args.add(arg);
                 ui = false;
@@ -101,18 +116,22 @@ public final class Main {
         System.out.println("");
         System.out.println("Synopsis:");
         System.out.println("");
-        System.out.println("    unravl.sh [-q|--quiet|-v|--verbose|-h|--help] <script-file>");
+        System.out.println("    unravl.sh [-q|--quiet|-v|--verbose|-h|--help] [--record|--replay <cassette-file>] [--har <har-file>] <script-file>");
         System.out.println("");
         System.out.println("Examples:");
         System.out.println("");
         System.out.println("    unravl.sh --verbose hello.json");
         System.out.println("    unravl.sh -q hello.json");
+        System.out.println("    unravl.sh --record hello.ndjson hello.json");
         System.out.println("");
         System.out.println("Options:");
         System.out.println("   -q | --quiet : decrease the logging level.");
         System.out.println("   -v | --verbose : increase the logging level.");
         System.out.println("   -h | --help : Display this message and exit.");
         System.out.println("   --stdout : In interactive mode, write output to the standard output, not the Output panel.");
+        System.out.println("   --record <cassette-file> : Record each HTTP request and response to the file.");
+        System.out.println("   --replay <cassette-file> : Serve HTTP responses from a recorded file, without using the network.");
+        System.out.println("   --har <har-file> : Write the requests, responses and their timings to a HAR (HTTP Archive) file.");
         System.out.println("");
         System.out.println("If you do not specify any <script-file> options, start UnRAVL in");
         System.out.println("interactive mode, from which you can edit and execute scripts.");
@@ -190,6 +209,8 @@ public final class Main {
             int rc = runtime.report();
             t.printStackTrace(System.err);
             return rc != 0 ? rc : 1;
+        } finally {
+            runtime.close();
         }
     }
 
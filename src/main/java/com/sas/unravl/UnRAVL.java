@@ -1,10 +1,15 @@
 package com.sas.unravl;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
@@ -16,8 +21,14 @@ import org.apache.log4j.Logger;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.sas.unravl.assertions.UnRAVLAssertion;
 import com.sas.unravl.assertions.UnRAVLAssertion.Stage;
+import com.sas.unravl.assertions.UnRAVLAssertionException;
 import com.sas.unravl.extractors.UnRAVLExtractor;
 import com.sas.unravl.util.Json;
 
@@ -60,6 +71,10 @@ public class UnRAVL {
     private Method method;
     private String uri;
     private List<UnRAVLExtractor> extractors;
+    // the objects and arrays of this script which contain no '{'
+    private final Set<JsonNode> placeholderFree = Collections
+            .synchronizedSet(Collections
+                    .newSetFromMap(new IdentityHashMap<JsonNode, Boolean>()));
     static Logger logger = Logger.getLogger(UnRAVL.class);
 
     public UnRAVL(UnRAVLRuntime runtime) {
@@ -118,6 +133,18 @@ public class UnRAVL {
         return root;
     }
 
+    /**
+     * The objects and arrays of this script, compared by identity, which
+     * {@link Json#expand(JsonNode, UnRAVL, boolean)} found contain no
+     * <code>'{'</code>, so that it need not expand them again each time the
+     * script runs.
+     *
+     * @return the set of placeholder-free nodes; it is thread safe
+     */
+    public Set<JsonNode> getPlaceholderFreeNodes() {
+        return placeholderFree;
+    }
+
     public String getName() {
         return name;
     }
@@ -130,7 +157,9 @@ public class UnRAVL {
                 runtime.setTemplate(name, this);
         } else
             name = new Date().toString();
-        if (isRunnable())
+        // generated names cannot be referenced, so a long run with a
+        // limited history does not keep them
+        if (isRunnable() && (nameNode != null || !runtime.isHistoryLimited()))
             runtime.getScripts().put(name, this);
         return;
     }
@@ -235,6 +264,36 @@ public class UnRAVL {
             defineAPICall(script.getTemplate());
     }
 
+    /**
+     * Find the URI of the API call in a script, before the script is run, as
+     * the runtime does: the value of the first HTTP method
+     * element, else the URI of the script's template (if the template has
+     * already been defined.) Variables in the URI are not expanded.
+     *
+     * @param runtime
+     *            the runtime which will run the script
+     * @param root
+     *            the script
+     * @return the unexpanded URI, or null if none is found
+     */
+    static String apiURI(UnRAVLRuntime runtime, ObjectNode root) {
+        for (Map.Entry<String, JsonNode> f : Json.fields(root)) {
+            if (httpMethod(f.getKey().toUpperCase()) != null
+                    && f.getValue().isTextual())
+                return f.getValue().textValue();
+        }
+        JsonNode tempNode = root.get(TEMPLATE_KEY);
+        if (tempNode != null && tempNode.isTextual()) {
+            String templateName = runtime.expand(tempNode.textValue());
+            if (!templateName.endsWith(TEMPLATE_EXTENSION))
+                templateName += TEMPLATE_EXTENSION;
+            UnRAVL template = runtime.getTemplate(templateName);
+            if (template != null)
+                return template.getURI();
+        }
+        return null;
+    }
+
     private static Method httpMethod(String methodName) {
         for (Method m : Method.values()) {
             if (m.name().equals(methodName)) {
@@ -284,6 +343,43 @@ public class UnRAVL {
         }
     }
 
+    /**
+     * Run this script without blocking on its HTTP request. See
+     * {@link ApiCall#runAsync()}. The call is reported when it completes, and
+     * a failed assertion increments the runtime's failed assertion count, as
+     * it does for scripts run via {@link UnRAVLRuntime#execute(String[])}.
+     *
+     * @return a future which yields the completed API call
+     * @throws UnRAVLException
+     *             if the API call cannot be created
+     * @throws IOException
+     *             if the API call cannot be created
+     */
+    public ListenableFuture<ApiCall> runAsync() throws UnRAVLException,
+            IOException {
+        final ApiCall apiCall = new ApiCall(this);
+        // complete the returned future only after reporting and counting
+        final SettableFuture<ApiCall> done = SettableFuture.create();
+        Futures.addCallback(apiCall.runAsync(), new FutureCallback<ApiCall>() {
+            @Override
+            public void onSuccess(ApiCall call) {
+                call.report(System.out);
+                done.set(call);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.error(t.getMessage() + " while running UnRAVL script "
+                        + getName());
+                if (t instanceof UnRAVLAssertionException)
+                    getRuntime().incrementFailedAssertionCount();
+                apiCall.report(System.out);
+                done.setException(t);
+            }
+        }, MoreExecutors.directExecutor());
+        return done;
+    }
+
     /** Stop execution. */
     public void cancel() {
         getRuntime().cancel();
@@ -361,6 +457,34 @@ public class UnRAVL {
         return statusAssertion(script.getTemplate());
     }
 
+    /**
+     * Find the assertions of a kind in a script's "assert" element and those
+     * of its templates, before the script runs.
+     *
+     * @param script
+     *            the script
+     * @param name
+     *            the name of the assertion, such as "digest"
+     * @return the assertions, which may be empty
+     * @throws UnRAVLException
+     *             if an "assert" element is not valid
+     */
+    public static List<ObjectNode> assertions(UnRAVL script, String name)
+            throws UnRAVLException {
+        List<ObjectNode> found = new ArrayList<ObjectNode>();
+        for (; script != null; script = script.getTemplate()) {
+            JsonNode node = ApiCall.assertionArray(script.root.get("assert"),
+                    Stage.ASSERT);
+            if (node == null)
+                continue;
+            for (JsonNode n : Json.array(node)) {
+                if (n.isObject() && Json.firstFieldName(n).equals(name))
+                    found.add(Json.object(n));
+            }
+        }
+        return found;
+    }
+
     public boolean isRunnable() {
         return name != null && !name.endsWith(TEMPLATE_EXTENSION);
     }
@@ -369,6 +493,10 @@ public class UnRAVL {
         return getRuntime().expand(textValue);
     }
 
+    public void expand(Reader in, Writer out) throws IOException {
+        getRuntime().expand(in, out);
+    }
+
     public Object eval(String expression) throws UnRAVLException {
         return evalWith(expression, getRuntime().getScriptLanguage());
     }
@@ -5,25 +5,29 @@ import com.sas.unravl.annotations.UnRAVLAssertionPlugin;
 import com.sas.unravl.annotations.UnRAVLAuthPlugin;
 import com.sas.unravl.annotations.UnRAVLExtractorPlugin;
 import com.sas.unravl.annotations.UnRAVLRequestBodyGeneratorPlugin;
+import com.sas.unravl.annotations.UnRAVLTransportPlugin;
 import com.sas.unravl.assertions.UnRAVLAssertion;
 import com.sas.unravl.auth.CredentialsProvider;
 import com.sas.unravl.auth.NetrcCredentialsProvider;
 import com.sas.unravl.auth.UnRAVLAuth;
 import com.sas.unravl.extractors.UnRAVLExtractor;
 import com.sas.unravl.generators.UnRAVLRequestBodyGenerator;
+import com.sas.unravl.http.ConnectionPool;
+import com.sas.unravl.http.ConnectionPool.UnRAVLRedirectStrategy;
+import com.sas.unravl.http.InProcessHandler;
+import com.sas.unravl.http.Timeouts;
+import com.sas.unravl.http.UnRAVLTransport;
 
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
 import javax.script.ScriptEngineManager;
 
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpHead;
-import org.apache.http.impl.client.DefaultRedirectStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
@@ -45,6 +49,9 @@ public class UnRAVLPlugins {
     private Map<String, Class<? extends UnRAVLAssertion>> assertions = new HashMap<String, Class<? extends UnRAVLAssertion>>();
     private Map<String, Class<? extends UnRAVLExtractor>> extractors = new HashMap<String, Class<? extends UnRAVLExtractor>>();
     private Map<String, Class<? extends UnRAVLAuth>> auth = new HashMap<String, Class<? extends UnRAVLAuth>>();
+    private Map<String, Class<? extends UnRAVLTransport>> transports = new HashMap<String, Class<? extends UnRAVLTransport>>();
+
+    private Map<String, InProcessHandler> inProcessHandlers = new ConcurrentHashMap<String, InProcessHandler>();
 
     private CredentialsProvider credentialsProvider;
 
@@ -140,6 +147,15 @@ public class UnRAVLPlugins {
         }
     }
 
+    public void addTransport(Class<? extends UnRAVLTransport> class1) {
+        UnRAVLTransportPlugin a = class1
+                .getAnnotation(UnRAVLTransportPlugin.class);
+        for (String key : a.value()) {
+            logger.trace("Define transport '" + key + "' via " + class1);
+            transports.put(key, class1);
+        }
+    }
+
     public Map<String, Class<? extends UnRAVLAssertion>> getAssertions() {
         return assertions;
     }
@@ -156,6 +172,42 @@ public class UnRAVLPlugins {
         return auth;
     }
 
+    public Map<String, Class<? extends UnRAVLTransport>> getTransports() {
+        return transports;
+    }
+
+    /**
+     * Register a handler for API calls sent with the
+     * {@link com.sas.unravl.http.InProcessTransport}. The handler receives
+     * every request whose URI starts with baseURI (unless another handler has
+     * a longer matching base URI.)
+     *
+     * @param baseURI
+     *            the base URI, such as "http://localhost:8080/orders"
+     * @param handler
+     *            the handler
+     */
+    public void addInProcessHandler(String baseURI, InProcessHandler handler) {
+        logger.trace("Define in-process handler for '" + baseURI + "' via "
+                + handler);
+        inProcessHandlers.put(baseURI, handler);
+    }
+
+    /**
+     * Remove the in-process handler for a base URI
+     *
+     * @param baseURI
+     *            the base URI passed to
+     *            {@link #addInProcessHandler(String, InProcessHandler)}
+     */
+    public void removeInProcessHandler(String baseURI) {
+        inProcessHandlers.remove(baseURI);
+    }
+
+    public Map<String, InProcessHandler> getInProcessHandlers() {
+        return inProcessHandlers;
+    }
+
     /**
      * log the availability of scripting engines supported in this environment.
      */
@@ -188,13 +240,34 @@ public class UnRAVLPlugins {
 
     /**
      * @return the default RestTemplate instance that UnRAVL and ApiCall will
-     *         use
+     *         use, or a new RestTemplate if none has been set.
      */
     public RestTemplate getRestTemplate() {
         return defaultRestTemplate == null ? newRestTemplate()
                 : defaultRestTemplate;
     }
 
+    /**
+     * @return true if a default RestTemplate has been set via
+     *         {@link #setRestTemplate(RestTemplate)}
+     */
+    public boolean hasRestTemplate() {
+        return defaultRestTemplate != null;
+    }
+
+    /**
+     * Create a RestTemplate with its own HTTP client. See
+     * {@link #newRestTemplate(HttpClient)}
+     * 
+     * @return a RestTemplate instance to use for making HTTP calls when running
+     *         UnRAVL scripts.
+     */
+    public static RestTemplate newRestTemplate() {
+        final HttpClient httpClient = HttpClientBuilder.create()
+                .setRedirectStrategy(new UnRAVLRedirectStrategy()).build();
+        return newRestTemplate(httpClient);
+    }
+
     /**
      * This RestTemplate uses HttpComponentsClientHttpRequestFactory that
      * follows redirect for GET and HEAD calls. We use
@@ -211,10 +284,31 @@ public class UnRAVLPlugins {
      * body.
      * </p>
      * 
+     * @param httpClient
+     *            the Apache HTTP client which executes requests, such as the
+     *            client of a runtime's {@link ConnectionPool}
+     * @return a RestTemplate instance to use for making HTTP calls when running
+     *         UnRAVL scripts. Its connect and read timeouts are set from the
+     *         system properties <code>unravl.timeout.connect</code> and
+     *         <code>unravl.timeout.read</code>.
+     */
+    public static RestTemplate newRestTemplate(HttpClient httpClient) {
+        return newRestTemplate(httpClient, Timeouts.fromSystemProperties());
+    }
+
+    /**
+     * Create a RestTemplate as in {@link #newRestTemplate(HttpClient)} with
+     * the given connect and read timeouts. (The call timeout is not used.)
+     *
+     * @param httpClient
+     *            the Apache HTTP client which executes requests
+     * @param timeouts
+     *            the connect and read timeouts for all requests
      * @return a RestTemplate instance to use for making HTTP calls when running
      *         UnRAVL scripts.
      */
-    public static RestTemplate newRestTemplate() {
+    public static RestTemplate newRestTemplate(HttpClient httpClient,
+            Timeouts timeouts) {
 
         final ResponseErrorHandler ignoreResponseErrors = new ResponseErrorHandler() {
 
@@ -233,22 +327,16 @@ public class UnRAVLPlugins {
             }
         };
         HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory();
-        final HttpClient httpClient = HttpClientBuilder.create()
-                .setRedirectStrategy(new UnRAVLRedirectStrategy()).build();
         factory.setHttpClient(httpClient);
+        if (timeouts.getConnect() > 0) {
+            factory.setConnectTimeout((int) timeouts.getConnect());
+            factory.setConnectionRequestTimeout((int) timeouts.getConnect());
+        }
+        if (timeouts.getRead() > 0)
+            factory.setReadTimeout((int) timeouts.getRead());
 
         RestTemplate rt = new RestTemplate(factory);
         rt.setErrorHandler(ignoreResponseErrors);
         return rt;
     }
-
-    private static final class UnRAVLRedirectStrategy extends
-            DefaultRedirectStrategy {
-
-        @Override
-        protected boolean isRedirectable(final String method) {
-            return HttpGet.METHOD_NAME.equalsIgnoreCase(method) //
-                    || HttpHead.METHOD_NAME.equalsIgnoreCase(method);
-        }
-    }
 }
@@ -2,17 +2,26 @@ package com.sas.unravl;
 
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
@@ -21,11 +30,13 @@ import javax.script.SimpleBindings;
 import org.apache.log4j.Logger;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.jayway.jsonpath.Configuration;
 import com.jayway.jsonpath.Option;
 import com.jayway.jsonpath.spi.json.JacksonJsonProvider;
@@ -35,7 +46,20 @@ import com.jayway.jsonpath.spi.mapper.MappingProvider;
 import com.sas.unravl.annotations.UnRAVLAssertionPlugin;
 import com.sas.unravl.annotations.UnRAVLExtractorPlugin;
 import com.sas.unravl.assertions.UnRAVLAssertionException;
+import com.sas.unravl.generators.ResourceCache;
 import com.sas.unravl.generators.UnRAVLRequestBodyGenerator;
+import com.sas.unravl.http.BodyStore;
+import com.sas.unravl.http.Cassette;
+import com.sas.unravl.http.CassetteTransport;
+import com.sas.unravl.http.CircuitBreaker;
+import com.sas.unravl.http.Har;
+import com.sas.unravl.http.ConnectionPool;
+import com.sas.unravl.http.ConnectionPool.Handshake;
+import com.sas.unravl.http.HttpClientTransport;
+import com.sas.unravl.http.RestTemplateTransport;
+import com.sas.unravl.http.Timeouts;
+import com.sas.unravl.http.UnRAVLTransport;
+import com.sas.unravl.util.DeferredValue;
 import com.sas.unravl.util.Json;
 import com.sas.unravl.util.VariableResolver;
 
@@ -45,11 +69,17 @@ import com.sas.unravl.util.VariableResolver;
  * expansion of strings. The runtime also contains the global mappings of
  * assertions, extractors, and request body generators, and a map of scripts and
  * templates
+ * <p>
+ * A runtime owns a {@link ConnectionPool} which is shared by all its API
+ * calls, and the {@link UnRAVLTransport transports} which send the calls'
+ * requests. Call {@link #close()} when done with a runtime to release the
+ * pooled connections.
+ * </p>
  *
  * @author DavidBiesack@sas.com
  */
 @Component
-public class UnRAVLRuntime implements Cloneable {
+public class UnRAVLRuntime implements Cloneable, Closeable {
 
     /**
      * Prefix for property names when firing a PropertyChangeEvent when a
@@ -63,11 +93,59 @@ public class UnRAVLRuntime implements Cloneable {
     // a history of the API calls we've made in this runtime
     private ArrayList<ApiCall> calls = new ArrayList<ApiCall>();
     private int failedAssertionCount;
+    // all the calls, and the calls and their failed assertions which the
+    // unravl.history policy removed from the history
+    private int callCount, droppedCallCount, droppedFailureCount,
+            shortCircuitedCount;
 
     // used to expand variable references {varName} in strings:
     private VariableResolver variableResolver;
     private String scriptLanguage;
     private boolean cancelled;
+    // created on demand by getConnectionPool()
+    private ConnectionPool connectionPool;
+    // created on demand by getCircuitBreaker()
+    private CircuitBreaker circuitBreaker;
+    // created on demand by getResourceCache()
+    private ResourceCache resourceCache;
+    // created on demand by getBodyStore()
+    private BodyStore bodyStore;
+    // opened on demand by getCassette(); null if unravl.cassette is not set
+    private Cassette cassette;
+    private boolean cassetteOpened;
+    private RestTemplate restTemplate;
+    private ExecutorService completionExecutor;
+    private ScheduledExecutorService timer;
+    // System.nanoTime() when the unravl.deadline budget runs out; 0 if not set
+    private long deadline;
+    private Map<String, UnRAVLTransport> transports = new LinkedHashMap<String, UnRAVLTransport>();
+    private List<Handshake> handshakes = new ArrayList<Handshake>();
+
+    /**
+     * The variable which names the transport used for API calls
+     */
+    public static final String TRANSPORT = "unravl.transport";
+
+    /**
+     * The variable which sets the time budget, in milliseconds, for all the
+     * API calls made by this runtime
+     */
+    public static final String DEADLINE = "unravl.deadline";
+
+    /**
+     * The variable which selects which API calls the runtime keeps in its
+     * history once their assertions have run: <code>all</code> (the
+     * default), <code>failures</code> (only calls with failed assertions or
+     * errors), or <code>summaries</code> (all calls, without their bodies).
+     * <code>"failures,summaries"</code> combines the two.
+     */
+    public static final String HISTORY = "unravl.history";
+
+    /**
+     * The variable which sets the most API calls to keep in the history; the
+     * oldest are removed first. The default, 0, keeps all of them.
+     */
+    public static final String HISTORY_LIMIT = "unravl.history.limit";
 
     public UnRAVLRuntime() {
         this(new LinkedHashMap<String, Object>());
@@ -106,6 +184,8 @@ public class UnRAVLRuntime implements Cloneable {
         variableResolver = new VariableResolver(env);
         templates = new LinkedHashMap<String, UnRAVL>();
         setScriptLanguage(runtime.getScriptLanguage());
+        resourceCache = runtime.getResourceCache();
+        bodyStore = runtime.getBodyStore();
     }
 
     /**
@@ -166,7 +246,13 @@ public class UnRAVLRuntime implements Cloneable {
      */
     public ScriptEngine interpreter(String lang) throws UnRAVLException {
         ScriptEngine engine = getPlugins().interpreter(lang);
-        SimpleBindings bindings = new SimpleBindings(getBindings());
+        // scripts read deferred values as their computed values
+        SimpleBindings bindings = new SimpleBindings(getBindings()) {
+            @Override
+            public Object get(Object key) {
+                return DeferredValue.resolve(getBindings(), key);
+            }
+        };
         engine.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
         return engine;
     }
@@ -277,7 +363,36 @@ public class UnRAVLRuntime implements Cloneable {
     public void execute(List<JsonNode> listOfScripts)
             throws JsonProcessingException, IOException, UnRAVLException {
         cancelled = false;
-        executeInternal(listOfScripts);
+        if (ConnectionPool.booleanOption(this, ConnectionPool.PREWARM)
+                && !isReplaying())
+            prewarm(listOfScripts);
+        try {
+            executeInternal(listOfScripts);
+        } finally {
+            Object har = binding(Har.FILE);
+            if (har != null && !har.toString().trim().isEmpty())
+                writeHar(new File(har.toString()));
+        }
+    }
+
+    /**
+     * Write the {@link Har HAR log} of this runtime's API calls, with the
+     * {@link com.sas.unravl.http.Timings timings} of each call. This is done
+     * automatically by {@link #execute(List)} when the variable
+     * <code>unravl.har</code> names a file.
+     *
+     * @param file
+     *            the destination file
+     */
+    public void writeHar(File file) {
+        try {
+            Har.write(getApiCalls(), file);
+            logger.info("Wrote HAR log of " + getApiCalls().size()
+                    + " API calls to " + file);
+        } catch (IOException e) {
+            logger.warn("Could not write HAR log " + file + ": "
+                    + e.getMessage());
+        }
     }
 
     public void executeInternal(List<JsonNode> listOfScripts)
@@ -403,6 +518,23 @@ public class UnRAVLRuntime implements Cloneable {
         return getVariableResolver().expand(text);
     }
 
+    /**
+     * Expand environment variables in a stream of text, as
+     * {@link #expand(String)} does, without holding the text in memory.
+     *
+     * @param in
+     *            the input text. This is read to the end but not closed.
+     * @param out
+     *            where to write the expanded text. This is flushed but not
+     *            closed.
+     * @throws IOException
+     *             if the text cannot be read or written
+     * @see VariableResolver#expand(Reader, Writer)
+     */
+    public void expand(Reader in, Writer out) throws IOException {
+        getVariableResolver().expand(in, out);
+    }
+
     /**
      * Bind a value within this runtime's environment. This will add a new
      * binding if <var>varName</var> is not yet bound, or replace the old
@@ -464,7 +596,7 @@ public class UnRAVLRuntime implements Cloneable {
      * @return the value bound to the variable
      */
     public Object binding(String varName) {
-        return env.get(varName);
+        return DeferredValue.resolve(env, varName);
     }
 
     /**
@@ -506,11 +638,12 @@ public class UnRAVLRuntime implements Cloneable {
             url = new URL(scriptFile);
         } catch (MalformedURLException e) {
         }
+        // each read parses a new tree, but the text may be cached
         if (url != null)
-            root = mapper.readTree(url);
+            root = mapper.readTree(getResourceCache().read(url));
         else {
             File f = new File(scriptFile);
-            root = mapper.readTree(f);
+            root = mapper.readTree(getResourceCache().read(f));
         }
 
         if (root.isArray()) {
@@ -523,39 +656,482 @@ public class UnRAVLRuntime implements Cloneable {
         return roots;
     }
 
-    public int report() {
-        int failed = (calls.size() == 0 ? 1 : 0);
+    /**
+     * Print a summary of this runtime's run and return its failure count,
+     * which is the number of failed assertions (or 1 if no API call was
+     * made). Calls which were skipped because their host's circuit was open
+     * are reported, but are not counted as failures.
+     *
+     * @return the number of failures
+     */
+    public synchronized int report() {
+        int failed = (callCount == 0 ? 1 : 0) + droppedFailureCount;
         for (ApiCall call : calls) {
             failed += call.getFailedAssertions().size();
         }
+        if (shortCircuitedCount > 0)
+            System.out.println(shortCircuitedCount
+                    + " API call(s) were skipped by the circuit breaker.");
         if (cancelled)
             System.out.println("UnRAVL script execution was canceled.");
         return failed;
     }
 
     /**
-     * @return a list of the API calls
+     * @return a list of the API calls in the history; see {@link #HISTORY}
      */
     public List<ApiCall> getApiCalls() {
         return calls;
     }
 
     /**
-     * @return The size of this runtime, which is the number of API calls
+     * @return The size of this runtime, which is the number of API calls in
+     *         the history
      */
     public int size() {
         return calls.size();
     }
 
+    /**
+     * @return the number of API calls made by this runtime, including calls
+     *         which are no longer in the history
+     */
+    public synchronized int getCallCount() {
+        return callCount;
+    }
+
+    /**
+     * @return the number of API calls which were skipped, without sending
+     *         their request, because the {@link #getCircuitBreaker() circuit
+     *         breaker} had opened the circuit for their host
+     */
+    public synchronized int getShortCircuitedCount() {
+        return shortCircuitedCount;
+    }
+
+    // an API call was skipped because its host's circuit is open
+    synchronized void shortCircuited() {
+        shortCircuitedCount++;
+    }
+
+    /**
+     * @return the number of API calls which the {@link #HISTORY} policy has
+     *         removed from the history
+     */
+    public synchronized int getDroppedCallCount() {
+        return droppedCallCount;
+    }
+
     public void addApiCall(ApiCall apiCall) {
-        calls.add(apiCall);
+        synchronized (this) {
+            calls.add(apiCall);
+            callCount++;
+        }
         pcs.firePropertyChange("calls", null, calls);
     }
 
+    /**
+     * @return true if {@link #HISTORY} or {@link #HISTORY_LIMIT} limits what
+     *         this runtime keeps. Scripts which do not have a name are then
+     *         not kept in {@link #getScripts()}.
+     */
+    boolean isHistoryLimited() {
+        return !historyPolicy().isEmpty()
+                || ConnectionPool.longOption(this, HISTORY_LIMIT, 0) > 0;
+    }
+
+    // The unravl.history options other than "all"
+    private List<String> historyPolicy() {
+        List<String> policy = new ArrayList<String>();
+        Object value = binding(HISTORY);
+        if (value != null) {
+            for (String option : value.toString().split(",")) {
+                option = option.trim();
+                if (option.equals("failures") || option.equals("summaries"))
+                    policy.add(option);
+                else if (!option.equals("all"))
+                    logger.warn(String.format("Ignoring unknown %s option %s",
+                            HISTORY, option));
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * Apply the {@link #HISTORY} policy to an API call whose extractors and
+     * assertions have run: remove it from the history, or dispose its bodies,
+     * and remove the oldest calls beyond the {@link #HISTORY_LIMIT}.
+     *
+     * @param call
+     *            the completed call
+     */
+    void retain(ApiCall call) {
+        List<String> policy = historyPolicy();
+        long limit = ConnectionPool.longOption(this, HISTORY_LIMIT, 0);
+        if (policy.isEmpty() && limit <= 0)
+            return;
+        synchronized (this) {
+            if (policy.contains("failures")
+                    && call.getFailedAssertions().isEmpty()
+                    && call.getException() == null)
+                drop(call);
+            else if (policy.contains("summaries"))
+                call.dispose();
+            // calls which are still running are not removed
+            for (Iterator<ApiCall> oldest = calls.iterator(); limit > 0
+                    && calls.size() > limit && oldest.hasNext();) {
+                ApiCall old = oldest.next();
+                if (old.isDone()) {
+                    oldest.remove();
+                    dropped(old);
+                }
+            }
+        }
+        pcs.firePropertyChange("calls", null, calls);
+    }
+
+    private void drop(ApiCall call) {
+        if (calls.remove(call))
+            dropped(call);
+    }
+
+    private void dropped(ApiCall call) {
+        call.dispose();
+        droppedCallCount++;
+        droppedFailureCount += call.getFailedAssertions().size();
+    }
+
     public UnRAVLPlugins getPlugins() {
         return ctx.getBean(UnRAVLPlugins.class);
     }
 
+    /**
+     * Return this runtime's connection pool, creating it on first use. The
+     * pool is configured from the environment at that time; see
+     * {@link ConnectionPool}.
+     *
+     * @return the connection pool shared by this runtime's API calls
+     */
+    public synchronized ConnectionPool getConnectionPool() {
+        if (connectionPool == null)
+            connectionPool = new ConnectionPool(this);
+        return connectionPool;
+    }
+
+    /**
+     * Return the cassette which records or replays this runtime's HTTP
+     * exchanges, opening it on first use. It is named by the variable
+     * <code>unravl.cassette</code>; see {@link Cassette}. When it is set, each
+     * transport is wrapped in a {@link CassetteTransport}.
+     *
+     * @return the cassette, or null if <code>unravl.cassette</code> is not set
+     * @throws UnRAVLException
+     *             if the cassette cannot be opened
+     */
+    public synchronized Cassette getCassette() throws UnRAVLException {
+        if (!cassetteOpened) {
+            cassette = Cassette.fromRuntime(this);
+            cassetteOpened = true;
+        }
+        return cassette;
+    }
+
+    /**
+     * @return true if API calls are served from a {@link Cassette} instead of
+     *         the network
+     * @throws UnRAVLException
+     *             if the cassette cannot be opened
+     */
+    public boolean isReplaying() throws UnRAVLException {
+        return getCassette() != null
+                && getCassette().getMode() == Cassette.Mode.REPLAY;
+    }
+
+    /**
+     * Return this runtime's circuit breaker, creating it on first use. The
+     * breaker is configured from the environment at that time; see
+     * {@link CircuitBreaker}.
+     *
+     * @return the circuit breaker shared by this runtime's API calls
+     */
+    public synchronized CircuitBreaker getCircuitBreaker() {
+        if (circuitBreaker == null)
+            circuitBreaker = CircuitBreaker.fromRuntime(this);
+        return circuitBreaker;
+    }
+
+    /**
+     * Return this runtime's cache of <code>"@file-or-URL"</code> resources,
+     * creating it on first use with the size in the environment at that time;
+     * see {@link ResourceCache}. A runtime created from another runtime
+     * shares its cache.
+     *
+     * @return the resource cache shared by this runtime's scripts
+     */
+    public synchronized ResourceCache getResourceCache() {
+        if (resourceCache == null)
+            resourceCache = ResourceCache.fromRuntime(this);
+        return resourceCache;
+    }
+
+    /**
+     * Return the store which holds the request and response bodies of this
+     * runtime's call history; see {@link BodyStore}. A runtime created from
+     * another runtime shares its store.
+     *
+     * @return the body store
+     */
+    public synchronized BodyStore getBodyStore() {
+        if (bodyStore == null)
+            bodyStore = new BodyStore();
+        return bodyStore;
+    }
+
+    /**
+     * Open pooled connections to the hosts that a list of scripts will call,
+     * before running them, so that DNS, TCP and TLS handshake time is not
+     * included in the time logged for each API call. The URIs are found as
+     * {@link UnRAVL} finds them (from the method elements of each script or
+     * its template) and expanded with the current environment; URIs which
+     * still contain unbound variables are skipped, as are scripts named by
+     * <code>"@file-or-URL"</code> references. Failures are logged and left
+     * for the API call to report.
+     * <p>
+     * This is done automatically by {@link #execute(List)} when the variable
+     * <code>unravl.http.prewarm</code> is true. Only the pooled transports
+     * (<code>httpclient</code>, and <code>resttemplate</code> without an
+     * injected RestTemplate) use the prewarmed connections.
+     * </p>
+     *
+     * @param scripts
+     *            the scripts which will be run
+     * @return the handshakes done to open new connections. These are also
+     *         added to {@link #getHandshakes()}
+     */
+    public List<Handshake> prewarm(List<JsonNode> scripts) {
+        Set<String> hosts = new LinkedHashSet<String>();
+        for (JsonNode root : scripts)
+            collectHosts(root, hosts);
+        List<Handshake> opened = new ArrayList<Handshake>();
+        ConnectionPool pool = getConnectionPool();
+        for (String host : hosts) {
+            try {
+                Handshake handshake = pool.prewarm(host);
+                if (handshake != null) {
+                    logger.info("Prewarmed connection to " + handshake);
+                    opened.add(handshake);
+                }
+            } catch (IOException e) {
+                logger.warn("Could not prewarm connection to " + host + ": "
+                        + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Could not prewarm connection to " + host + ": "
+                        + e.getMessage());
+            }
+        }
+        synchronized (handshakes) {
+            handshakes.addAll(opened);
+        }
+        return opened;
+    }
+
+    // Add the scheme://host:port of each script's URI to hosts
+    private void collectHosts(JsonNode root, Set<String> hosts) {
+        if (root.isArray()) {
+            for (JsonNode node : root)
+                collectHosts(node, hosts);
+            return;
+        }
+        if (!root.isObject())
+            return;
+        String uri = UnRAVL.apiURI(this, (ObjectNode) root);
+        if (uri == null)
+            return;
+        uri = expand(uri);
+        if (uri.contains("{"))
+            return;
+        try {
+            URL url = new URL(uri);
+            if (url.getProtocol().startsWith("http") && url.getHost() != null)
+                hosts.add(url.getProtocol() + "://" + url.getAuthority());
+        } catch (MalformedURLException e) {
+            logger.trace("Not prewarming " + uri + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the handshakes done by {@link #prewarm(List)} in this runtime
+     */
+    public List<Handshake> getHandshakes() {
+        return handshakes;
+    }
+
+    /**
+     * Return the RestTemplate used to make API calls. This is the default
+     * RestTemplate set in {@link UnRAVLPlugins#setRestTemplate(RestTemplate)}
+     * if there is one, otherwise a RestTemplate which uses this runtime's
+     * {@link #getConnectionPool() connection pool}.
+     *
+     * @return the RestTemplate for this runtime's API calls
+     */
+    public synchronized RestTemplate getRestTemplate() {
+        UnRAVLPlugins plugins = getPlugins();
+        if (plugins.hasRestTemplate())
+            return plugins.getRestTemplate();
+        if (restTemplate == null)
+            restTemplate = UnRAVLPlugins.newRestTemplate(getConnectionPool()
+                    .getHttpClient(), Timeouts.fromRuntime(this));
+        return restTemplate;
+    }
+
+    /**
+     * Return the transport for the next API call. If a RestTemplate has been
+     * set with {@link UnRAVLPlugins#setRestTemplate(RestTemplate)}, this is
+     * the {@link RestTemplateTransport}. Otherwise, it is the transport named
+     * by the variable <code>unravl.transport</code>, or the
+     * {@link HttpClientTransport} if that is not bound.
+     *
+     * @return the transport
+     * @throws UnRAVLException
+     *             if the named transport does not exist
+     */
+    public UnRAVLTransport getTransport() throws UnRAVLException {
+        if (getPlugins().hasRestTemplate())
+            return getTransport(RestTemplateTransport.NAME);
+        Object name = binding(TRANSPORT);
+        return getTransport(name == null ? HttpClientTransport.NAME : name
+                .toString());
+    }
+
+    /**
+     * Return this runtime's instance of a transport, creating it on first use.
+     *
+     * @param name
+     *            the name of a transport plugin
+     * @return the transport
+     * @throws UnRAVLException
+     *             if there is no such transport or it cannot be created
+     */
+    public synchronized UnRAVLTransport getTransport(String name)
+            throws UnRAVLException {
+        UnRAVLTransport transport = transports.get(name);
+        if (transport == null) {
+            Class<? extends UnRAVLTransport> tClass = getPlugins()
+                    .getTransports().get(name);
+            if (tClass == null)
+                throw new UnRAVLException("No such transport " + name);
+            try {
+                transport = tClass.newInstance();
+            } catch (InstantiationException e) {
+                throw new UnRAVLException("Could not instantiate transport "
+                        + name + " using class " + tClass.getName(), e);
+            } catch (IllegalAccessException e) {
+                throw new UnRAVLException("Could not instantiate transport "
+                        + name + " using class " + tClass.getName(), e);
+            }
+            transport.init(this);
+            if (getCassette() != null)
+                transport = new CassetteTransport(getCassette(), transport);
+            transports.put(name, transport);
+        }
+        return transport;
+    }
+
+    /**
+     * Return the executor which completes asynchronous API calls (see
+     * {@link ApiCall#runAsync()}). It has a single thread, so the extractors
+     * and assertions of completed calls run one at a time and never on the
+     * HTTP client's I/O threads.
+     *
+     * @return the executor for the response phase of asynchronous calls
+     */
+    public synchronized Executor getCompletionExecutor() {
+        if (completionExecutor == null)
+            completionExecutor = Executors
+                    .newSingleThreadExecutor(new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("unravl-completion-%d").build());
+        return completionExecutor;
+    }
+
+    /**
+     * Return the scheduler which enforces the <code>call</code> limit of an
+     * API call's {@link com.sas.unravl.http.Timeouts timeouts}.
+     *
+     * @return a single-thread scheduler
+     */
+    public synchronized ScheduledExecutorService getTimer() {
+        if (timer == null)
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setDaemon(true).setNameFormat("unravl-timer-%d").build());
+        return timer;
+    }
+
+    /**
+     * Return the time left in this runtime's deadline budget. The budget is
+     * the value of the variable <code>unravl.deadline</code> (milliseconds),
+     * and starts when the first API call asks for it. When the budget runs
+     * out, the API call in progress is aborted and the runtime is
+     * {@link #cancel() cancelled}, so the remaining scripts do not run.
+     *
+     * @return the remaining time in milliseconds (which is 0 or negative if
+     *         the budget has run out), or Long.MAX_VALUE if there is no
+     *         deadline
+     */
+    public synchronized long getRemainingTime() {
+        if (deadline == 0) {
+            long budget = ConnectionPool.longOption(this, DEADLINE, 0);
+            if (budget <= 0)
+                return Long.MAX_VALUE;
+            deadline = System.nanoTime() + budget * 1000000L;
+        }
+        return (deadline - System.nanoTime()) / 1000000L;
+    }
+
+    /**
+     * Release the resources held by this runtime, such as pooled HTTP
+     * connections. The runtime may still be used afterwards; a new pool is
+     * created when the next API call is made. Callers which use
+     * {@link ApiCall#runAsync()} should wait for the returned futures before
+     * closing the runtime.
+     */
+    @Override
+    public synchronized void close() {
+        for (UnRAVLTransport transport : transports.values()) {
+            try {
+                transport.close();
+            } catch (IOException e) {
+                logger.warn("Could not close transport: " + e.getMessage());
+            }
+        }
+        transports.clear();
+        if (cassette != null) {
+            try {
+                cassette.close();
+            } catch (IOException e) {
+                logger.warn("Could not close cassette: " + e.getMessage());
+            }
+        }
+        if (completionExecutor != null) {
+            completionExecutor.shutdown();
+            completionExecutor = null;
+        }
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+        if (connectionPool != null) {
+            try {
+                connectionPool.close();
+            } catch (IOException e) {
+                logger.warn("Could not close connection pool: "
+                        + e.getMessage());
+            }
+            connectionPool = null;
+            restTemplate = null;
+        }
+    }
+
     public UnRAVL getTemplate(String templateName) {
         return getTemplates().get(templateName);
     }
@@ -573,12 +1149,23 @@ public class UnRAVLRuntime implements Cloneable {
     }
 
     /**
-     * Reset this instance. This removes the history of calls, turns off the
-     * cancelled flag, and resets the assertion failure count to 0.
+     * Reset this instance. This removes the history of calls and resets the
+     * call counts, turns off the cancelled flag, resets the assertion failure
+     * count to 0, closes all circuits of the {@link #getCircuitBreaker()
+     * circuit breaker}, and {@link ApiCall#dispose() disposes} the calls'
+     * bodies.
      */
     public void reset() {
         resetFailedAssertionCount();
-        calls.clear();
+        synchronized (this) {
+            for (ApiCall call : calls)
+                call.dispose();
+            calls.clear();
+            callCount = droppedCallCount = droppedFailureCount = 0;
+            shortCircuitedCount = 0;
+            deadline = 0;
+            circuitBreaker = null;
+        }
         if (cancelled) {
             cancelled = false;
             pcs.firePropertyChange("cancelled", Boolean.TRUE, Boolean.FALSE);
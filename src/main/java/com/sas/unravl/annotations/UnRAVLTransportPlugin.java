@@ -0,0 +1,38 @@
+package com.sas.unravl.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * An annotation for UnRAVL transport plugin classes, which will allow
+ * UnRAVLRuntime to associate one or more string keys (the annotation value)
+ * with this class. A transport sends the HTTP request of an API call and
+ * receives the response. For example, the class
+ * com.sas.unravl.http.RestTemplateTransport uses the annotation
+ *
+ * <pre>
+ * {@literal @}UnRAVLTransportPlugin("resttemplate")
+ * </pre>
+ *
+ * so that setting the variable
+ *
+ * <pre>
+ * unravl.transport=resttemplate
+ * </pre>
+ *
+ * will send requests with a Spring RestTemplate.
+ *
+ * @author DavidBiesack@sas.com
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface UnRAVLTransportPlugin {
+    /**
+     * The tags by which this plugin is named
+     * 
+     * @return the plugin tags
+     */
+    String[] value();
+}
@@ -9,6 +9,7 @@ import com.sas.unravl.annotations.UnRAVLAssertionPlugin;
 import com.sas.unravl.generators.Binary;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Asserts that the HTTP response body matches some text. There are several
@@ -29,8 +30,10 @@ public class BinaryBodyAssertion extends BaseUnRAVLAssertion implements
         JsonNode value = assertion.get("binary");
         try {
             Binary binary = new Binary(current, value);
-            byte[] expected = binary.bytes();
-            byte[] actual = call.getResponseBody().toByteArray();
+            // a large expected file is memory-mapped, not read into the heap
+            ByteBuffer expected = binary.toByteBuffer();
+            // compares in place, without copying the response body
+            ByteBuffer actual = call.getResponseBody().toByteBuffer();
             assertArrayEquals(expected, actual);
         } catch (IOException e1) {
             throw new UnRAVLException(e1.getMessage(), e1);
@@ -38,19 +41,22 @@ public class BinaryBodyAssertion extends BaseUnRAVLAssertion implements
 
     }
 
-    private void assertArrayEquals(byte[] expected, byte[] actual)
+    private void assertArrayEquals(ByteBuffer expected, ByteBuffer actual)
             throws UnRAVLAssertionException {
-        if (expected.length != actual.length)
+        if (expected.remaining() != actual.remaining())
             throw new UnRAVLAssertionException(
                     String.format(
                             "binary array contents not equal: length %d not equal to expected length %d",
-                            actual.length, expected.length));
-        for (int i = 0; i < actual.length; i++) {
-            if (actual[i] != expected[i])
+                            actual.remaining(), expected.remaining()));
+        if (expected.equals(actual))
+            return;
+        for (int i = 0; i < expected.remaining(); i++) {
+            byte found = actual.get(i);
+            if (found != expected.get(i))
                 throw new UnRAVLAssertionException(
                         String.format(
                                 "binary array contents not equal at byte %d: found %d, expected %d",
-                                i, actual[i], expected[i]));
+                                i, found, expected.get(i)));
         }
     }
 
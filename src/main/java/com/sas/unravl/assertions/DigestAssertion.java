@@ -0,0 +1,189 @@
+package com.sas.unravl.assertions;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.annotations.UnRAVLAssertionPlugin;
+import com.sas.unravl.generators.Binary;
+import com.sas.unravl.util.Json;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Asserts that a message digest of the HTTP response body matches an expected
+ * digest, which checks the integrity of a large download without comparing
+ * (or holding) the whole body. There are several forms:
+ *
+ * <pre>
+ * { "digest" : { "sha256" : "<em>hex-digest</em>" } }
+ * { "digest" : { "sha256" : "@<em>expected.sha256</em>", "md5" : "@<em>expected.md5</em>" } }
+ * { "digest" : "@<em>expected.sha256</em>" }
+ * { "digest" : { "sha256" : "@<em>expected-body-file</em>" } }
+ * { "digest" : "<em>hex-digest</em>" }
+ * </pre>
+ *
+ * The field names are digest algorithms such as <code>sha256</code>,
+ * <code>sha1</code>, <code>sha512</code> or <code>md5</code>, or any
+ * algorithm name Java supports. A value may be a hex digest; a reference to
+ * a checksum file (such as <code>sha256sum</code> writes) whose extension
+ * names the algorithm; or a reference to any other file, whose digest is the
+ * expected digest. That file is memory-mapped a region at a time, so it is
+ * never read into the heap. The string forms use the algorithm of the
+ * checksum file's extension, or SHA-256.
+ * <p>
+ * The digest of the response body is computed as the body is received, so a
+ * body in a temporary file is not read again.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+@UnRAVLAssertionPlugin("digest")
+public class DigestAssertion extends BaseUnRAVLAssertion implements
+        UnRAVLAssertion {
+
+    public static final String DEFAULT_ALGORITHM = "SHA-256";
+
+    @Override
+    public void check(UnRAVL current, ObjectNode assertion, Stage when,
+            ApiCall call) throws UnRAVLAssertionException, UnRAVLException {
+        super.check(current, assertion, when, call);
+        try {
+            for (Map.Entry<String, String> e : expected(current,
+                    assertion.get("digest")).entrySet()) {
+                String actual = hex(call.getResponseBody().getDigest(
+                        e.getKey()));
+                if (!actual.equalsIgnoreCase(e.getValue()))
+                    throw new UnRAVLAssertionException(String.format(
+                            "%s digest of the response body %s does not match expected digest %s",
+                            e.getKey(), actual, e.getValue()));
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnRAVLException(e.getMessage(), e);
+        } catch (IOException e) {
+            throw new UnRAVLException(e.getMessage(), e);
+        }
+    }
+
+    // Return the expected hex digest for each algorithm
+    private static Map<String, String> expected(UnRAVL current, JsonNode spec)
+            throws UnRAVLException, IOException, NoSuchAlgorithmException {
+        Map<String, String> expected = new LinkedHashMap<String, String>();
+        if (spec != null && spec.isTextual()) {
+            String value = spec.textValue();
+            String algorithm = algorithmOf(value);
+            if (algorithm == null)
+                algorithm = DEFAULT_ALGORITHM;
+            expected.put(algorithm, expected(current, algorithm, value));
+        } else if (spec != null && spec.isObject()) {
+            for (Map.Entry<String, JsonNode> e : Json.fields(spec)) {
+                if (!e.getValue().isTextual())
+                    throw new UnRAVLException("digest value for "
+                            + e.getKey() + " must be a string");
+                String algorithm = algorithm(e.getKey());
+                expected.put(algorithm, expected(current, algorithm, e
+                        .getValue().textValue()));
+            }
+        } else
+            throw new UnRAVLException(
+                    "digest assertion requires a string or an object");
+        return expected;
+    }
+
+    // Return the expected hex digest from a digest, a checksum file, or the
+    // digest of a file
+    private static String expected(UnRAVL current, String algorithm,
+            String value) throws UnRAVLException, IOException,
+            NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        value = current.expand(value);
+        if (!value.startsWith(UnRAVL.REDIRECT_PREFIX))
+            return value.trim();
+        String path = value.substring(UnRAVL.REDIRECT_PREFIX.length());
+        if (algorithm.equals(algorithmOf(value))) {
+            // the first word of a checksum file, as sha256sum writes
+            String sum = new String(current.getRuntime().getResourceCache()
+                    .read(path), "UTF-8").trim();
+            return sum.split("\\s+", 2)[0];
+        }
+        File file = new File(path);
+        if (file.isFile())
+            Binary.digest(file, digest);
+        else
+            digest.update(new Binary(current, new TextNode(value))
+                    .toByteBuffer());
+        return hex(digest.digest());
+    }
+
+    /**
+     * @param name
+     *            a digest algorithm name in a script, such as "sha256" or
+     *            "SHA-256"
+     * @return the Java algorithm name, such as "SHA-256"
+     */
+    public static String algorithm(String name) {
+        String algorithm = name.toUpperCase(Locale.ROOT).replace('_', '-');
+        if (algorithm.matches("SHA\\d+"))
+            algorithm = "SHA-" + algorithm.substring(3);
+        return algorithm;
+    }
+
+    // The algorithm which the extension of an @checksum-file names, or null
+    private static String algorithmOf(String value) {
+        if (!value.startsWith(UnRAVL.REDIRECT_PREFIX))
+            return null;
+        int dot = value.lastIndexOf('.');
+        if (dot < 0 || value.indexOf('/', dot) >= 0)
+            return null;
+        String algorithm = algorithm(value.substring(dot + 1));
+        try {
+            MessageDigest.getInstance(algorithm);
+            return algorithm;
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Find the digest algorithms which a script's "digest" assertions use, so
+     * that the digests can be computed as the response is received.
+     *
+     * @param script
+     *            the script
+     * @return the Java names of the algorithms, which may be empty
+     * @throws UnRAVLException
+     *             if the script's "assert" element is not valid
+     */
+    public static Set<String> algorithms(UnRAVL script) throws UnRAVLException {
+        Set<String> algorithms = new LinkedHashSet<String>();
+        for (ObjectNode assertion : UnRAVL.assertions(script, "digest")) {
+            JsonNode spec = assertion.get("digest");
+            if (spec.isTextual()) {
+                String algorithm = algorithmOf(spec.textValue());
+                algorithms.add(algorithm == null ? DEFAULT_ALGORITHM
+                        : algorithm);
+            } else if (spec.isObject()) {
+                for (Map.Entry<String, JsonNode> e : Json.fields(spec))
+                    algorithms.add(algorithm(e.getKey()));
+            }
+        }
+        return algorithms;
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest)
+            hex.append(String.format("%02x", b & 0xff));
+        return hex.toString();
+    }
+}
@@ -41,13 +41,12 @@ public class HeadersAssertion extends BaseUnRAVLAssertion {
     public void check(UnRAVL current, ObjectNode assertion, Stage when,
             ApiCall call) throws UnRAVLAssertionException, UnRAVLException {
         super.check(current, assertion, when, call);
-        Header headers[] = call.getResponseHeaders();
         JsonNode spec = assertion.get("headers");
-        check(spec, headers, current);
+        check(spec, call, current);
         return;
     }
 
-    private void check(JsonNode headerNode, Header[] headers, UnRAVL current)
+    private void check(JsonNode headerNode, ApiCall call, UnRAVL current)
             throws UnRAVLException {
         for (Map.Entry<String, JsonNode> next : Json.fields(headerNode)) {
             String header = next.getKey();
@@ -56,7 +55,7 @@ public class HeadersAssertion extends BaseUnRAVLAssertion {
                 throw new UnRAVLException("header value " + valNode
                         + " is not a string (regular expression expected)");
             String pattern = current.expand(valNode.textValue());
-            Header h = findHeader(header, headers);
+            Header h = findHeader(header, call);
             try {
                 Matcher matcher = Pattern.compile(pattern)
                         .matcher(h.getValue());
@@ -76,12 +75,13 @@ public class HeadersAssertion extends BaseUnRAVLAssertion {
 
     }
 
-    private Header findHeader(String header, Header[] headers)
+    private Header findHeader(String header, ApiCall call)
             throws UnRAVLAssertionException {
-        for (Header h : headers)
-            if (h.getName().equalsIgnoreCase(header))
-                return h;
+        Header h = call.getResponseHeader(header);
+        if (h != null)
+            return h;
         throw new UnRAVLAssertionException("Required header " + header
-                + " not found. Existing headers:" + Arrays.asList(headers));
+                + " not found. Existing headers:"
+                + Arrays.asList(call.getResponseHeaders()));
     }
 }
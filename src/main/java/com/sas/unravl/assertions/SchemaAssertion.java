@@ -71,8 +71,7 @@ public class SchemaAssertion extends BaseUnRAVLAssertion {
             values = assertion.get("value");
         }
         if (values == null) {
-            JsonNode responseBody = Json.parse(Text.utf8ToString(call
-                    .getResponseBody().toByteArray()));
+            JsonNode responseBody = call.getResponse().getJson();
             validateValueAgainstSchema(responseBody, validatingSchema);
         } else if (values.isArray()) {
             Iterator<JsonNode> iter = values.elements();
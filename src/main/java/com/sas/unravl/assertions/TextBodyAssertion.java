@@ -9,10 +9,14 @@ import com.sas.unravl.annotations.UnRAVLAssertionPlugin;
 import com.sas.unravl.generators.Text;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 
 /**
  * Asserts that the HTTP response body matches some text. There are several
  * forms for specifying the expected text response, as defined by {@link Text}.
+ * Variables in the expected text are expanded as it is compared, so expected
+ * text from a file is not read into memory.
  * 
  * @author David.Biesack@sas.com
  *
@@ -28,33 +32,65 @@ public class TextBodyAssertion extends BaseUnRAVLAssertion implements
         JsonNode value = assertion.get("text");
         try {
             Text text = new Text(current, value);
-            String expected = text.text();
-            String actual = Text.utf8ToString(call.getResponseBody()
-                    .toByteArray());
+            String actual = call.getResponse().getText();
+            // expand the expected text as it is compared, rather than
+            // reading it into memory
+            Comparison expected = new Comparison(actual);
+            Reader in = text.reader();
             try {
-                assertEquals(expected, actual);
-            } catch (AssertionError a) {
-                throw new UnRAVLAssertionException(a.getMessage(), a);
+                current.expand(in, expected);
+            } finally {
+                in.close();
             }
+            expected.check();
         } catch (IOException e1) {
             throw new UnRAVLException(e1.getMessage(), e1);
         }
 
     }
 
-    private void assertEquals(String expected, String actual)
-            throws UnRAVLAssertionException {
-        if (expected.length() != actual.length())
-            throw new UnRAVLAssertionException(
-                    String.format(
-                            "text contents not equal: length %d not equal to expected length %d",
-                            actual.length(), expected.length()));
-        for (int len = actual.length(), i = 0; i < len; i++) {
-            if (actual.charAt(i) != expected.charAt(i))
+    // A writer which compares the text written to it with the actual text
+    private static class Comparison extends Writer {
+        private final String actual;
+        private long length; // the expected length
+        private int mismatch = -1;
+        private char expected;
+
+        Comparison(String actual) {
+            this.actual = actual;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            for (int i = 0; i < len; i++, length++) {
+                if (mismatch == -1 && length < actual.length()
+                        && actual.charAt((int) length) != cbuf[off + i]) {
+                    mismatch = (int) length;
+                    expected = cbuf[off + i];
+                }
+            }
+        }
+
+        void check() throws UnRAVLAssertionException {
+            if (length != actual.length())
+                throw new UnRAVLAssertionException(
+                        String.format(
+                                "text contents not equal: length %d not equal to expected length %d",
+                                actual.length(), length));
+            if (mismatch != -1)
                 throw new UnRAVLAssertionException(
                         String.format(
                                 "binary array contents not equal at byte %d: found %d, expected %d",
-                                i, actual.charAt(i), expected.charAt(i)));
+                                mismatch, (int) actual.charAt(mismatch),
+                                (int) expected));
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
         }
     }
 
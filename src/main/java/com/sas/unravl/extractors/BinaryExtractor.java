@@ -6,11 +6,10 @@ import com.sas.unravl.ApiCall;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.annotations.UnRAVLExtractorPlugin;
-import com.sas.unravl.generators.Binary;
+import com.sas.unravl.http.ResponseBuffer;
+import com.sas.unravl.util.DeferredValue;
 import com.sas.unravl.util.Json;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 
@@ -19,6 +18,14 @@ import org.apache.log4j.Logger;
 /**
  * An extractor for <code>{ "binary" : "varName" }</code> or
  * <code>{ "binary" : "@file-name" }</code>
+ * <p>
+ * The extractor also binds <code>responseBody</code> to the body as a byte
+ * array, and <code>responseBodyBuffer</code> to the {@link ResponseBuffer}
+ * which holds it. A body which was too large to keep in memory is not copied
+ * into an array unless a script uses <code>responseBody</code> (it is bound to
+ * a {@link DeferredValue}), and only <code>"@file-name"</code> targets are
+ * allowed.
+ * </p>
  * 
  * @author David.Biesack@sas.com
  */
@@ -36,21 +43,36 @@ public class BinaryExtractor extends BaseUnRAVLExtractor {
         if (!target.isTextual())
             throw new UnRAVLException(
                     "json binding value must be a var name or a @file-name string");
-        byte bytes[] = call.getResponseBody().toByteArray();
-        current.bind("responseBody", bytes);
+        final ResponseBuffer body = call.getResponseBody();
+        byte bytes[] = body.isSpilled() ? null : body.toByteArray();
+        current.bind("responseBody", bytes != null ? bytes
+                : new DeferredValue() {
+                    @Override
+                    protected Object compute() {
+                        return body.toByteArray();
+                    }
+                });
+        current.bind("responseBodyBuffer", body);
         String to = target.textValue();
         if (to.startsWith(UnRAVL.REDIRECT_PREFIX)) {
             String where = to.substring(UnRAVL.REDIRECT_PREFIX.length());
             where = getScript().expand(where);
             try {
-                BufferedOutputStream b = new BufferedOutputStream(
-                        new FileOutputStream(where));
-                Binary.copy(new ByteArrayInputStream(bytes), b);
-                b.close();
+                // copies directly from the buffer or its temporary file
+                FileOutputStream out = new FileOutputStream(where);
+                try {
+                    body.writeTo(out);
+                } finally {
+                    out.close();
+                }
                 logger.info("Wrote binary to file " + where);
             } catch (IOException e) {
                 throw new UnRAVLException(e.getMessage(), e);
             }
+        } else if (bytes == null) {
+            throw new UnRAVLException(String.format(
+                    "response body of %d bytes is too large to bind to %s; use \"binary\" : \"@file-name\"",
+                    body.length(), to));
         } else {
             current.bind(to, bytes);
         }
@@ -0,0 +1,37 @@
+package com.sas.unravl.extractors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.annotations.UnRAVLExtractorPlugin;
+import com.sas.unravl.util.JsonFormat;
+
+/**
+ * An extractor for a response body in a binary encoding of JSON: CBOR, Smile
+ * or MessagePack (see {@link JsonFormat}).
+ *
+ * <pre>
+ * { "cbor" : "varName" }
+ * { "smile" : "@file-name" }
+ * { "msgpack" : "varName", "unwrap" : true }
+ * </pre>
+ * <p>
+ * The body is decoded from the named format, whatever its Content-Type, and
+ * is then bound or written as JSON as the <code>"json"</code> extractor
+ * does. The <code>"json"</code> extractor and the other JSON extractors and
+ * assertions already decode a body whose Content-Type is one of these
+ * formats.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+@UnRAVLExtractorPlugin({ "cbor", "smile", "msgpack" })
+public class BinaryJsonExtractor extends JsonExtractor {
+
+    @Override
+    protected JsonNode getJson(ObjectNode extractor, ApiCall call)
+            throws UnRAVLException {
+        return call.getResponse().getJson(JsonFormat.of(extractor));
+    }
+}
@@ -6,7 +6,7 @@ import com.sas.unravl.ApiCall;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.annotations.UnRAVLExtractorPlugin;
-import com.sas.unravl.generators.Text;
+import com.sas.unravl.http.ResponseModel;
 import com.sas.unravl.util.Json;
 
 import org.apache.log4j.Logger;
@@ -22,7 +22,10 @@ import org.apache.log4j.Logger;
  * <p>
  * In both cases, the JSON body is also bound to the variable
  * <code>"responseBody"</code>. The value will be a Jackson
- * <code>ObjectNode</code> or <code>ArrayNode</code>.
+ * <code>ObjectNode</code> or <code>ArrayNode</code>. The value is a copy of
+ * the call's shared {@link com.sas.unravl.http.ResponseModel response model},
+ * so scripts may change it without changing what other extractors and
+ * assertions see.
  * <p>
  * This extractor also allows an option, <code>"unwrap"</code>:
  * </p>
@@ -55,9 +58,9 @@ public class JsonExtractor extends BaseUnRAVLExtractor {
             throw new UnRAVLException(
                     "json binding value must be a var name or a @file-name string");
         String to = target.textValue();
-        JsonNode json = Json.parse(Text.utf8ToString(call.getResponseBody()
-                .toByteArray()));
-        Object result = unwrap ? Json.unwrap(json) : json;
+        JsonNode json = getJson(extractor, call);
+        Object result = unwrap ? getJavaObject(extractor, json, call) : json
+                .deepCopy();
         current.bind("responseBody", result);
         if (to.startsWith(UnRAVL.REDIRECT_PREFIX)) {
             String where = to.substring(UnRAVL.REDIRECT_PREFIX.length());
@@ -70,4 +73,36 @@ public class JsonExtractor extends BaseUnRAVLExtractor {
         }
     }
 
+    /**
+     * @param extractor
+     *            the extractor scriptlet
+     * @param call
+     *            the API call
+     * @return the response body as JSON, which may be shared and must not
+     *         be changed
+     * @throws UnRAVLException
+     *             if the body is not valid
+     */
+    protected JsonNode getJson(ObjectNode extractor, ApiCall call)
+            throws UnRAVLException {
+        return call.getResponse().getJson();
+    }
+
+    /**
+     * @param extractor
+     *            the extractor scriptlet
+     * @param json
+     *            the value which {@link #getJson(ObjectNode, ApiCall)}
+     *            returned
+     * @param call
+     *            the API call
+     * @return the response body as new Java Maps, Lists and scalars
+     * @throws UnRAVLException
+     *             if the body is not valid
+     */
+    protected Object getJavaObject(ObjectNode extractor, JsonNode json,
+            ApiCall call) throws UnRAVLException {
+        return ResponseModel.copy(json);
+    }
+
 }
@@ -9,9 +9,12 @@ import com.sas.unravl.ApiCall;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.annotations.UnRAVLExtractorPlugin;
-import com.sas.unravl.generators.Text;
 import com.sas.unravl.util.Json;
+import com.sas.unravl.util.StreamingJsonPath;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -66,6 +69,17 @@ import org.apache.log4j.Logger;
  * be a value assigned by another extractor or defined in the "env" element.
  * </p>
  *
+ * <pre>
+ * "stream" : true
+ * </pre>
+ * <p>
+ * evaluates the paths over the response body's JSON token stream with
+ * {@link StreamingJsonPath}, which supports a subset of JsonPath but does not
+ * read the whole response into memory. Only the matched values are bound;
+ * <var>responseBody</var> is not bound, and "stream" cannot be combined with
+ * "from".
+ * </p>
+ *
  * @author David.Biesack@sas.com
  */
 @UnRAVLExtractorPlugin({ "jsonPath", "jsonpath" })
@@ -79,7 +93,12 @@ public class JsonPathExtractor extends JsonExtractor {
     @Override
     public void extract(UnRAVL script, ObjectNode scriptlet, ApiCall call)
             throws UnRAVLException {
+        if (booleanOption(scriptlet, "stream")) {
+            extractStream(script, scriptlet, call);
+            return;
+        }
         Object fromObject = getJsonSource(script, scriptlet, call);
+        boolean shared = scriptlet.get("from") == null;
         ObjectNode bindings = Json.object(Json.firstFieldValue(scriptlet));
         // TODO: look for the effective binding
         // "bind" : [ ..., { "jsonNode" : {}, "wrap" : true }, ...]
@@ -97,11 +116,62 @@ public class JsonPathExtractor extends JsonExtractor {
             Object value = JsonPath.read(fromObject, pathString);
             if (wrap) {
                 value = Json.wrap(value);
+            } else if (shared
+                    && (value instanceof Map || value instanceof List)) {
+                // do not bind part of the response's shared Java value
+                value = mapper.convertValue(value, Object.class);
             }
             script.bind(entry.getKey(), value);
         }
     }
 
+    // Evaluate the paths while parsing the response body, without building
+    // its tree
+    private void extractStream(UnRAVL script, ObjectNode scriptlet,
+            ApiCall call) throws UnRAVLException {
+        if (scriptlet.get("from") != null)
+            throw new UnRAVLException(key(scriptlet)
+                    + " extractor cannot use both \"stream\" and \"from\"");
+        ObjectNode bindings = Json.object(Json.firstFieldValue(scriptlet));
+        boolean wrap = booleanOption(scriptlet, "wrap");
+        List<String> names = new ArrayList<String>();
+        List<String> paths = new ArrayList<String>();
+        for (Map.Entry<String, JsonNode> entry : Json.fields(bindings)) {
+            JsonNode path = entry.getValue();
+            if (!path.isTextual()) {
+                throw new UnRAVLException(
+                        "JsonPath extractor requires string path values, found "
+                                + path);
+            }
+            names.add(entry.getKey());
+            paths.add(call.getScript().expand(path.textValue()));
+        }
+        StreamingJsonPath stream = new StreamingJsonPath(paths);
+        List<Object> values;
+        InputStream body = call.getResponseBodyAsInputStream();
+        try {
+            values = stream.read(body, call.getResponse().getFormat()
+                    .getFactory());
+        } finally {
+            try {
+                body.close();
+            } catch (IOException e) {
+                logger.warn(e.getMessage());
+            }
+        }
+        logger.info(String.format(
+                "Streamed %d paths over %d bytes of JSON; peak memory %d bytes",
+                paths.size(), call.getResponseLength(),
+                stream.getPeakMemory()));
+        for (int i = 0; i < names.size(); i++) {
+            Object value = values.get(i);
+            if (wrap) {
+                value = Json.wrap(value);
+            }
+            script.bind(names.get(i), value);
+        }
+    }
+
     private Object getJsonSource(UnRAVL script, ObjectNode scriptlet,
             ApiCall call) throws UnRAVLException {
         JsonNode from = scriptlet.get("from");
@@ -109,10 +179,10 @@ public class JsonPathExtractor extends JsonExtractor {
         if (from == null) {
             // assert response body is valid JSON; extract JSON into
             // responseBody
-            from = Json.parse(Text.utf8ToString(call.getResponseBody()
-                    .toByteArray()));
-            script.bind("responseBody", from);
-            fromObject = Json.unwrap(from);
+            from = call.getResponse().getJson();
+            // a copy, since scripts may change it
+            script.bind("responseBody", call.getResponse().getJsonCopy());
+            fromObject = call.getResponse().getJavaObject();
         } else {
             if (from.isTextual()) {
                 Object val = script.binding(from.textValue());
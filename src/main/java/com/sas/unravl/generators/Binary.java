@@ -7,17 +7,26 @@ import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.util.Json;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * This class produces a binary byte stream from a JSON 'binary' specification.
@@ -28,6 +37,12 @@ import java.net.URL;
  * { "binary" : array-of-binary } // combine binary streams, each of which may be a array-of-bytes or a @file-or-url
  * </pre>
  * <p>
+ * Files are not read until the data is used, and {@link #stream()} reads
+ * them as the stream is read, so a request body can be larger than the heap.
+ * Byte arrays, URLs and resources are read into memory, through the
+ * runtime's {@link ResourceCache}.
+ * </p>
+ * <p>
  * TODO: allow variable references <code>"varName"</code>; the value must be an
  * array of byte values.
  * </p>
@@ -36,8 +51,13 @@ import java.net.URL;
  */
 public class Binary {
 
-    private static final int BUFSIZE = 256;
+    private static final int BUFSIZE = 64 * 1024;
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+    private static final long DIGEST_REGION = 256L * 1024 * 1024;
+    // the bytes after the last file
     ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    // the byte[] and File parts before the last file
+    private final List<Object> parts = new ArrayList<Object>();
     private final UnRAVL script;
 
     /**
@@ -122,26 +142,31 @@ public class Binary {
     }
 
     private void buildFromStream(String fileOrURL) throws IOException {
-        InputStream is = null;
         try {
             URL url = new URL(fileOrURL);
-            is = url.openStream();
+            if ("file".equals(url.getProtocol())) {
+                addFile(new File(url.toURI()));
+                return;
+            }
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid file URL " + fileOrURL, e);
         } catch (MalformedURLException e) {
             File f = new File(fileOrURL);
-            if (f.exists()) {
-                is = new FileInputStream(f);
-            } else {
-                is = getClass().getResourceAsStream(fileOrURL);
+            if (f.isFile()) {
+                addFile(f);
+                return;
             }
         }
-        if (is == null) {
-            throw new IOException("No such file or URL " + fileOrURL);
-        }
-        copy(is, bytes);
+        // URLs, resources and devices
+        bytes.write(script.getRuntime().getResourceCache().read(fileOrURL));
     }
 
     /**
-     * Copy bytes from an input stream to an output stream.
+     * Copy bytes from an input stream to an output stream. A copy from one
+     * file to another uses {@link FileChannel#transferTo(long, long,
+     * java.nio.channels.WritableByteChannel)}, which lets the operating system
+     * move the bytes without copying them through the Java heap; other
+     * streams are copied through one 64KB buffer.
      * 
      * @param in
      *            the input stream. This is closed when done.
@@ -152,37 +177,251 @@ public class Binary {
      */
     public static void copy(InputStream in, OutputStream out)
             throws IOException {
+        try {
+            if (in instanceof FileInputStream
+                    && out instanceof FileOutputStream) {
+                FileChannel source = ((FileInputStream) in).getChannel();
+                FileChannel target = ((FileOutputStream) out).getChannel();
+                long position = source.position(), size = source.size();
+                while (position < size)
+                    position += source.transferTo(position, size - position,
+                            target);
+                source.position(position);
+                return;
+            }
+            byte buffer[] = new byte[BUFSIZE];
+            for (int n; (n = in.read(buffer, 0, BUFSIZE)) != -1;)
+                out.write(buffer, 0, n);
+            out.flush();
+        } finally {
+            in.close();
+        }
+    }
 
-        byte buffer[] = new byte[BUFSIZE];
-        BufferedInputStream bis = new BufferedInputStream(in);
-        BufferedOutputStream bos = new BufferedOutputStream(out);
-        for (int n = bis.read(buffer, 0, BUFSIZE); n > 0; n = bis.read(buffer,
-                0, BUFSIZE))
-            bos.write(buffer, 0, n);
-        bos.flush();
-        bis.close();
+    /**
+     * Read a file. Files of 1MB or more are memory-mapped rather than read
+     * into the Java heap.
+     *
+     * @param file
+     *            the file
+     * @return a read-only buffer with the file's contents
+     * @throws IOException
+     *             if the file cannot be read, or is larger than 2GB
+     */
+    public static ByteBuffer read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File " + file
+                        + " is too large to read into a buffer");
+            if (size >= MAP_THRESHOLD)
+                // the mapping stays valid after the channel is closed
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1)
+                continue;
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        } finally {
+            raf.close();
+        }
     }
 
+    /**
+     * Add a file's contents to a digest. Large files are memory-mapped one
+     * region at a time, so a file may be larger than the Java heap or 2GB.
+     *
+     * @param file
+     *            the file
+     * @param digest
+     *            the digest to update
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    public static void digest(File file, MessageDigest digest)
+            throws IOException {
+        if (file.length() < MAP_THRESHOLD) {
+            digest.update(read(file));
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            for (long position = 0; position < size; position += DIGEST_REGION)
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY,
+                        position, Math.min(DIGEST_REGION, size - position)));
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Defer reading a file until the data is used
+    private void addFile(File file) {
+        if (bytes.size() > 0) {
+            parts.add(bytes.toByteArray());
+            bytes.reset();
+        }
+        parts.add(file);
+    }
+
+    /**
+     * @return true if the data includes files, which are read only as
+     *         {@link #stream()} is read
+     */
+    public boolean isStreaming() {
+        return !parts.isEmpty();
+    }
+
+    /**
+     * @return the data as a stream: a {@link ByteArrayBody} if it is all in
+     *         memory, or else a {@link StreamingBody} which reads the files
+     *         as it is read
+     */
     public InputStream stream() {
-        return new ByteArrayInputStream(bytes.toByteArray());
+        if (!isStreaming())
+            return new ByteArrayBody(bytes.toByteArray());
+        if (parts.size() == 1 && bytes.size() == 0)
+            return new FileBody((File) parts.get(0));
+        List<Object> all = new ArrayList<Object>(parts);
+        if (bytes.size() > 0)
+            all.add(bytes.toByteArray());
+        return new PartsBody(all);
     }
 
     public int size() {
-        return bytes.size();
+        return (int) Math.min(length(), Integer.MAX_VALUE);
     }
 
+    /**
+     * @return the length of the data in bytes
+     */
+    public long length() {
+        return bytes.size() + length(parts);
+    }
+
+    private static long length(List<Object> parts) {
+        long length = 0;
+        for (Object part : parts)
+            length += part instanceof File ? ((File) part).length()
+                    : ((byte[]) part).length;
+        return length;
+    }
+
+    /**
+     * Two Binary values are equal if they have the same parts: the same
+     * bytes, and the same files (by path and length), in the same order.
+     * Files are not read.
+     */
     @Override
     public boolean equals(Object other) {
         if (other == null)
             return false;
         else if (other instanceof Binary) {
-            return bytes.equals(((Binary) other).bytes);
+            Binary that = (Binary) other;
+            if (parts.size() != that.parts.size()
+                    || !Arrays.equals(bytes.toByteArray(),
+                            that.bytes.toByteArray()))
+                return false;
+            for (int i = 0; i < parts.size(); i++)
+                if (!samePart(parts.get(i), that.parts.get(i)))
+                    return false;
+            return true;
         } else
             return false;
     }
 
-    public byte[] bytes() {
-        return bytes.toByteArray();
+    @Override
+    public int hashCode() {
+        int hash = Arrays.hashCode(bytes.toByteArray());
+        for (Object part : parts)
+            hash = 31 * hash + partHash(part);
+        return hash;
+    }
+
+    private static boolean samePart(Object part, Object other) {
+        if (part instanceof File)
+            return other instanceof File
+                    && ((File) part).getAbsoluteFile().equals(
+                            ((File) other).getAbsoluteFile())
+                    && ((File) part).length() == ((File) other).length();
+        return other instanceof byte[]
+                && Arrays.equals((byte[]) part, (byte[]) other);
+    }
+
+    private static int partHash(Object part) {
+        if (part instanceof File)
+            return ((File) part).getAbsoluteFile().hashCode() * 31
+                    + (int) ((File) part).length();
+        return Arrays.hashCode((byte[]) part);
+    }
+
+    /**
+     * @return a copy of the data. If the data includes files, this reads them
+     *         into memory.
+     * @throws IOException
+     *             if a file cannot be read
+     */
+    public byte[] bytes() throws IOException {
+        if (!isStreaming())
+            return bytes.toByteArray();
+        ByteArrayOutputStream all = new ByteArrayOutputStream(size());
+        copy(stream(), all);
+        return all.toByteArray();
+    }
+
+    /**
+     * @return the data as a read-only buffer. Data which is a single large
+     *         file is memory-mapped rather than read into the Java heap.
+     * @throws IOException
+     *             if a file cannot be read
+     */
+    public ByteBuffer toByteBuffer() throws IOException {
+        if (parts.size() == 1 && bytes.size() == 0)
+            return read((File) parts.get(0));
+        return ByteBuffer.wrap(bytes()).asReadOnlyBuffer();
+    }
+
+    // The concatenation of byte[] and File parts
+    private static class PartsBody extends StreamingBody {
+        private final List<Object> parts;
+
+        PartsBody(List<Object> parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        public long length() {
+            return Binary.length(parts);
+        }
+
+        @Override
+        public StreamingBody duplicate() {
+            return new PartsBody(parts);
+        }
+
+        @Override
+        protected InputStream open() {
+            final Iterator<Object> each = parts.iterator();
+            // open each file only when the previous parts have been read
+            return new SequenceInputStream(
+                    new Enumeration<InputStream>() {
+                        @Override
+                        public boolean hasMoreElements() {
+                            return each.hasNext();
+                        }
+
+                        @Override
+                        public InputStream nextElement() {
+                            Object part = each.next();
+                            return part instanceof File ? new FileBody(
+                                    (File) part) : new ByteArrayBody(
+                                    (byte[]) part);
+                        }
+                    });
+        }
     }
 
 }
@@ -0,0 +1,41 @@
+package com.sas.unravl.generators;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.annotations.UnRAVLRequestBodyGeneratorPlugin;
+import com.sas.unravl.util.JsonFormat;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Generates a request body in a binary encoding of JSON: CBOR, Smile or
+ * MessagePack (see {@link JsonFormat}). The forms are the same as for the
+ * <code>"json"</code> body generator:
+ *
+ * <pre>
+ * { "cbor" : json-object-or-array }
+ * { "smile" : "@file-or-url" }
+ * { "msgpack" : "varName" }
+ * </pre>
+ * <p>
+ * The JSON is expanded as described in {@link JsonRequestBodyGenerator}, then
+ * encoded directly in the binary format; JSON from a file is encoded as the
+ * request is sent. <code>"requestBody"</code> is bound to the expanded JSON.
+ * The Content-Type request header is set to the format's media type, such as
+ * <code>application/cbor</code>, unless the script sets it.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+@UnRAVLRequestBodyGeneratorPlugin({ "cbor", "smile", "msgpack" })
+public class BinaryJsonRequestBodyGenerator extends JsonRequestBodyGenerator {
+
+    @Override
+    public InputStream getBody(UnRAVL script, ObjectNode bodySpec, ApiCall call)
+            throws IOException, UnRAVLException {
+        return getBody(script, bodySpec, JsonFormat.of(bodySpec));
+    }
+}
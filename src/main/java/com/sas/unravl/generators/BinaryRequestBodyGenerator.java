@@ -5,6 +5,7 @@ import com.sas.unravl.ApiCall;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.annotations.UnRAVLRequestBodyGeneratorPlugin;
+import com.sas.unravl.util.DeferredValue;
 import com.sas.unravl.util.Json;
 
 import java.io.IOException;
@@ -25,7 +26,12 @@ import java.io.InputStream;
  *
  * <p>
  * The resulting <code>byte[]</code> is bound to the current environment as
- * <code>"requestBody"</code>.
+ * <code>"requestBody"</code>. If the body includes files, it is not read into
+ * memory; the files are read as the request is sent. <code>"requestBody"</code>
+ * is then a {@link DeferredValue}, which reads the files into a
+ * <code>byte[]</code> only if a script uses it, and
+ * <code>"requestBodyStream"</code> is bound to a {@link StreamingBody} which
+ * can read the same content without doing so.
  *
  * @author David.Biesack@sas.com
  *
@@ -36,10 +42,25 @@ public class BinaryRequestBodyGenerator extends BaseUnRAVLRequestBodyGenerator {
     @Override
     public InputStream getBody(UnRAVL script, ObjectNode bodySpec, ApiCall call)
             throws IOException, UnRAVLException {
-        Binary binary = new Binary(script, Json.object(bodySpec), "binary");
+        final Binary binary = new Binary(script, Json.object(bodySpec), "binary");
+        if (binary.isStreaming()) {
+            final StreamingBody body = (StreamingBody) binary.stream();
+            script.bind("requestBody", new DeferredValue() {
+                @Override
+                protected Object compute() throws UnRAVLException {
+                    try {
+                        return binary.bytes();
+                    } catch (IOException e) {
+                        throw new UnRAVLException(e.getMessage(), e);
+                    }
+                }
+            });
+            script.bind("requestBodyStream", body.duplicate());
+            return body;
+        }
         byte requestBody[] = binary.bytes();
         script.bind("requestBody", requestBody);
-        return binary.stream();
+        return new ByteArrayBody(requestBody);
     }
 
 }
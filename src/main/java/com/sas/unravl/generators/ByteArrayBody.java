@@ -0,0 +1,42 @@
+package com.sas.unravl.generators;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.http.entity.ByteArrayEntity;
+
+/**
+ * A request body held in memory. Request body generators return this stream
+ * so that a transport which does not need a stream, such as the
+ * {@link com.sas.unravl.http.InProcessTransport}, can read the bytes as a
+ * {@link ByteBuffer} without copying them.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class ByteArrayBody extends ByteArrayInputStream {
+
+    public ByteArrayBody(byte[] bytes) {
+        super(bytes);
+    }
+
+    /**
+     * @return a read-only view of the bytes which have not yet been read from
+     *         this stream. The view shares the stream's byte array.
+     */
+    public synchronized ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, pos, count - pos).slice()
+                .asReadOnlyBuffer();
+    }
+
+    /**
+     * Read the rest of this stream as an HTTP entity. The entity shares the
+     * stream's byte array, so the body is not copied.
+     *
+     * @return an entity of the bytes which had not been read
+     */
+    public synchronized ByteArrayEntity toEntity() {
+        ByteArrayEntity entity = new ByteArrayEntity(buf, pos, count - pos);
+        pos = count;
+        return entity;
+    }
+}
@@ -0,0 +1,46 @@
+package com.sas.unravl.generators;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A request body which is sent from a file. Transports which can send a file
+ * directly, such as the {@link com.sas.unravl.http.HttpClientTransport}, use
+ * {@link #getFile()} rather than reading this stream.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class FileBody extends StreamingBody {
+
+    private final File file;
+
+    public FileBody(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public long length() {
+        return file.length();
+    }
+
+    @Override
+    public StreamingBody duplicate() {
+        return new FileBody(file);
+    }
+
+    @Override
+    protected InputStream open() throws IOException {
+        return new FileInputStream(file);
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+}
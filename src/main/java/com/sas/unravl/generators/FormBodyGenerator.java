@@ -8,7 +8,6 @@ import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.annotations.UnRAVLRequestBodyGeneratorPlugin;
 import com.sas.unravl.util.Json;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
@@ -77,13 +76,13 @@ public class FormBodyGenerator extends BaseUnRAVLRequestBodyGenerator {
                 // TODO: if can't parse, assume it is
                 // application/x-www-form-urlencoded text
                 json = Json.parse(request.text());
-                inputJson = (ObjectNode) Json.expand(json, script);
+                inputJson = (ObjectNode) Json.expand(json, script, false);
                 encode(inputJson, body);
             } else {
                 Object ref = script.binding(val);
                 if (ref instanceof ObjectNode) {
                     inputJson = (ObjectNode) Json.expand((ObjectNode) ref,
-                            script);
+                            script, false);
                     encode(inputJson, body);
                 } else if (val.contains("=")) {
                     // assume body is already application/x-www-form-urlencoded
@@ -97,7 +96,8 @@ public class FormBodyGenerator extends BaseUnRAVLRequestBodyGenerator {
                 }
             }
         } else if (json.isObject()) {
-            inputJson = (ObjectNode) Json.expand((ObjectNode) json, script);
+            inputJson = (ObjectNode) Json.expand((ObjectNode) json, script,
+                    true);
             encode(inputJson, body);
         } else {
             throw new UnRAVLException(String.format(
@@ -107,7 +107,7 @@ public class FormBodyGenerator extends BaseUnRAVLRequestBodyGenerator {
         script.bind("requestBody", bodyText);
         script.addRequestHeader(new BasicHeader("Content-Type",
                 "application/x-www-form-urlencoded"));
-        return new ByteArrayInputStream(Text.utf8(bodyText));
+        return new ByteArrayBody(Text.utf8(bodyText));
     }
 
     private static final Logger logger = Logger
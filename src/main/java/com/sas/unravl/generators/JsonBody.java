@@ -0,0 +1,178 @@
+package com.sas.unravl.generators;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.http.ResponseBuffer;
+import com.sas.unravl.util.Json;
+import com.sas.unravl.util.JsonFormat;
+import com.sas.unravl.util.VariableResolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A JSON request body which is read from a file and has its variables
+ * expanded as it is sent. The file's tokens are copied from a parser to a
+ * generator which writes to the request, so the JSON is never held in memory
+ * as a string or a tree; see {@link Json#expand(JsonParser, JsonGenerator,
+ * UnRAVL)}. Variables are expanded as the body is sent or read, with the
+ * values they had when the body was created, so the body and its
+ * {@link #duplicate() duplicates} always have the same content. The length is
+ * not known, so the body is sent with chunked transfer encoding. The body may
+ * be written in a binary {@link JsonFormat} instead of JSON text.
+ * <p>
+ * The httpclient transport writes the body to the request with
+ * {@link #writeTo(OutputStream)}. Transports which read it instead (such as
+ * h2, inprocess, and cassette or HAR recording) get the expanded JSON from a
+ * {@link ResponseBuffer}, which keeps it in a temporary file if it is larger
+ * than <code>unravl.response.spillThreshold</code>.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+public class JsonBody extends StreamingBody {
+
+    private static final JsonFactory factory = Json.jsonFactory();
+    private static final ObjectMapper mapper = new ObjectMapper(factory);
+
+    private final UnRAVL script;
+    private final File file;
+    private final JsonFormat format;
+    private final VariableResolver variables;
+    private final long threshold;
+
+    public JsonBody(UnRAVL script, File file) {
+        this(script, file, JsonFormat.JSON);
+    }
+
+    /**
+     * @param script
+     *            the script whose variables are expanded
+     * @param file
+     *            the JSON file
+     * @param format
+     *            the format to write
+     */
+    public JsonBody(UnRAVL script, File file, JsonFormat format) {
+        this(script, file, format, script.getRuntime().getVariableResolver()
+                .snapshot(), spillThreshold(script));
+    }
+
+    private JsonBody(UnRAVL script, File file, JsonFormat format,
+            VariableResolver variables, long threshold) {
+        this.script = script;
+        this.file = file;
+        this.format = format;
+        this.variables = variables;
+        this.threshold = threshold;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Parse the file without expanding or keeping it, to verify that it
+     * contains valid JSON.
+     *
+     * @throws IOException
+     *             if the file cannot be read or is not valid JSON
+     */
+    public void validate() throws IOException {
+        JsonParser parser = factory.createParser(source());
+        try {
+            while (parser.nextToken() != null)
+                continue;
+        } finally {
+            parser.close();
+        }
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public StreamingBody duplicate() {
+        return new JsonBody(script, file, format, variables, threshold);
+    }
+
+    /**
+     * Read the expanded JSON into a tree, as it was sent. This does not
+     * consume this body, but holds the whole JSON in memory.
+     *
+     * @return the expanded JSON
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    public JsonNode toJson() throws IOException {
+        TokenBuffer tokens = new TokenBuffer(mapper, false);
+        JsonParser parser = factory.createParser(source());
+        try {
+            Json.expand(parser, tokens, variables);
+        } finally {
+            parser.close();
+        }
+        return mapper.readTree(tokens.asParser());
+    }
+
+    /**
+     * Expand the JSON directly into the output stream, consuming this body.
+     */
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        close();
+        expand(out);
+    }
+
+    // Transports which read the body get the expanded JSON from memory or,
+    // if it is large, a temporary file
+    @Override
+    protected InputStream open() throws IOException {
+        ResponseBuffer buffer = new ResponseBuffer(threshold);
+        expand(buffer);
+        return read(buffer);
+    }
+
+    private void expand(OutputStream out) throws IOException {
+        JsonParser parser = factory.createParser(source());
+        try {
+            JsonGenerator generator = output().createGenerator(out,
+                    JsonEncoding.UTF8);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            Json.expand(parser, generator, variables);
+            generator.close();
+        } finally {
+            parser.close();
+        }
+    }
+
+    private JsonFactory output() throws IOException {
+        if (format.isText())
+            return factory;
+        try {
+            return format.getFactory();
+        } catch (UnRAVLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private InputStream source() throws IOException {
+        return script.getRuntime().getResourceCache().open(file);
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+}
@@ -1,16 +1,24 @@
 package com.sas.unravl.generators;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.sas.unravl.ApiCall;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.annotations.UnRAVLRequestBodyGeneratorPlugin;
+import com.sas.unravl.util.DeferredValue;
 import com.sas.unravl.util.Json;
+import com.sas.unravl.util.JsonFormat;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
 
 /**
  * Generates a JSON request body for this API call. The node can have one of
@@ -32,6 +40,15 @@ import java.io.InputStream;
  * "requestBody". Variables are expanded within text values in the resulting
  * JSON.
  * <p>
+ * JSON from a file is checked when the body is generated, but is expanded
+ * only as the request is sent, by a {@link JsonBody} which writes to the
+ * request as it reads the file. Both expand variables with the values they
+ * had when the body was generated. "requestBody" is still bound to a JSON
+ * node, but through a {@link DeferredValue}, so that the expanded JSON is read
+ * into a tree (by {@link JsonBody#toJson()}) only if a script uses it.
+ * "requestBodyStream" is bound to a duplicate {@link JsonBody}, which has the
+ * same content as the request.
+ * <p>
  * 
  * @author David.Biesack@sas.com
  * 
@@ -42,36 +59,112 @@ public class JsonRequestBodyGenerator extends BaseUnRAVLRequestBodyGenerator {
     @Override
     public InputStream getBody(UnRAVL script, ObjectNode bodySpec, ApiCall call)
             throws IOException, UnRAVLException {
-        JsonNode json = bodySpec.get("json");
+        return getBody(script, bodySpec, JsonFormat.JSON);
+    }
+
+    /**
+     * Generate the body from the <code>bodySpec</code> field named by a
+     * format, and encode it in that format.
+     *
+     * @param script
+     *            the script
+     * @param bodySpec
+     *            the body specification
+     * @param format
+     *            the format
+     * @return the request body
+     * @throws IOException
+     *             if a file cannot be read
+     * @throws UnRAVLException
+     *             if the body specification is invalid
+     */
+    protected InputStream getBody(UnRAVL script, ObjectNode bodySpec,
+            JsonFormat format) throws IOException, UnRAVLException {
+        String name = format.getName();
+        JsonNode json = bodySpec.get(name);
         JsonNode body = null;
         if (json.isTextual()) {
             String val = json.textValue();
             if (val.startsWith(UnRAVL.REDIRECT_PREFIX)) {
+                File file = file(script, val);
+                if (file != null) {
+                    JsonBody stream = new JsonBody(script, file, format);
+                    try {
+                        stream.validate();
+                    } catch (JsonProcessingException e) {
+                        throw new UnRAVLException(String.format(
+                                "Invalid JSON in %s: %s", file,
+                                e.getOriginalMessage()), e);
+                    }
+                    final JsonBody sent = (JsonBody) stream.duplicate();
+                    script.bind("requestBody", new DeferredValue() {
+                        @Override
+                        protected Object compute() throws UnRAVLException {
+                            try {
+                                return sent.toJson();
+                            } catch (IOException e) {
+                                throw new UnRAVLException(e.getMessage(), e);
+                            }
+                        }
+                    });
+                    script.bind("requestBodyStream", stream.duplicate());
+                    contentType(script, format);
+                    return stream;
+                }
                 Text request = new Text(script, json);
                 json = Json.parse(request.text());
-                body = Json.expand(json, script);
+                body = Json.expand(json, script, false);
             } else {
                 Object ref = script.binding(val);
                 if (ref instanceof JsonNode) {
-                    body = Json.expand((JsonNode) ref, script);
+                    body = Json.expand((JsonNode) ref, script, false);
                 } else {
                     throw new UnRAVLException(
                             String.format(
-                                    "Variable %s is not bound to a JSON value in 'json' body generator",
-                                    val));
+                                    "Variable %s is not bound to a JSON value in '%s' body generator",
+                                    val, name));
                 }
             }
         } else if (json.isContainerNode()) {
-            body = Json.expand(json, script);
+            body = Json.expand(json, script, true);
         } else {
             throw new UnRAVLException(
                     String.format(
-                            "Unrecognized JSON value %s in 'json' body generator",
-                            json));
+                            "Unrecognized JSON value %s in '%s' body generator",
+                            json, name));
         }
         script.bind("requestBody", body);
+        if (!format.isText()) {
+            contentType(script, format);
+            return new ByteArrayBody(format.write(body));
+        }
         String jsonText = body.toString();
-        return new ByteArrayInputStream(Text.utf8(jsonText));
+        return new ByteArrayBody(Text.utf8(jsonText));
+    }
+
+    // Binary formats set the Content-Type, unless the script sets it
+    private static void contentType(UnRAVL script, JsonFormat format) {
+        if (format.isText())
+            return;
+        for (Header h : script.getRequestHeaders()) {
+            if (h.getName().equalsIgnoreCase("Content-Type"))
+                return;
+        }
+        script.addRequestHeader(new BasicHeader("Content-Type", format
+                .getMediaType()));
+    }
+
+    // The file named by "@file", or null if it names a URL or resource
+    private static File file(UnRAVL script, String val) {
+        String path = script.expand(val.substring(UnRAVL.REDIRECT_PREFIX
+                .length()));
+        try {
+            new URL(path);
+            return null;
+        } catch (MalformedURLException e) {
+            File f = new File(path);
+            return f.isFile() ? f : null;
+        }
     }
 
 }
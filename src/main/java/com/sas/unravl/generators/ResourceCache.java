@@ -0,0 +1,289 @@
+package com.sas.unravl.generators;
+
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.http.ConnectionPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A cache of the content of the <code>"@file-or-URL"</code> resources which
+ * scripts reference, shared by the scripts of a runtime, so that a fixture
+ * which many scripts (or one template) use is read only once. The cache holds
+ * at most {@link #SIZE} bytes, and evicts the least recently used resources
+ * to stay within that size; a resource larger than a quarter of the size is
+ * not cached.
+ * <ul>
+ * <li>A file is read again if its modification time or size has changed.</li>
+ * <li>An HTTP or HTTPS URL is cached only if the response has an
+ * <code>ETag</code> or <code>Last-Modified</code> header, and is requested
+ * again each time it is used with <code>If-None-Match</code> or
+ * <code>If-Modified-Since</code>; a <code>304 Not Modified</code> response
+ * uses the cached content.</li>
+ * <li>Classpath resources, including <code>jar:</code> URLs, do not change
+ * and are cached until they are evicted.</li>
+ * <li>Other URLs are not cached.</li>
+ * </ul>
+ * <p>
+ * Callers must not modify the returned arrays.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+public class ResourceCache {
+
+    private static final Logger logger = Logger.getLogger(ResourceCache.class);
+
+    /**
+     * The runtime variable which holds the size of the cache, in bytes. The
+     * default is 32MB; 0 disables the cache.
+     */
+    public static final String SIZE = "unravl.resources.cacheSize";
+    public static final long DEFAULT_SIZE = 32 * 1024 * 1024;
+
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private final long maxSize;
+    private long size;
+    private long hits, misses;
+    // in access order, so the first entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+
+    private static class Entry {
+        final byte[] bytes;
+        // for files
+        long modified = -1, length = -1;
+        // for HTTP URLs
+        String etag, lastModified;
+
+        Entry(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    public ResourceCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param runtime
+     *            the runtime
+     * @return a new cache with the size in the runtime's {@link #SIZE}
+     *         variable
+     */
+    public static ResourceCache fromRuntime(UnRAVLRuntime runtime) {
+        return new ResourceCache(ConnectionPool.longOption(runtime, SIZE,
+                DEFAULT_SIZE));
+    }
+
+    /**
+     * Read a resource, as a URL, else as a file, else as a classpath resource
+     * relative to this package.
+     *
+     * @param fileOrURL
+     *            the URL, file name, or resource name
+     * @return the content
+     * @throws IOException
+     *             if there is no such resource or it cannot be read
+     */
+    public byte[] read(String fileOrURL) throws IOException {
+        try {
+            return read(new URL(fileOrURL));
+        } catch (MalformedURLException e) {
+            File f = new File(fileOrURL);
+            if (f.isFile())
+                return read(f);
+            if (f.exists())
+                // such as a device; never cached
+                return readAll(new FileInputStream(f));
+            URL resource = getClass().getResource(fileOrURL);
+            if (resource == null)
+                throw new IOException("No such file or URL " + fileOrURL);
+            return read(resource);
+        }
+    }
+
+    /**
+     * Read a file, or get it from the cache if it has not changed since it
+     * was cached.
+     *
+     * @param file
+     *            the file
+     * @return the content
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    public byte[] read(File file) throws IOException {
+        if (!file.isFile())
+            throw new FileNotFoundException(file.getPath());
+        String key = "file:" + file.getAbsolutePath();
+        long modified = file.lastModified(), length = file.length();
+        Entry entry = get(key);
+        if (entry != null && entry.modified == modified
+                && entry.length == length)
+            return hit(entry);
+        entry = new Entry(Files.readAllBytes(file.toPath()));
+        entry.modified = modified;
+        entry.length = length;
+        return put(key, entry);
+    }
+
+    /**
+     * Open a file: from the cache if it is small enough to cache, else from
+     * the file itself, so that a large file can be streamed.
+     *
+     * @param file
+     *            the file
+     * @return the content
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    public InputStream open(File file) throws IOException {
+        if (file.length() > maxEntrySize())
+            return new FileInputStream(file);
+        return new ByteArrayInputStream(read(file));
+    }
+
+    /**
+     * Read a URL, or get it from the cache as described above.
+     *
+     * @param url
+     *            the URL
+     * @return the content
+     * @throws IOException
+     *             if the URL cannot be read
+     */
+    public byte[] read(URL url) throws IOException {
+        String protocol = url.getProtocol();
+        if ("file".equals(protocol)) {
+            try {
+                return read(new File(url.toURI()));
+            } catch (URISyntaxException e) {
+                throw new IOException("Invalid file URL " + url, e);
+            } catch (IllegalArgumentException e) {
+                // such as a file URL with an authority
+                return readAll(url.openStream());
+            }
+        }
+        String key = url.toString();
+        if ("jar".equals(protocol)) {
+            Entry entry = get(key);
+            if (entry != null)
+                return hit(entry);
+            return put(key, new Entry(readAll(url.openStream())));
+        }
+        URLConnection connection = url.openConnection();
+        if (!(connection instanceof HttpURLConnection))
+            return readAll(connection.getInputStream());
+        HttpURLConnection http = (HttpURLConnection) connection;
+        Entry entry = get(key);
+        if (entry != null) {
+            if (entry.etag != null)
+                http.setRequestProperty(IF_NONE_MATCH, entry.etag);
+            if (entry.lastModified != null)
+                http.setRequestProperty(IF_MODIFIED_SINCE, entry.lastModified);
+            if (http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                http.getInputStream().close();
+                return hit(entry);
+            }
+        }
+        entry = new Entry(readAll(http.getInputStream()));
+        entry.etag = http.getHeaderField("ETag");
+        entry.lastModified = http.getHeaderField("Last-Modified");
+        if (entry.etag == null && entry.lastModified == null) {
+            remove(key);
+            misses++;
+            return entry.bytes;
+        }
+        return put(key, entry);
+    }
+
+    /**
+     * @return the number of reads which used cached content
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of reads which read the resource
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of bytes in the cache
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Remove all resources from the cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    private long maxEntrySize() {
+        return maxSize / 4;
+    }
+
+    private synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    private synchronized byte[] hit(Entry entry) {
+        hits++;
+        return entry.bytes;
+    }
+
+    private synchronized void remove(String key) {
+        Entry old = entries.remove(key);
+        if (old != null)
+            size -= old.bytes.length;
+    }
+
+    private synchronized byte[] put(String key, Entry entry) {
+        misses++;
+        remove(key);
+        if (entry.bytes.length > maxEntrySize())
+            return entry.bytes;
+        entries.put(key, entry);
+        size += entry.bytes.length;
+        for (Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet()
+                .iterator(); size > maxSize && eldest.hasNext();) {
+            Map.Entry<String, Entry> e = eldest.next();
+            logger.trace("Evicting " + e.getKey() + " from the resource cache");
+            size -= e.getValue().bytes.length;
+            eldest.remove();
+        }
+        return entry.bytes;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Binary.copy(in, bytes);
+        return bytes.toByteArray();
+    }
+}
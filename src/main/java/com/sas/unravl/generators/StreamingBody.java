@@ -0,0 +1,133 @@
+package com.sas.unravl.generators;
+
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.http.ConnectionPool;
+import com.sas.unravl.http.ResponseBuffer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A request body which is read from its source, such as a file, only when
+ * the request is sent, so that it need not fit in memory. The source is
+ * opened on the first read. Transports send a body of known
+ * {@link #length()} with a Content-Length header, and other bodies with
+ * chunked transfer encoding.
+ *
+ * @author David.Biesack@sas.com
+ */
+public abstract class StreamingBody extends InputStream {
+
+    private InputStream in;
+    private boolean closed;
+
+    /**
+     * @return the body length in bytes, or -1 if it is not known
+     */
+    public abstract long length();
+
+    /**
+     * @return a new, unread body with the same content, for reading the
+     *         content without consuming this body
+     */
+    public abstract StreamingBody duplicate();
+
+    /**
+     * Open the source of the body. This is called once, on the first read.
+     *
+     * @return the content
+     * @throws IOException
+     *             if the source cannot be opened
+     */
+    protected abstract InputStream open() throws IOException;
+
+    /**
+     * Write the body to an output stream, consuming this body. Transports
+     * which write the request to a stream call this rather than reading the
+     * body, so that a body which is generated, such as a {@link JsonBody},
+     * can be written directly to the request.
+     *
+     * @param out
+     *            the output stream. This is <strong>not</strong> closed.
+     * @throws IOException
+     *             if the body cannot be read or written
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        Binary.copy(this, out);
+    }
+
+    /**
+     * @param script
+     *            the script
+     * @return the size beyond which a generated body which a transport reads
+     *         is kept in a temporary file; this is the runtime's
+     *         {@link ResponseBuffer#THRESHOLD}
+     */
+    protected static long spillThreshold(UnRAVL script) {
+        return ConnectionPool.longOption(script.getRuntime(),
+                ResponseBuffer.THRESHOLD, ResponseBuffer.DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Read a generated body, such as a {@link JsonBody}, which has been
+     * written to a buffer. The buffer keeps a large body in a temporary file
+     * rather than in memory; the file is deleted when the stream is closed.
+     *
+     * @param buffer
+     *            the generated body
+     * @return a stream which reads the body
+     * @throws IOException
+     *             if the temporary file cannot be read
+     */
+    protected static InputStream read(final ResponseBuffer buffer)
+            throws IOException {
+        buffer.close();
+        return new FilterInputStream(buffer.getInputStream()) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    buffer.dispose();
+                }
+            }
+        };
+    }
+
+    private synchronized InputStream in() throws IOException {
+        if (closed)
+            throw new IOException("Request body is closed");
+        if (in == null)
+            in = open();
+        return in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return in().read();
+    }
+
+    @Override
+    public int read(byte b[], int off, int len) throws IOException {
+        return in().read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        return in().skip(n);
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        return in == null ? 0 : in.available();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (in != null)
+            in.close();
+    }
+}
@@ -5,11 +5,8 @@ import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.util.Json;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
@@ -18,6 +15,9 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * This class produces text from a JSON text specification. This may be used for
@@ -43,6 +43,11 @@ import java.nio.charset.Charset;
  * newline, the last value should be the empty string, "".
  * </p>
  * <p>
+ * Plain files are not read until the text is used, and {@link #reader()}
+ * reads them as the reader is read, so that the text can be expanded and sent
+ * without holding it in memory.
+ * </p>
+ * <p>
  * TODO: add an <code>"encoding" : <em>encoding-name</em></code>
  * </p>
  * 
@@ -51,9 +56,11 @@ import java.nio.charset.Charset;
  */
 public class Text implements CharSequence {
 
-    private static final int BUFSIZE = 256;
     public static final Charset UTF_8 = Charset.forName("UTF-8");
+    // the text after the last file
     StringBuilder text = new StringBuilder();
+    // the String and File parts before the last file
+    private final List<Object> parts = new ArrayList<Object>();
     private final UnRAVL script;
 
     public Text(UnRAVL script) {
@@ -102,51 +109,91 @@ public class Text implements CharSequence {
     }
 
     private void buildFromStream(String fileOrURL) throws IOException {
-        InputStream is = null;
         try {
-            URL url = new URL(fileOrURL);
-            is = url.openStream();
+            new URL(fileOrURL);
         } catch (MalformedURLException e) {
             File f = new File(fileOrURL);
-            if (f.exists()) {
-                is = new FileInputStream(f);
-            } else {
-                is = getClass().getResourceAsStream(fileOrURL);
+            if (f.isFile()) {
+                addFile(f);
+                return;
             }
         }
-        if (is == null) {
-            throw new IOException("No such file or URL " + fileOrURL);
+        text.append(new String(cache().read(fileOrURL), UTF_8));
+    }
+
+    private ResourceCache cache() {
+        return script.getRuntime().getResourceCache();
+    }
+
+    // Defer reading a file until the text is used
+    private void addFile(File file) {
+        if (text.length() > 0) {
+            parts.add(text.toString());
+            text.setLength(0);
         }
-        Reader r = new InputStreamReader(is, UTF_8);
-        char buffer[] = new char[BUFSIZE];
-        BufferedReader br = new BufferedReader(r);
-        for (int n = br.read(buffer, 0, BUFSIZE); n > 0; n = br.read(buffer, 0,
-                BUFSIZE))
-            text.append(buffer, 0, n);
-        br.close();
+        parts.add(file);
+    }
+
+    /**
+     * @return true if the text includes files, which are read only as
+     *         {@link #reader()} is read
+     */
+    public boolean isStreaming() {
+        return !parts.isEmpty();
     }
 
+    /**
+     * @return a reader for the text. Files are read as the reader is read.
+     */
     public Reader reader() {
-        return new StringReader(text());
+        if (!isStreaming())
+            return new StringReader(text.toString());
+        List<Object> all = new ArrayList<Object>(parts);
+        all.add(text.toString());
+        return new PartsReader(all, cache());
+    }
+
+    // Read the files into memory, for the CharSequence methods
+    private synchronized StringBuilder all() {
+        if (isStreaming()) {
+            StringBuilder all = new StringBuilder();
+            for (Object part : parts) {
+                if (part instanceof File)
+                    all.append(new String(read((File) part), UTF_8));
+                else
+                    all.append((String) part);
+            }
+            text = all.append(text);
+            parts.clear();
+        }
+        return text;
+    }
+
+    private byte[] read(File file) {
+        try {
+            return cache().read(file);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read " + file, e);
+        }
     }
 
     @Override
     public char charAt(int index) {
-        return text.charAt(index);
+        return all().charAt(index);
     }
 
     @Override
     public int length() {
-        return text.length();
+        return all().length();
     }
 
     @Override
     public CharSequence subSequence(int start, int length) {
-        return text.subSequence(start, length);
+        return all().subSequence(start, length);
     }
 
     public String text() {
-        return text.toString();
+        return all().toString();
     }
 
     @Override
@@ -156,7 +203,7 @@ public class Text implements CharSequence {
 
     @Override
     public int hashCode() {
-        return text.hashCode();
+        return all().hashCode();
     }
 
     @Override
@@ -164,7 +211,7 @@ public class Text implements CharSequence {
         if (other == null)
             return false;
         else if (other instanceof Text) {
-            return text.equals(((Text) other).text());
+            return all().equals(((Text) other).text());
         } else
             return false;
     }
@@ -217,4 +264,45 @@ public class Text implements CharSequence {
         return encoded;
     }
 
+    // The concatenation of String and File parts
+    private static class PartsReader extends Reader {
+        private final Iterator<Object> each;
+        private final ResourceCache cache;
+        private Reader in;
+
+        PartsReader(List<Object> parts, ResourceCache cache) {
+            each = parts.iterator();
+            this.cache = cache;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            while (true) {
+                if (in == null) {
+                    if (!each.hasNext())
+                        return -1;
+                    // open each file only when the previous parts have been
+                    // read
+                    Object part = each.next();
+                    in = part instanceof File ? new InputStreamReader(
+                            cache.open((File) part), UTF_8) : new StringReader(
+                            (String) part);
+                }
+                int n = in.read(cbuf, off, len);
+                if (n != -1)
+                    return n;
+                in.close();
+                in = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null)
+                in.close();
+            in = null;
+            while (each.hasNext())
+                each.next();
+        }
+    }
 }
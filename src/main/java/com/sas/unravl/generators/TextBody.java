@@ -0,0 +1,100 @@
+package com.sas.unravl.generators;
+
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.http.ResponseBuffer;
+import com.sas.unravl.util.VariableResolver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * A text request body which includes files and has its variables expanded as
+ * it is sent. The text is read from the {@link Text#reader()} and expanded
+ * as {@link UnRAVL#expand(Reader, Writer)} does, then encoded as UTF-8 as it
+ * is written to the request, so the text is never held in memory. Variables
+ * have the values they had when the body was created, so the body and its
+ * {@link #duplicate() duplicates} always have the same content. The length is
+ * not known, so the body is sent with chunked transfer encoding.
+ * <p>
+ * As for a {@link JsonBody}, transports which read the body rather than have
+ * it {@link #writeTo(OutputStream) write itself} get the expanded text from a
+ * {@link ResponseBuffer}, which keeps large text in a temporary file.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+public class TextBody extends StreamingBody {
+
+    private final Text text;
+    private final VariableResolver variables;
+    private final long threshold;
+
+    public TextBody(UnRAVL script, Text text) {
+        this(text, script.getRuntime().getVariableResolver().snapshot(),
+                spillThreshold(script));
+    }
+
+    private TextBody(Text text, VariableResolver variables, long threshold) {
+        this.text = text;
+        this.variables = variables;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public StreamingBody duplicate() {
+        return new TextBody(text, variables, threshold);
+    }
+
+    /**
+     * Read the expanded text, as it was sent. This does not consume this
+     * body, but holds the whole text in memory.
+     *
+     * @return the expanded text
+     * @throws IOException
+     *             if a file cannot be read
+     */
+    public String text() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        expand(bytes);
+        return new String(bytes.toByteArray(), Text.UTF_8);
+    }
+
+    /**
+     * Expand the text directly into the output stream, consuming this body.
+     */
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        close();
+        expand(out);
+    }
+
+    // Transports which read the body get the expanded text from memory or,
+    // if it is large, a temporary file
+    @Override
+    protected InputStream open() throws IOException {
+        ResponseBuffer buffer = new ResponseBuffer(threshold);
+        expand(buffer);
+        return read(buffer);
+    }
+
+    private void expand(OutputStream out) throws IOException {
+        Reader in = text.reader();
+        try {
+            Writer writer = new OutputStreamWriter(out, Text.UTF_8);
+            variables.expand(in, writer);
+            writer.flush();
+        } finally {
+            in.close();
+        }
+    }
+}
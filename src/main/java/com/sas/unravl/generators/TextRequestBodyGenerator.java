@@ -6,8 +6,8 @@ import com.sas.unravl.ApiCall;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.annotations.UnRAVLRequestBodyGeneratorPlugin;
+import com.sas.unravl.util.DeferredValue;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -24,7 +24,13 @@ import java.io.InputStream;
  * The request body is built as described in {@link Text}.
  * <p>
  * The text is bound to the current environment as a string named
- * <code>"requestBody"</code>.
+ * <code>"requestBody"</code>. Text which includes files is instead expanded
+ * as the request is sent, by a {@link TextBody}, with the values variables
+ * had when the body was generated. <code>"requestBody"</code> is still bound
+ * to a string, but through a {@link DeferredValue}, so that the expanded text
+ * is read into memory (by {@link TextBody#text()}) only if a script uses it.
+ * <code>"requestBodyStream"</code> is bound to a duplicate {@link TextBody},
+ * which has the same content as the request.
  *
  * @author David.Biesack@sas.com
  *
@@ -37,10 +43,26 @@ public class TextRequestBodyGenerator extends BaseUnRAVLRequestBodyGenerator {
             throws IOException, UnRAVLException {
         JsonNode value = body.get("text");
         Text request = new Text(script, value);
+        if (request.isStreaming()) {
+            TextBody stream = new TextBody(script, request);
+            final TextBody sent = (TextBody) stream.duplicate();
+            script.bind("requestBody", new DeferredValue() {
+                @Override
+                protected Object compute() throws UnRAVLException {
+                    try {
+                        return sent.text();
+                    } catch (IOException e) {
+                        throw new UnRAVLException(e.getMessage(), e);
+                    }
+                }
+            });
+            script.bind("requestBodyStream", stream.duplicate());
+            return stream;
+        }
         String requestBody = request.text();
         requestBody = script.expand(requestBody);
         script.bind("requestBody", requestBody);
-        return new ByteArrayInputStream(Text.utf8(requestBody));
+        return new ByteArrayBody(Text.utf8(requestBody));
     }
 
 }
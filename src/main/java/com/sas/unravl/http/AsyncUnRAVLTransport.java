@@ -0,0 +1,37 @@
+package com.sas.unravl.http;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sas.unravl.UnRAVLException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A transport which can send a request without blocking the calling thread.
+ * {@link com.sas.unravl.ApiCall#runAsync()} uses this interface when the
+ * runtime's transport implements it; other transports run synchronously.
+ *
+ * @author David.Biesack@sas.com
+ */
+public interface AsyncUnRAVLTransport extends UnRAVLTransport {
+
+    /**
+     * Send a request and return without waiting for the response.
+     *
+     * @param request
+     *            the request
+     * @param responseBody
+     *            the stream which receives the response body before the
+     *            returned future completes
+     * @return a future for the response status and headers. The future fails
+     *         with an IOException if the request could not be sent or the
+     *         response could not be read.
+     * @throws IOException
+     *             if the request could not be started
+     * @throws UnRAVLException
+     *             if the request is invalid for this transport
+     */
+    public ListenableFuture<TransportResponse> executeAsync(
+            TransportRequest request, OutputStream responseBody)
+            throws IOException, UnRAVLException;
+}
@@ -0,0 +1,50 @@
+package com.sas.unravl.http;
+
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLPlugins;
+import com.sas.unravl.UnRAVLRuntime;
+
+import java.io.IOException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * The base implementation of an {@link UnRAVLTransport}. It holds the runtime
+ * which owns the transport and registers the transport class with
+ * {@link UnRAVLPlugins}.
+ *
+ * @author David.Biesack@sas.com
+ */
+public abstract class BaseUnRAVLTransport implements UnRAVLTransport {
+
+    private UnRAVLRuntime runtime;
+
+    @Override
+    public void init(UnRAVLRuntime runtime) throws UnRAVLException {
+        this.runtime = runtime;
+    }
+
+    public UnRAVLRuntime getRuntime() {
+        return runtime;
+    }
+
+    /**
+     * Release resources held by this transport. This implementation does
+     * nothing.
+     */
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * Used to register the transport class with the UnRAVL runtime. This is
+     * called from Spring when the UnRAVLPlugins class is loaded.
+     *
+     * @param plugins
+     *            a plugins instance
+     */
+    @Autowired
+    public void setPluginManager(UnRAVLPlugins plugins) {
+        plugins.addTransport(this.getClass());
+    }
+}
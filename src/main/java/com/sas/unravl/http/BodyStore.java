@@ -0,0 +1,293 @@
+package com.sas.unravl.http;
+
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.generators.ByteArrayBody;
+import com.sas.unravl.generators.StreamingBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A content-addressed store for the request and response bodies in a
+ * runtime's call history. After an API call's extractors and assertions have
+ * run, its bodies are moved into the store, keyed by their SHA-256 digest, so
+ * that identical bodies (such as the responses of a health check or a list
+ * which a script polls) are kept once no matter how many calls return them.
+ * If the variable {@link #COMPRESS} is true, bodies are also compressed with
+ * DEFLATE when that makes them smaller. The call's accessors read a stored
+ * body back on demand.
+ * <p>
+ * Each body is reference counted, and is removed from the store when the
+ * last call which uses it is {@link com.sas.unravl.ApiCall#dispose()
+ * disposed}, for example by {@link UnRAVLRuntime#reset()}.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+public class BodyStore {
+
+    /**
+     * The runtime variable which, if true, compresses stored bodies. The
+     * default is false.
+     */
+    public static final String COMPRESS = "unravl.history.compress";
+
+    private final Map<Key, Entry> entries = new HashMap<Key, Entry>();
+    // the bytes held by the store, and the bytes of the bodies stored
+    private long size, length;
+
+    /**
+     * The key of a stored body: its SHA-256 digest and length.
+     */
+    public static final class Key {
+        private final byte[] digest;
+        private final int length;
+
+        private Key(byte[] digest, int length) {
+            this.digest = digest;
+            this.length = length;
+        }
+
+        /**
+         * @return the length of the body in bytes
+         */
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public int hashCode() {
+            return (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16
+                    | (digest[2] & 0xff) << 8 | (digest[3] & 0xff);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).length == length
+                    && MessageDigest.isEqual(((Key) o).digest, digest);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest)
+                hex.append(String.format("%02x", b & 0xff));
+            return hex.toString();
+        }
+    }
+
+    private static class Entry {
+        final byte[] bytes;
+        final boolean compressed;
+        int references = 1;
+
+        Entry(byte[] bytes, boolean compressed) {
+            this.bytes = bytes;
+            this.compressed = compressed;
+        }
+    }
+
+    /**
+     * Add a body to the store, or add a reference to it if it is already
+     * stored.
+     *
+     * @param body
+     *            the body. Its remaining bytes are stored; its position is
+     *            not changed.
+     * @param compress
+     *            if true, compress the body if it is not already stored
+     * @return the key which reads the body
+     */
+    public Key put(ByteBuffer body, boolean compress) {
+        // digest and compress without holding the lock
+        Key key = new Key(digest(body), body.remaining());
+        if (reference(key))
+            return key;
+        byte bytes[] = new byte[body.remaining()];
+        body.duplicate().get(bytes);
+        byte deflated[] = compress ? deflate(bytes) : null;
+        Entry entry = deflated != null ? new Entry(deflated, true)
+                : new Entry(bytes, false);
+        synchronized (this) {
+            if (!reference(key)) {
+                entries.put(key, entry);
+                size += entry.bytes.length;
+                length += key.length;
+            }
+        }
+        return key;
+    }
+
+    // Add a reference to a body if it is stored
+    private synchronized boolean reference(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return false;
+        entry.references++;
+        length += key.length;
+        return true;
+    }
+
+    /**
+     * Read a body. The array must not be modified.
+     *
+     * @param key
+     *            the key which {@link #put(ByteBuffer, boolean)} returned
+     * @return the body
+     * @throws IllegalStateException
+     *             if the body has been released
+     */
+    public byte[] get(Key key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null)
+            throw new IllegalStateException("Body " + key
+                    + " is no longer stored");
+        return entry.compressed ? inflate(entry.bytes, key.length)
+                : entry.bytes;
+    }
+
+    /**
+     * Remove a reference to a body, and remove the body from the store if it
+     * was the last reference.
+     *
+     * @param key
+     *            the key which {@link #put(ByteBuffer, boolean)} returned
+     */
+    public synchronized void release(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return;
+        length -= key.length;
+        if (--entry.references == 0) {
+            entries.remove(key);
+            size -= entry.bytes.length;
+        }
+    }
+
+    /**
+     * @return the number of distinct bodies in the store
+     */
+    public synchronized int count() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of bytes the store holds, after deduplication and
+     *         compression
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return the total length of the stored bodies, counting each reference
+     */
+    public synchronized long length() {
+        return length;
+    }
+
+    /**
+     * A request body which is read from the store.
+     */
+    public static class StoredBody extends StreamingBody {
+        private final BodyStore store;
+        private final Key key;
+
+        public StoredBody(BodyStore store, Key key) {
+            this.store = store;
+            this.key = key;
+        }
+
+        public Key getKey() {
+            return key;
+        }
+
+        /**
+         * Remove this body's reference from the store.
+         */
+        public void release() {
+            store.release(key);
+        }
+
+        @Override
+        public long length() {
+            return key.length();
+        }
+
+        @Override
+        public StreamingBody duplicate() {
+            return new StoredBody(store, key);
+        }
+
+        @Override
+        protected InputStream open() throws IOException {
+            try {
+                return new ByteArrayBody(store.get(key));
+            } catch (IllegalStateException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+    }
+
+    private static byte[] digest(ByteBuffer body) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(body.duplicate());
+            return sha.digest();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Return the compressed bytes, or null if they are not smaller
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    bytes.length / 2 + 16);
+            byte buffer[] = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+                if (out.size() >= bytes.length)
+                    return null;
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            byte body[] = new byte[length];
+            for (int n = 0; n < length;) {
+                int read = inflater.inflate(body, n, length - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput()))
+                    throw new IllegalStateException("Stored body is truncated");
+                n += read;
+            }
+            return body;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Stored body is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package com.sas.unravl.http;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.hash.Hashing;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.util.Json;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.apache.log4j.Logger;
+
+/**
+ * A file of recorded HTTP exchanges. In <em>record</em> mode, each request
+ * sent by a {@link CassetteTransport} and the response it received are
+ * appended to the file. In <em>replay</em> mode, responses are served from the
+ * file and nothing is sent over the network.
+ * <p>
+ * The file has one JSON object per line:
+ * </p>
+ *
+ * <pre>
+ * { "request" : { "method" : "GET", "uri" : "http://host/items",
+ *                 "headers" : { "accept" : "application/json" },
+ *                 "sha256" : "<i>hash of the request body</i>" },
+ *   "response" : { "status" : 200, "protocol" : "HTTP/1.1",
+ *                  "headers" : [ [ "Content-Type", "application/json" ] ],
+ *                  "body" : "<i>text</i>" } }
+ * </pre>
+ *
+ * A request matches a recorded exchange if it has the same method, expanded
+ * URI, request body (by SHA-256 hash) and values of the headers named by
+ * <code>unravl.cassette.headers</code> (by default, <code>Accept</code> and
+ * <code>Content-Type</code>). Only those headers are recorded, so credentials
+ * are not written to the file. Response bodies which are not UTF-8 text are
+ * recorded in <code>"base64"</code> instead of <code>"body"</code>.
+ * <p>
+ * When replaying, the exchanges are indexed by their match key when the file
+ * is loaded, so each lookup takes constant time. If the same request was
+ * recorded more than once, the responses are replayed in the recorded order
+ * and the last one is repeated after that.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+public class Cassette implements Closeable {
+
+    public static final String FILE = "unravl.cassette";
+    public static final String MODE = "unravl.cassette.mode";
+    public static final String HEADERS = "unravl.cassette.headers";
+
+    private static final String DEFAULT_HEADERS = "Accept,Content-Type";
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Logger logger = Logger.getLogger(Cassette.class);
+
+    /**
+     * Whether a cassette records exchanges or replays them
+     */
+    public enum Mode {
+        RECORD, REPLAY
+    }
+
+    private final File file;
+    private final Mode mode;
+    private final List<String> headers;
+    private Writer writer;
+    private final Map<String, List<ObjectNode>> index = new HashMap<String, List<ObjectNode>>();
+    private final Map<String, Integer> replayed = new HashMap<String, Integer>();
+    private int size;
+
+    /**
+     * Open a cassette. In record mode, the file is created or truncated; in
+     * replay mode, it is read and indexed.
+     *
+     * @param file
+     *            the cassette file
+     * @param mode
+     *            record or replay
+     * @param headers
+     *            the names of the request headers which must match
+     * @throws IOException
+     *             if the file cannot be opened or read
+     */
+    public Cassette(File file, Mode mode, List<String> headers)
+            throws IOException {
+        this.file = file;
+        this.mode = mode;
+        this.headers = new ArrayList<String>();
+        for (String name : headers)
+            this.headers.add(name.trim().toLowerCase(Locale.ENGLISH));
+        if (mode == Mode.RECORD)
+            open(false);
+        else
+            load();
+    }
+
+    /**
+     * Open the cassette named by the runtime's <code>unravl.cassette</code>
+     * variable, in the mode named by <code>unravl.cassette.mode</code>
+     * (<code>record</code> or <code>replay</code>, the default).
+     *
+     * @param runtime
+     *            a runtime
+     * @return the cassette, or null if <code>unravl.cassette</code> is not set
+     * @throws UnRAVLException
+     *             if the mode is invalid or the file cannot be opened
+     */
+    public static Cassette fromRuntime(UnRAVLRuntime runtime)
+            throws UnRAVLException {
+        Object name = runtime.binding(FILE);
+        if (name == null || name.toString().trim().isEmpty())
+            return null;
+        Object modeName = runtime.binding(MODE);
+        Mode mode;
+        try {
+            mode = modeName == null ? Mode.REPLAY : Mode.valueOf(modeName
+                    .toString().trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new UnRAVLException("Invalid " + MODE + " " + modeName
+                    + "; use record or replay");
+        }
+        Object headers = runtime.binding(HEADERS);
+        String names = headers == null ? DEFAULT_HEADERS : headers.toString();
+        try {
+            Cassette cassette = new Cassette(new File(name.toString()), mode,
+                    names.trim().isEmpty() ? new ArrayList<String>() : Arrays
+                            .asList(names.split(",")));
+            logger.info((mode == Mode.RECORD ? "Recording to" : "Replaying")
+                    + " cassette " + name
+                    + (mode == Mode.REPLAY ? " (" + cassette.size()
+                            + " exchanges)" : ""));
+            return cassette;
+        } catch (IOException e) {
+            throw new UnRAVLException("Could not open cassette " + name
+                    + ": " + e.getMessage(), e);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the number of exchanges recorded or loaded
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Append an exchange to the cassette.
+     *
+     * @param request
+     *            the request which was sent
+     * @param requestBody
+     *            the request body, or null
+     * @param response
+     *            the response status and headers
+     * @param responseBody
+     *            the response body
+     * @throws IOException
+     *             if the exchange cannot be written
+     */
+    public synchronized void record(TransportRequest request,
+            byte[] requestBody, TransportResponse response,
+            byte[] responseBody) throws IOException {
+        if (mode != Mode.RECORD)
+            throw new IOException("Cassette " + file + " is not recording");
+        if (writer == null)
+            open(true);
+        ObjectNode exchange = Json.jsonNodeFactory().objectNode();
+        ObjectNode req = exchange.putObject("request");
+        req.put("method", request.getMethod().name());
+        req.put("uri", request.getURI());
+        ObjectNode matched = req.putObject("headers");
+        for (String name : headers) {
+            String value = header(request.getHeaders(), name);
+            if (value != null)
+                matched.put(name, value);
+        }
+        if (requestBody != null)
+            req.put("sha256", sha256(requestBody));
+        ObjectNode res = exchange.putObject("response");
+        res.put("status", response.getStatus());
+        if (response.getProtocolVersion() != null)
+            res.put("protocol", response.getProtocolVersion());
+        ArrayNode resHeaders = res.putArray("headers");
+        for (Header h : response.getHeaders())
+            resHeaders.addArray().add(h.getName()).add(h.getValue());
+        String text = text(responseBody);
+        if (text != null)
+            res.put("body", text);
+        else
+            res.put("base64", Base64.encodeBase64String(responseBody));
+        writer.write(mapper.writeValueAsString(exchange));
+        writer.write('\n');
+        writer.flush();
+        size++;
+    }
+
+    /**
+     * Find the recorded response to a request.
+     *
+     * @param request
+     *            the request
+     * @param requestBody
+     *            the request body, or null
+     * @param responseBody
+     *            receives the recorded response body
+     * @return the recorded response status and headers
+     * @throws IOException
+     *             if no matching exchange was recorded
+     */
+    public synchronized TransportResponse replay(TransportRequest request,
+            byte[] requestBody, OutputStream responseBody) throws IOException {
+        List<String> values = new ArrayList<String>();
+        for (String name : headers)
+            values.add(header(request.getHeaders(), name));
+        String key = key(request.getMethod().name(), request.getURI(), values,
+                requestBody == null ? null : sha256(requestBody));
+        List<ObjectNode> responses = index.get(key);
+        if (responses == null)
+            throw new IOException("No response recorded in cassette " + file
+                    + " for " + request.getMethod() + " " + request.getURI());
+        Integer count = replayed.get(key);
+        int n = count == null ? 0 : count.intValue();
+        replayed.put(key, Integer.valueOf(n + 1));
+        ObjectNode res = responses.get(Math.min(n, responses.size() - 1));
+        List<Header> resHeaders = new ArrayList<Header>();
+        for (JsonNode h : res.path("headers"))
+            resHeaders.add(new BasicHeader(h.path(0).asText(), h.path(1)
+                    .asText()));
+        if (res.has("body"))
+            responseBody.write(res.get("body").textValue()
+                    .getBytes(StandardCharsets.UTF_8));
+        else if (res.has("base64"))
+            responseBody.write(Base64.decodeBase64(res.get("base64")
+                    .textValue()));
+        JsonNode protocol = res.get("protocol");
+        return new TransportResponse(res.path("status").intValue(),
+                resHeaders.toArray(new Header[resHeaders.size()]),
+                protocol == null ? null : protocol.textValue());
+    }
+
+    /**
+     * Close the cassette file. A recording cassette may still be used; it
+     * reopens the file and appends to it.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private void open(boolean append) throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, append), StandardCharsets.UTF_8));
+    }
+
+    private void load() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            int lineNumber = 0;
+            for (String line = reader.readLine(); line != null; line = reader
+                    .readLine()) {
+                lineNumber++;
+                if (line.trim().isEmpty())
+                    continue;
+                JsonNode exchange = mapper.readTree(line);
+                JsonNode req = exchange.path("request");
+                JsonNode res = exchange.get("response");
+                if (!req.has("method") || !req.has("uri") || res == null
+                        || !res.isObject())
+                    throw new IOException(file + " line " + lineNumber
+                            + " is not a recorded exchange");
+                List<String> values = new ArrayList<String>();
+                for (String name : headers) {
+                    JsonNode value = req.path("headers").get(name);
+                    values.add(value == null ? null : value.asText());
+                }
+                JsonNode hash = req.get("sha256");
+                String key = key(req.get("method").asText(), req.get("uri")
+                        .asText(), values, hash == null ? null : hash.asText());
+                List<ObjectNode> responses = index.get(key);
+                if (responses == null) {
+                    responses = new ArrayList<ObjectNode>(1);
+                    index.put(key, responses);
+                }
+                responses.add((ObjectNode) res);
+                size++;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String key(String method, String uri, List<String> values,
+            String hash) {
+        StringBuilder key = new StringBuilder(method).append(' ').append(uri);
+        for (String value : values)
+            key.append('\n').append(value == null ? "" : value);
+        return key.append('\n').append(hash == null ? "" : hash).toString();
+    }
+
+    private static String header(List<Header> headers, String name) {
+        for (Header h : headers) {
+            if (h.getName().equalsIgnoreCase(name))
+                return h.getValue();
+        }
+        return null;
+    }
+
+    private static String sha256(byte[] bytes) {
+        return Hashing.sha256().hashBytes(bytes).toString();
+    }
+
+    // The bytes as a string, or null if they are not valid UTF-8
+    static String text(byte[] bytes) {
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(bytes)).toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+}
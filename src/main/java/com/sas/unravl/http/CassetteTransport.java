@@ -0,0 +1,129 @@
+package com.sas.unravl.http;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.generators.Binary;
+import com.sas.unravl.generators.ByteArrayBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A transport which records the exchanges of another transport to a
+ * {@link Cassette}, or replays them from it without using the other
+ * transport at all. The runtime wraps its transports in a CassetteTransport
+ * when the variable <code>unravl.cassette</code> is set.
+ * <p>
+ * Asynchronous calls are recorded asynchronously if the wrapped transport is
+ * an {@link AsyncUnRAVLTransport}; replayed calls complete immediately.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+public class CassetteTransport implements AsyncUnRAVLTransport {
+
+    private final Cassette cassette;
+    private final UnRAVLTransport transport;
+
+    /**
+     * @param cassette
+     *            the cassette to record to or replay from
+     * @param transport
+     *            the initialized transport which sends requests when
+     *            recording
+     */
+    public CassetteTransport(Cassette cassette, UnRAVLTransport transport) {
+        this.cassette = cassette;
+        this.transport = transport;
+    }
+
+    public Cassette getCassette() {
+        return cassette;
+    }
+
+    /**
+     * @return the transport which sends requests when recording
+     */
+    public UnRAVLTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Does nothing; the wrapped transport is already initialized.
+     */
+    @Override
+    public void init(UnRAVLRuntime runtime) throws UnRAVLException {
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request,
+            OutputStream responseBody) throws IOException, UnRAVLException {
+        byte[] body = body(request);
+        if (cassette.getMode() == Cassette.Mode.REPLAY)
+            return cassette.replay(request, body, responseBody);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        TransportResponse response = transport.execute(copy(request, body),
+                received);
+        return recorded(request, body, response, received, responseBody);
+    }
+
+    @Override
+    public ListenableFuture<TransportResponse> executeAsync(
+            final TransportRequest request, final OutputStream responseBody)
+            throws IOException, UnRAVLException {
+        if (cassette.getMode() == Cassette.Mode.REPLAY
+                || !(transport instanceof AsyncUnRAVLTransport)) {
+            try {
+                return Futures.immediateFuture(execute(request, responseBody));
+            } catch (IOException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+        }
+        final byte[] body = body(request);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        ListenableFuture<TransportResponse> response = ((AsyncUnRAVLTransport) transport)
+                .executeAsync(copy(request, body), received);
+        return Futures.transformAsync(response,
+                new AsyncFunction<TransportResponse, TransportResponse>() {
+                    @Override
+                    public ListenableFuture<TransportResponse> apply(
+                            TransportResponse response) throws IOException {
+                        return Futures.immediateFuture(recorded(request, body,
+                                response, received, responseBody));
+                    }
+                }, MoreExecutors.directExecutor());
+    }
+
+    @Override
+    public void close() throws IOException {
+        transport.close();
+    }
+
+    private TransportResponse recorded(TransportRequest request, byte[] body,
+            TransportResponse response, ByteArrayOutputStream received,
+            OutputStream responseBody) throws IOException {
+        cassette.record(request, body, response, received.toByteArray());
+        received.writeTo(responseBody);
+        return response;
+    }
+
+    // Read the request body so it can be hashed and still be sent
+    private static byte[] body(TransportRequest request) throws IOException {
+        if (request.getBody() == null)
+            return null;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Binary.copy(request.getBody(), bytes);
+        return bytes.toByteArray();
+    }
+
+    private static TransportRequest copy(TransportRequest request, byte[] body) {
+        return new TransportRequest(request.getMethod(), request.getURI(),
+                request.getHeaders(), body == null ? null : new ByteArrayBody(
+                        body), request.getTimeouts(), request.getTimings());
+    }
+}
@@ -0,0 +1,236 @@
+package com.sas.unravl.http;
+
+import com.sas.unravl.UnRAVLRuntime;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A per-host circuit breaker owned by an {@link UnRAVLRuntime}. After
+ * <code>unravl.circuitBreaker.threshold</code> consecutive connection-level
+ * failures (the host does not resolve, refuses the connection, or does not
+ * accept it before the connect timeout) the circuit for that host
+ * <em>opens</em>: API calls to the host fail immediately, without waiting for
+ * another connection failure, and are marked as skipped. After
+ * <code>unravl.circuitBreaker.retryAfter</code> milliseconds, the circuit is
+ * <em>half open</em>: one call is allowed through as a probe. If it gets a
+ * response, the circuit closes; if it fails, or ends without either (for
+ * example, if it is cancelled), the circuit opens again.
+ * <p>
+ * The default threshold is 5; 0 disables the circuit breaker. The default
+ * retry time is 30000 milliseconds. Failures after a connection is made, such
+ * as read timeouts or error status codes, do not open the circuit.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+public class CircuitBreaker {
+
+    public static final String THRESHOLD = "unravl.circuitBreaker.threshold";
+    public static final String RETRY_AFTER = "unravl.circuitBreaker.retryAfter";
+
+    private static final int DEFAULT_THRESHOLD = 5;
+    private static final long DEFAULT_RETRY_AFTER = 30000L;
+
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+    /**
+     * The state of the circuit for one host
+     */
+    public enum State {
+        /** calls are allowed */
+        CLOSED,
+        /** calls fail immediately */
+        OPEN,
+        /** one probe call is in progress; other calls fail immediately */
+        HALF_OPEN
+    }
+
+    private static final class Circuit {
+        State state = State.CLOSED;
+        int failures;
+        long openedAt;
+    }
+
+    private final int threshold;
+    private final long retryAfterNanos;
+    private final Map<String, Circuit> circuits = new HashMap<String, Circuit>();
+
+    /**
+     * @param threshold
+     *            the number of consecutive connection failures which opens the
+     *            circuit for a host, or 0 to never open it
+     * @param retryAfter
+     *            how long, in milliseconds, a circuit stays open before a
+     *            probe call is allowed
+     */
+    public CircuitBreaker(int threshold, long retryAfter) {
+        this.threshold = threshold;
+        this.retryAfterNanos = retryAfter * 1000000L;
+    }
+
+    /**
+     * @param runtime
+     *            a runtime
+     * @return a circuit breaker configured from the runtime's environment
+     */
+    public static CircuitBreaker fromRuntime(UnRAVLRuntime runtime) {
+        return new CircuitBreaker((int) ConnectionPool.longOption(runtime,
+                THRESHOLD, DEFAULT_THRESHOLD), ConnectionPool.longOption(
+                runtime, RETRY_AFTER, DEFAULT_RETRY_AFTER));
+    }
+
+    /**
+     * Check whether a call may be made.
+     *
+     * @param uri
+     *            the URI of the call
+     * @return null if the call may be made, else the reason it may not
+     */
+    public synchronized String check(String uri) {
+        if (threshold <= 0)
+            return null;
+        String host = host(uri);
+        Circuit circuit = circuits.get(host);
+        if (circuit == null || circuit.state == State.CLOSED)
+            return null;
+        if (circuit.state == State.OPEN
+                && System.nanoTime() - circuit.openedAt >= retryAfterNanos) {
+            logger.info("Circuit for " + host
+                    + " is half open; sending a probe call");
+            circuit.state = State.HALF_OPEN;
+            return null;
+        }
+        return String.format(
+                "the circuit breaker for %s is open after %d consecutive connection failures",
+                host, circuit.failures);
+    }
+
+    /**
+     * Record that a call received a response (or at least connected), which
+     * closes the host's circuit.
+     *
+     * @param uri
+     *            the URI of the call
+     */
+    public synchronized void succeeded(String uri) {
+        Circuit circuit = circuits.remove(host(uri));
+        if (circuit != null && circuit.state != State.CLOSED)
+            logger.info("Circuit for " + host(uri) + " is closed");
+    }
+
+    /**
+     * Record that a call failed. Only connection-level failures count
+     * towards opening the circuit. Any other failure, such as a read timeout
+     * or a reset connection, means the call reached the host, so it is
+     * recorded as {@link #succeeded(String)}: it resets the failure count
+     * and closes the circuit, even a half open one. (Error status codes,
+     * including 5xx, are responses and are recorded as successes too; this
+     * breaker guards against unreachable hosts, not failing services.)
+     *
+     * @param uri
+     *            the URI of the call
+     * @param failure
+     *            the exception which the transport threw
+     */
+    public synchronized void failed(String uri, Throwable failure) {
+        if (!isConnectionFailure(failure)) {
+            // the host was reached: see above
+            succeeded(uri);
+            return;
+        }
+        if (threshold <= 0)
+            return;
+        String host = host(uri);
+        Circuit circuit = circuits.get(host);
+        if (circuit == null) {
+            circuit = new Circuit();
+            circuits.put(host, circuit);
+        }
+        circuit.failures++;
+        if (circuit.state == State.HALF_OPEN
+                || (circuit.state == State.CLOSED && circuit.failures >= threshold)) {
+            logger.warn(String.format(
+                    "Circuit for %s is open after %d consecutive connection failures",
+                    host, circuit.failures));
+            circuit.state = State.OPEN;
+            circuit.openedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Record that a call which {@link #check(String)} allowed ended without a
+     * response or a failure, such as when it was cancelled or threw an
+     * unexpected exception. If the call was the probe of a half open circuit,
+     * the circuit opens again and the retry time starts over, so that a later
+     * call can probe the host.
+     *
+     * @param uri
+     *            the URI of the call
+     */
+    public synchronized void abandoned(String uri) {
+        String host = host(uri);
+        Circuit circuit = circuits.get(host);
+        if (circuit != null && circuit.state == State.HALF_OPEN) {
+            logger.info("Circuit for " + host
+                    + " is open again; the probe call did not complete");
+            circuit.state = State.OPEN;
+            circuit.openedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * @param uri
+     *            a URI
+     * @return the state of the circuit for the URI's host
+     */
+    public synchronized State getState(String uri) {
+        Circuit circuit = circuits.get(host(uri));
+        return circuit == null ? State.CLOSED : circuit.state;
+    }
+
+    /**
+     * Test if a failure means the host could not be reached at all.
+     *
+     * @param failure
+     *            an exception thrown by a transport
+     * @return true if the host did not resolve, refused the connection, or
+     *         could not be connected before the connect timeout
+     */
+    public static boolean isConnectionFailure(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof ConnectException
+                    || t instanceof UnknownHostException
+                    || t instanceof NoRouteToHostException
+                    || t instanceof PortUnreachableException)
+                return true;
+            if (t.getCause() == t)
+                break;
+        }
+        return Timeouts.phase(failure) == Timeouts.Phase.CONNECT;
+    }
+
+    /**
+     * @param uri
+     *            a URI
+     * @return the scheme, host and port of the URI, which name its circuit
+     */
+    public static String host(String uri) {
+        try {
+            URI u = URI.create(uri);
+            if (u.getHost() != null)
+                return u.getScheme() + "://" + u.getHost()
+                        + (u.getPort() < 0 ? "" : ":" + u.getPort());
+        } catch (IllegalArgumentException e) {
+            // fall through
+        }
+        return uri;
+    }
+}
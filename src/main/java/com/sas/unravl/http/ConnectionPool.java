@@ -0,0 +1,465 @@
+package com.sas.unravl.http;
+
+import com.sas.unravl.UnRAVLRuntime;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultRedirectStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+import org.apache.log4j.Logger;
+
+/**
+ * A pool of HTTP connections owned by an {@link UnRAVLRuntime}. All API calls
+ * made by the runtime share one Apache HTTP Components client, so calls to the
+ * same host reuse keep-alive connections and TLS sessions instead of opening a
+ * new connection per call.
+ * <p>
+ * The pool is configured from variables in the runtime's environment. Since
+ * the environment is initialized from Java system properties, these may be set
+ * with <code>-D<em>name</em>=<em>value</em></code> or in a script's
+ * <code>"env"</code> (before the first API call runs):
+ * </p>
+ * <ul>
+ * <li><code>unravl.http.maxTotal</code> - the maximum number of open
+ * connections (default 50)</li>
+ * <li><code>unravl.http.maxPerRoute</code> - the maximum number of open
+ * connections per host (default 20)</li>
+ * <li><code>unravl.http.idleTimeout</code> - close connections which have been
+ * idle this many milliseconds (default 30000). A task on the runtime's
+ * {@link UnRAVLRuntime#getTimer() timer} closes idle and expired connections
+ * every half of this time, so that clients which were obtained once and kept,
+ * such as the one in the runtime's RestTemplate, do not lease connections the
+ * server has already dropped.</li>
+ * <li><code>unravl.http.keepAlive</code> - how long, in milliseconds, to keep
+ * a connection alive if the server does not send a <code>Keep-Alive</code>
+ * header (default 30000)</li>
+ * <li><code>unravl.http.ioThreads</code> - the number of I/O threads used by
+ * the asynchronous client (default is the number of processors)</li>
+ * <li><code>unravl.http.prewarm</code> - if <code>true</code>, open a pooled
+ * connection to each host named in a list of scripts before running them; see
+ * {@link UnRAVLRuntime#prewarm(java.util.List)} (default false)</li>
+ * </ul>
+ * <p>
+ * All pools share one {@link SSLContext}, so a TLS session negotiated by one
+ * runtime (or by the blocking client) is resumed by the others instead of
+ * repeating the full handshake.
+ * </p>
+ * <p>
+ * The pool also provides a non-blocking client for
+ * {@link com.sas.unravl.ApiCall#runAsync()}. It is created on first use and
+ * shares the limits, keep-alive strategy and cookie store of the blocking
+ * client, but has its own connections.
+ * </p>
+ * <p>
+ * Each pool has its own cookie store, so cookies set by responses are returned
+ * only to calls made from the same runtime.
+ * </p>
+ * <p>
+ * The clients record the phases of requests which carry {@link Timings} in
+ * their HttpContext.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+public class ConnectionPool implements Closeable {
+
+    public static final String MAX_TOTAL = "unravl.http.maxTotal";
+    public static final String MAX_PER_ROUTE = "unravl.http.maxPerRoute";
+    public static final String IDLE_TIMEOUT = "unravl.http.idleTimeout";
+    public static final String KEEP_ALIVE = "unravl.http.keepAlive";
+    public static final String IO_THREADS = "unravl.http.ioThreads";
+    public static final String PREWARM = "unravl.http.prewarm";
+
+    private static final int DEFAULT_MAX_TOTAL = 50;
+    private static final int DEFAULT_MAX_PER_ROUTE = 20;
+    private static final long DEFAULT_IDLE_TIMEOUT = 30000L;
+    private static final long DEFAULT_KEEP_ALIVE = 30000L;
+    private static final int PREWARM_TIMEOUT = 10000;
+    private static final long MIN_EVICT_INTERVAL = 100L;
+
+    private static SSLContext sslContext;
+
+    private static final Logger logger = Logger.getLogger(ConnectionPool.class);
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CookieStore cookieStore;
+    private final CloseableHttpClient httpClient;
+    private final ConnectionKeepAliveStrategy keepAliveStrategy;
+    private final int maxTotal, maxPerRoute, ioThreads;
+    private final long idleTimeout, keepAlive;
+    private PoolingNHttpClientConnectionManager asyncConnectionManager;
+    private CloseableHttpAsyncClient asyncHttpClient;
+    private final ScheduledFuture<?> idleMonitor;
+
+    /**
+     * Create a connection pool configured from the runtime's environment
+     *
+     * @param runtime
+     *            the runtime which owns this pool
+     */
+    public ConnectionPool(UnRAVLRuntime runtime) {
+        maxTotal = (int) longOption(runtime, MAX_TOTAL, DEFAULT_MAX_TOTAL);
+        maxPerRoute = (int) longOption(runtime, MAX_PER_ROUTE,
+                DEFAULT_MAX_PER_ROUTE);
+        ioThreads = (int) longOption(runtime, IO_THREADS, Runtime.getRuntime()
+                .availableProcessors());
+        idleTimeout = longOption(runtime, IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+        keepAlive = longOption(runtime, KEEP_ALIVE, DEFAULT_KEEP_ALIVE);
+
+        Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder
+                .<ConnectionSocketFactory> create()
+                .register("http", new TimingHooks.PlainSocketFactory())
+                .register("https",
+                        new TimingHooks.SSLSocketFactory(sslContext()))
+                .build();
+        connectionManager = new TimingHooks.ConnectionManager(socketFactories);
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        cookieStore = new BasicCookieStore();
+
+        keepAliveStrategy = new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response,
+                    HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return duration > 0 ? duration : keepAlive;
+            }
+        };
+        httpClient = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .setDefaultCookieStore(cookieStore)
+                .setRedirectStrategy(new UnRAVLRedirectStrategy())
+                .setRequestExecutor(new TimingHooks.RequestExecutor())
+                // the transports decode responses; see ContentCoding
+                .disableContentCompression().build();
+        if (idleTimeout > 0) {
+            long interval = Math.max(idleTimeout / 2, MIN_EVICT_INTERVAL);
+            idleMonitor = runtime.getTimer().scheduleWithFixedDelay(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            closeIdleConnections();
+                        }
+                    }, interval, interval, TimeUnit.MILLISECONDS);
+        } else
+            idleMonitor = null;
+        logger.trace(String.format(
+                "Created connection pool maxTotal=%d maxPerRoute=%d",
+                maxTotal, maxPerRoute));
+    }
+
+    /**
+     * Return the pooled client. Expired and idle connections are closed first,
+     * so a call does not lease a connection the server has already dropped.
+     *
+     * @return the HTTP client which uses this pool
+     */
+    public CloseableHttpClient getHttpClient() {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleTimeout,
+                TimeUnit.MILLISECONDS);
+        return httpClient;
+    }
+
+    /**
+     * Close the expired connections, and those which have been idle longer
+     * than <code>unravl.http.idleTimeout</code>, of both clients. The
+     * runtime's timer calls this periodically.
+     */
+    public void closeIdleConnections() {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleTimeout,
+                TimeUnit.MILLISECONDS);
+        PoolingNHttpClientConnectionManager async;
+        synchronized (this) {
+            async = asyncConnectionManager;
+        }
+        if (async != null) {
+            async.closeExpiredConnections();
+            async.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Return the non-blocking client, creating and starting it on first use.
+     * Responses are delivered to callbacks on the client's I/O threads.
+     *
+     * @return the asynchronous HTTP client which uses this pool's settings
+     * @throws IOException
+     *             if the I/O reactor cannot be created
+     */
+    public synchronized CloseableHttpAsyncClient getAsyncHttpClient()
+            throws IOException {
+        if (asyncHttpClient == null) {
+            IOReactorConfig config = IOReactorConfig.custom()
+                    .setIoThreadCount(Math.max(1, ioThreads)).build();
+            Registry<SchemeIOSessionStrategy> sessionStrategies = RegistryBuilder
+                    .<SchemeIOSessionStrategy> create()
+                    .register("http", NoopIOSessionStrategy.INSTANCE)
+                    .register("https", new SSLIOSessionStrategy(sslContext()))
+                    .build();
+            asyncConnectionManager = new PoolingNHttpClientConnectionManager(
+                    new DefaultConnectingIOReactor(config), sessionStrategies);
+            asyncConnectionManager.setMaxTotal(maxTotal);
+            asyncConnectionManager.setDefaultMaxPerRoute(maxPerRoute);
+            asyncHttpClient = HttpAsyncClients.custom()
+                    .setConnectionManager(asyncConnectionManager)
+                    .setKeepAliveStrategy(keepAliveStrategy)
+                    .setDefaultCookieStore(cookieStore)
+                    .setRedirectStrategy(new UnRAVLRedirectStrategy())
+                    .addInterceptorLast(
+                            new TimingHooks.AsyncResponseInterceptor())
+                    .build();
+            asyncHttpClient.start();
+            logger.trace(String.format(
+                    "Started asynchronous HTTP client with %d I/O threads",
+                    ioThreads));
+        } else {
+            asyncConnectionManager.closeExpiredConnections();
+            asyncConnectionManager.closeIdleConnections(idleTimeout,
+                    TimeUnit.MILLISECONDS);
+        }
+        return asyncHttpClient;
+    }
+
+    /**
+     * Open a pooled connection to the host of a URI, if the pool does not
+     * already have an idle one, so that the next call to that host does not
+     * wait for DNS, TCP and TLS handshakes. For https URIs, this also caches
+     * the TLS session in the shared {@link SSLContext}.
+     *
+     * @param uri
+     *            an absolute http or https URI
+     * @return the time spent opening the connection, or null if the pool
+     *         already had a connection to the host
+     * @throws IOException
+     *             if the host does not resolve or the connection fails
+     */
+    public Handshake prewarm(String uri) throws IOException {
+        URI u = URI.create(uri);
+        boolean secure = "https".equalsIgnoreCase(u.getScheme());
+        int port = u.getPort() > 0 ? u.getPort() : secure ? 443 : 80;
+        HttpHost target = new HttpHost(u.getHost(), port, u.getScheme());
+        // the same route that the client's route planner builds for the URI
+        HttpRoute route = new HttpRoute(target, null, secure);
+        long start = System.nanoTime();
+        ConnectionRequest request = connectionManager.requestConnection(route,
+                null);
+        HttpClientConnection conn;
+        try {
+            conn = request.get(PREWARM_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new IOException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        try {
+            if (conn.isOpen())
+                return null;
+            // resolve first to time DNS apart from the connection; the
+            // connection manager then uses the JVM's cached address
+            InetAddress.getAllByName(target.getHostName());
+            long resolved = System.nanoTime();
+            HttpClientContext context = HttpClientContext.create();
+            connectionManager.connect(conn, route, PREWARM_TIMEOUT, context);
+            connectionManager.routeComplete(conn, route, context);
+            long connected = System.nanoTime();
+            return new Handshake(target.toURI(), secure, resolved - start,
+                    connected - resolved);
+        } finally {
+            connectionManager.releaseConnection(conn, null, keepAlive,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the connection manager which holds the pooled connections
+     */
+    public PoolingHttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * @return the cookie store for this pool
+     */
+    public CookieStore getCookieStore() {
+        return cookieStore;
+    }
+
+    /**
+     * Close the clients and all pooled connections.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (idleMonitor != null)
+            idleMonitor.cancel(false);
+        try {
+            httpClient.close();
+        } finally {
+            if (asyncHttpClient != null) {
+                asyncHttpClient.close();
+                asyncHttpClient = null;
+            }
+        }
+    }
+
+    /**
+     * Return the SSL context shared by all connection pools. It holds the TLS
+     * session cache, so sessions are resumed across pools and runtimes.
+     *
+     * @return the shared SSL context, initialized from the JVM's default trust
+     *         store
+     */
+    public static synchronized SSLContext sslContext() {
+        if (sslContext == null)
+            sslContext = SSLContexts.createDefault();
+        return sslContext;
+    }
+
+    /**
+     * Read a numeric option from the runtime's environment. The value may be a
+     * Number (from an "env" element) or a String (from a system property).
+     *
+     * @param runtime
+     *            the runtime
+     * @param name
+     *            the variable name
+     * @param defaultValue
+     *            the value to use if the variable is not bound or is not a
+     *            number
+     * @return the option value
+     */
+    public static long longOption(UnRAVLRuntime runtime, String name,
+            long defaultValue) {
+        Object value = runtime.binding(name);
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+        if (value != null) {
+            try {
+                return Long.parseLong(value.toString().trim());
+            } catch (NumberFormatException e) {
+                logger.warn(String.format(
+                        "Ignoring non-numeric value %s for %s", value, name));
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Read a boolean option from the runtime's environment. The value may be a
+     * Boolean (from an "env" element) or a String (from a system property).
+     *
+     * @param runtime
+     *            the runtime
+     * @param name
+     *            the variable name
+     * @return true if the variable is bound to true or "true"
+     */
+    public static boolean booleanOption(UnRAVLRuntime runtime, String name) {
+        Object value = runtime.binding(name);
+        return value != null && Boolean.parseBoolean(value.toString().trim());
+    }
+
+    /**
+     * The time taken to open a connection with {@link ConnectionPool#prewarm}
+     */
+    public static final class Handshake {
+
+        private final String host;
+        private final boolean secure;
+        private final long dnsNanos, connectNanos;
+
+        public Handshake(String host, boolean secure, long dnsNanos,
+                long connectNanos) {
+            this.host = host;
+            this.secure = secure;
+            this.dnsNanos = dnsNanos;
+            this.connectNanos = connectNanos;
+        }
+
+        /**
+         * @return the host, such as "https://www.example.com:443"
+         */
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * @return true if the connection uses TLS
+         */
+        public boolean isSecure() {
+            return secure;
+        }
+
+        /**
+         * @return the time to resolve the host name, in nanoseconds
+         */
+        public long getDnsNanos() {
+            return dnsNanos;
+        }
+
+        /**
+         * @return the time to connect, including the TLS handshake for secure
+         *         connections, in nanoseconds
+         */
+        public long getConnectNanos() {
+            return connectNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: DNS %.1fms, %s %.1fms", host,
+                    dnsNanos / 1e6, secure ? "TCP+TLS" : "TCP",
+                    connectNanos / 1e6);
+        }
+    }
+
+    /**
+     * Follow redirects for GET and HEAD calls only.
+     */
+    public static final class UnRAVLRedirectStrategy extends
+            DefaultRedirectStrategy {
+
+        @Override
+        protected boolean isRedirectable(final String method) {
+            return HttpGet.METHOD_NAME.equalsIgnoreCase(method) //
+                    || HttpHead.METHOD_NAME.equalsIgnoreCase(method);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.sas.unravl.http;
+
+import com.google.common.io.CountingInputStream;
+import com.sas.unravl.generators.Binary;
+import com.sas.unravl.generators.ByteArrayBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * The HTTP content codings (RFC 7231, section 3.1.2.1) which UnRAVL can apply
+ * to request bodies and remove from response bodies: <code>gzip</code> and
+ * <code>deflate</code>. The transports ask for compressed responses and
+ * decode them as they are read into the API call's response body, counting the
+ * bytes received on the wire.
+ *
+ * @author David.Biesack@sas.com
+ */
+public final class ContentCoding {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+    /** The value of the Accept-Encoding header sent by the transports */
+    public static final String ACCEPTED = GZIP + ", " + DEFLATE;
+
+    private ContentCoding() {
+    }
+
+    /**
+     * @param coding
+     *            a content coding name
+     * @return true if UnRAVL can encode and decode the coding
+     */
+    public static boolean isSupported(String coding) {
+        return coding != null
+                && (GZIP.equalsIgnoreCase(coding.trim()) || DEFLATE
+                        .equalsIgnoreCase(coding.trim()));
+    }
+
+    /**
+     * Compress a request body.
+     *
+     * @param body
+     *            the uncompressed body
+     * @param coding
+     *            "gzip" or "deflate"
+     * @return the compressed body
+     * @throws IOException
+     *             if the body cannot be read
+     */
+    public static ByteArrayBody encode(InputStream body, String coding)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = GZIP.equalsIgnoreCase(coding.trim()) ? new GZIPOutputStream(
+                bytes) : new DeflaterOutputStream(bytes);
+        Binary.copy(body, out);
+        out.close();
+        return new ByteArrayBody(bytes.toByteArray());
+    }
+
+    /**
+     * Copy a response body to out, removing the content coding, if any. The
+     * body is decoded as it is read; it is not buffered in compressed form.
+     *
+     * @param wire
+     *            the body as received
+     * @param contentEncoding
+     *            the value of the response's Content-Encoding header, or null
+     * @param out
+     *            where to write the decoded body
+     * @return the number of bytes read from wire
+     * @throws IOException
+     *             if the body cannot be read or decoded
+     */
+    public static long decode(InputStream wire, String contentEncoding,
+            OutputStream out) throws IOException {
+        CountingInputStream counted = new CountingInputStream(wire);
+        InputStream in = counted;
+        if (isSupported(contentEncoding)) {
+            // some servers label empty bodies (such as 204 responses) as gzip
+            PushbackInputStream body = new PushbackInputStream(counted);
+            int first = body.read();
+            if (first == -1)
+                return 0;
+            body.unread(first);
+            in = GZIP.equalsIgnoreCase(contentEncoding.trim()) ? new GZIPInputStream(
+                    body) : new InflaterInputStream(body);
+        }
+        Binary.copy(in, out);
+        return counted.getCount();
+    }
+
+    /**
+     * Return a stream which decodes a response body as it is written, for a
+     * transport which receives the body in chunks rather than reading it from
+     * an InputStream. As with {@link #decode(InputStream, String, OutputStream)},
+     * the body is not buffered in compressed form, and an empty body is
+     * valid whatever its coding. Closing the stream checks that the body was
+     * complete; it does not close out.
+     *
+     * @param contentEncoding
+     *            the value of the response's Content-Encoding header, or null
+     * @param out
+     *            where to write the decoded body
+     * @return a stream which writes the decoded body to out, or out if the
+     *         body is not compressed
+     */
+    public static OutputStream decoder(String contentEncoding, OutputStream out) {
+        if (!isSupported(contentEncoding))
+            return out;
+        return new Decoder(GZIP.equalsIgnoreCase(contentEncoding.trim()), out);
+    }
+
+    // Inflates a gzip or deflate body as it is written. A gzip header is
+    // collected and skipped first; the gzip trailer, which follows the end
+    // of the deflate data, is collected and checked against the CRC-32 and
+    // length of the inflated body when the stream is closed.
+    private static final class Decoder extends OutputStream {
+        private final boolean gzip;
+        private final OutputStream out;
+        private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+        private final CRC32 crc = new CRC32();
+        private final byte buffer[] = new byte[8192];
+        private Inflater inflater;
+        private long size;
+
+        Decoder(boolean gzip, OutputStream out) {
+            this.gzip = gzip;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte b[], int off, int len) throws IOException {
+            if (inflater == null) {
+                if (gzip) {
+                    header.write(b, off, len);
+                    byte h[] = header.toByteArray();
+                    int length = gzipHeaderLength(h);
+                    if (length < 0)
+                        return;
+                    b = h;
+                    off = length;
+                    len = h.length - length;
+                }
+                inflater = new Inflater(gzip);
+            }
+            if (inflater.finished()) {
+                trailer.write(b, off, len);
+                return;
+            }
+            inflater.setInput(b, off, len);
+            try {
+                while (!inflater.finished() && !inflater.needsInput()) {
+                    int n = inflater.inflate(buffer);
+                    if (n > 0) {
+                        out.write(buffer, 0, n);
+                        crc.update(buffer, 0, n);
+                        size += n;
+                    } else if (inflater.needsDictionary())
+                        throw new ZipException("ZLIB dictionary missing");
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            }
+            if (inflater.finished()) {
+                int rest = inflater.getRemaining();
+                trailer.write(b, off + len - rest, rest);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (inflater == null) {
+                if (header.size() > 0)
+                    throw new EOFException("Unexpected end of GZIP header");
+                return;
+            }
+            try {
+                if (!inflater.finished())
+                    throw new EOFException("Unexpected end of ZLIB input stream");
+                if (gzip) {
+                    byte t[] = trailer.toByteArray();
+                    if (t.length < 8)
+                        throw new EOFException("Unexpected end of GZIP trailer");
+                    if (uint32(t, 0) != crc.getValue()
+                            || uint32(t, 4) != (size & 0xffffffffL))
+                        throw new ZipException("Corrupt GZIP trailer");
+                }
+            } finally {
+                inflater.end();
+            }
+        }
+
+        // The little-endian unsigned 32 bit integer at b[i]
+        private static long uint32(byte b[], int i) {
+            return (b[i] & 0xffL) | (b[i + 1] & 0xffL) << 8
+                    | (b[i + 2] & 0xffL) << 16 | (b[i + 3] & 0xffL) << 24;
+        }
+
+        // The length of the gzip header (RFC 1952) at the start of h, or -1
+        // if h does not hold all of it yet
+        private static int gzipHeaderLength(byte h[]) throws IOException {
+            if (h.length < 10)
+                return -1;
+            if ((h[0] & 0xff) != 0x1f || (h[1] & 0xff) != 0x8b || h[2] != 8)
+                throw new ZipException("Not in GZIP format");
+            int flags = h[3], i = 10;
+            if ((flags & 4) != 0) { // FEXTRA
+                if (h.length < i + 2)
+                    return -1;
+                i += 2 + ((h[i] & 0xff) | (h[i + 1] & 0xff) << 8);
+            }
+            for (int flag : new int[] { 8, 16 }) { // FNAME, FCOMMENT
+                if ((flags & flag) != 0) {
+                    while (i < h.length && h[i] != 0)
+                        i++;
+                    if (i++ >= h.length)
+                        return -1;
+                }
+            }
+            if ((flags & 2) != 0) // FHCRC
+                i += 2;
+            return i <= h.length ? i : -1;
+        }
+    }
+
+    /**
+     * Read a response body into out, decoding it if needed, and describe the
+     * response.
+     *
+     * @param status
+     *            the HTTP status code
+     * @param headers
+     *            the response headers
+     * @param protocolVersion
+     *            the response protocol, or null
+     * @param wire
+     *            the body as received, or null if there is no body
+     * @param out
+     *            where to write the decoded body
+     * @return the response, with the {@link #decodedHeaders(Header[]) decoded
+     *         headers} and the number of bytes received
+     * @throws IOException
+     *             if the body cannot be read or decoded
+     */
+    public static TransportResponse read(int status, Header[] headers,
+            String protocolVersion, InputStream wire, OutputStream out)
+            throws IOException {
+        if (wire == null)
+            return new TransportResponse(status, headers, protocolVersion, 0,
+                    null);
+        String coding = contentEncoding(headers);
+        if (out instanceof ResponseBuffer && !isSupported(coding))
+            ((ResponseBuffer) out).expect(contentLength(headers));
+        long wireLength;
+        try {
+            wireLength = decode(wire, coding, out);
+        } finally {
+            wire.close();
+        }
+        if (!isSupported(coding))
+            coding = null;
+        return new TransportResponse(status, decodedHeaders(headers),
+                protocolVersion, wireLength, coding);
+    }
+
+    /**
+     * Add an Accept-Encoding header for the codings UnRAVL can decode, unless
+     * the request already has one.
+     *
+     * @param headers
+     *            the request headers
+     * @return headers, or a copy with the added header
+     */
+    public static List<Header> acceptEncoding(List<Header> headers) {
+        for (Header h : headers) {
+            if (ACCEPT_ENCODING.equalsIgnoreCase(h.getName()))
+                return headers;
+        }
+        List<Header> accept = new ArrayList<Header>(headers);
+        accept.add(new BasicHeader(ACCEPT_ENCODING, ACCEPTED));
+        return accept;
+    }
+
+    /**
+     * @param headers
+     *            response headers
+     * @return the value of the Content-Encoding header, or null
+     */
+    public static String contentEncoding(Header[] headers) {
+        for (Header h : headers) {
+            if (CONTENT_ENCODING.equalsIgnoreCase(h.getName()))
+                return h.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * @param headers
+     *            response headers
+     * @return the value of the Content-Length header, or -1 if it is absent
+     *         or invalid
+     */
+    public static long contentLength(Header[] headers) {
+        for (Header h : headers) {
+            if ("Content-Length".equalsIgnoreCase(h.getName())) {
+                try {
+                    return Long.parseLong(h.getValue().trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Describe a response body after it has been decoded: remove the
+     * Content-Encoding, Content-Length and Content-MD5 headers, which describe
+     * the compressed body, as Apache HttpClient does.
+     *
+     * @param headers
+     *            the response headers
+     * @return the headers without those which describe the compressed body,
+     *         or headers if the body was not compressed
+     */
+    public static Header[] decodedHeaders(Header[] headers) {
+        if (!isSupported(contentEncoding(headers)))
+            return headers;
+        List<Header> decoded = new ArrayList<Header>(headers.length);
+        for (Header h : headers) {
+            String name = h.getName().toLowerCase(Locale.ROOT);
+            if (!name.equals("content-encoding")
+                    && !name.equals("content-length")
+                    && !name.equals("content-md5"))
+                decoded.add(h);
+        }
+        return decoded.toArray(new Header[decoded.size()]);
+    }
+}
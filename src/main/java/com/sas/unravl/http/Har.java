@@ -0,0 +1,183 @@
+package com.sas.unravl.http;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.http.Timings.Phase;
+import com.sas.unravl.util.Json;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.springframework.http.HttpStatus;
+
+/**
+ * Export API calls as a <a href="http://www.softwareishard.com/blog/har-12-spec/">
+ * HAR 1.2</a> (HTTP Archive) log, which browser developer tools and HAR
+ * viewers can display as a waterfall of the calls' {@link Timings}. Calls
+ * which did not send a request (skipped, cancelled, or short-circuited) are
+ * omitted. The Authorization header value is masked.
+ * <p>
+ * The runtime writes the HAR log of its calls to the file named by the
+ * variable <code>unravl.har</code> after each run.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+public final class Har {
+
+    public static final String FILE = "unravl.har";
+
+    private static final String MASK = "************";
+
+    private Har() {
+    }
+
+    /**
+     * @param calls
+     *            API calls
+     * @return the HAR document for the calls
+     */
+    public static ObjectNode toHar(List<ApiCall> calls) {
+        ObjectNode har = Json.jsonNodeFactory().objectNode();
+        ObjectNode log = har.putObject("log");
+        log.put("version", "1.2");
+        ObjectNode creator = log.putObject("creator");
+        creator.put("name", "UnRAVL");
+        String version = Har.class.getPackage().getImplementationVersion();
+        creator.put("version", version == null ? "" : version);
+        ArrayNode entries = log.putArray("entries");
+        for (ApiCall call : calls) {
+            Timings timings = call.getTimings();
+            if (timings != null && timings.getTotal() >= 0)
+                entries.add(entry(call, timings));
+        }
+        return har;
+    }
+
+    /**
+     * Write the HAR document for API calls to a file
+     *
+     * @param calls
+     *            API calls
+     * @param file
+     *            the destination
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public static void write(List<ApiCall> calls, File file)
+            throws IOException {
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(file,
+                toHar(calls));
+    }
+
+    private static ObjectNode entry(ApiCall call, Timings timings) {
+        ObjectNode entry = Json.jsonNodeFactory().objectNode();
+        entry.put("startedDateTime", iso8601(timings.getStartedAt()));
+        entry.put("time", Timings.millis(timings.getTotal()));
+        String httpVersion = call.getProtocolVersion() == null ? ""
+                : call.getProtocolVersion();
+
+        ObjectNode request = entry.putObject("request");
+        request.put("method", call.getMethod().name());
+        request.put("url", call.getURI());
+        request.put("httpVersion", httpVersion);
+        request.putArray("cookies");
+        ArrayNode headers = request.putArray("headers");
+        if (call.getRequestHeaders() != null) {
+            for (Header h : call.getRequestHeaders())
+                header(headers, h.getName(),
+                        "Authorization".equalsIgnoreCase(h.getName()) ? MASK
+                                : h.getValue());
+        }
+        ArrayNode query = request.putArray("queryString");
+        try {
+            for (NameValuePair p : URLEncodedUtils.parse(new URI(call
+                    .getURI()), "UTF-8"))
+                header(query, p.getName(), p.getValue());
+        } catch (Exception e) {
+            // leave the query string empty
+        }
+        request.put("headersSize", -1);
+        request.put("bodySize", call.getRequestWireLength());
+
+        ObjectNode response = entry.putObject("response");
+        response.put("status", call.getHttpStatus());
+        response.put("statusText", statusText(call.getHttpStatus()));
+        response.put("httpVersion", httpVersion);
+        response.putArray("cookies");
+        headers = response.putArray("headers");
+        String mimeType = "";
+        for (Header h : call.getResponseHeaders()) {
+            header(headers, h.getName(), h.getValue());
+            if ("Content-Type".equalsIgnoreCase(h.getName()))
+                mimeType = h.getValue();
+        }
+        ObjectNode content = response.putObject("content");
+        long size = call.getResponseLength();
+        content.put("size", size);
+        content.put("mimeType", mimeType);
+        // bodies which were spilled to a temporary file are too large to embed
+        if (!call.getResponseBody().isSpilled()) {
+            byte body[] = call.getResponseBody().toByteArray();
+            String text = Cassette.text(body);
+            if (text != null) {
+                content.put("text", text);
+            } else {
+                content.put("text", Base64.encodeBase64String(body));
+                content.put("encoding", "base64");
+            }
+        }
+        if (call.getResponseEncoding() != null)
+            content.put("compression", size - call.getResponseWireLength());
+        response.put("redirectURL", "");
+        response.put("headersSize", -1);
+        response.put("bodySize", call.getResponseWireLength() >= 0 ? call
+                .getResponseWireLength() : size);
+
+        entry.putObject("cache");
+        ObjectNode t = entry.putObject("timings");
+        t.put("blocked", Timings.millis(timings.get(Phase.BLOCKED)));
+        t.put("dns", Timings.millis(timings.get(Phase.DNS)));
+        t.put("connect", Timings.millis(timings.get(Phase.CONNECT)));
+        // send, wait and receive are required to be non-negative
+        t.put("send", Math.max(0.0, Timings.millis(timings.get(Phase.SEND))));
+        t.put("wait", Math.max(0.0, Timings.millis(timings.get(Phase.WAIT))));
+        t.put("receive",
+                Math.max(0.0, Timings.millis(timings.get(Phase.RECEIVE))));
+        t.put("ssl", Timings.millis(timings.get(Phase.SSL)));
+        return entry;
+    }
+
+    private static void header(ArrayNode array, String name, String value) {
+        ObjectNode pair = array.addObject();
+        pair.put("name", name);
+        pair.put("value", value);
+    }
+
+    private static String statusText(int status) {
+        try {
+            return HttpStatus.valueOf(status).getReasonPhrase();
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
+    }
+
+    private static String iso8601(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+}
@@ -0,0 +1,379 @@
+package com.sas.unravl.http;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.sas.unravl.Method;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.annotations.UnRAVLTransportPlugin;
+import com.sas.unravl.generators.ByteArrayBody;
+import com.sas.unravl.generators.FileBody;
+import com.sas.unravl.generators.StreamingBody;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.async.methods.SimpleResponseConsumer;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.cookie.BasicCookieStore;
+import org.apache.hc.client5.http.impl.DefaultRedirectStrategy;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.ProtocolException;
+import org.apache.hc.core5.http.ProtocolVersion;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.StreamChannel;
+import org.apache.hc.core5.http.nio.entity.AbstractBinAsyncEntityProducer;
+import org.apache.hc.core5.http.nio.entity.BasicAsyncEntityProducer;
+import org.apache.hc.core5.http.nio.entity.FileEntityProducer;
+import org.apache.hc.core5.http.nio.support.BasicRequestProducer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.util.Timeout;
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.springframework.context.annotation.Condition;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.context.annotation.Conditional;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+import org.springframework.util.ClassUtils;
+
+/**
+ * An HTTP/2 transport. All the runtime's requests to one host are multiplexed
+ * as concurrent streams over a single connection, so scripts run with
+ * {@link com.sas.unravl.ApiCall#runAsync()} do not open a socket per call.
+ * <p>
+ * <code>https</code> URLs negotiate <code>h2</code> with TLS ALPN (which
+ * requires Java 9 or later, or an ALPN-capable TLS provider); <code>http</code>
+ * URLs use <code>h2c</code> with prior knowledge. The server must support
+ * HTTP/2; this transport does not fall back to HTTP/1.1. Select it with the
+ * name <code>h2</code> (or the aliases <code>h2c</code> and
+ * <code>http2</code>) in the variable <code>unravl.transport</code> or in a
+ * script's or template's <code>"transport"</code> element.
+ * </p>
+ * <p>
+ * The transport uses Apache HttpClient 5 (which requires Java 8) with its own
+ * cookie store. The number of I/O threads is set by
+ * <code>unravl.http.ioThreads</code>, as for {@link ConnectionPool}.
+ * </p>
+ * <p>
+ * <code>org.apache.httpcomponents.client5:httpclient5</code> is an optional
+ * dependency of UnRAVL, so this transport is registered only if HttpClient 5
+ * can be loaded (see {@link Available}); otherwise the name <code>h2</code> is
+ * not defined.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+@UnRAVLTransportPlugin({ "h2", "h2c", "http2" })
+@Conditional(Http2Transport.Available.class)
+public class Http2Transport extends BaseUnRAVLTransport implements
+        AsyncUnRAVLTransport {
+
+    public static final String NAME = "h2";
+
+    // connection-specific headers, which are not allowed in HTTP/2 requests
+    // (RFC 7540, section 8.1.2.2). The authority comes from the URI.
+    private static final Set<String> CONNECTION_HEADERS = ImmutableSet.of(
+            "connection", "keep-alive", "proxy-connection", "upgrade", "host");
+
+    private CloseableHttpAsyncClient client;
+
+    /**
+     * Registers this transport only if HttpClient 5 is on the class path and
+     * the Java runtime can load it. Spring evaluates this before it loads
+     * the transport class, which would fail without HttpClient 5.
+     */
+    public static class Available implements Condition {
+        @Override
+        public boolean matches(ConditionContext context,
+                AnnotatedTypeMetadata metadata) {
+            return ClassUtils.isPresent(
+                    "org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder",
+                    context.getClassLoader());
+        }
+    }
+
+    @Override
+    public void init(UnRAVLRuntime runtime) throws UnRAVLException {
+        super.init(runtime);
+        int ioThreads = (int) ConnectionPool.longOption(runtime,
+                ConnectionPool.IO_THREADS, Runtime.getRuntime()
+                        .availableProcessors());
+        client = H2AsyncClientBuilder
+                .create()
+                .setIOReactorConfig(
+                        IOReactorConfig.custom()
+                                .setIoThreadCount(Math.max(1, ioThreads))
+                                .build())
+                .setDefaultCookieStore(new BasicCookieStore())
+                .setRedirectStrategy(new GetAndHeadRedirectStrategy()).build();
+        client.start();
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request,
+            OutputStream responseBody) throws IOException {
+        ListenableFuture<TransportResponse> response = executeAsync(request,
+                responseBody);
+        long limit = request.getTimeouts().getCall();
+        try {
+            return limit > 0 ? response.get(limit, TimeUnit.MILLISECONDS)
+                    : response.get();
+        } catch (TimeoutException e) {
+            response.cancel(true);
+            InterruptedIOException timeout = new InterruptedIOException(
+                    "Call timed out after " + limit + "ms");
+            timeout.initCause(e);
+            throw timeout;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    @Override
+    public ListenableFuture<TransportResponse> executeAsync(
+            TransportRequest request, final OutputStream responseBody)
+            throws IOException {
+        SimpleRequestBuilder builder = SimpleRequestBuilder.create(
+                request.getMethod().name()).setUri(request.getURI());
+        for (Header h : ContentCoding.acceptEncoding(request.getHeaders())) {
+            String name = h.getName();
+            if (!TransportRequest.isComputedHeader(name)
+                    && !CONNECTION_HEADERS.contains(name
+                            .toLowerCase(Locale.ROOT)))
+                builder.addHeader(name, h.getValue());
+        }
+        SimpleHttpRequest h2request = builder.build();
+        AsyncEntityProducer entity = entity(request);
+
+        final HttpClientContext context = HttpClientContext.create();
+        Timeouts timeouts = request.getTimeouts();
+        if (timeouts.hasRequestConfig())
+            context.setRequestConfig(requestConfig(timeouts));
+        final SettableFuture<TransportResponse> result = SettableFuture
+                .create();
+        final Future<SimpleHttpResponse> call = client.execute(
+                new BasicRequestProducer(h2request, entity),
+                SimpleResponseConsumer.create(), context,
+                new FutureCallback<SimpleHttpResponse>() {
+
+                    @Override
+                    public void completed(SimpleHttpResponse response) {
+                        try {
+                            byte body[] = response.getBodyBytes();
+                            result.set(ContentCoding.read(response.getCode(),
+                                    headers(response),
+                                    protocol(response, context),
+                                    body == null ? null
+                                            : new ByteArrayInputStream(body),
+                                    responseBody));
+                        } catch (IOException e) {
+                            result.setException(e);
+                        }
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        result.setException(e);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        result.cancel(false);
+                    }
+                });
+        // cancel the stream if the caller cancels, such as on a timeout
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (result.isCancelled())
+                    call.cancel(true);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    // The HTTP/2 client still reads a per-request connect timeout from the
+    // request configuration; ConnectionConfig only applies per host
+    @SuppressWarnings("deprecation")
+    private static RequestConfig requestConfig(Timeouts timeouts) {
+        RequestConfig.Builder config = RequestConfig.custom();
+        if (timeouts.getConnect() > 0)
+            config.setConnectTimeout(Timeout.ofMilliseconds(timeouts
+                    .getConnect()));
+        if (timeouts.getRead() > 0)
+            config.setResponseTimeout(Timeout.ofMilliseconds(timeouts
+                    .getRead()));
+        return config.build();
+    }
+
+    /**
+     * Return the producer of a request's body, which sends it as the stream's
+     * flow control allows rather than reading it into memory first. POST, PUT
+     * and PATCH requests without a body send an empty body.
+     *
+     * @param request
+     *            the request
+     * @return the body producer, or null if the request has no body
+     */
+    private static AsyncEntityProducer entity(TransportRequest request) {
+        InputStream body = request.getBody();
+        Method method = request.getMethod();
+        if (body instanceof FileBody)
+            return new FileEntityProducer(((FileBody) body).getFile());
+        else if (body != null)
+            return new BodyProducer(body);
+        else if (method == Method.POST || method == Method.PUT
+                || method == Method.PATCH)
+            return new BasicAsyncEntityProducer(new byte[0]);
+        return null;
+    }
+
+    private static Header[] headers(SimpleHttpResponse response) {
+        org.apache.hc.core5.http.Header h5[] = response.getHeaders();
+        Header headers[] = new Header[h5.length];
+        for (int i = 0; i < h5.length; i++)
+            headers[i] = new BasicHeader(h5[i].getName(), h5[i].getValue());
+        return headers;
+    }
+
+    private static String protocol(SimpleHttpResponse response,
+            HttpClientContext context) {
+        ProtocolVersion version = response.getVersion();
+        if (version == null)
+            version = context.getProtocolVersion();
+        return version == null ? null : version.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+    }
+
+    /**
+     * Follow redirects for GET and HEAD calls only, like
+     * {@link ConnectionPool.UnRAVLRedirectStrategy}.
+     */
+    private static final class GetAndHeadRedirectStrategy extends
+            DefaultRedirectStrategy {
+        @Override
+        public boolean isRedirected(HttpRequest request,
+                HttpResponse response, HttpContext context)
+                throws ProtocolException {
+            String method = request.getMethod();
+            return ("GET".equalsIgnoreCase(method) || "HEAD"
+                    .equalsIgnoreCase(method))
+                    && super.isRedirected(request, response, context);
+        }
+    }
+
+    /**
+     * Sends a request body stream. A {@link ByteArrayBody} is sent from its
+     * own array; other streams are read a fragment at a time as the HTTP/2
+     * stream can accept data. The length is known for in-memory bodies and
+     * for {@link StreamingBody}s which report one.
+     */
+    private static final class BodyProducer extends
+            AbstractBinAsyncEntityProducer {
+        private static final int FRAGMENT = 16 * 1024;
+
+        private final InputStream body;
+        private final long length;
+        private ByteBuffer buffer;
+        private boolean eof;
+
+        BodyProducer(InputStream body) {
+            super(FRAGMENT, null);
+            this.body = body;
+            if (body instanceof ByteArrayBody) {
+                buffer = ((ByteArrayBody) body).toByteBuffer();
+                length = buffer.remaining();
+                ((ByteArrayBody) body).skip(length);
+                eof = true;
+            } else {
+                length = body instanceof StreamingBody ? ((StreamingBody) body)
+                        .length() : -1;
+                buffer = ByteBuffer.allocate(FRAGMENT);
+                buffer.flip();
+            }
+        }
+
+        @Override
+        public long getContentLength() {
+            return length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        protected int availableData() {
+            return buffer.hasRemaining() ? buffer.remaining() : eof ? 0
+                    : FRAGMENT;
+        }
+
+        @Override
+        protected void produceData(StreamChannel<ByteBuffer> channel)
+                throws IOException {
+            if (!buffer.hasRemaining() && !eof) {
+                buffer.clear();
+                int n = body.read(buffer.array(), 0, buffer.capacity());
+                if (n < 0) {
+                    eof = true;
+                    n = 0;
+                }
+                buffer.limit(n);
+            }
+            if (buffer.hasRemaining())
+                channel.write(buffer);
+            if (!buffer.hasRemaining() && eof)
+                channel.endStream();
+        }
+
+        @Override
+        public void failed(Exception cause) {
+            releaseResources();
+        }
+
+        @Override
+        public void releaseResources() {
+            super.releaseResources();
+            try {
+                body.close();
+            } catch (IOException e) {
+                // the body was only read
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.sas.unravl.http;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.annotations.UnRAVLTransportPlugin;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The default transport, which executes requests directly on the Apache HTTP
+ * Components clients of the runtime's {@link ConnectionPool}. Request and
+ * response headers stay Apache {@link org.apache.http.Header} objects, and the
+ * response entity is written once, directly into the API call's response body
+ * (decoded, if the server compressed it; see {@link ContentCoding}).
+ * <p>
+ * Asynchronous requests use the pool's non-blocking client, which writes the
+ * response body into the API call's response body chunk by chunk, on its I/O
+ * thread, as the body arrives. The elements of a streaming response are
+ * handled on the runtime's completion executor, not on the I/O thread.
+ * </p>
+ * <p>
+ * The connect and read {@link Timeouts} are set in each request's
+ * configuration. A blocking request which exceeds the call limit is aborted.
+ * </p>
+ * <p>
+ * The request's {@link Timings} are passed to the pool's clients in the
+ * HttpContext, so that each phase of the exchange is recorded.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+@UnRAVLTransportPlugin({ "httpclient", "default" })
+public class HttpClientTransport extends BaseUnRAVLTransport implements
+        AsyncUnRAVLTransport {
+
+    public static final String NAME = "httpclient";
+
+    private ConnectionPool pool() {
+        return getRuntime().getConnectionPool();
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request,
+            OutputStream responseBody) throws IOException {
+        final HttpUriRequest httpRequest = request.toHttpUriRequest();
+        final long limit = request.getTimeouts().getCall();
+        final AtomicBoolean aborted = new AtomicBoolean();
+        ScheduledFuture<?> abort = null;
+        if (limit > 0)
+            abort = getRuntime().getTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    aborted.set(true);
+                    httpRequest.abort();
+                }
+            }, limit, TimeUnit.MILLISECONDS);
+        try {
+            CloseableHttpResponse response = pool().getHttpClient().execute(
+                    httpRequest, context(request));
+            try {
+                return read(response, responseBody, request.getTimings());
+            } finally {
+                response.close();
+            }
+        } catch (IOException e) {
+            // aborting while reading the body closes the socket, which
+            // surfaces as a generic SocketException
+            if (aborted.get() && !(e instanceof InterruptedIOException)) {
+                InterruptedIOException timeout = new InterruptedIOException(
+                        "Call timed out after " + limit + "ms");
+                timeout.initCause(e);
+                throw timeout;
+            }
+            throw e;
+        } finally {
+            if (abort != null)
+                abort.cancel(false);
+        }
+    }
+
+    @Override
+    public ListenableFuture<TransportResponse> executeAsync(
+            TransportRequest request, final OutputStream responseBody)
+            throws IOException {
+        final SettableFuture<TransportResponse> result = SettableFuture
+                .create();
+        final Future<TransportResponse> call = pool().getAsyncHttpClient()
+                .execute(HttpAsyncMethods.create(request.toHttpUriRequest()),
+                        new StreamingConsumer(responseBody,
+                                request.getTimings()), context(request),
+                        new FutureCallback<TransportResponse>() {
+
+                            @Override
+                            public void completed(TransportResponse response) {
+                                result.set(response);
+                            }
+
+                            @Override
+                            public void failed(Exception e) {
+                                result.setException(e);
+                            }
+
+                            @Override
+                            public void cancelled() {
+                                result.cancel(false);
+                            }
+                        });
+        // abort the request if the caller cancels, such as on a timeout
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (result.isCancelled())
+                    call.cancel(true);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    // A context which carries the request's Timings to the pool's hooks
+    private static HttpContext context(TransportRequest request) {
+        HttpContext context = HttpClientContext.create();
+        context.setAttribute(Timings.ATTRIBUTE, request.getTimings());
+        return context;
+    }
+
+    private static TransportResponse read(HttpResponse response,
+            OutputStream responseBody, Timings timings) throws IOException {
+        HttpEntity entity = response.getEntity();
+        try {
+            return ContentCoding.read(response.getStatusLine()
+                    .getStatusCode(), response.getAllHeaders(), response
+                    .getStatusLine().getProtocolVersion().toString(),
+                    entity == null ? null : entity.getContent(), responseBody);
+        } finally {
+            timings.mark(Timings.Phase.RECEIVE);
+        }
+    }
+
+    // Writes the response body into the API call's response body as each
+    // chunk arrives, on the I/O thread, decoding it if the server compressed
+    // it. The default consumer would buffer the whole entity first. A
+    // ResponseStream only parses its elements here; reading pauses while its
+    // queue of elements for the completion executor is full.
+    private static final class StreamingConsumer extends
+            AbstractAsyncResponseConsumer<TransportResponse> {
+        private final OutputStream responseBody;
+        private final Timings timings;
+        private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        private HttpResponse response;
+        private OutputStream body;
+        private long wireLength;
+
+        StreamingConsumer(OutputStream responseBody, Timings timings) {
+            this.responseBody = responseBody;
+            this.timings = timings;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity,
+                ContentType contentType) throws IOException {
+            Header headers[] = response.getAllHeaders();
+            String coding = ContentCoding.contentEncoding(headers);
+            if (responseBody instanceof ResponseBuffer
+                    && !ContentCoding.isSupported(coding))
+                ((ResponseBuffer) responseBody).expect(ContentCoding
+                        .contentLength(headers));
+            body = ContentCoding.decoder(coding, responseBody);
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder,
+                IOControl control) throws IOException {
+            for (int n; (n = decoder.read(buffer)) > 0; buffer.clear()) {
+                wireLength += n;
+                body.write(buffer.array(), 0, n);
+                if (responseBody instanceof ResponseStream
+                        && ((ResponseStream) responseBody).isFull()) {
+                    buffer.clear();
+                    suspend((ResponseStream) responseBody, control);
+                    return;
+                }
+            }
+        }
+
+        // Stop reading until the stream's queue has been drained
+        private static void suspend(ResponseStream stream,
+                final IOControl control) {
+            control.suspendInput();
+            if (!stream.suspend(new Runnable() {
+                @Override
+                public void run() {
+                    control.requestInput();
+                }
+            }))
+                control.requestInput();
+        }
+
+        @Override
+        protected TransportResponse buildResult(HttpContext context)
+                throws IOException {
+            int status = response.getStatusLine().getStatusCode();
+            Header headers[] = response.getAllHeaders();
+            String protocol = response.getStatusLine().getProtocolVersion()
+                    .toString();
+            try {
+                if (body == null)
+                    return new TransportResponse(status, headers, protocol,
+                            0, null);
+                body.close();
+                String coding = ContentCoding.contentEncoding(headers);
+                return new TransportResponse(status,
+                        ContentCoding.decodedHeaders(headers), protocol,
+                        wireLength, ContentCoding.isSupported(coding) ? coding
+                                : null);
+            } finally {
+                timings.mark(Timings.Phase.RECEIVE);
+            }
+        }
+
+        @Override
+        protected void releaseResources() {
+            response = null;
+            body = null;
+        }
+    }
+
+    /**
+     * The connections belong to the runtime's {@link ConnectionPool}, which
+     * {@link UnRAVLRuntime#close()} closes, so this does nothing.
+     */
+    @Override
+    public void close() throws IOException {
+    }
+}
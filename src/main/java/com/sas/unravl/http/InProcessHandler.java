@@ -0,0 +1,39 @@
+package com.sas.unravl.http;
+
+import com.sas.unravl.UnRAVLPlugins;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A service running in the same JVM as UnRAVL, which handles the API calls
+ * sent by the {@link InProcessTransport}. Register a handler for a base URI
+ * with {@link UnRAVLPlugins#addInProcessHandler(String, InProcessHandler)}.
+ * The handler may wrap a servlet, a Spring controller, or plain Java code.
+ * <p>
+ * Handlers may be called from more than one thread at once.
+ *
+ * @author David.Biesack@sas.com
+ */
+public interface InProcessHandler {
+
+    /**
+     * Handle an API call.
+     *
+     * @param request
+     *            the request method, URI, and headers
+     * @param requestBody
+     *            a read-only view of the request body, or null if the request
+     *            has no body. For bodies built by request body generators,
+     *            this shares the generator's bytes; nothing is copied.
+     * @param responseBody
+     *            the stream to which the handler writes the response body
+     * @return the response status and headers
+     * @throws IOException
+     *             if the call fails without a response, as if the connection
+     *             had failed
+     */
+    TransportResponse handle(TransportRequest request, ByteBuffer requestBody,
+            OutputStream responseBody) throws IOException;
+}
@@ -0,0 +1,57 @@
+package com.sas.unravl.http;
+
+import com.sas.unravl.UnRAVLPlugins;
+import com.sas.unravl.annotations.UnRAVLTransportPlugin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * A transport which does not use the network. It passes each request directly
+ * to the {@link InProcessHandler} registered (with
+ * {@link UnRAVLPlugins#addInProcessHandler(String, InProcessHandler)}) for the
+ * longest base URI which is a prefix of the request URI. This avoids the
+ * cost of connections and of writing and parsing HTTP messages when UnRAVL
+ * runs in the same JVM as the service under test.
+ * <p>
+ * If no handler matches the URI, the call fails as if the host did not
+ * resolve.
+ *
+ * @author David.Biesack@sas.com
+ */
+@UnRAVLTransportPlugin({ "inprocess", "local" })
+public class InProcessTransport extends BaseUnRAVLTransport {
+
+    public static final String NAME = "inprocess";
+
+    /** The protocol reported for in-process responses */
+    public static final String PROTOCOL = "in-process";
+
+    @Override
+    public TransportResponse execute(TransportRequest request,
+            OutputStream responseBody) throws IOException {
+        InProcessHandler handler = handler(request.getURI());
+        if (handler == null)
+            throw new IOException("No in-process handler for "
+                    + request.getURI());
+        TransportResponse response = handler.handle(request,
+                request.getBodyBuffer(), responseBody);
+        if (response.getProtocolVersion() != null)
+            return response;
+        return new TransportResponse(response.getStatus(),
+                response.getHeaders(), PROTOCOL);
+    }
+
+    private InProcessHandler handler(String uri) {
+        Map<String, InProcessHandler> handlers = getRuntime().getPlugins()
+                .getInProcessHandlers();
+        String match = null;
+        for (String baseURI : handlers.keySet()) {
+            if (uri.startsWith(baseURI)
+                    && (match == null || baseURI.length() > match.length()))
+                match = baseURI;
+        }
+        return match == null ? null : handlers.get(match);
+    }
+}
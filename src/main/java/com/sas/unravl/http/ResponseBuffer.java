@@ -0,0 +1,493 @@
+package com.sas.unravl.http;
+
+import com.sas.unravl.generators.Binary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The buffer which receives an API call's response body. Bodies up to a
+ * threshold are kept in memory, in a single array which is allocated at the
+ * final size when the transport knows the Content-Length. Larger bodies are
+ * written to a temporary file instead, so that very large downloads do not
+ * exhaust the heap.
+ * <p>
+ * Readers should use {@link #getInputStream()} or {@link #toByteBuffer()},
+ * which do not copy the body (a spilled body is read from the file, or
+ * memory-mapped). The inherited {@link #toByteArray()} and
+ * {@link #toString(String)} still work for spilled bodies but read the whole
+ * file into memory.
+ * </p>
+ * <p>
+ * The threshold, in bytes, is set by the variable
+ * <code>unravl.response.spillThreshold</code> (default 8 MB). Temporary files
+ * are kept in one directory per JVM, and are deleted by {@link #dispose()},
+ * which {@link com.sas.unravl.UnRAVLRuntime#reset()} calls. A shutdown hook
+ * deletes the directory and any files still in it when the JVM exits.
+ * </p>
+ * <p>
+ * Once the call is complete, a body in memory is moved to the runtime's
+ * {@link BodyStore} by {@link #store(BodyStore, boolean)}, and is read back
+ * from the store on demand.
+ * </p>
+ * <p>
+ * {@link #getDigest(String)} returns a message digest of the body. Digests
+ * requested with {@link #computeDigests(Collection)} before the body arrives
+ * are computed as it is written, so a large body is not read again.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+public class ResponseBuffer extends java.io.ByteArrayOutputStream {
+
+    public static final String THRESHOLD = "unravl.response.spillThreshold";
+    public static final long DEFAULT_THRESHOLD = 8L * 1024 * 1024;
+
+    private static final int INITIAL_SIZE = 512;
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+    private static final byte EMPTY[] = new byte[0];
+
+    private static final Logger logger = Logger.getLogger(ResponseBuffer.class);
+
+    // the directory of spilled bodies, created on the first spill
+    private static File spillDirectory;
+
+    private final long threshold;
+    private File file;
+    private OutputStream fileOut;
+    private long length;
+    private BodyStore store;
+    private BodyStore.Key key;
+    // digests computed as the body is written, by algorithm
+    private Map<String, MessageDigest> digesters;
+    // finished digests, by algorithm, until the body changes
+    private final Map<String, byte[]> digests = new HashMap<String, byte[]>();
+
+    public ResponseBuffer() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold
+     *            the largest body, in bytes, to keep in memory
+     */
+    public ResponseBuffer(long threshold) {
+        super(INITIAL_SIZE);
+        this.threshold = threshold;
+    }
+
+    /**
+     * Prepare for a body of a known size: allocate the array once at that
+     * size, or write to a file from the start if it exceeds the threshold.
+     * This has no effect once data has been written.
+     *
+     * @param contentLength
+     *            the expected body length, or a negative number if unknown
+     * @throws IOException
+     *             if the temporary file cannot be created
+     */
+    public synchronized void expect(long contentLength) throws IOException {
+        if (file != null || key != null || count > 0 || contentLength < 0)
+            return;
+        if (contentLength > threshold)
+            spill();
+        else if (contentLength > buf.length)
+            buf = new byte[(int) contentLength];
+    }
+
+    /**
+     * Compute digests of the body as it is written. This has no effect once
+     * data has been written.
+     *
+     * @param algorithms
+     *            the digest algorithms, such as "SHA-256"
+     * @throws NoSuchAlgorithmException
+     *             if an algorithm is not available
+     */
+    public synchronized void computeDigests(Collection<String> algorithms)
+            throws NoSuchAlgorithmException {
+        if (file != null || key != null || count > 0 || algorithms.isEmpty())
+            return;
+        digesters = new HashMap<String, MessageDigest>();
+        for (String algorithm : algorithms)
+            digesters.put(algorithm, MessageDigest.getInstance(algorithm));
+    }
+
+    /**
+     * Return a digest of the body. It is computed as the body was written if
+     * {@link #computeDigests(Collection)} requested it, or else from the
+     * body, which is memory-mapped if it is in a temporary file.
+     *
+     * @param algorithm
+     *            the digest algorithm, such as "SHA-256"
+     * @return the digest
+     * @throws IOException
+     *             if the temporary file cannot be read
+     * @throws NoSuchAlgorithmException
+     *             if the algorithm is not available
+     */
+    public synchronized byte[] getDigest(String algorithm) throws IOException,
+            NoSuchAlgorithmException {
+        byte digest[] = digests.get(algorithm);
+        if (digest == null) {
+            MessageDigest digester = digesters == null ? null : digesters
+                    .remove(algorithm);
+            if (digester == null) {
+                digester = MessageDigest.getInstance(algorithm);
+                if (key != null)
+                    digester.update(stored());
+                else if (file == null)
+                    digester.update(buf, 0, count);
+                else {
+                    flush();
+                    Binary.digest(file, digester);
+                }
+            }
+            digest = digester.digest();
+            digests.put(algorithm, digest);
+        }
+        return digest.clone();
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        unstore();
+        digests.clear();
+        if (digesters != null) {
+            for (MessageDigest digester : digesters.values())
+                digester.update((byte) b);
+        }
+        if (file == null && count + 1 > threshold)
+            spillUnchecked();
+        if (file == null) {
+            super.write(b);
+            return;
+        }
+        try {
+            fileOut.write(b);
+            length++;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public synchronized void write(byte b[], int off, int len) {
+        unstore();
+        digests.clear();
+        if (digesters != null) {
+            for (MessageDigest digester : digesters.values())
+                digester.update(b, off, len);
+        }
+        if (file == null && (long) count + len > threshold)
+            spillUnchecked();
+        if (file == null) {
+            super.write(b, off, len);
+            return;
+        }
+        try {
+            fileOut.write(b, off, len);
+            length += len;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return true if the body is in a temporary file
+     */
+    public synchronized boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * @return true if the body is in a {@link BodyStore}
+     */
+    public synchronized boolean isStored() {
+        return key != null;
+    }
+
+    /**
+     * Move a body which is in memory to a store, which keeps one copy of
+     * identical bodies. The body is read from the store from then on. This
+     * has no effect on an empty body or a body in a temporary file.
+     *
+     * @param store
+     *            the store
+     * @param compress
+     *            if true, the store compresses the body
+     */
+    public synchronized void store(BodyStore store, boolean compress) {
+        if (file != null || key != null || count == 0)
+            return;
+        key = store.put(ByteBuffer.wrap(buf, 0, count), compress);
+        this.store = store;
+        buf = EMPTY;
+        count = 0;
+    }
+
+    /**
+     * @return the temporary file which holds the body, or null if the body
+     *         is in memory
+     */
+    public synchronized File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the body length in bytes
+     */
+    public synchronized long length() {
+        if (key != null)
+            return key.length();
+        return file == null ? count : length;
+    }
+
+    /**
+     * @return the body length, or Integer.MAX_VALUE if it is larger
+     */
+    @Override
+    public synchronized int size() {
+        return (int) Math.min(length(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return a stream which reads the body without copying it
+     * @throws IOException
+     *             if the temporary file cannot be read
+     */
+    public synchronized InputStream getInputStream() throws IOException {
+        if (key != null)
+            return new ByteArrayInputStream(stored());
+        if (file == null)
+            return new ByteArrayInputStream(buf, 0, count);
+        flush();
+        return new BufferedInputStream(new FileInputStream(file),
+                FILE_BUFFER_SIZE);
+    }
+
+    /**
+     * @return a read-only buffer over the body: a view of the array, or a
+     *         memory-mapped view of the temporary file
+     * @throws IOException
+     *             if the file cannot be mapped, for example because it is
+     *             larger than 2GB
+     */
+    public synchronized ByteBuffer toByteBuffer() throws IOException {
+        if (key != null)
+            return ByteBuffer.wrap(stored()).asReadOnlyBuffer();
+        if (file == null)
+            return ByteBuffer.wrap(buf, 0, count).slice().asReadOnlyBuffer();
+        flush();
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("Response body of " + length
+                    + " bytes is too large to map");
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return raf.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, 0, length)
+                    .asReadOnlyBuffer();
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Return a copy of the body. For a spilled body, this reads the whole file
+     * into memory; prefer {@link #getInputStream()} or {@link #toByteBuffer()}.
+     */
+    @Override
+    public synchronized byte[] toByteArray() {
+        if (key != null)
+            return stored().clone();
+        if (file == null)
+            return super.toByteArray();
+        try {
+            ByteBuffer mapped = toByteBuffer();
+            byte bytes[] = new byte[mapped.remaining()];
+            mapped.get(bytes);
+            return bytes;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public synchronized String toString(String charsetName)
+            throws UnsupportedEncodingException {
+        if (key != null)
+            return new String(stored(), charsetName);
+        if (file == null)
+            return super.toString(charsetName);
+        return new String(toByteArray(), charsetName);
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (key != null)
+            return new String(stored());
+        if (file == null)
+            return super.toString();
+        return new String(toByteArray());
+    }
+
+    @Override
+    public synchronized void writeTo(OutputStream out) throws IOException {
+        if (key != null) {
+            out.write(stored());
+            return;
+        }
+        if (file == null) {
+            super.writeTo(out);
+            return;
+        }
+        flush();
+        // a copy to another file is done by the operating system
+        Binary.copy(new FileInputStream(file), out);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (fileOut != null)
+            fileOut.flush();
+    }
+
+    /**
+     * Finish writing. The body can still be read.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (fileOut != null) {
+            fileOut.close();
+            fileOut = null;
+        }
+    }
+
+    /**
+     * Discard the body and delete the temporary file, if any. Digests
+     * requested by {@link #computeDigests(Collection)} restart.
+     */
+    @Override
+    public synchronized void reset() {
+        Map<String, MessageDigest> restart = digesters;
+        dispose();
+        super.reset();
+        if (restart != null) {
+            for (MessageDigest digester : restart.values())
+                digester.reset();
+            digesters = restart;
+        }
+    }
+
+    /**
+     * Discard the body: delete the temporary file, if any, or release the
+     * body from its store.
+     */
+    public synchronized void dispose() {
+        digesters = null;
+        digests.clear();
+        if (key != null) {
+            store.release(key);
+            store = null;
+            key = null;
+        }
+        if (file == null)
+            return;
+        try {
+            close();
+        } catch (IOException e) {
+            logger.warn("Could not close " + file + ": " + e.getMessage());
+        }
+        if (!file.delete())
+            logger.warn("Could not delete " + file);
+        file = null;
+        length = 0;
+    }
+
+    // the stored body, which must not be modified
+    private byte[] stored() {
+        return store.get(key);
+    }
+
+    // Bring a stored body back into memory before it is changed
+    private void unstore() {
+        if (key == null)
+            return;
+        buf = stored().clone();
+        count = buf.length;
+        store.release(key);
+        store = null;
+        key = null;
+    }
+
+    private void spillUnchecked() {
+        try {
+            spill();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Move the body from memory to a temporary file
+    private void spill() throws IOException {
+        file = File.createTempFile("unravl-response", ".tmp",
+                spillDirectory());
+        fileOut = new BufferedOutputStream(new FileOutputStream(file),
+                FILE_BUFFER_SIZE);
+        fileOut.write(buf, 0, count);
+        length = count;
+        logger.info("Response body exceeds " + threshold
+                + " bytes; writing it to " + file);
+        buf = EMPTY;
+        count = 0;
+    }
+
+    // Return the directory for spilled bodies, creating it and registering
+    // the shutdown hook which deletes it on first use
+    private static synchronized File spillDirectory() throws IOException {
+        if (spillDirectory == null) {
+            final File directory = Files.createTempDirectory("unravl-responses")
+                    .toFile();
+            Runtime.getRuntime().addShutdownHook(
+                    new Thread("unravl-response-cleanup") {
+                        @Override
+                        public void run() {
+                            deleteSpilled(directory);
+                        }
+                    });
+            spillDirectory = directory;
+        } else if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs())
+            throw new IOException("Could not create " + spillDirectory);
+        return spillDirectory;
+    }
+
+    // Delete the spilled bodies which were not disposed, and their directory
+    private static void deleteSpilled(File directory) {
+        File files[] = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+}
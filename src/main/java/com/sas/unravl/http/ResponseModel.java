@@ -0,0 +1,229 @@
+package com.sas.unravl.http;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.generators.Text;
+import com.sas.unravl.util.Json;
+import com.sas.unravl.util.JsonFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.http.Header;
+
+/**
+ * Views of an API call's response which are computed on first use and then
+ * shared by all the extractors and assertions of the call: the body decoded
+ * as UTF-8 text, the body parsed as JSON, the JSON as Java Maps and Lists,
+ * and a case-insensitive index of the response headers. This way a script
+ * which binds the body with <code>"json"</code> and <code>"jsonPath"</code>
+ * and asserts it with <code>"schema"</code> and <code>"json"</code> decodes and
+ * parses the body only once.
+ * <p>
+ * The views are shared, so callers must not modify the JsonNode or the
+ * Maps and Lists; {@link Json#expand(JsonNode, com.sas.unravl.UnRAVL)}, for
+ * example, copies any part which it changes. Values which are bound to
+ * variables, where scripts may change them, are copies: see
+ * {@link #getJsonCopy()} and {@link #getJavaObjectCopy()}. Copying a tree
+ * is still much cheaper than decoding and parsing the body again. If the body
+ * is not valid JSON, the parse exception is also remembered and rethrown.
+ * </p>
+ * <p>
+ * A body whose Content-Type is CBOR, Smile or MessagePack (see
+ * {@link JsonFormat}) is decoded from that format into the same JSON model.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+public final class ResponseModel {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final ByteArrayOutputStream body;
+    private final Header headers[];
+    private String text;
+    private JsonNode json;
+    private UnRAVLException jsonException;
+    private Object java;
+    private Map<String, List<Header>> headerIndex;
+    private int parseCount;
+
+    /**
+     * @param body
+     *            the response body; it must not change after the model is
+     *            created
+     * @param headers
+     *            the response headers
+     */
+    public ResponseModel(ByteArrayOutputStream body, Header headers[]) {
+        this.body = body == null ? new ByteArrayOutputStream() : body;
+        this.headers = headers == null ? new Header[0] : headers;
+    }
+
+    /**
+     * @return the response body decoded as UTF-8
+     */
+    public synchronized String getText() {
+        if (text == null) {
+            try {
+                // decodes the stream's buffer without copying it first
+                text = body.toString(Text.UTF_8.name());
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return text;
+    }
+
+    /**
+     * @return the format of the body, from its Content-Type header
+     */
+    public JsonFormat getFormat() {
+        Header type = getHeader("Content-Type");
+        return JsonFormat.forContentType(type == null ? null : type.getValue());
+    }
+
+    /**
+     * @return the response body parsed as JSON, or decoded from the binary
+     *         format which its Content-Type names
+     * @throws UnRAVLException
+     *             if the body is not valid JSON
+     */
+    public synchronized JsonNode getJson() throws UnRAVLException {
+        if (json == null && jsonException == null) {
+            parseCount++;
+            try {
+                JsonFormat format = getFormat();
+                json = format.isText() ? Json.parse(getText()) : read(format);
+            } catch (UnRAVLException e) {
+                jsonException = e;
+            }
+        }
+        if (jsonException != null)
+            throw jsonException;
+        return json;
+    }
+
+    /**
+     * @param format
+     *            a format
+     * @return the response body decoded from the format, whatever its
+     *         Content-Type. This is only shared with {@link #getJson()} if the
+     *         format is the {@link #getFormat() format of the body}.
+     * @throws UnRAVLException
+     *             if the body is not valid in the format
+     */
+    public JsonNode getJson(JsonFormat format) throws UnRAVLException {
+        if (format == getFormat())
+            return getJson();
+        return format.isText() ? Json.parse(getText()) : read(format);
+    }
+
+    private JsonNode read(JsonFormat format) throws UnRAVLException {
+        try {
+            InputStream in = body instanceof ResponseBuffer ? ((ResponseBuffer) body)
+                    .getInputStream() : new ByteArrayInputStream(
+                    body.toByteArray());
+            try {
+                return format.read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new UnRAVLException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the response body as the Java Map, List or scalar which
+     *         represents its JSON value
+     * @throws UnRAVLException
+     *             if the body is not valid JSON
+     */
+    public synchronized Object getJavaObject() throws UnRAVLException {
+        if (java == null) {
+            JsonNode node = getJson();
+            java = node.isContainerNode() ? mapper.convertValue(node,
+                    Object.class) : Json.unwrap(node);
+        }
+        return java;
+    }
+
+    /**
+     * @return a copy of {@link #getJson()}, which the caller may change
+     * @throws UnRAVLException
+     *             if the body is not valid JSON
+     */
+    public JsonNode getJsonCopy() throws UnRAVLException {
+        return getJson().deepCopy();
+    }
+
+    /**
+     * @return a new Java Map, List or scalar with the value of
+     *         {@link #getJavaObject()}, which the caller may change
+     * @throws UnRAVLException
+     *             if the body is not valid JSON
+     */
+    public Object getJavaObjectCopy() throws UnRAVLException {
+        return copy(getJson());
+    }
+
+    /**
+     * @param json
+     *            a JSON value
+     * @return a new Java Map, List or scalar with the same value
+     */
+    public static Object copy(JsonNode json) {
+        return json.isContainerNode() ? mapper.convertValue(json, Object.class)
+                : Json.unwrap(json);
+    }
+
+    /**
+     * @param name
+     *            a header name, in any case
+     * @return the first response header with the name, or null
+     */
+    public Header getHeader(String name) {
+        List<Header> found = getHeaders(name);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    /**
+     * @param name
+     *            a header name, in any case
+     * @return the response headers with the name, in the order received
+     */
+    public synchronized List<Header> getHeaders(String name) {
+        if (headerIndex == null) {
+            headerIndex = new TreeMap<String, List<Header>>(
+                    String.CASE_INSENSITIVE_ORDER);
+            for (Header h : headers) {
+                List<Header> same = headerIndex.get(h.getName());
+                if (same == null) {
+                    same = new ArrayList<Header>(1);
+                    headerIndex.put(h.getName(), same);
+                }
+                same.add(h);
+            }
+        }
+        List<Header> found = headerIndex.get(name);
+        return found == null ? Collections.<Header> emptyList() : Collections
+                .unmodifiableList(found);
+    }
+
+    /**
+     * @return the number of times the body has been parsed as JSON: 0 or 1
+     */
+    public synchronized int getParseCount() {
+        return parseCount;
+    }
+}
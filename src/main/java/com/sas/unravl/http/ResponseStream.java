@@ -0,0 +1,537 @@
+package com.sas.unravl.http;
+
+import com.sas.unravl.UnRAVLException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Receives a streaming response body in place of a {@link ResponseBuffer},
+ * and hands each element to a {@link Listener} as soon as it has arrived:
+ * each line of an NDJSON (newline-delimited JSON) body, or each event of a
+ * <code>text/event-stream</code> (Server-Sent Events) body. The body itself
+ * is not kept, so memory stays bounded however long the stream runs: only the
+ * element being read, which may be at most <code>maxElementSize</code> bytes,
+ * and running statistics are held.
+ * <p>
+ * The statistics are the number of elements, the bytes received, the time
+ * from the start of the request to the first element, and the minimum, mean
+ * and maximum time between elements. The getters report times in
+ * milliseconds, so that scripts can use them directly.
+ * </p>
+ * <p>
+ * An element which is too large, or which the listener rejects, is counted
+ * as a failure; the first failure is kept.
+ * </p>
+ * <p>
+ * The listener runs on the thread which writes the body, unless the stream
+ * has an executor. The writer then only parses elements into a queue, and the
+ * executor hands them to the listener, so that a slow listener does not hold
+ * up a transport's I/O thread. A writer which can pause reading, such as the
+ * <code>httpclient</code> transport, does so while the queue holds
+ * <code>queueSize</code> elements (see {@link #suspend(Runnable)}).
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+public class ResponseStream extends OutputStream {
+
+    /**
+     * The runtime variable which limits the size of one element, in bytes.
+     */
+    public static final String MAX_ELEMENT_SIZE = "unravl.stream.maxElementSize";
+    public static final long DEFAULT_MAX_ELEMENT_SIZE = 1024 * 1024;
+
+    /**
+     * The runtime variable which limits the number of elements waiting for
+     * the executor of an asynchronous call.
+     */
+    public static final String QUEUE_SIZE = "unravl.stream.queueSize";
+    public static final int DEFAULT_QUEUE_SIZE = 100;
+
+    /**
+     * The formats of a streaming response
+     */
+    public enum Format {
+        /** One JSON value per line */
+        NDJSON,
+        /** Server-Sent Events, as in the HTML <code>EventSource</code> API */
+        SSE
+    }
+
+    /**
+     * Receives the elements of a stream, one at a time, on the thread which
+     * writes the response body to the stream or on the stream's executor.
+     */
+    public interface Listener {
+        /**
+         * Process an element.
+         *
+         * @param stream
+         *            the stream, whose statistics include this element
+         * @param element
+         *            the element
+         * @throws UnRAVLException
+         *             if the element is not valid; this is counted as a
+         *             failure and the stream continues
+         */
+        void element(ResponseStream stream, Element element)
+                throws UnRAVLException;
+    }
+
+    /**
+     * One line of an NDJSON stream, or one event of an SSE stream.
+     */
+    public static final class Element {
+        private final long index;
+        private final String event, id;
+        private final byte[] data;
+
+        Element(long index, String event, String id, byte[] data) {
+            this.index = index;
+            this.event = event;
+            this.id = id;
+            this.data = data;
+        }
+
+        /**
+         * @return the position of this element in the stream, from 0
+         */
+        public long getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the SSE event type (<code>"message"</code> if the event
+         *         has none), or null for NDJSON
+         */
+        public String getEvent() {
+            return event;
+        }
+
+        /**
+         * @return the last SSE event id, or null
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the NDJSON line, or the SSE event's data (its data lines
+         *         joined by newlines)
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return the data as UTF-8 text
+         */
+        public String getText() {
+            return new String(data, UTF_8);
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Format format;
+    private final long maxElementSize;
+    private final Listener listener;
+    // the request's clock, or null to time from construction
+    private final Timings timings;
+    private final long start = System.nanoTime();
+    // hands queued elements to the listener, or null to hand them over at once
+    private final Executor executor;
+    private final int queueSize;
+    private final Queue<Element> queue = new ArrayDeque<Element>();
+    private boolean scheduled;
+    private Runnable resume;
+
+    // the line being read
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private boolean overflow, afterCR, closed;
+    // the SSE event being read
+    private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    private boolean hasData, discard;
+    private String event, id;
+
+    private long count, bytes, failures;
+    private long first = -1, last, minInterval = -1, maxInterval = -1,
+            totalInterval;
+    private UnRAVLException firstFailure;
+
+    /**
+     * @param format
+     *            the format of the body
+     * @param maxElementSize
+     *            the largest element, in bytes
+     * @param listener
+     *            receives each element
+     */
+    public ResponseStream(Format format, long maxElementSize,
+            Listener listener) {
+        this(format, maxElementSize, null, listener);
+    }
+
+    /**
+     * @param format
+     *            the format of the body
+     * @param maxElementSize
+     *            the largest element, in bytes
+     * @param timings
+     *            the timings of the request, whose clock the element times
+     *            are measured from; if null, they are measured from the
+     *            construction of this stream
+     * @param listener
+     *            receives each element
+     */
+    public ResponseStream(Format format, long maxElementSize,
+            Timings timings, Listener listener) {
+        this(format, maxElementSize, timings, null, 0, listener);
+    }
+
+    /**
+     * @param format
+     *            the format of the body
+     * @param maxElementSize
+     *            the largest element, in bytes
+     * @param timings
+     *            the timings of the request, or null
+     * @param executor
+     *            the executor which runs the listener, or null to run it on
+     *            the thread which writes the body
+     * @param queueSize
+     *            the number of waiting elements at which the writer should
+     *            pause
+     * @param listener
+     *            receives each element
+     */
+    public ResponseStream(Format format, long maxElementSize,
+            Timings timings, Executor executor, int queueSize,
+            Listener listener) {
+        this.format = format;
+        this.maxElementSize = maxElementSize;
+        this.timings = timings;
+        this.executor = executor;
+        this.queueSize = Math.max(1, queueSize);
+        this.listener = listener;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    @Override
+    public void write(int b) {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte b[], int off, int len) {
+        synchronized (this) {
+            bytes += len;
+            for (int i = off; i < off + len; i++) {
+                byte c = b[i];
+                if (c == '\n' || c == '\r') {
+                    // a CR LF pair ends one line
+                    if (!(c == '\n' && afterCR))
+                        endLine();
+                    afterCR = c == '\r';
+                    continue;
+                }
+                afterCR = false;
+                if (overflow)
+                    continue;
+                if (line.size() >= maxElementSize) {
+                    overflow = true;
+                    line.reset();
+                } else
+                    line.write(c);
+            }
+        }
+        handOver();
+    }
+
+    /**
+     * End the stream, processing a final element which has no line end. If
+     * the stream has an executor, that element is queued; call
+     * {@link #drain()} to process it at once.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            if (line.size() > 0 || overflow)
+                endLine();
+            if (format == Format.SSE)
+                field(new byte[0]);
+        }
+        handOver();
+    }
+
+    /**
+     * Ask to be told when the writer may continue: if the queue is full,
+     * keep resume, to run it once the queue is empty.
+     *
+     * @param resume
+     *            resumes the writer
+     * @return true if the queue is full and resume will be run, or false if
+     *         the writer may continue now
+     */
+    public synchronized boolean suspend(Runnable resume) {
+        if (queue.size() < queueSize)
+            return false;
+        this.resume = resume;
+        return true;
+    }
+
+    /**
+     * @return true if the queue holds <code>queueSize</code> elements or more
+     */
+    public synchronized boolean isFull() {
+        return queue.size() >= queueSize;
+    }
+
+    /**
+     * Hand the queued elements to the listener on this thread, then resume a
+     * suspended writer. The listener is not called while this stream is
+     * locked, so it may read the statistics from any thread.
+     */
+    public void drain() {
+        Runnable resumed;
+        while (true) {
+            Element element;
+            synchronized (this) {
+                element = queue.poll();
+                if (element == null) {
+                    scheduled = false;
+                    resumed = resume;
+                    resume = null;
+                    break;
+                }
+            }
+            deliver(element);
+        }
+        if (resumed != null)
+            resumed.run();
+    }
+
+    // Hand the queued elements to the listener, on this thread if there is
+    // no executor
+    private void handOver() {
+        if (executor == null) {
+            drain();
+            return;
+        }
+        synchronized (this) {
+            if (scheduled || queue.isEmpty())
+                return;
+            scheduled = true;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    private void endLine() {
+        byte text[] = line.toByteArray();
+        boolean tooLarge = overflow;
+        line.reset();
+        overflow = false;
+        if (format == Format.NDJSON) {
+            if (tooLarge)
+                tooLarge();
+            else if (!isBlank(text))
+                element(null, null, text);
+        } else if (tooLarge)
+            discard = true; // skip the rest of the event
+        else
+            field(text);
+    }
+
+    // Process one line of an event stream
+    private void field(byte[] text) {
+        if (text.length == 0) {
+            if (discard)
+                tooLarge();
+            else
+                dispatch();
+            return;
+        }
+        // skip the rest of a discarded event, and comments
+        if (discard || text[0] == ':')
+            return;
+        String field = new String(text, UTF_8), value = "";
+        int colon = field.indexOf(':');
+        if (colon >= 0) {
+            value = field.substring(colon + 1);
+            if (value.startsWith(" "))
+                value = value.substring(1);
+            field = field.substring(0, colon);
+        }
+        if (field.equals("data")) {
+            byte v[] = value.getBytes(UTF_8);
+            if (data.size() + v.length >= maxElementSize) {
+                discard = true;
+                return;
+            }
+            if (hasData)
+                data.write('\n');
+            data.write(v, 0, v.length);
+            hasData = true;
+        } else if (field.equals("event"))
+            event = value;
+        else if (field.equals("id") && value.indexOf('\0') < 0)
+            id = value;
+    }
+
+    // Dispatch the event being read; an event without data is ignored
+    private void dispatch() {
+        if (hasData)
+            element(event == null ? "message" : event, id, data.toByteArray());
+        hasData = false;
+        data.reset();
+        event = null;
+    }
+
+    // Count an element which exceeded the maximum size as a failure
+    private void tooLarge() {
+        hasData = discard = false;
+        data.reset();
+        event = null;
+        failed(null, new UnRAVLException("Stream element " + count++
+                + " is larger than " + maxElementSize + " bytes"));
+    }
+
+    private void element(String event, String id, byte[] text) {
+        long now = timings != null ? timings.elapsed() : System.nanoTime()
+                - start;
+        if (first < 0) {
+            first = now;
+        } else {
+            long interval = now - last;
+            minInterval = minInterval < 0 ? interval : Math.min(minInterval,
+                    interval);
+            maxInterval = Math.max(maxInterval, interval);
+            totalInterval += interval;
+        }
+        last = now;
+        queue.add(new Element(count++, event, id, text));
+    }
+
+    private void deliver(Element element) {
+        try {
+            listener.element(this, element);
+        } catch (UnRAVLException e) {
+            failed(element, e);
+        } catch (RuntimeException e) {
+            failed(element, new UnRAVLException(e.getMessage(), e));
+        }
+    }
+
+    private synchronized void failed(Element element, UnRAVLException e) {
+        if (failures++ == 0)
+            firstFailure = element == null ? e : new UnRAVLException(
+                    "Stream element " + element.getIndex() + ": "
+                            + e.getMessage(), e);
+    }
+
+    /**
+     * @return the number of elements received
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the number of body bytes received
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of elements which failed
+     */
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the first failure, or null
+     */
+    public synchronized UnRAVLException getFirstFailure() {
+        return firstFailure;
+    }
+
+    /**
+     * @return the milliseconds from the start of the request to the first
+     *         element, or -1 if there was none
+     */
+    public synchronized double getFirstElementMillis() {
+        return Timings.millis(first);
+    }
+
+    /**
+     * @return the shortest time between two elements in milliseconds, or -1
+     *         if there were fewer than two
+     */
+    public synchronized double getMinIntervalMillis() {
+        return Timings.millis(minInterval);
+    }
+
+    /**
+     * @return the mean time between elements in milliseconds, or -1 if there
+     *         were fewer than two
+     */
+    public synchronized double getMeanIntervalMillis() {
+        return count < 2 || minInterval < 0 ? -1 : Timings
+                .millis(totalInterval / (count - 1));
+    }
+
+    /**
+     * @return the longest time between two elements in milliseconds, or -1 if
+     *         there were fewer than two
+     */
+    public synchronized double getMaxIntervalMillis() {
+        return Timings.millis(maxInterval);
+    }
+
+    /**
+     * @return the statistics, such as
+     *         "12 elements, 3456 bytes, first after 20.10ms, interval min 1.00ms, mean 5.20ms, max 9.80ms"
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append(count).append(" elements, ").append(bytes).append(" bytes");
+        if (first >= 0)
+            s.append(String.format(", first after %.2fms",
+                    getFirstElementMillis()));
+        if (minInterval >= 0)
+            s.append(String.format(
+                    ", interval min %.2fms, mean %.2fms, max %.2fms",
+                    getMinIntervalMillis(), getMeanIntervalMillis(),
+                    getMaxIntervalMillis()));
+        if (failures > 0)
+            s.append(", ").append(failures).append(" failed");
+        return s.toString();
+    }
+
+    private static boolean isBlank(byte[] text) {
+        for (byte b : text) {
+            if (b != ' ' && b != '\t')
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,107 @@
+package com.sas.unravl.http;
+
+import com.sas.unravl.UnRAVLPlugins;
+import com.sas.unravl.annotations.UnRAVLTransportPlugin;
+import com.sas.unravl.generators.Binary;
+import com.sas.unravl.generators.StreamingBody;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * A transport which sends requests with a Spring {@link RestTemplate}: the
+ * template set with {@link UnRAVLPlugins#setRestTemplate(RestTemplate)} if
+ * there is one (for example, one bound to a Spring MockRestServiceServer),
+ * else a template which uses the runtime's {@link ConnectionPool}. The runtime
+ * always uses this transport when a RestTemplate has been set.
+ *
+ * @author David.Biesack@sas.com
+ */
+@UnRAVLTransportPlugin("resttemplate")
+public class RestTemplateTransport extends BaseUnRAVLTransport {
+
+    public static final String NAME = "resttemplate";
+
+    @Override
+    public TransportResponse execute(final TransportRequest request,
+            final OutputStream responseBody) throws IOException {
+        RestTemplate restTemplate = getRuntime().getRestTemplate();
+        // Use RequestCallback and ResponseExtractor
+        // to handle all request bodies, including binary.
+        // RestTemplate.exchange can't handle binary byte[] body
+        final RequestCallback requestCallback = new RequestCallback() {
+
+            @Override
+            public void doWithRequest(final ClientHttpRequest clientRequest)
+                    throws IOException {
+                HttpHeaders headers = clientRequest.getHeaders();
+                for (Header h : ContentCoding.acceptEncoding(request
+                        .getHeaders()))
+                    headers.add(h.getName(), h.getValue());
+                if (request.getBody() instanceof StreamingBody)
+                    ((StreamingBody) request.getBody()).writeTo(clientRequest
+                            .getBody());
+                else if (request.getBody() != null)
+                    Binary.copy(request.getBody(), clientRequest.getBody());
+            }
+        };
+        final ResponseExtractor<TransportResponse> responseExtractor = new ResponseExtractor<TransportResponse>() {
+            @Override
+            public TransportResponse extractData(ClientHttpResponse response)
+                    throws IOException {
+                return ContentCoding.read(response.getStatusCode().value(),
+                        mapHeaders(response.getHeaders()), null,
+                        response.getBody(), responseBody);
+            }
+        };
+        try {
+            return restTemplate.execute(request.getURI(),
+                    HttpMethod.valueOf(request.getMethod().name()),
+                    requestCallback, responseExtractor);
+        } catch (HttpStatusCodeException e) {
+            // This won't happen with the RestTemplate created by
+            // UnRAVLPlugins, but may occur if the client injects their own
+            // RestTemplate instance that uses the default error handler which
+            // throws exceptions.
+            responseBody.write(e.getResponseBodyAsByteArray());
+            return new TransportResponse(e.getStatusCode().value(),
+                    e.getResponseHeaders() == null ? new Header[0]
+                            : mapHeaders(e.getResponseHeaders()));
+        } catch (ResourceAccessException e) {
+            // execute throws ResourceAccessException if host does not
+            // resolve or the connection fails
+            throw new IOException(e.getMessage(), e);
+        } catch (RestClientException e) {
+            // this does not convey a HTTP status code
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    // Convert from Spring Headers to Apache Headers
+    private static Header[] mapHeaders(HttpHeaders responseHeaders) {
+        List<Header> h = new ArrayList<Header>(responseHeaders.size());
+        for (Entry<String, List<String>> es : responseHeaders.entrySet()) {
+            String name = es.getKey();
+            for (String v : es.getValue()) {
+                h.add(new BasicHeader(name, v));
+            }
+        }
+        return h.toArray(new Header[h.size()]);
+    }
+}
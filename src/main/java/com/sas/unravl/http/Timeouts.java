@@ -0,0 +1,220 @@
+package com.sas.unravl.http;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.client.config.RequestConfig;
+
+/**
+ * The time limits for an API call, in milliseconds. A limit of 0 means no
+ * limit.
+ * <ul>
+ * <li><em>connect</em> - the time to open a connection (or to lease one from
+ * the pool)</li>
+ * <li><em>read</em> - the longest time to wait for response data</li>
+ * <li><em>call</em> - the time for the whole request and response</li>
+ * </ul>
+ * The defaults are the variables <code>unravl.timeout.connect</code>,
+ * <code>unravl.timeout.read</code> and <code>unravl.timeout.call</code>. A
+ * template or script may override them with a <code>"timeout"</code> element,
+ * such as
+ *
+ * <pre>
+ * "timeout" : { "connect" : 500, "read" : 2000 }
+ * </pre>
+ *
+ * Values in a script override those of its template.
+ *
+ * @author David.Biesack@sas.com
+ */
+public final class Timeouts {
+
+    public static final String CONNECT = "unravl.timeout.connect";
+    public static final String READ = "unravl.timeout.read";
+    public static final String CALL = "unravl.timeout.call";
+
+    /**
+     * Which limit an API call exceeded
+     */
+    public enum Phase {
+        /** the connection was not opened in time */
+        CONNECT,
+        /** the server did not send response data in time */
+        READ,
+        /** the whole call took too long */
+        CALL,
+        /** the runtime's <code>unravl.deadline</code> budget ran out */
+        DEADLINE
+    }
+
+    /** No limits */
+    public static final Timeouts NONE = new Timeouts(0, 0, 0, false);
+
+    private final long connect, read, call;
+    private final boolean deadline;
+
+    public Timeouts(long connect, long read, long call) {
+        this(connect, read, call, false);
+    }
+
+    private Timeouts(long connect, long read, long call, boolean deadline) {
+        this.connect = Math.max(0, connect);
+        this.read = Math.max(0, read);
+        this.call = Math.max(0, call);
+        this.deadline = deadline;
+    }
+
+    /**
+     * @param runtime
+     *            a runtime
+     * @return the default timeouts from the runtime's environment
+     */
+    public static Timeouts fromRuntime(UnRAVLRuntime runtime) {
+        return new Timeouts(ConnectionPool.longOption(runtime, CONNECT, 0),
+                ConnectionPool.longOption(runtime, READ, 0),
+                ConnectionPool.longOption(runtime, CALL, 0));
+    }
+
+    /**
+     * @return the default timeouts from the Java system properties
+     */
+    public static Timeouts fromSystemProperties() {
+        return new Timeouts(Long.getLong(CONNECT, 0), Long.getLong(READ, 0),
+                Long.getLong(CALL, 0));
+    }
+
+    /**
+     * Override these timeouts with those from a <code>"timeout"</code>
+     * element.
+     *
+     * @param spec
+     *            a JSON object with optional "connect", "read" and "call"
+     *            numbers
+     * @return the combined timeouts
+     * @throws UnRAVLException
+     *             if spec is not an object of numbers
+     */
+    public Timeouts merge(JsonNode spec) throws UnRAVLException {
+        if (!spec.isObject())
+            throw new UnRAVLException(
+                    "timeout must be an object such as { \"connect\" : 500, \"read\" : 2000 }; found "
+                            + spec);
+        long c = connect, r = read, t = call;
+        for (Iterator<Map.Entry<String, JsonNode>> fields = spec.fields(); fields
+                .hasNext();) {
+            Map.Entry<String, JsonNode> f = fields.next();
+            if (!f.getValue().isNumber())
+                throw new UnRAVLException("timeout value for " + f.getKey()
+                        + " must be a number of milliseconds; found "
+                        + f.getValue());
+            long value = f.getValue().longValue();
+            if ("connect".equals(f.getKey()))
+                c = value;
+            else if ("read".equals(f.getKey()))
+                r = value;
+            else if ("call".equals(f.getKey()))
+                t = value;
+            else
+                throw new UnRAVLException("Unknown timeout " + f.getKey()
+                        + "; expected connect, read or call");
+        }
+        return new Timeouts(c, r, t, deadline);
+    }
+
+    /**
+     * Limit the call time to what remains of the runtime's deadline budget.
+     *
+     * @param remaining
+     *            the remaining budget, in milliseconds
+     * @return timeouts whose call limit is no more than remaining
+     */
+    public Timeouts withDeadline(long remaining) {
+        if (call > 0 && call <= remaining)
+            return this;
+        return new Timeouts(connect, read, Math.max(1, remaining), true);
+    }
+
+    public long getConnect() {
+        return connect;
+    }
+
+    public long getRead() {
+        return read;
+    }
+
+    public long getCall() {
+        return call;
+    }
+
+    /**
+     * @return true if the call limit is the remainder of the runtime's
+     *         deadline
+     */
+    public boolean isDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return true if there is a connect or read limit
+     */
+    public boolean hasRequestConfig() {
+        return connect > 0 || read > 0;
+    }
+
+    /**
+     * @return an Apache HTTP Components request configuration with the
+     *         connect and read limits
+     */
+    public RequestConfig toRequestConfig() {
+        return RequestConfig.custom().setConnectTimeout(limit(connect))
+                .setConnectionRequestTimeout(limit(connect))
+                .setSocketTimeout(limit(read)).build();
+    }
+
+    // HTTP Components uses -1 for "not set"
+    private static int limit(long millis) {
+        return millis > 0 ? (int) Math.min(millis, Integer.MAX_VALUE) : -1;
+    }
+
+    // The connect timeout of HttpClient 5, which is named rather than
+    // referenced since the h2 transport's library is optional
+    private static final String H2_CONNECT_TIMEOUT = "org.apache.hc.client5.http.ConnectTimeoutException";
+
+    /**
+     * Determine which limit, if any, caused a request to fail.
+     *
+     * @param failure
+     *            the exception thrown by a transport
+     * @return the phase which timed out, or null if the failure was not a
+     *         timeout. Since the transports do not distinguish the call limit
+     *         from the deadline, this never returns {@link Phase#DEADLINE}.
+     */
+    public static Phase phase(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof org.apache.http.conn.ConnectTimeoutException
+                    || t.getClass().getName().equals(H2_CONNECT_TIMEOUT))
+                return Phase.CONNECT;
+            if (t instanceof SocketTimeoutException)
+                return Phase.READ;
+            if (t instanceof TimeoutException
+                    || t instanceof InterruptedIOException)
+                return Phase.CALL;
+            if (t.getCause() == t)
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{ \"connect\" : %d, \"read\" : %d, \"call\" : %d }",
+                connect, read, call);
+    }
+}
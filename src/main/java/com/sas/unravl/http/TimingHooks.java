@@ -0,0 +1,172 @@
+package com.sas.unravl.http;
+
+import com.sas.unravl.http.Timings.Phase;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+/**
+ * Hooks into the Apache HTTP Components clients of a {@link ConnectionPool}
+ * which record the phases of each request in the {@link Timings} stored in
+ * the request's HttpContext. Requests without Timings are not affected.
+ *
+ * @author David.Biesack@sas.com
+ */
+final class TimingHooks {
+
+    private TimingHooks() {
+    }
+
+    /**
+     * A connection manager which records the time before a new connection is
+     * opened as blocked, and the time to open it as dns and connect.
+     */
+    static class ConnectionManager extends PoolingHttpClientConnectionManager {
+
+        ConnectionManager(Registry<ConnectionSocketFactory> socketFactories) {
+            super(socketFactories);
+        }
+
+        @Override
+        public void connect(HttpClientConnection conn, HttpRoute route,
+                int connectTimeout, HttpContext context) throws IOException {
+            Timings timings = Timings.of(context);
+            if (timings != null)
+                timings.mark(Phase.BLOCKED);
+            super.connect(conn, route, connectTimeout, context);
+            // the socket factory recorded connect; the rest was resolving
+            if (timings != null)
+                timings.mark(Phase.DNS);
+        }
+    }
+
+    /**
+     * A plain socket factory which records the time to connect
+     */
+    static class PlainSocketFactory extends PlainConnectionSocketFactory {
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket,
+                HttpHost host, InetSocketAddress remoteAddress,
+                InetSocketAddress localAddress, HttpContext context)
+                throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.connectSocket(connectTimeout, socket, host,
+                        remoteAddress, localAddress, context);
+            } finally {
+                add(context, Phase.CONNECT, start);
+            }
+        }
+    }
+
+    /**
+     * A TLS socket factory which records the time to connect, and the time of
+     * the TLS handshake within it
+     */
+    static class SSLSocketFactory extends SSLConnectionSocketFactory {
+
+        SSLSocketFactory(SSLContext sslContext) {
+            super(sslContext);
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket,
+                HttpHost host, InetSocketAddress remoteAddress,
+                InetSocketAddress localAddress, HttpContext context)
+                throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.connectSocket(connectTimeout, socket, host,
+                        remoteAddress, localAddress, context);
+            } finally {
+                add(context, Phase.CONNECT, start);
+            }
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target,
+                int port, HttpContext context) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return super.createLayeredSocket(socket, target, port, context);
+            } finally {
+                add(context, Phase.SSL, start);
+            }
+        }
+    }
+
+    /**
+     * A request executor which records the time to write the request and the
+     * time until the response headers arrive.
+     */
+    static class RequestExecutor extends HttpRequestExecutor {
+
+        @Override
+        protected HttpResponse doSendRequest(HttpRequest request,
+                HttpClientConnection conn, HttpContext context)
+                throws IOException, HttpException {
+            Timings timings = Timings.of(context);
+            if (timings != null)
+                timings.mark(Phase.BLOCKED);
+            try {
+                return super.doSendRequest(request, conn, context);
+            } finally {
+                if (timings != null)
+                    timings.mark(Phase.SEND);
+            }
+        }
+
+        @Override
+        protected HttpResponse doReceiveResponse(HttpRequest request,
+                HttpClientConnection conn, HttpContext context)
+                throws HttpException, IOException {
+            try {
+                return super.doReceiveResponse(request, conn, context);
+            } finally {
+                Timings timings = Timings.of(context);
+                if (timings != null)
+                    timings.mark(Phase.WAIT);
+            }
+        }
+    }
+
+    /**
+     * A response interceptor for the non-blocking client, which cannot
+     * observe connections and sends: everything until the response headers
+     * arrive counts as wait.
+     */
+    static class AsyncResponseInterceptor implements HttpResponseInterceptor {
+
+        @Override
+        public void process(HttpResponse response, HttpContext context) {
+            Timings timings = Timings.of(context);
+            if (timings != null)
+                timings.mark(Phase.WAIT);
+        }
+    }
+
+    private static void add(HttpContext context, Phase phase, long start) {
+        Timings timings = Timings.of(context);
+        if (timings != null)
+            timings.add(phase, System.nanoTime() - start);
+    }
+}
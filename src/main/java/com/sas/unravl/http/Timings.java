@@ -0,0 +1,175 @@
+package com.sas.unravl.http;
+
+import java.util.Arrays;
+
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The time an API call spent in each phase of its HTTP exchange, in
+ * nanoseconds. The phases are those of a HAR (HTTP Archive) entry:
+ * <dl>
+ * <dt>blocked</dt>
+ * <dd>waiting to lease a connection from the pool, and preparing the request</dd>
+ * <dt>dns</dt>
+ * <dd>resolving the host name</dd>
+ * <dt>connect</dt>
+ * <dd>opening the TCP connection, including the TLS handshake</dd>
+ * <dt>ssl</dt>
+ * <dd>the TLS handshake (also counted in connect)</dd>
+ * <dt>send</dt>
+ * <dd>writing the request</dd>
+ * <dt>wait</dt>
+ * <dd>waiting for the response headers: the server's think time</dd>
+ * <dt>receive</dt>
+ * <dd>reading (and decoding) the response body</dd>
+ * </dl>
+ * The clock starts when the API call starts its request. A transport records
+ * the phases it can observe; a phase it cannot observe is -1. The
+ * <code>httpclient</code> transport records all phases for blocking calls,
+ * through hooks in the {@link ConnectionPool}'s connection manager, socket
+ * factories and request executor; for asynchronous calls it records only
+ * wait and receive. For other transports, the whole call counts as wait.
+ *
+ * @author David.Biesack@sas.com
+ */
+public final class Timings {
+
+    /** The HttpContext attribute which holds the Timings of a request */
+    public static final String ATTRIBUTE = "unravl.timings";
+
+    /**
+     * The phases of an HTTP exchange
+     */
+    public enum Phase {
+        BLOCKED, DNS, CONNECT, SSL, SEND, WAIT, RECEIVE
+    }
+
+    private final long startedAt = System.currentTimeMillis();
+    private final long start = System.nanoTime();
+    private final long nanos[] = new long[Phase.values().length];
+    private long total = -1;
+
+    public Timings() {
+        Arrays.fill(nanos, -1L);
+    }
+
+    /**
+     * @param context
+     *            an HTTP context
+     * @return the Timings in the context, or null
+     */
+    public static Timings of(HttpContext context) {
+        Object timings = context == null ? null : context
+                .getAttribute(ATTRIBUTE);
+        return timings instanceof Timings ? (Timings) timings : null;
+    }
+
+    /**
+     * Add time to a phase. A phase may be entered more than once, such as
+     * when a request is redirected.
+     *
+     * @param phase
+     *            the phase
+     * @param time
+     *            the time spent, in nanoseconds
+     */
+    public synchronized void add(Phase phase, long time) {
+        int i = phase.ordinal();
+        nanos[i] = Math.max(0L, nanos[i]) + Math.max(0L, time);
+    }
+
+    /**
+     * End a phase now: add to it the time since the clock started which is
+     * not yet counted in another phase.
+     *
+     * @param phase
+     *            the phase which just ended
+     */
+    public synchronized void mark(Phase phase) {
+        add(phase, elapsed() - accounted());
+    }
+
+    /**
+     * Stop the clock. If no transport recorded the wait phase, the
+     * unaccounted time is counted as wait.
+     */
+    public synchronized void end() {
+        if (total >= 0)
+            return;
+        if (nanos[Phase.WAIT.ordinal()] < 0)
+            mark(Phase.WAIT);
+        total = elapsed();
+    }
+
+    /**
+     * @param phase
+     *            a phase
+     * @return the time spent in the phase in nanoseconds, or -1 if it was not
+     *         recorded
+     */
+    public synchronized long get(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    /**
+     * @return the time from the start of the request until {@link #end()},
+     *         in nanoseconds, or -1 if the call has not ended
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the wall-clock time the request started, in milliseconds since
+     *         the epoch
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * @return the nanoseconds since the clock started
+     */
+    public long elapsed() {
+        return System.nanoTime() - start;
+    }
+
+    // The time in phases that do not overlap; SSL is part of CONNECT
+    private long accounted() {
+        long sum = 0;
+        for (Phase p : Phase.values()) {
+            if (p != Phase.SSL && nanos[p.ordinal()] > 0)
+                sum += nanos[p.ordinal()];
+        }
+        return sum;
+    }
+
+    /**
+     * @param nanos
+     *            a time in nanoseconds, or -1
+     * @return the time in milliseconds, or -1
+     */
+    public static double millis(long nanos) {
+        return nanos < 0 ? -1 : nanos / 1000000.0;
+    }
+
+    /**
+     * @return the recorded phases, such as
+     *         "blocked 0.05ms, wait 3.20ms, receive 0.40ms (total 3.65ms)"
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder s = new StringBuilder();
+        for (Phase p : Phase.values()) {
+            if (nanos[p.ordinal()] < 0)
+                continue;
+            if (s.length() > 0)
+                s.append(", ");
+            s.append(String.format("%s %.2fms", p.name().toLowerCase(),
+                    millis(nanos[p.ordinal()])));
+        }
+        if (total >= 0)
+            s.append(String.format(" (total %.2fms)", millis(total)));
+        return s.toString();
+    }
+}
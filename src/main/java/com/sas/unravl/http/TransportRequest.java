@@ -0,0 +1,202 @@
+package com.sas.unravl.http;
+
+import com.sas.unravl.Method;
+import com.sas.unravl.generators.Binary;
+import com.sas.unravl.generators.ByteArrayBody;
+import com.sas.unravl.generators.FileBody;
+import com.sas.unravl.generators.StreamingBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * An HTTP request to be sent by an {@link UnRAVLTransport}: the method, the
+ * URI, and the request headers, all with variables already expanded, the
+ * request body, if any, and the {@link Timeouts} for the call.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class TransportRequest {
+
+    /**
+     * The runtime variable which holds the request body size, in bytes, at or
+     * above which API calls send <code>Expect: 100-continue</code>, so the
+     * server can reject the request before the body is sent. Bodies of
+     * unknown size also qualify. The default, -1, disables this.
+     */
+    public static final String EXPECT_CONTINUE = "unravl.request.expectContinue";
+
+    public static final String EXPECT = "Expect";
+
+    private final Method method;
+    private final String uri;
+    private final List<Header> headers;
+    private final InputStream body;
+    private final Timeouts timeouts;
+    private final Timings timings;
+
+    public TransportRequest(Method method, String uri, List<Header> headers,
+            InputStream body) {
+        this(method, uri, headers, body, Timeouts.NONE);
+    }
+
+    public TransportRequest(Method method, String uri, List<Header> headers,
+            InputStream body, Timeouts timeouts) {
+        this(method, uri, headers, body, timeouts, new Timings());
+    }
+
+    public TransportRequest(Method method, String uri, List<Header> headers,
+            InputStream body, Timeouts timeouts, Timings timings) {
+        this.method = method;
+        this.uri = uri;
+        this.headers = headers;
+        this.body = body;
+        this.timeouts = timeouts;
+        this.timings = timings;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public String getURI() {
+        return uri;
+    }
+
+    public List<Header> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the request body, or null if the request has no body. The stream
+     *         can be read only once.
+     */
+    public InputStream getBody() {
+        return body;
+    }
+
+    /**
+     * @return the time limits for this call. Transports should apply the
+     *         connect and read limits; the call limit is applied by transports
+     *         which can abort a request.
+     */
+    public Timeouts getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * @return the clock for this call, in which transports record the phases
+     *         of the exchange that they can observe
+     */
+    public Timings getTimings() {
+        return timings;
+    }
+
+    /**
+     * Return the request body as a buffer. If the body was built in memory by
+     * a request body generator, the buffer is a read-only view of its bytes;
+     * otherwise the body stream is read into a new buffer. Like
+     * {@link #getBody()}, this consumes the body.
+     *
+     * @return the request body, or null if the request has no body
+     * @throws IOException
+     *             if the body cannot be read
+     */
+    public ByteBuffer getBodyBuffer() throws IOException {
+        if (body == null)
+            return null;
+        if (body instanceof ByteArrayBody) {
+            ByteBuffer buffer = ((ByteArrayBody) body).toByteBuffer();
+            body.skip(buffer.remaining());
+            return buffer;
+        }
+        Bytes bytes = new Bytes();
+        Binary.copy(body, bytes);
+        return bytes.toByteBuffer();
+    }
+
+    /**
+     * Test if a header should be left for the HTTP client to compute. As in
+     * Spring's HttpComponentsClientHttpRequest, Content-Length and
+     * Transfer-Encoding are derived from the request entity.
+     *
+     * @param name
+     *            a header name
+     * @return true if the header should not be copied to the HTTP request
+     */
+    public static boolean isComputedHeader(String name) {
+        return HTTP.CONTENT_LEN.equalsIgnoreCase(name)
+                || HTTP.TRANSFER_ENCODING.equalsIgnoreCase(name);
+    }
+
+    /**
+     * Convert this request to an Apache HTTP Components request. A
+     * {@link StreamingBody} is written to the request with
+     * {@link StreamingBody#writeTo(OutputStream)},
+     * with a Content-Length if its length is known and chunked otherwise; a
+     * {@link ByteArrayBody} is sent from its own array, and other bodies are
+     * read into memory once, so the request has a Content-Length. POST, PUT
+     * and PATCH requests without a body send an empty entity, as RestTemplate
+     * does. An Accept-Encoding header for the {@link ContentCoding}s is
+     * added if the request has none. The connect and read timeouts are set in the request's
+     * configuration.
+     *
+     * @return a new request
+     * @throws IOException
+     *             if the body cannot be read
+     */
+    public HttpUriRequest toHttpUriRequest() throws IOException {
+        RequestBuilder builder = RequestBuilder.create(method.name()).setUri(
+                uri);
+        for (Header h : ContentCoding.acceptEncoding(headers)) {
+            if (!isComputedHeader(h.getName()))
+                builder.addHeader(h);
+        }
+        if (body instanceof FileBody) {
+            builder.setEntity(new FileEntity(((FileBody) body).getFile()));
+        } else if (body instanceof StreamingBody) {
+            final StreamingBody stream = (StreamingBody) body;
+            builder.setEntity(new InputStreamEntity(stream, stream.length()) {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    stream.writeTo(out);
+                }
+            });
+        } else if (body instanceof ByteArrayBody) {
+            builder.setEntity(((ByteArrayBody) body).toEntity());
+        } else if (body != null) {
+            Bytes bytes = new Bytes();
+            Binary.copy(body, bytes);
+            builder.setEntity(bytes.toEntity());
+        } else if (method == Method.POST || method == Method.PUT
+                || method == Method.PATCH) {
+            builder.setEntity(new ByteArrayEntity(new byte[0]));
+        }
+        if (timeouts.hasRequestConfig())
+            builder.setConfig(timeouts.toRequestConfig());
+        return builder.build();
+    }
+
+    // A buffer whose contents can be used without copying them again
+    private static class Bytes extends ByteArrayOutputStream {
+        synchronized ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count).asReadOnlyBuffer();
+        }
+
+        synchronized ByteArrayEntity toEntity() {
+            return new ByteArrayEntity(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.sas.unravl.http;
+
+import org.apache.http.Header;
+
+/**
+ * The status and headers of an HTTP response received by an
+ * {@link UnRAVLTransport}. The transport writes the response body directly to
+ * the stream supplied by the API call.
+ *
+ * @author David.Biesack@sas.com
+ */
+public class TransportResponse {
+
+    private final int status;
+    private final Header[] headers;
+    private final String protocolVersion;
+    private final long wireLength;
+    private final String contentEncoding;
+
+    public TransportResponse(int status, Header[] headers) {
+        this(status, headers, null);
+    }
+
+    /**
+     * @param status
+     *            the HTTP status code
+     * @param headers
+     *            the response headers
+     * @param protocolVersion
+     *            the protocol of the response, such as "HTTP/1.1" or
+     *            "HTTP/2.0", or null if the transport does not know
+     */
+    public TransportResponse(int status, Header[] headers,
+            String protocolVersion) {
+        this(status, headers, protocolVersion, -1, null);
+    }
+
+    /**
+     * @param status
+     *            the HTTP status code
+     * @param headers
+     *            the response headers
+     * @param protocolVersion
+     *            the protocol of the response, or null if the transport does
+     *            not know
+     * @param wireLength
+     *            the number of body bytes received, before decoding, or -1 if
+     *            the transport does not know
+     * @param contentEncoding
+     *            the {@link ContentCoding} the transport removed from the body,
+     *            or null if the body was not encoded
+     */
+    public TransportResponse(int status, Header[] headers,
+            String protocolVersion, long wireLength, String contentEncoding) {
+        this.status = status;
+        this.headers = headers;
+        this.protocolVersion = protocolVersion;
+        this.wireLength = wireLength;
+        this.contentEncoding = contentEncoding;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public Header[] getHeaders() {
+        return headers;
+    }
+
+    public String getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * @return the number of body bytes received, before decoding, or -1 if
+     *         not known
+     */
+    public long getWireLength() {
+        return wireLength;
+    }
+
+    /**
+     * @return the content coding removed from the body, such as "gzip", or
+     *         null
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+}
@@ -0,0 +1,55 @@
+package com.sas.unravl.http;
+
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLPlugins;
+import com.sas.unravl.UnRAVLRuntime;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Sends the HTTP request of an {@link ApiCall} and receives the response.
+ * Transports are registered in {@link UnRAVLPlugins} by name (see
+ * {@link com.sas.unravl.annotations.UnRAVLTransportPlugin}). Each
+ * {@link UnRAVLRuntime} creates at most one instance of each transport, which
+ * is reused for all the runtime's API calls and closed when the runtime is
+ * closed.
+ * <p>
+ * Transport plugins should extend {@link BaseUnRAVLTransport}.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+public interface UnRAVLTransport extends Closeable {
+
+    /**
+     * Initialize this transport for a runtime. This is called once, before
+     * the first request.
+     *
+     * @param runtime
+     *            the runtime which owns this transport
+     * @throws UnRAVLException
+     *             if the transport cannot be initialized
+     */
+    public void init(UnRAVLRuntime runtime) throws UnRAVLException;
+
+    /**
+     * Send a request and wait for the response.
+     *
+     * @param request
+     *            the request
+     * @param responseBody
+     *            the stream which receives the response body
+     * @return the response status and headers
+     * @throws IOException
+     *             if the request could not be sent or the response could not
+     *             be read; the API call treats this like an HTTP 501 response
+     * @throws UnRAVLException
+     *             if the request is invalid for this transport
+     */
+    public TransportResponse execute(TransportRequest request,
+            OutputStream responseBody) throws IOException, UnRAVLException;
+
+}
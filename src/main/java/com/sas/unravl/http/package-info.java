@@ -0,0 +1,6 @@
+/**
+ * Uniform REST API Validation Language (UnRAVL) HTTP connection management,
+ * such as the pooled HTTP client shared by the API calls of an
+ * {@link com.sas.unravl.UnRAVLRuntime}.
+ */
+package com.sas.unravl.http;
@@ -0,0 +1,81 @@
+package com.sas.unravl.util;
+
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+
+import java.util.Map;
+
+/**
+ * A variable value which is computed only when the variable is first read.
+ * {@link UnRAVLRuntime#binding(String)}, script expressions and variable
+ * expansion all read the computed value, and rebind the variable to it, so
+ * scripts never see the DeferredValue itself.
+ * <p>
+ * Request body generators and extractors bind <code>requestBody</code> and
+ * <code>responseBody</code> to deferred values when the body is not in
+ * memory, so that the variable has the same type either way, but a large body
+ * is read only if a script uses the variable.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+public abstract class DeferredValue {
+
+    private Object value;
+    private boolean computed;
+
+    /**
+     * @return the value of the variable
+     * @throws UnRAVLException
+     *             if the value cannot be computed
+     */
+    protected abstract Object compute() throws UnRAVLException;
+
+    /**
+     * @return the value, which is computed on the first call only
+     * @throws UnRAVLException
+     *             if the value cannot be computed
+     */
+    public synchronized Object get() throws UnRAVLException {
+        if (!computed) {
+            value = compute();
+            computed = true;
+        }
+        return value;
+    }
+
+    /**
+     * Read a variable from an environment. If it is bound to a DeferredValue,
+     * compute the value and rebind the variable to it.
+     *
+     * @param env
+     *            the environment
+     * @param name
+     *            the variable name
+     * @return the value of the variable, or null if it is not bound
+     * @throws RuntimeException
+     *             wrapping the UnRAVLException if the value cannot be computed
+     */
+    public static Object resolve(Map<String, Object> env, Object name) {
+        Object value = env.get(name);
+        if (!(value instanceof DeferredValue))
+            return value;
+        try {
+            Object computed = ((DeferredValue) value).get();
+            if (env.get(name) == value) // not rebound meanwhile
+                env.put(name.toString(), computed);
+            return computed;
+        } catch (UnRAVLException e) {
+            throw new RuntimeException(e); // tunneled
+        }
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return String.valueOf(get());
+        } catch (UnRAVLException e) {
+            throw new RuntimeException(e); // tunneled
+        }
+    }
+}
@@ -4,7 +4,7 @@ package com.sas.unravl.util;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.math.BigDecimal;
@@ -16,9 +16,12 @@ import java.util.Map;
 
 import org.apache.log4j.Logger;
 
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -37,7 +40,6 @@ import com.fasterxml.jackson.databind.node.TextNode;
 import com.google.common.base.Function;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
-import com.sas.unravl.generators.Text;
 
 /**
  * JSON utility methods.
@@ -71,106 +73,269 @@ public class Json {
 
     /**
      * Process a JsonNode and its subtree and perform environment expansion on
-     * all text.
+     * all text. The result shares every node whose subtree does not change,
+     * and is the input node itself if nothing changes.
      *
      * @param actual
      *            an input Json
      * @param script
      *            the Unravl script
-     * @return a new JsonNode with the text expanded or replaced with values from the environment
+     * @return a JsonNode with the text expanded or replaced with values from the environment
+     * @see #expand(JsonNode, UnRAVL, boolean)
      */
     public static JsonNode expand(JsonNode actual, final UnRAVL script) {
-        final JsonNodeFactory jnf = jsonNodeFactory();
+        return expand(actual, script, false);
+    }
+
+    /**
+     * Process a JsonNode and its subtree and perform environment expansion on
+     * all text, as {@link #expand(JsonNode, UnRAVL)} does. Objects and arrays
+     * which contain no <code>'{'</code> in any field name or string may also
+     * be remembered with the script (see
+     * {@link UnRAVL#getPlaceholderFreeNodes()}), so that expanding them again,
+     * as happens each time a script runs, returns them at once; therefore a
+     * remembered node must not be modified after it is expanded, as is the
+     * case for nodes of a parsed script.
+     *
+     * @param actual
+     *            an input Json
+     * @param script
+     *            the Unravl script
+     * @param remember
+     *            if true, remember the objects and arrays which contain no
+     *            variable references. Pass true only for the nodes of a
+     *            script, never for values which may be modified later, such
+     *            as a JSON value bound to a variable.
+     * @return a JsonNode with the text expanded or replaced with values from the environment
+     */
+    public static JsonNode expand(JsonNode actual, UnRAVL script,
+            boolean remember) {
+        return new Expansion(script, remember).apply(actual);
+    }
+
+    /**
+     * A recursive JsonNode transformation mapping function which replaces
+     * each string with its environment expansion. That is, replace
+     * <code>{varName}</code> with the current binding for <code><em>varName</em></code> in the script's
+     * environment.
+     *
+     * Each string matching a pattern <code>{@<em>varName</em>@}</code> will be replaced with
+     * the actual value of that environment variable <em>varName</em> if it can be resolved.
+     * The <em>entire string</em> has to match that pattern. The string
+     * <code>"prefix text {@varName@} other text"</code>
+     * ia not resolved with this notation. However, it can be expanded with
+     * the simple string variable replacement, <code>"prefix text {varName} other text"</code>.
+     *
+     * For example,
+     * <pre>
+     * "env" : { "min": 1, "y" : [ 1, 2, true ], "featureOn" : true },
+     * "body" : { "name" : "minimum", 
+     *            "value", "{@min@}", 
+     *            "data" : "{@y@}", 
+     *            "enabled" : "{@featureOn@}" }
+     * </pre>
+     *
+     * This will result in JSON with the actual values of the variables <code>min</code>
+     * <code>y</code> and <code>featureOn</code> replacing the string variable references: 
+     * <pre>
+     * { "name" : "minimum",
+     *   "value", 1, 
+     *   "data" : [ 1, 2, true ], 
+     *   "enabled" : true }
+     * </pre>
+     *
+     * An object or array is copied only if something in it changes.
+     */
+    private static class Expansion implements Function<JsonNode, JsonNode> {
+        private final JsonNodeFactory jnf = jsonNodeFactory();
+        private final UnRAVL script;
+        private final boolean remember;
+        // true if the nodes visited so far contain a '{'
+        private boolean placeholders;
+
+        Expansion(UnRAVL script, boolean remember) {
+            this.script = script;
+            this.remember = remember;
+        }
 
         /**
-         * A recursive JsonNode transformation mapping function which replaces
-         * each string with its environment expansion. That is, replace
-         * <code>{varName}</code> with the current binding for <code><em>varName</em></code> in the script's
-         * environment.
-         *
-         * Each string matching a pattern <code>{@<em>varName</em>@}</code> will be replaced with
-         * the actual value of that environment variable <em>varName</em> if it can be resolved.
-         * The <em>entire string</em> has to match that pattern. The string
-         * <code>"prefix text {@varName@} other text"</code>
-         * ia not resolved with this notation. However, it can be expanded with
-         * the simple string variable replacement, <code>"prefix text {varName} other text"</code>.
-         *
-         * For example,
-         * <pre>
-         * "env" : { "min": 1, "y" : [ 1, 2, true ], "featureOn" : true },
-         * "body" : { "name" : "minimum", 
-         *            "value", "{@min@}", 
-         *            "data" : "{@y@}", 
-         *            "enabled" : "{@featureOn@}" }
-         * </pre>
-         *
-         * This will result in JSON with the actual values of the variables <code>min</code>
-         * <code>y</code> and <code>featureOn</code> replacing the string variable references: 
-         * <pre>
-         * { "name" : "minimum",
-         *   "value", 1, 
-         *   "data" : [ 1, 2, true ], 
-         *   "enabled" : true }
-         * </pre>
-         *
          * @param node
          *            the input JSON
          * @return the node or a replacement which the text expanded.
          */
-        Function<JsonNode, JsonNode> expandText = new Function<JsonNode, JsonNode>() {
-            @Override
-            public JsonNode apply(JsonNode node) {
-                if (node.isTextual()) {
-                    if (script.getRuntime().isValueNode(node.textValue())) {
-                        Object nodeValue = script.obtainVariableValue(node
-                                .textValue());
-                        if (nodeValue instanceof Boolean) {
-                            return BooleanNode.valueOf(((Boolean) nodeValue));
-                        } else if (nodeValue instanceof Integer) {
-                            return new IntNode((Integer) nodeValue);
-                        } else if (nodeValue instanceof Double) {
-                            return new DoubleNode((Double) nodeValue);
-                        } else if (nodeValue instanceof BigInteger) {
-                            return new BigIntegerNode((BigInteger) nodeValue);
-                        } else if (nodeValue instanceof BigDecimal) {
-                            return new DecimalNode((BigDecimal) nodeValue);
-                        } else if (nodeValue instanceof Long) {
-                            return new LongNode((Long) nodeValue);
-                        } else if (nodeValue instanceof String) {
-                            return new TextNode(nodeValue.toString());
-                        } else if (nodeValue instanceof ArrayNode) {
-                            return (ArrayNode) nodeValue;
-                        } else if (nodeValue instanceof ObjectNode) {
-                            return (ObjectNode) nodeValue;
-                        } else if (nodeValue == null) {
-                            return NullNode.getInstance();
-                        } else {
-                            return new TextNode(nodeValue.toString());
-                        }
-                    } else {
-                        return new TextNode(script.expand(node.textValue()));
-                    }
-                } else if (node.isArray()) {
-                    ArrayNode from = (ArrayNode) node;
-                    ArrayNode to = new ArrayNode(jnf);
-                    for (int i = 0; i < from.size(); i++) {
-                        to.add(this.apply(from.get(i)));
-                    }
-                    return to;
-                } else if (node.isObject()) {
-                    ObjectNode from = (ObjectNode) node;
-                    ObjectNode to = new ObjectNode(jnf);
-                    for (Map.Entry<String, JsonNode> f : Json.fields(from)) {
-                        to.set(script.expand(f.getKey()),
-                                this.apply(f.getValue()));
-                    }
-                    return to;
-                } else
+        @Override
+        public JsonNode apply(JsonNode node) {
+            if (node.isTextual()) {
+                String text = node.textValue();
+                if (text.indexOf('{') == -1)
+                    return node;
+                placeholders = true;
+                if (script.getRuntime().isValueNode(text))
+                    return value(script.obtainVariableValue(text));
+                String expanded = script.expand(text);
+                return expanded.equals(text) ? node : new TextNode(expanded);
+            } else if (node.isContainerNode()) {
+                if (remember && script.getPlaceholderFreeNodes().contains(node))
                     return node;
+                boolean outer = placeholders;
+                placeholders = false;
+                JsonNode to = node.isArray() ? array((ArrayNode) node)
+                        : object((ObjectNode) node);
+                if (!placeholders && remember)
+                    script.getPlaceholderFreeNodes().add(node);
+                placeholders |= outer;
+                return to;
+            } else
+                return node;
+        }
+
+        private JsonNode array(ArrayNode from) {
+            ArrayNode to = null;
+            for (int i = 0; i < from.size(); i++) {
+                JsonNode each = from.get(i);
+                JsonNode expanded = apply(each);
+                if (to == null && expanded != each) {
+                    // copy the elements before the first change
+                    to = new ArrayNode(jnf);
+                    for (int j = 0; j < i; j++)
+                        to.add(from.get(j));
+                }
+                if (to != null)
+                    to.add(expanded);
             }
+            return to == null ? from : to;
+        }
 
-        };
-        return map(actual, expandText);
+        private JsonNode object(ObjectNode from) {
+            ObjectNode to = null;
+            int i = 0;
+            for (Map.Entry<String, JsonNode> f : Json.fields(from)) {
+                String key = f.getKey();
+                String expandedKey = key;
+                if (key.indexOf('{') != -1) {
+                    placeholders = true;
+                    expandedKey = script.expand(key);
+                }
+                JsonNode expanded = apply(f.getValue());
+                if (to == null
+                        && (expanded != f.getValue() || !expandedKey
+                                .equals(key))) {
+                    // copy the fields before the first change
+                    to = new ObjectNode(jnf);
+                    Iterator<Map.Entry<String, JsonNode>> before = from
+                            .fields();
+                    for (int j = 0; j < i; j++) {
+                        Map.Entry<String, JsonNode> b = before.next();
+                        to.set(b.getKey(), b.getValue());
+                    }
+                }
+                if (to != null)
+                    to.set(expandedKey, expanded);
+                i++;
+            }
+            return to == null ? from : to;
+        }
+
+        // the node for the value of a {@varName@} reference
+        private static JsonNode value(Object nodeValue) {
+            if (nodeValue instanceof Boolean) {
+                return BooleanNode.valueOf(((Boolean) nodeValue));
+            } else if (nodeValue instanceof Integer) {
+                return new IntNode((Integer) nodeValue);
+            } else if (nodeValue instanceof Double) {
+                return new DoubleNode((Double) nodeValue);
+            } else if (nodeValue instanceof BigInteger) {
+                return new BigIntegerNode((BigInteger) nodeValue);
+            } else if (nodeValue instanceof BigDecimal) {
+                return new DecimalNode((BigDecimal) nodeValue);
+            } else if (nodeValue instanceof Long) {
+                return new LongNode((Long) nodeValue);
+            } else if (nodeValue instanceof String) {
+                return new TextNode(nodeValue.toString());
+            } else if (nodeValue instanceof ArrayNode) {
+                return (ArrayNode) nodeValue;
+            } else if (nodeValue instanceof ObjectNode) {
+                return (ObjectNode) nodeValue;
+            } else if (nodeValue == null) {
+                return NullNode.getInstance();
+            } else {
+                return new TextNode(nodeValue.toString());
+            }
+        }
+    }
+
+    /**
+     * Copy JSON from a parser to a generator, expanding variables as
+     * {@link #expand(JsonNode, UnRAVL)} does, one token at a time, so that the
+     * JSON is never held in memory as a tree or as a string.
+     *
+     * @param from
+     *            the parser for the input JSON; this is read to the end but
+     *            not closed
+     * @param to
+     *            the generator for the output JSON; this is flushed but not
+     *            closed
+     * @param script
+     *            the UnRAVL script
+     * @throws IOException
+     *             if the input is not valid JSON, or cannot be read or written
+     */
+    public static void expand(JsonParser from, JsonGenerator to, UnRAVL script)
+            throws IOException {
+        expand(from, to, script.getRuntime().getVariableResolver());
+    }
+
+    /**
+     * Copy JSON from a parser to a generator, expanding variables with a
+     * resolver, such as a {@link VariableResolver#snapshot() snapshot} of the
+     * environment.
+     *
+     * @param from
+     *            the parser for the input JSON; this is read to the end but
+     *            not closed
+     * @param to
+     *            the generator for the output JSON; this is flushed but not
+     *            closed
+     * @param variables
+     *            the resolver for variable references
+     * @throws IOException
+     *             if the input is not valid JSON, or cannot be read or written
+     * @see #expand(JsonParser, JsonGenerator, UnRAVL)
+     */
+    public static void expand(JsonParser from, JsonGenerator to,
+            VariableResolver variables) throws IOException {
+        if (to.getCodec() == null)
+            to.setCodec(mapper);
+        for (JsonToken t = from.nextToken(); t != null; t = from.nextToken()) {
+            if (t == JsonToken.FIELD_NAME) {
+                to.writeFieldName(variables.expand(from.getCurrentName()));
+            } else if (t == JsonToken.VALUE_STRING) {
+                String text = from.getText();
+                if (variables.isValueNode(text))
+                    writeValue(to, variables.resolveVarValue(text));
+                else
+                    to.writeString(variables.expand(text));
+            } else {
+                to.copyCurrentEvent(from);
+            }
+        }
+        to.flush();
+    }
+
+    // write the value of a {@var@} reference as expand(JsonNode, UnRAVL) does
+    private static void writeValue(JsonGenerator to, Object value)
+            throws IOException {
+        if (value == null) {
+            to.writeNull();
+        } else if (value instanceof ArrayNode || value instanceof ObjectNode) {
+            to.writeTree((JsonNode) value);
+        } else if (value instanceof Boolean || value instanceof Integer
+                || value instanceof Long || value instanceof Double
+                || value instanceof BigInteger || value instanceof BigDecimal) {
+            to.writeObject(value);
+        } else {
+            to.writeString(value.toString());
+        }
     }
 
     /**
@@ -354,19 +519,28 @@ public class Json {
     public static void extractToStream(JsonNode json, String fileName)
             throws UnRAVLException {
         try {
-            boolean stdout = fileName.equals("-");
-            Writer w = stdout ? new PrintWriter(System.out)
-                    : new OutputStreamWriter(new FileOutputStream(fileName),
-                            Text.UTF_8);
             JsonFactory jf = jsonFactory();
+            if (!fileName.equals("-")) {
+                // write UTF-8 bytes directly, without a Writer
+                OutputStream out = new FileOutputStream(fileName);
+                try {
+                    JsonGenerator g = jf.createGenerator(out,
+                            JsonEncoding.UTF8);
+                    g.setCodec(new ObjectMapper());
+                    g.useDefaultPrettyPrinter();
+                    g.writeTree(json);
+                    g.close();
+                } finally {
+                    out.close();
+                }
+                return;
+            }
+            Writer w = new PrintWriter(System.out);
             JsonGenerator g = jf.createGenerator(w);
             g.setCodec(new ObjectMapper());
             g.useDefaultPrettyPrinter();
             g.writeTree(json);
-            if (stdout)
-                w.write("\n");
-            else
-                w.close();
+            w.write("\n");
         } catch (FileNotFoundException e) {
             throw new UnRAVLException(e.getMessage(), e);
         } catch (IOException e) {
@@ -0,0 +1,199 @@
+package com.sas.unravl.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.sas.unravl.UnRAVLException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The encodings of the JSON data model which UnRAVL reads and writes: JSON
+ * text, and the binary formats <a href='http://cbor.io/'>CBOR</a>,
+ * <a href='https://github.com/FasterXML/smile-format-specification'>Smile</a>
+ * and <a href='https://msgpack.org/'>MessagePack</a>. All of them are read
+ * into the same Jackson {@link JsonNode} model, so extractors and assertions
+ * work the same way for each.
+ * <p>
+ * MessagePack uses <code>org.msgpack:jackson-dataformat-msgpack</code>,
+ * which UnRAVL ships as an optional dependency: an application which embeds
+ * UnRAVL must add it to use MessagePack.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+public enum JsonFormat {
+
+    JSON("json", "application/json"),
+    CBOR("cbor", "application/cbor"),
+    SMILE("smile", "application/x-jackson-smile", "application/smile"),
+    MSGPACK("msgpack", "application/x-msgpack", "application/msgpack",
+            "application/vnd.msgpack");
+
+    private static final String MSGPACK_FACTORY = "org.msgpack.jackson.dataformat.MessagePackFactory";
+
+    private final String name;
+    private final String mediaTypes[];
+    // created on first use
+    private volatile ObjectMapper mapper;
+
+    private JsonFormat(String name, String... mediaTypes) {
+        this.name = name;
+        this.mediaTypes = mediaTypes;
+    }
+
+    /**
+     * @return the name of this format in UnRAVL scripts, such as
+     *         <code>"cbor"</code>
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the media type to send in a Content-Type header
+     */
+    public String getMediaType() {
+        return mediaTypes[0];
+    }
+
+    /**
+     * @return true if this is the JSON text format
+     */
+    public boolean isText() {
+        return this == JSON;
+    }
+
+    /**
+     * @return a factory for parsers and generators of this format
+     * @throws UnRAVLException
+     *             if the format is not available
+     */
+    public JsonFactory getFactory() throws UnRAVLException {
+        return getMapper().getFactory();
+    }
+
+    /**
+     * @return an ObjectMapper which reads and writes this format. It is
+     *         shared, so it must not be reconfigured.
+     * @throws UnRAVLException
+     *             if the format is not available
+     */
+    public ObjectMapper getMapper() throws UnRAVLException {
+        if (mapper == null)
+            mapper = new ObjectMapper(newFactory());
+        return mapper;
+    }
+
+    private JsonFactory newFactory() throws UnRAVLException {
+        switch (this) {
+        case CBOR:
+            return new CBORFactory();
+        case SMILE:
+            return new SmileFactory();
+        case MSGPACK:
+            try {
+                return (JsonFactory) Class.forName(MSGPACK_FACTORY)
+                        .newInstance();
+            } catch (ClassNotFoundException e) {
+                throw new UnRAVLException(
+                        "MessagePack requires org.msgpack:jackson-dataformat-msgpack on the class path",
+                        e);
+            } catch (ReflectiveOperationException e) {
+                throw new UnRAVLException("Could not create "
+                        + MSGPACK_FACTORY + ": " + e.getMessage(), e);
+            }
+        default:
+            return Json.jsonFactory();
+        }
+    }
+
+    /**
+     * Parse a document in this format.
+     *
+     * @param in
+     *            the document, which is not closed
+     * @return the JSON value
+     * @throws UnRAVLException
+     *             if the document is not valid
+     */
+    public JsonNode read(InputStream in) throws UnRAVLException {
+        try {
+            JsonNode node = getMapper().readTree(in);
+            if (node == null)
+                throw new UnRAVLException("Empty " + name + " document");
+            return node;
+        } catch (IOException e) {
+            throw new UnRAVLException(String.format("Invalid %s: %s", name,
+                    e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Encode a JSON value in this format.
+     *
+     * @param node
+     *            the JSON value
+     * @return the encoded value
+     * @throws UnRAVLException
+     *             if the value cannot be encoded
+     */
+    public byte[] write(JsonNode node) throws UnRAVLException {
+        try {
+            return getMapper().writeValueAsBytes(node);
+        } catch (IOException e) {
+            throw new UnRAVLException(String.format("Could not encode %s: %s",
+                    name, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * @param name
+     *            the name of a format, such as <code>"smile"</code>
+     * @return the format, or null if there is no such format
+     */
+    public static JsonFormat named(String name) {
+        for (JsonFormat format : values()) {
+            if (format.name.equals(name))
+                return format;
+        }
+        return null;
+    }
+
+    /**
+     * @param scriptlet
+     *            a scriptlet such as <code>{ "cbor" : ... }</code>
+     * @return the first format which the scriptlet has a field for, or
+     *         {@link #JSON} if it has none
+     */
+    public static JsonFormat of(ObjectNode scriptlet) {
+        for (JsonFormat format : values()) {
+            if (scriptlet.has(format.name))
+                return format;
+        }
+        return JSON;
+    }
+
+    /**
+     * @param contentType
+     *            a Content-Type header value, or null
+     * @return the binary format for the media type, or {@link #JSON} for any
+     *         other media type
+     */
+    public static JsonFormat forContentType(String contentType) {
+        if (contentType == null)
+            return JSON;
+        String type = contentType.split(";", 2)[0].trim();
+        for (JsonFormat format : values()) {
+            for (String mediaType : format.mediaTypes) {
+                if (mediaType.equalsIgnoreCase(type))
+                    return format;
+            }
+        }
+        return JSON;
+    }
+}
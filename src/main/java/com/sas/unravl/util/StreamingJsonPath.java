@@ -0,0 +1,540 @@
+package com.sas.unravl.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.sas.unravl.UnRAVLException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates a set of JsonPath expressions in one pass over a JSON document's
+ * token stream, without building the document's tree. Only the matched values
+ * (and, for filters, the candidate array elements) are read into memory, so
+ * very large responses can be searched in a small heap.
+ * <p>
+ * This supports a subset of <a href='https://github.com/jayway/JsonPath'>Jayway
+ * JsonPath</a>:
+ * </p>
+ * <ul>
+ * <li>child members: <code>$.a.b</code> or <code>$['a']['b']</code></li>
+ * <li>wildcards: <code>$.a.*</code> or <code>$.a[*]</code></li>
+ * <li>array indexes: <code>$.a[0]</code> (not negative indexes)</li>
+ * <li>simple filters: <code>$.a[?(@.b)]</code>, or
+ * <code>$.a[?(@.b.c op literal)]</code> where <var>op</var> is one of
+ * <code>== != &lt; &lt;= &gt; &gt;=</code> and <var>literal</var> is a number,
+ * a quoted string, <code>true</code>, <code>false</code> or <code>null</code>
+ * </li>
+ * </ul>
+ * <p>
+ * Other expressions, such as deep scans (<code>..</code>), slices, unions and
+ * functions, are rejected. As with Jayway JsonPath, a definite path (one
+ * without wildcards or filters) yields a single value and fails if nothing
+ * matches; other paths yield a List of the matches. Values are returned as
+ * Java Maps, Lists and scalars.
+ * </p>
+ *
+ * @author David.Biesack@sas.com
+ */
+public final class StreamingJsonPath {
+
+    // heap use is sampled once per this many JSON values
+    private static final int SAMPLE_INTERVAL = 1024;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final List<String> paths;
+    private final List<List<Segment>> compiled;
+    private List<List<JsonNode>> matches;
+    private long heapAtStart;
+    private long peakMemory;
+    private long values;
+
+    /**
+     * Compile JsonPath expressions.
+     *
+     * @param paths
+     *            the expressions
+     * @throws UnRAVLException
+     *             if an expression is not in the supported subset
+     */
+    public StreamingJsonPath(List<String> paths) throws UnRAVLException {
+        this.paths = new ArrayList<String>(paths);
+        this.compiled = new ArrayList<List<Segment>>(paths.size());
+        for (String path : paths)
+            compiled.add(compile(path));
+    }
+
+    /**
+     * @param i
+     *            the index of a path
+     * @return true if the path has no wildcards or filters, so that it yields
+     *         a single value rather than a List
+     */
+    public boolean isDefinite(int i) {
+        for (Segment s : compiled.get(i)) {
+            if (s.kind == Kind.WILDCARD || s.kind == Kind.FILTER)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Evaluate the paths over a JSON document.
+     *
+     * @param json
+     *            the JSON document, which is read to the end but not closed
+     * @return the value of each path, in the order of the paths
+     * @throws UnRAVLException
+     *             if the document is not valid JSON, or a definite path does
+     *             not match anything
+     */
+    public List<Object> read(InputStream json) throws UnRAVLException {
+        return read(json, mapper.getFactory());
+    }
+
+    /**
+     * Evaluate the paths over a document in a binary encoding of JSON, such
+     * as CBOR.
+     *
+     * @param json
+     *            the document, which is read to the end but not closed
+     * @param factory
+     *            the factory for parsers of the document's format; see
+     *            {@link JsonFormat#getFactory()}
+     * @return the value of each path, in the order of the paths
+     * @throws UnRAVLException
+     *             if the document is not valid, or a definite path does not
+     *             match anything
+     */
+    public List<Object> read(InputStream json, JsonFactory factory)
+            throws UnRAVLException {
+        matches = new ArrayList<List<JsonNode>>(paths.size());
+        List<State> states = new ArrayList<State>(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            matches.add(new ArrayList<JsonNode>());
+            states.add(new State(i, 0, false));
+        }
+        heapAtStart = heapUsed();
+        peakMemory = 0;
+        values = 0;
+        try {
+            JsonParser parser = factory.createParser(json);
+            try {
+                if (parser.nextToken() == null)
+                    throw new UnRAVLException("Empty JSON document");
+                value(parser, states);
+                if (parser.nextToken() != null)
+                    throw new UnRAVLException(
+                            "Unexpected content after JSON document at "
+                                    + parser.getCurrentLocation());
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            throw new UnRAVLException(e.getMessage(), e);
+        }
+        sample();
+        List<Object> results = new ArrayList<Object>(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            List<JsonNode> found = matches.get(i);
+            if (isDefinite(i)) {
+                if (found.isEmpty())
+                    throw new UnRAVLException("No results for path: "
+                            + paths.get(i));
+                results.add(java(found.get(0)));
+            } else {
+                List<Object> list = new ArrayList<Object>(found.size());
+                for (JsonNode node : found)
+                    list.add(java(node));
+                results.add(list);
+            }
+        }
+        matches = null;
+        return results;
+    }
+
+    /**
+     * @return the highest growth of the heap, in bytes, observed during the
+     *         last {@link #read(InputStream)}. This is sampled, and includes
+     *         garbage not yet collected, so it is an estimate.
+     */
+    public long getPeakMemory() {
+        return peakMemory;
+    }
+
+    // Match the value at the parser's current token, then consume it
+    private void value(JsonParser parser, List<State> states)
+            throws IOException {
+        if (++values % SAMPLE_INTERVAL == 0)
+            sample();
+        if (states.isEmpty()) {
+            parser.skipChildren();
+            return;
+        }
+        JsonToken token = parser.getCurrentToken();
+        for (State s : states) {
+            List<Segment> path = compiled.get(s.path);
+            if (s.pending
+                    || s.segment == path.size()
+                    || (path.get(s.segment).kind == Kind.FILTER && token == JsonToken.START_OBJECT)) {
+                // read this value and finish matching it in memory
+                JsonNode node = parser.readValueAsTree();
+                if (node == null)
+                    node = NullNode.getInstance();
+                for (State each : states)
+                    match(node, each.path, each.segment, each.pending);
+                return;
+            }
+        }
+        if (token == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                List<State> next = new ArrayList<State>(states.size());
+                for (State s : states) {
+                    Segment segment = compiled.get(s.path).get(s.segment);
+                    if (segment.matches(name))
+                        next.add(new State(s.path, s.segment + 1, false));
+                }
+                value(parser, next);
+            }
+        } else if (token == JsonToken.START_ARRAY) {
+            for (int i = 0; parser.nextToken() != JsonToken.END_ARRAY; i++) {
+                List<State> next = new ArrayList<State>(states.size());
+                for (State s : states) {
+                    Segment segment = compiled.get(s.path).get(s.segment);
+                    if (segment.kind == Kind.FILTER)
+                        next.add(new State(s.path, s.segment, true));
+                    else if (segment.matches(i))
+                        next.add(new State(s.path, s.segment + 1, false));
+                }
+                value(parser, next);
+            }
+        }
+        // scalars do not have children to match
+    }
+
+    // Match a value which has been read into memory; if pending, the value
+    // must first pass the filter of the segment
+    private void match(JsonNode node, int path, int segment, boolean pending) {
+        List<Segment> segments = compiled.get(path);
+        if (pending) {
+            if (!segments.get(segment).filter.test(node))
+                return;
+            segment++;
+        }
+        if (segment == segments.size()) {
+            matches.get(path).add(node);
+            return;
+        }
+        Segment s = segments.get(segment);
+        if (node.isObject()) {
+            if (s.kind == Kind.FILTER) {
+                match(node, path, segment, true);
+                return;
+            }
+            for (Iterator<Map.Entry<String, JsonNode>> fields = node.fields(); fields
+                    .hasNext();) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                if (s.matches(field.getKey()))
+                    match(field.getValue(), path, segment + 1, false);
+            }
+        } else if (node.isArray()) {
+            for (int i = 0; i < node.size(); i++) {
+                if (s.kind == Kind.FILTER)
+                    match(node.get(i), path, segment, true);
+                else if (s.matches(i))
+                    match(node.get(i), path, segment + 1, false);
+            }
+        }
+    }
+
+    private void sample() {
+        peakMemory = Math.max(peakMemory, heapUsed() - heapAtStart);
+    }
+
+    private static long heapUsed() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static Object java(JsonNode node) {
+        return mapper.convertValue(node, Object.class);
+    }
+
+    // Parsing
+
+    private static List<Segment> compile(String path) throws UnRAVLException {
+        String p = path.trim();
+        if (!p.startsWith("$"))
+            p = p.startsWith("[") ? "$" + p : "$." + p;
+        Cursor c = new Cursor(path, p, 1);
+        List<Segment> segments = new ArrayList<Segment>();
+        while (!c.atEnd()) {
+            if (c.skip(".")) {
+                if (c.peek('.'))
+                    throw c.unsupported("deep scan");
+                if (c.skip("*"))
+                    segments.add(Segment.WILDCARD);
+                else
+                    segments.add(Segment.name(c.name()));
+            } else if (c.skip("[")) {
+                c.spaces();
+                if (c.skip("*"))
+                    segments.add(Segment.WILDCARD);
+                else if (c.peek('\'') || c.peek('"'))
+                    segments.add(Segment.name(c.quoted()));
+                else if (c.skip("?("))
+                    segments.add(Segment.filter(filter(c)));
+                else
+                    segments.add(Segment.index(c.index()));
+                c.spaces();
+                c.expect("]");
+            } else {
+                throw c.unsupported("unexpected character");
+            }
+        }
+        return Collections.unmodifiableList(segments);
+    }
+
+    private static Filter filter(Cursor c) throws UnRAVLException {
+        c.spaces();
+        c.expect("@");
+        List<String> field = new ArrayList<String>();
+        while (true) {
+            if (c.skip("."))
+                field.add(c.name());
+            else if (c.skip("[")) {
+                field.add(c.quoted());
+                c.expect("]");
+            } else
+                break;
+        }
+        if (field.isEmpty())
+            throw c.unsupported("filter without a member");
+        c.spaces();
+        String op = null;
+        JsonNode literal = null;
+        for (String candidate : new String[] { "==", "!=", "<=", ">=", "<",
+                ">" }) {
+            if (c.skip(candidate)) {
+                op = candidate;
+                break;
+            }
+        }
+        if (op != null) {
+            c.spaces();
+            literal = c.peek('\'') || c.peek('"') ? new TextNode(c.quoted())
+                    : c.literal();
+            c.spaces();
+        }
+        c.expect(")");
+        return new Filter(field, op, literal);
+    }
+
+    private static final class Cursor {
+        private final String original;
+        private final String text;
+        private int at;
+
+        Cursor(String original, String text, int at) {
+            this.original = original;
+            this.text = text;
+            this.at = at;
+        }
+
+        boolean atEnd() {
+            return at >= text.length();
+        }
+
+        boolean peek(char ch) {
+            return !atEnd() && text.charAt(at) == ch;
+        }
+
+        boolean skip(String s) {
+            if (text.startsWith(s, at)) {
+                at += s.length();
+                return true;
+            }
+            return false;
+        }
+
+        void spaces() {
+            while (!atEnd() && Character.isWhitespace(text.charAt(at)))
+                at++;
+        }
+
+        void expect(String s) throws UnRAVLException {
+            if (!skip(s))
+                throw unsupported("expected " + s);
+        }
+
+        String name() throws UnRAVLException {
+            int start = at;
+            while (!atEnd() && ".[]()=!<> ".indexOf(text.charAt(at)) < 0)
+                at++;
+            if (at == start)
+                throw unsupported("expected a member name");
+            return text.substring(start, at);
+        }
+
+        String quoted() throws UnRAVLException {
+            char quote = text.charAt(at++);
+            int end = text.indexOf(quote, at);
+            if (end < 0)
+                throw unsupported("unterminated string");
+            String s = text.substring(at, end);
+            at = end + 1;
+            return s;
+        }
+
+        int index() throws UnRAVLException {
+            int start = at;
+            while (!atEnd() && Character.isDigit(text.charAt(at)))
+                at++;
+            if (at == start)
+                throw unsupported(peek('-') ? "negative index"
+                        : "expected an index");
+            if (peek(':') || peek(','))
+                throw unsupported("slice or union");
+            return Integer.parseInt(text.substring(start, at));
+        }
+
+        JsonNode literal() throws UnRAVLException {
+            int start = at;
+            while (!atEnd() && text.charAt(at) != ')'
+                    && !Character.isWhitespace(text.charAt(at)))
+                at++;
+            String token = text.substring(start, at);
+            try {
+                JsonNode node = mapper.readTree(token);
+                if (node != null && node.isValueNode())
+                    return node;
+            } catch (IOException e) {
+                // reported below
+            }
+            throw unsupported("expected a literal");
+        }
+
+        UnRAVLException unsupported(String why) {
+            return new UnRAVLException(String.format(
+                    "Unsupported streaming JsonPath %s (%s at position %d)",
+                    original, why, at));
+        }
+    }
+
+    // Matching
+
+    private enum Kind {
+        NAME, INDEX, WILDCARD, FILTER
+    }
+
+    private static final class Segment {
+        static final Segment WILDCARD = new Segment(Kind.WILDCARD, null, -1,
+                null);
+
+        final Kind kind;
+        final String name;
+        final int index;
+        final Filter filter;
+
+        private Segment(Kind kind, String name, int index, Filter filter) {
+            this.kind = kind;
+            this.name = name;
+            this.index = index;
+            this.filter = filter;
+        }
+
+        static Segment name(String name) {
+            return new Segment(Kind.NAME, name, -1, null);
+        }
+
+        static Segment index(int index) {
+            return new Segment(Kind.INDEX, null, index, null);
+        }
+
+        static Segment filter(Filter filter) {
+            return new Segment(Kind.FILTER, null, -1, filter);
+        }
+
+        boolean matches(String member) {
+            return kind == Kind.WILDCARD
+                    || (kind == Kind.NAME && name.equals(member));
+        }
+
+        boolean matches(int element) {
+            return kind == Kind.WILDCARD
+                    || (kind == Kind.INDEX && index == element);
+        }
+    }
+
+    private static final class Filter {
+        final List<String> field;
+        final String op;
+        final JsonNode literal;
+
+        Filter(List<String> field, String op, JsonNode literal) {
+            this.field = field;
+            this.op = op;
+            this.literal = literal;
+        }
+
+        boolean test(JsonNode node) {
+            JsonNode value = node;
+            for (String name : field) {
+                value = value.isObject() ? value.get(name) : null;
+                if (value == null)
+                    return false;
+            }
+            if (op == null)
+                return true;
+            Integer order = compare(value, literal);
+            if (op.equals("=="))
+                return order != null ? order == 0 : value.equals(literal);
+            if (op.equals("!="))
+                return order != null ? order != 0 : !value.equals(literal);
+            if (order == null)
+                return false;
+            if (op.equals("<"))
+                return order < 0;
+            if (op.equals("<="))
+                return order <= 0;
+            if (op.equals(">"))
+                return order > 0;
+            return order >= 0;
+        }
+
+        private static Integer compare(JsonNode a, JsonNode b) {
+            if (a.isNumber() && b.isNumber())
+                return new BigDecimal(a.asText()).compareTo(new BigDecimal(b
+                        .asText()));
+            if (a.isTextual() && b.isTextual())
+                return a.textValue().compareTo(b.textValue());
+            return null;
+        }
+    }
+
+    private static final class State {
+        final int path;
+        final int segment;
+        final boolean pending;
+
+        State(int path, int segment, boolean pending) {
+            this.path = path;
+            this.segment = segment;
+            this.pending = pending;
+        }
+    }
+}
@@ -1,5 +1,11 @@
 package com.sas.unravl.util;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -27,6 +33,10 @@ public class VariableResolver {
     private static final char OPENING_BRACE = '{';
     private static final char DELIMITER = '|';
     private static final char CLOSING_BRACE = '}';
+    // the longest variable name, and the longest alternate text, which
+    // expand(Reader, Writer) holds in memory while resolving a reference
+    private static final int MAX_NAME = 1024;
+    private static final int MAX_ALT_TEXT = 64 * 1024;
 
     public final static Pattern VAR_NAME_PATTERN = Pattern
             .compile("^[-\\w.\\$]+$");
@@ -56,6 +66,18 @@ public class VariableResolver {
         this.env = environment;
     }
 
+    /**
+     * Return a resolver for the bindings as they are now. Later changes to
+     * this resolver's environment do not affect it, so text which is expanded
+     * later, such as a request body as it is sent, gets the same values each
+     * time. The values themselves are not copied.
+     *
+     * @return a new resolver over a copy of the environment
+     */
+    public VariableResolver snapshot() {
+        return new VariableResolver(new HashMap<String, Object>(env));
+    }
+
     /**
      * Expand variable references <code>{varname}</code> or <code>{undefinedVarName|alt value}</code> in
      * the input string source
@@ -69,6 +91,27 @@ public class VariableResolver {
         return expand();
     }
 
+    /**
+     * Expand variable references in text from a reader, writing the result to
+     * a writer. The result is the same as that of {@link #expand(String)}, but
+     * only one variable reference at a time is held in memory, so the text may
+     * be larger than the heap. To do so, a reference is recognized only if its
+     * name is at most 1024 characters and its alternate text at most 64K
+     * characters; longer ones are copied as text, with variables in them
+     * expanded.
+     *
+     * @param in
+     *            the input text. This is read to the end but not closed.
+     * @param out
+     *            where to write the expanded text. This is flushed but not
+     *            closed.
+     * @throws IOException
+     *             if the text cannot be read or written
+     */
+    public void expand(Reader in, Writer out) throws IOException {
+        new Expansion(in, out).run();
+    }
+
     /**
      * Expand variable references in the input
      *
@@ -125,7 +168,8 @@ public class VariableResolver {
                     String candidateVarName = input.substring(varPos, index);
                     if (isValidVarName(candidateVarName)
                             && env.containsKey(candidateVarName)) {
-                        Object val = env.get(candidateVarName);
+                        Object val = DeferredValue.resolve(env,
+                                candidateVarName);
                         result.append(val == null ? "null" : val.toString());
                     } else if (isUnicodeCodePointName(candidateVarName)) {
                         result.append(unicodeCharacter(candidateVarName));
@@ -142,7 +186,8 @@ public class VariableResolver {
                     index++;
                     if (isValidVarName(candidateVarName)) {
                         if (env.containsKey(candidateVarName)) {
-                            Object val = env.get(candidateVarName);
+                            Object val = DeferredValue.resolve(env,
+                                    candidateVarName);
                             result.append(val == null ? "null" : val.toString());
                             scanToCloseBrace(false);
                         } else {
@@ -166,6 +211,99 @@ public class VariableResolver {
             result.append(OPENING_BRACE);
     }
 
+    // Expands a stream. Text outside of braces is copied as is. At a '{',
+    // only a valid name followed by '|' needs the rest of the reference
+    // (through the matching '}') before any of it can be written; any other
+    // reference is resolved as soon as its name ends.
+    private class Expansion {
+        private final Reader in;
+        private final Writer out;
+        // characters read ahead which are to be read again, from next
+        private final StringBuilder unread = new StringBuilder();
+        private int next;
+
+        Expansion(Reader in, Writer out) {
+            this.in = in instanceof BufferedReader ? in : new BufferedReader(
+                    in);
+            this.out = new BufferedWriter(out);
+        }
+
+        void run() throws IOException {
+            for (int c; (c = read()) != -1;) {
+                if (c == OPENING_BRACE)
+                    reference();
+                else
+                    out.write(c);
+            }
+            out.flush();
+        }
+
+        // The input is just after a '{'
+        private void reference() throws IOException {
+            StringBuilder name = new StringBuilder();
+            int c;
+            while ((c = read()) != -1 && isNameChar(c)
+                    && name.length() < MAX_NAME)
+                name.append((char) c);
+            String candidateVarName = name.toString();
+            if (c == CLOSING_BRACE) {
+                out.write(expand(OPENING_BRACE + candidateVarName
+                        + CLOSING_BRACE));
+            } else if (c == DELIMITER && isValidVarName(candidateVarName)) {
+                alternate(candidateVarName);
+            } else {
+                // this is not a variable reference; copy the brace and the
+                // name, and continue with the character after them
+                out.write(OPENING_BRACE);
+                out.write(candidateVarName);
+                if (c != -1)
+                    unread(String.valueOf((char) c));
+            }
+        }
+
+        // The input is just after '{varName|'
+        private void alternate(String varName) throws IOException {
+            StringBuilder ref = new StringBuilder().append(OPENING_BRACE)
+                    .append(varName).append(DELIMITER);
+            int start = ref.length();
+            int depth = 1, c;
+            while (depth > 0 && ref.length() - start < MAX_ALT_TEXT
+                    && (c = read()) != -1) {
+                ref.append((char) c);
+                if (c == OPENING_BRACE)
+                    depth++;
+                else if (c == CLOSING_BRACE)
+                    depth--;
+            }
+            if (depth > 0 && ref.length() - start >= MAX_ALT_TEXT) {
+                // too long; copy it as text
+                out.write(ref.substring(0, start));
+                unread(ref.substring(start));
+            } else {
+                // a complete reference, or the end of the input
+                out.write(expand(ref.toString()));
+            }
+        }
+
+        private int read() throws IOException {
+            if (next == unread.length())
+                return in.read();
+            return unread.charAt(next++);
+        }
+
+        private void unread(String chars) {
+            unread.delete(0, next).insert(0, chars);
+            next = 0;
+        }
+    }
+
+    // a character which may be in a variable name or a {U+hhhh} code point
+    private static boolean isNameChar(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9') || c == '_' || c == '-' || c == '.'
+                || c == '$' || c == '+';
+    }
+
     // return true if there is a matching } for the current {
     private boolean hasMatchingCloseBrace() {
         int matchDepth = 1;
@@ -251,7 +389,7 @@ public class VariableResolver {
         if ((node == null) || (node.isEmpty())) {
             return false;
         } else {
-            return node.matches(IS_VAR_VALUE_PATTERN);
+            return VAR_NAME_IN_VALUE_PATTERN.matcher(node).matches();
         }
     }
 
@@ -272,7 +410,7 @@ public class VariableResolver {
         if (matcher.find()) {
             String candidateVarName = matcher.group(1);
             if (env.containsKey(candidateVarName)) {
-                return env.get(candidateVarName);
+                return DeferredValue.resolve(env, candidateVarName);
             }
         }
         return varName;
@@ -0,0 +1,88 @@
+package com.sas.unravl.benchmark;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.http.HttpClientTransport;
+import com.sas.unravl.http.InProcessTransport;
+import com.sas.unravl.http.RestTemplateTransport;
+import com.sas.unravl.test.EchoServer;
+import com.sas.unravl.util.Json;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Compare the per-call overhead of the transports. Each transport runs the same
+ * GET and POST calls against a local {@link EchoServer}, so the difference in
+ * time per call is the cost of the transport itself (request and header
+ * conversion and response buffering), not of the network. The in-process
+ * transport calls {@link EchoServer#handler()} directly, which shows the cost
+ * of the loopback connection and HTTP parsing that it avoids.
+ * <p>
+ * This is not run as part of the unit tests. Run it with
+ * </p>
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.sas.unravl.benchmark.TransportBenchmark [-Dexec.args=calls]
+ * </pre>
+ */
+public class TransportBenchmark {
+
+    private static final String GET = "{ \"GET\" : \"{server}/items/1\" }";
+    private static final String POST = "{ \"POST\" : \"{server}/items\", "
+            + "\"headers\" : { \"Content-Type\" : \"application/json\" }, "
+            + "\"body\" : { \"json\" : { \"id\" : 1, \"name\" : \"item\" } } }";
+
+    public static void main(String[] args) throws Exception {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        Logger.getLogger("com.sas.unravl").setLevel(Level.WARN);
+        EchoServer server = new EchoServer();
+        try {
+            String transports[] = { RestTemplateTransport.NAME,
+                    HttpClientTransport.NAME, InProcessTransport.NAME };
+            // warm up the JIT and connection pools, then measure
+            for (String transport : transports)
+                run(server, transport, GET, calls / 5);
+            for (String transport : transports) {
+                report(transport, "GET", run(server, transport, GET, calls),
+                        calls);
+                report(transport, "POST", run(server, transport, POST, calls),
+                        calls);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    // Return the elapsed nanoseconds to make the calls
+    private static long run(EchoServer server, String transport,
+            String script, int calls) throws Exception {
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        try {
+            runtime.bind("server", server.url());
+            runtime.bind(UnRAVLRuntime.TRANSPORT, transport);
+            runtime.getPlugins().addInProcessHandler(server.url(),
+                    EchoServer.handler());
+            ObjectNode root = (ObjectNode) Json.parse(script);
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                ApiCall call = new ApiCall(new UnRAVL(runtime, root)).run();
+                if (call.getHttpStatus() != 200)
+                    throw new IllegalStateException("HTTP status "
+                            + call.getHttpStatus());
+            }
+            return System.nanoTime() - start;
+        } finally {
+            runtime.close();
+        }
+    }
+
+    private static void report(String transport, String method, long nanos,
+            int calls) {
+        System.out.println(String.format("%-13s %-5s %8d calls %10.1f us/call",
+                transport, method, calls, nanos / 1000.0 / calls));
+    }
+}
@@ -0,0 +1,142 @@
+package com.sas.unravl.test;
+
+import com.sas.unravl.generators.Binary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Compares the throughput of {@link Binary#copy(InputStream, OutputStream)}
+ * and {@link Binary#read(File)} with the previous copy loop (a 256 byte
+ * buffer between buffered streams), for files of several sizes. This is not a
+ * unit test; run it with
+ *
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes com.sas.unravl.test.CopyBenchmark 1 16 256 1024
+ * </pre>
+ *
+ * where the arguments are file sizes in megabytes (default 1 16 256). Reading
+ * a file into memory is only measured for files smaller than the heap.
+ */
+public class CopyBenchmark {
+
+    private static final int MB = 1024 * 1024;
+    private static final int ROUNDS = 3;
+
+    public static void main(String args[]) throws IOException {
+        String sizes[] = args.length > 0 ? args : new String[] { "1", "16",
+                "256" };
+        System.out.println(String.format("%8s  %-26s %10s", "size", "copy",
+                "MB/s"));
+        for (String size : sizes) {
+            long bytes = Long.parseLong(size) * MB;
+            File source = file(bytes);
+            File target = File.createTempFile("unravl-bench", ".out");
+            try {
+                report(bytes, "file to file, old loop", fileToFile(source,
+                        target, true));
+                report(bytes, "file to file, copy", fileToFile(source,
+                        target, false));
+                if (bytes < Runtime.getRuntime().maxMemory() / 3) {
+                    report(bytes, "file to memory, old loop", fileToMemory(
+                            source, true));
+                    report(bytes, "file to memory, read", fileToMemory(
+                            source, false));
+                }
+            } finally {
+                source.delete();
+                target.delete();
+            }
+        }
+    }
+
+    // the best time, in nanoseconds, to copy a file to another file
+    private static long fileToFile(File source, File target, boolean old)
+            throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            InputStream in = new FileInputStream(source);
+            OutputStream out = new FileOutputStream(target);
+            try {
+                if (old)
+                    oldCopy(in, out);
+                else
+                    Binary.copy(in, out);
+            } finally {
+                out.close();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    // the best time, in nanoseconds, to read a file and scan its bytes
+    private static long fileToMemory(File source, boolean old)
+            throws IOException {
+        long best = Long.MAX_VALUE;
+        long sum = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            if (old) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                oldCopy(new FileInputStream(source), bytes);
+                for (byte b : bytes.toByteArray())
+                    sum += b;
+            } else {
+                ByteBuffer buffer = Binary.read(source);
+                while (buffer.hasRemaining())
+                    sum += buffer.get();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        if (sum == 42)
+            System.out.print(""); // so the scan is not optimized away
+        return best;
+    }
+
+    // Binary.copy before it used NIO
+    private static void oldCopy(InputStream in, OutputStream out)
+            throws IOException {
+        byte buffer[] = new byte[256];
+        BufferedInputStream bis = new BufferedInputStream(in);
+        BufferedOutputStream bos = new BufferedOutputStream(out);
+        for (int n = bis.read(buffer, 0, 256); n > 0; n = bis.read(buffer, 0,
+                256))
+            bos.write(buffer, 0, n);
+        bos.flush();
+        bis.close();
+    }
+
+    private static File file(long bytes) throws IOException {
+        File file = File.createTempFile("unravl-bench", ".in");
+        file.deleteOnExit();
+        byte block[] = new byte[MB];
+        for (int i = 0; i < block.length; i++)
+            block[i] = (byte) (i * 31);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            for (long written = 0; written < bytes; written += block.length)
+                raf.write(block, 0, (int) Math.min(block.length, bytes
+                        - written));
+        } finally {
+            raf.close();
+        }
+        return file;
+    }
+
+    private static void report(long bytes, String what, long nanos) {
+        System.out.println(String.format("%6dMB  %-26s %10.1f", bytes / MB,
+                what, (bytes / (double) MB) / (nanos / 1e9)));
+    }
+}
@@ -0,0 +1,142 @@
+package com.sas.unravl.test;
+
+import com.sas.unravl.http.InProcessHandler;
+import com.sas.unravl.http.TransportRequest;
+import com.sas.unravl.http.TransportResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * A local HTTP server for tests and benchmarks. It responds with a JSON object
+ * which echoes the request path, method, body length, and the value of the
+ * <code>X-Echo</code> request header. Paths starting with
+ * <code>/missing</code> return 404; <code>/slow/<em>n</em></code> waits
+ * <em>n</em> milliseconds before responding. A gzip request body is decoded
+ * before its length is counted, and paths starting with <code>/gzip</code>
+ * return a gzip-compressed response. {@link #handler()} returns an
+ * {@link InProcessHandler} which gives the same responses without a server.
+ */
+public class EchoServer {
+
+    private final HttpServer server;
+
+    public EchoServer() throws IOException {
+        // Without TCP_NODELAY, the server writes the response headers and body
+        // in separate packets and each call waits ~40ms for a delayed ACK.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream in = new ByteArrayOutputStream();
+                byte buf[] = new byte[1024];
+                InputStream req = exchange.getRequestBody();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst(
+                        "Content-Encoding")))
+                    req = new GZIPInputStream(req);
+                for (int n; (n = req.read(buf)) > 0;)
+                    in.write(buf, 0, n);
+                String path = exchange.getRequestURI().getPath();
+                if (path.startsWith("/slow/")) {
+                    try {
+                        Thread.sleep(Long.parseLong(path.substring(6)));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                byte body[] = body(path, exchange.getRequestMethod(),
+                        in.size(),
+                        exchange.getRequestHeaders().getFirst("X-Echo"));
+                exchange.getResponseHeaders().add("Content-Type",
+                        "application/json");
+                if (path.startsWith("/gzip")) {
+                    ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+                    GZIPOutputStream zip = new GZIPOutputStream(gzip);
+                    zip.write(body);
+                    zip.close();
+                    body = gzip.toByteArray();
+                    exchange.getResponseHeaders().add("Content-Encoding",
+                            "gzip");
+                }
+                exchange.sendResponseHeaders(status(path), body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        // so slow responses do not hold up other requests
+        server.setExecutor(Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "echo-server");
+                t.setDaemon(true);
+                return t;
+            }
+        }));
+        server.start();
+    }
+
+    private static int status(String path) {
+        return path.startsWith("/missing") ? 404 : 200;
+    }
+
+    private static byte[] body(String path, String method, int length,
+            String echo) throws IOException {
+        return String.format(
+                "{\"path\":\"%s\",\"method\":\"%s\",\"length\":%d,\"echo\":%s}",
+                path, method, length,
+                echo == null ? "null" : "\"" + echo + "\"").getBytes("UTF-8");
+    }
+
+    /**
+     * @return a handler for the in-process transport which responds as this
+     *         server does
+     */
+    public static InProcessHandler handler() {
+        return new InProcessHandler() {
+            @Override
+            public TransportResponse handle(TransportRequest request,
+                    ByteBuffer requestBody, OutputStream responseBody)
+                    throws IOException {
+                String path = URI.create(request.getURI()).getPath();
+                String echo = null;
+                for (Header h : request.getHeaders()) {
+                    if (h.getName().equalsIgnoreCase("X-Echo"))
+                        echo = h.getValue();
+                }
+                responseBody.write(body(path, request.getMethod().name(),
+                        requestBody == null ? 0 : requestBody.remaining(), echo));
+                return new TransportResponse(status(path),
+                        new Header[] { new BasicHeader("Content-Type",
+                                "application/json") });
+            }
+        };
+    }
+
+    /**
+     * @return the base URL of this server, such as http://localhost:12345
+     */
+    public String url() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+}
@@ -1,6 +1,9 @@
 package com.sas.unravl.test;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.sas.unravl.UnRAVL;
@@ -9,7 +12,15 @@ import com.sas.unravl.UnRAVLRuntime;
 import com.sas.unravl.generators.Binary;
 import com.sas.unravl.util.Json;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
 
 import org.junit.Test;
 
@@ -49,4 +60,64 @@ public class TestBinary extends TestBase {
         new Binary(script, node, "binary");
     }
 
+    @Test
+    public void copyAndRead() throws IOException {
+        byte bytes[] = new byte[3 * 1024 * 1024 + 17];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) (i % 251);
+        File source = File.createTempFile("unravl-binary", ".in");
+        File target = File.createTempFile("unravl-binary", ".out");
+        try {
+            FileOutputStream out = new FileOutputStream(source);
+            Binary.copy(new ByteArrayInputStream(bytes), out);
+            out.close();
+            assertArrayEquals(bytes, Files.readAllBytes(source.toPath()));
+
+            // file to file, with the source partly read
+            FileInputStream in = new FileInputStream(source);
+            assertEquals(bytes[0], (byte) in.read());
+            out = new FileOutputStream(target);
+            Binary.copy(in, out);
+            out.close();
+            assertEquals(bytes.length - 1, target.length());
+
+            ByteArrayOutputStream memory = new ByteArrayOutputStream();
+            Binary.copy(new FileInputStream(source), memory);
+            assertArrayEquals(bytes, memory.toByteArray());
+
+            ByteBuffer mapped = Binary.read(source);
+            assertTrue(mapped instanceof MappedByteBuffer);
+            assertEquals(bytes.length, mapped.remaining());
+            assertEquals(ByteBuffer.wrap(bytes), mapped);
+            ByteBuffer small = Binary.read(new File("src/test/java/B.txt"));
+            assertTrue(!(small instanceof MappedByteBuffer));
+            assertEquals('B', small.get(0));
+        } finally {
+            source.delete();
+            target.delete();
+        }
+    }
+
+    @Test
+    public void equalsComparesFiles() throws IOException, UnRAVLException {
+        File other = File.createTempFile("unravl-binary", ".txt");
+        try {
+            Files.write(other.toPath(), new byte[] { 'C', '\n' });
+            UnRAVL script = new UnRAVL(new UnRAVLRuntime());
+            Binary b = new Binary(script,
+                    mockJson("[ 0, '@src/test/java/B.txt' ]"));
+            Binary same = new Binary(script,
+                    mockJson("[ 0, '@src/test/java/B.txt' ]"));
+            Binary c = new Binary(script, mockJson("[ 0, '@"
+                    + other.getPath().replace('\\', '/') + "' ]"));
+            assertEquals(b, same);
+            assertEquals(b.hashCode(), same.hashCode());
+            assertFalse(b.equals(c));
+            assertFalse(b.equals(new Binary(script, mockJson("[ 0 ]"))));
+            assertFalse(b.equals(new Binary(script,
+                    mockJson("[ 1, '@src/test/java/B.txt' ]"))));
+        } finally {
+            other.delete();
+        }
+    }
 }
@@ -0,0 +1,168 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.util.JsonFormat;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify that CBOR, Smile and MessagePack request bodies are encoded, and that responses
+ * in those formats are decoded for the JSON extractors and assertions.
+ */
+public class TestBinaryJson extends TestBase {
+
+    private HttpServer server;
+    private UnRAVLRuntime runtime;
+
+    @Before
+    public void setUp() throws IOException {
+        // echo the request body with its Content-Type
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte buf[] = new byte[1024];
+                InputStream in = exchange.getRequestBody();
+                for (int n; (n = in.read(buf)) > 0;)
+                    body.write(buf, 0, n);
+                String type = exchange.getRequestHeaders().getFirst(
+                        "Content-Type");
+                if (type != null)
+                    exchange.getResponseHeaders().add("Content-Type", type);
+                exchange.sendResponseHeaders(200, body.size());
+                OutputStream out = exchange.getResponseBody();
+                body.writeTo(out);
+                out.close();
+            }
+        });
+        server.start();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", "http://localhost:"
+                + server.getAddress().getPort());
+    }
+
+    @After
+    public void tearDown() {
+        runtime.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        JsonNode value = mockJson("{ 'a' : [ 1, 2.5, 'three', true, null ],"
+                + " 'b' : { 'c' : 'd' } }");
+        for (JsonFormat format : new JsonFormat[] { JsonFormat.CBOR,
+                JsonFormat.SMILE, JsonFormat.JSON }) {
+            byte bytes[] = format.write(value);
+            assertEquals(value, format.read(new ByteArrayInputStream(bytes)));
+        }
+        byte cbor[] = JsonFormat.CBOR.write(value);
+        try {
+            // truncated
+            JsonFormat.CBOR.read(new ByteArrayInputStream(cbor, 0,
+                    cbor.length - 3));
+            fail("Expected invalid CBOR");
+        } catch (UnRAVLException e) {
+            assertTrue(e.getMessage().contains("cbor"));
+        }
+    }
+
+    @Test
+    public void contentType() {
+        assertEquals(JsonFormat.CBOR,
+                JsonFormat.forContentType("application/cbor"));
+        assertEquals(JsonFormat.SMILE,
+                JsonFormat.forContentType("Application/Smile; charset=x"));
+        assertEquals(JsonFormat.MSGPACK,
+                JsonFormat.forContentType("application/vnd.msgpack"));
+        assertEquals(JsonFormat.JSON,
+                JsonFormat.forContentType("application/json"));
+        assertEquals(JsonFormat.JSON, JsonFormat.forContentType("text/plain"));
+        assertEquals(JsonFormat.JSON, JsonFormat.forContentType(null));
+        assertEquals(JsonFormat.SMILE, JsonFormat.named("smile"));
+        assertNull(JsonFormat.named("xml"));
+    }
+
+    @Test
+    public void msgpack() throws Exception {
+        JsonNode value = mockJson("{ 'a' : [ 1, 2.5, 'three', true, null ],"
+                + " 'b' : { 'c' : 'd' } }");
+        byte bytes[] = JsonFormat.MSGPACK.write(value);
+        assertEquals(value,
+                JsonFormat.MSGPACK.read(new ByteArrayInputStream(bytes)));
+
+        ApiCall call = call("{ 'POST' : '{server}/items',"
+                + " 'body' : { 'msgpack' : { 'name' : 'item' } },"
+                + " 'bind' : { 'jsonPath' : { 'name' : '$.name' } },"
+                + " 'assert' : { 'json' : { 'name' : 'item' } } }");
+        assertEquals("application/x-msgpack", call.getResponse().getFormat()
+                .getMediaType());
+        assertEquals("item", runtime.binding("name"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void cbor() throws Exception {
+        runtime.bind("n", 3);
+        ApiCall call = call("{ 'POST' : '{server}/items',"
+                + " 'body' : { 'cbor' : { 'name' : 'item', 'count' : '{n}' } },"
+                + " 'bind' : [ { 'json' : 'asJson' },"
+                + "            { 'cbor' : 'asCbor', 'unwrap' : true },"
+                + "            { 'jsonPath' : { 'name' : '$.name' } } ],"
+                + " 'assert' : [ { 'json' : { 'name' : 'item', 'count' : '3' } } ] }");
+        assertEquals("application/cbor", call.getResponse().getFormat()
+                .getMediaType());
+        byte expected[] = JsonFormat.CBOR.write(mockJson("{ 'name' : 'item',"
+                + " 'count' : '3' }"));
+        assertEquals(expected.length, call.getResponseBody().length());
+
+        ObjectNode json = (ObjectNode) runtime.binding("asJson");
+        assertEquals("item", json.get("name").textValue());
+        Map<String, Object> map = (Map<String, Object>) runtime
+                .binding("asCbor");
+        assertEquals("3", map.get("count"));
+        assertEquals("item", runtime.binding("name"));
+    }
+
+    @Test
+    public void explicitFormat() throws Exception {
+        // the Content-Type set by the script is kept
+        call("{ 'POST' : '{server}/items',"
+                + " 'headers' : { 'Content-Type' : 'application/octet-stream' },"
+                + " 'body' : { 'smile' : [ 1, 2, 3 ] },"
+                + " 'bind' : { 'smile' : 'list', 'unwrap' : true } }");
+        assertEquals(3, ((List<?>) runtime.binding("list")).size());
+        assertFalse(runtime.binding("list") instanceof JsonNode);
+    }
+
+    private ApiCall call(String script) throws Exception {
+        ObjectNode root = (ObjectNode) mockJson(script);
+        return new ApiCall(new UnRAVL(runtime, root)).run();
+    }
+}
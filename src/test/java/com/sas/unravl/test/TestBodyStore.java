@@ -0,0 +1,136 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.http.BodyStore;
+import com.sas.unravl.http.ResponseBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify that the bodies in the call history are stored once per distinct
+ * content, optionally compressed, and read back unchanged.
+ */
+public class TestBodyStore extends TestBase {
+
+    private EchoServer server;
+    private UnRAVLRuntime runtime;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new EchoServer();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", server.url());
+    }
+
+    @After
+    public void tearDown() {
+        runtime.close();
+        server.stop();
+    }
+
+    @Test
+    public void dedupe() throws IOException {
+        BodyStore store = new BodyStore();
+        byte body[] = "{\"status\":\"up\"}".getBytes("UTF-8");
+        BodyStore.Key a = store.put(ByteBuffer.wrap(body), false);
+        BodyStore.Key b = store.put(ByteBuffer.wrap(body.clone()), false);
+        BodyStore.Key c = store.put(ByteBuffer.wrap("other".getBytes("UTF-8")),
+                false);
+        assertEquals(a, b);
+        assertFalse(a.equals(c));
+        assertEquals(2, store.count());
+        assertEquals(body.length + 5, store.size());
+        assertEquals(2 * body.length + 5, store.length());
+        assertArrayEquals(body, store.get(b));
+
+        store.release(a);
+        assertArrayEquals(body, store.get(b));
+        store.release(b);
+        store.release(c);
+        assertEquals(0, store.count());
+        assertEquals(0, store.size());
+        assertEquals(0, store.length());
+        try {
+            store.get(a);
+            fail("Expected a released body to be gone");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains(a.toString()));
+        }
+    }
+
+    @Test
+    public void compress() throws IOException {
+        BodyStore store = new BodyStore();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            text.append("{\"id\":").append(i).append(",\"name\":\"item\"},");
+        byte body[] = text.toString().getBytes("UTF-8");
+        BodyStore.Key key = store.put(ByteBuffer.wrap(body), true);
+        assertTrue(store.size() < body.length / 4);
+        assertEquals(body.length, store.length());
+        assertArrayEquals(body, store.get(key));
+
+        // incompressible bodies are stored as they are
+        byte tiny[] = { 1, 2, 3 };
+        store.put(ByteBuffer.wrap(tiny), true);
+        assertArrayEquals(tiny, store.get(store.put(ByteBuffer.wrap(tiny),
+                true)));
+    }
+
+    @Test
+    public void history() throws Exception {
+        runtime.bind(BodyStore.COMPRESS, Boolean.TRUE);
+        ObjectNode root = (ObjectNode) mockJson("{ 'POST' : '{server}/health',"
+                + " 'body' : { 'json' : { 'check' : 'all' } } }");
+        ApiCall calls[] = new ApiCall[3];
+        for (int i = 0; i < calls.length; i++)
+            calls[i] = new ApiCall(new UnRAVL(runtime, root)).run();
+
+        // one request body and one response body
+        BodyStore store = runtime.getBodyStore();
+        assertEquals(2, store.count());
+        for (ApiCall call : calls) {
+            ResponseBuffer response = call.getResponseBody();
+            assertTrue(response.isStored());
+            assertEquals(response.toString(), response.toString("UTF-8"));
+            assertEquals(response.length(), response.toByteArray().length);
+            assertEquals("/health", call.getResponse().getJson().get("path")
+                    .textValue());
+            assertEquals("{\"check\":\"all\"}", call.getRequestBody()
+                    .toString("UTF-8"));
+        }
+
+        runtime.reset();
+        assertEquals(0, store.count());
+    }
+
+    @Test
+    public void failedAssertion() throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'GET' : '{server}/missing',"
+                + " 'assert' : [ { 'status' : 200 } ] }");
+        ApiCall call = new ApiCall(new UnRAVL(runtime, root));
+        try {
+            call.run();
+            fail("Expected the status assertion to fail");
+        } catch (UnRAVLException e) {
+            // the body is stored even though the call failed
+            assertTrue(call.getResponseBody().isStored());
+            assertTrue(call.getResponseBody().toString().contains("/missing"));
+        }
+    }
+}
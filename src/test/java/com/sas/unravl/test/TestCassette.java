@@ -0,0 +1,115 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.http.Cassette;
+import com.sas.unravl.http.CassetteTransport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Record API calls to an {@link EchoServer} in a {@link Cassette}, then
+ * replay them after the server has stopped.
+ */
+public class TestCassette extends TestBase {
+
+    private static final String SCRIPTS = "[ { 'GET' : '{server}/items/1',"
+            + "    'bind' : { 'json' : 'item' },"
+            + "    'assert' : [ 'item.length.intValue() == 0' ] },"
+            + "  { 'POST' : '{server}/items',"
+            + "    'body' : { 'json' : { 'id' : 2 } },"
+            + "    'bind' : { 'jsonPath' : { 'length' : '$.length' } },"
+            + "    'assert' : [ 'length == 8' ] },"
+            + "  { 'GET' : '{server}/missing', 'assert' : { 'status' : 404 } } ]";
+
+    private EchoServer server;
+    private File file;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new EchoServer();
+        file = File.createTempFile("unravl-cassette", ".ndjson");
+        file.deleteOnExit();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+        file.delete();
+    }
+
+    private UnRAVLRuntime runtime(String mode) {
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        runtime.bind("server", server.url());
+        runtime.bind(Cassette.FILE, file.getPath());
+        runtime.bind(Cassette.MODE, mode);
+        return runtime;
+    }
+
+    private void record() throws Exception {
+        UnRAVLRuntime runtime = runtime("record");
+        runtime.execute(mockJson(SCRIPTS));
+        assertEquals(0, runtime.getFailedAssertionCount());
+        assertEquals(3, runtime.getCassette().size());
+        assertTrue(runtime.getTransport() instanceof CassetteTransport);
+        runtime.close();
+    }
+
+    @Test
+    public void replayWithoutServer() throws Exception {
+        record();
+        server.stop();
+        UnRAVLRuntime runtime = runtime("replay");
+        assertEquals(3, runtime.getCassette().size());
+        runtime.execute(mockJson(SCRIPTS));
+        assertEquals(0, runtime.getFailedAssertionCount());
+        assertEquals(3, runtime.getApiCalls().size());
+        assertEquals(404, runtime.getApiCalls().get(2).getHttpStatus());
+        ObjectNode item = (ObjectNode) runtime.binding("item");
+        assertEquals("GET", item.get("method").textValue());
+        assertEquals(8, ((Number) runtime.binding("length")).intValue());
+        runtime.close();
+    }
+
+    @Test
+    public void replayMatchesBody() throws Exception {
+        record();
+        UnRAVLRuntime runtime = runtime("replay");
+        runtime.execute(mockJson("{ 'POST' : '{server}/items',"
+                + " 'body' : { 'json' : { 'id' : 3 } } }"));
+        ApiCall call = runtime.getApiCalls().get(0);
+        assertEquals(501, call.getHttpStatus());
+        assertEquals(1, runtime.getFailedAssertionCount());
+        runtime.close();
+    }
+
+    @Test
+    public void recordAsync() throws Exception {
+        UnRAVLRuntime runtime = runtime("record");
+        ObjectNode root = (ObjectNode) mockJson("{ 'GET' : '{server}/items/9' }");
+        ApiCall recorded = new UnRAVL(runtime, root).runAsync().get(30,
+                TimeUnit.SECONDS);
+        runtime.close();
+
+        runtime = runtime("replay");
+        ApiCall replayed = new UnRAVL(runtime, root).runAsync().get(30,
+                TimeUnit.SECONDS);
+        assertEquals(200, replayed.getHttpStatus());
+        assertEquals(recorded.getProtocolVersion(),
+                replayed.getProtocolVersion());
+        assertEquals(recorded.getResponseBody().toString("UTF-8"), replayed
+                .getResponseBody().toString("UTF-8"));
+        runtime.close();
+    }
+}
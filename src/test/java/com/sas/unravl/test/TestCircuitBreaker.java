@@ -0,0 +1,201 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.annotations.UnRAVLTransportPlugin;
+import com.sas.unravl.assertions.UnRAVLAssertionException;
+import com.sas.unravl.http.BaseUnRAVLTransport;
+import com.sas.unravl.http.CircuitBreaker;
+import com.sas.unravl.http.TransportRequest;
+import com.sas.unravl.http.TransportResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify that the runtime's {@link CircuitBreaker} short-circuits calls to a
+ * host which refuses connections.
+ */
+public class TestCircuitBreaker extends TestBase {
+
+    private UnRAVLRuntime runtime;
+
+    @Before
+    public void closedPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", "http://localhost:" + port);
+        runtime.bind(CircuitBreaker.THRESHOLD, "2");
+    }
+
+    @After
+    public void close() {
+        runtime.close();
+    }
+
+    private ApiCall call() throws UnRAVLException, IOException {
+        ObjectNode root = (ObjectNode) mockJson("{ 'if' : true, 'GET' : '{server}/items' }");
+        ApiCall call = new ApiCall(new UnRAVL(runtime, root));
+        try {
+            call.run();
+            if (!call.wasSkipped())
+                fail("expected the call to fail");
+        } catch (UnRAVLAssertionException e) {
+            // expected: status 501 is not a 2xx status
+        }
+        return call;
+    }
+
+    @Test
+    public void opensAfterThreshold() throws Exception {
+        ApiCall first = call();
+        ApiCall second = call();
+        assertFalse(first.wasSkipped());
+        assertFalse(second.wasSkipped());
+        String uri = second.getURI();
+        assertEquals(CircuitBreaker.State.OPEN, runtime.getCircuitBreaker()
+                .getState(uri));
+
+        ApiCall third = call();
+        assertTrue(third.wasSkipped());
+        assertTrue(third.getSkipReason().contains(CircuitBreaker.host(uri)));
+        assertEquals(501, third.getHttpStatus());
+        // a skipped call is not a failed status assertion
+        assertEquals(0, third.getFailedAssertions().size());
+        assertNull(third.getException());
+        assertEquals(1, runtime.getShortCircuitedCount());
+        assertEquals(2, runtime.report());
+    }
+
+    @Test
+    public void skippedScriptIsNotAFailure() throws Exception {
+        call();
+        call();
+        runtime.execute(mockJson("{ 'GET' : '{server}/items', 'assert' : 'false' }"));
+        assertEquals(0, runtime.getFailedAssertionCount());
+        ApiCall skipped = runtime.getApiCalls().get(2);
+        assertTrue(skipped.wasSkipped());
+        assertTrue(skipped.getPassedAssertions().isEmpty());
+        assertTrue(skipped.getFailedAssertions().isEmpty());
+        assertEquals(1, runtime.getShortCircuitedCount());
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        runtime.bind(CircuitBreaker.THRESHOLD, "0");
+        for (int i = 0; i < 3; i++)
+            assertFalse(call().wasSkipped());
+    }
+
+    @Test
+    public void halfOpenProbe() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(2, 100);
+        String uri = "http://example.com:8080/items";
+        IOException refused = new IOException(new ConnectException(
+                "Connection refused"));
+        breaker.failed(uri, refused);
+        assertNull(breaker.check(uri));
+        breaker.failed(uri, refused);
+        assertNotNull(breaker.check(uri + "/1"));
+
+        Thread.sleep(150);
+        assertNull(breaker.check(uri)); // the probe
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(uri));
+        assertNotNull(breaker.check(uri)); // while the probe is in flight
+        breaker.failed(uri, refused);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(uri));
+
+        Thread.sleep(150);
+        assertNull(breaker.check(uri));
+        breaker.succeeded(uri);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(uri));
+        assertNull(breaker.check(uri));
+    }
+
+    @Test
+    public void abandonedProbe() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 100);
+        String uri = "http://example.com:8080/items";
+        breaker.failed(uri, new ConnectException("Connection refused"));
+        Thread.sleep(150);
+        assertNull(breaker.check(uri)); // the probe
+        breaker.abandoned(uri);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(uri));
+        assertNotNull(breaker.check(uri)); // the retry time starts over
+        Thread.sleep(150);
+        assertNull(breaker.check(uri));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(uri));
+
+        // a call abandoned while the circuit is closed changes nothing
+        breaker.abandoned("http://example.com/other");
+        assertEquals(CircuitBreaker.State.CLOSED,
+                breaker.getState("http://example.com/other"));
+    }
+
+    @Test
+    public void probeThrows() throws Exception {
+        runtime.bind(CircuitBreaker.RETRY_AFTER, "100");
+        runtime.getPlugins().addTransport(ThrowingTransport.class);
+        ApiCall opened = call();
+        call();
+        String uri = opened.getURI();
+        assertEquals(CircuitBreaker.State.OPEN, runtime.getCircuitBreaker()
+                .getState(uri));
+        Thread.sleep(150);
+        ObjectNode root = (ObjectNode) mockJson("{ 'transport' : 'throwing', 'GET' : '{server}/items' }");
+        ApiCall probe = new ApiCall(new UnRAVL(runtime, root));
+        try {
+            probe.run();
+            fail("expected the transport to throw");
+        } catch (UnRAVLException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        // the circuit is open again, rather than half open forever
+        assertEquals(CircuitBreaker.State.OPEN, runtime.getCircuitBreaker()
+                .getState(uri));
+        assertTrue(call().wasSkipped());
+        Thread.sleep(150);
+        assertFalse(call().wasSkipped()); // the next probe
+    }
+
+    @UnRAVLTransportPlugin("throwing")
+    public static class ThrowingTransport extends BaseUnRAVLTransport {
+        @Override
+        public TransportResponse execute(TransportRequest request,
+                OutputStream responseBody) throws IOException {
+            throw new IllegalStateException("transport bug");
+        }
+    }
+
+    @Test
+    public void readFailuresDoNotCount() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 60000);
+        String uri = "https://example.com/items";
+        breaker.failed(uri, new SocketTimeoutException("Read timed out"));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(uri));
+        breaker.failed(uri, new IOException("Connection reset"));
+        assertNull(breaker.check(uri));
+        breaker.failed(uri, new ConnectException("Connection refused"));
+        assertNotNull(breaker.check("https://example.com/other"));
+        assertNull(breaker.check("https://example.com:8443/items"));
+    }
+}
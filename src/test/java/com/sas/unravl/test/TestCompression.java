@@ -0,0 +1,189 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.http.ContentCoding;
+import com.sas.unravl.http.HttpClientTransport;
+import com.sas.unravl.http.RestTemplateTransport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify gzip compression of request bodies and decoding of compressed
+ * responses, against an {@link EchoServer}, and the decoding of a response
+ * body which arrives in chunks.
+ */
+public class TestCompression extends TestBase {
+
+    private EchoServer server;
+    private UnRAVLRuntime runtime;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new EchoServer();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", server.url());
+    }
+
+    @After
+    public void stopServer() {
+        runtime.close();
+        server.stop();
+    }
+
+    @Test
+    public void httpclientResponse() throws Exception {
+        gzipResponse(new ApiCall(new UnRAVL(runtime, gzipScript())).run());
+    }
+
+    @Test
+    public void resttemplateResponse() throws Exception {
+        runtime.bind(UnRAVLRuntime.TRANSPORT, RestTemplateTransport.NAME);
+        gzipResponse(new ApiCall(new UnRAVL(runtime, gzipScript())).run());
+    }
+
+    @Test
+    public void asyncResponse() throws Exception {
+        runtime.bind(UnRAVLRuntime.TRANSPORT, HttpClientTransport.NAME);
+        gzipResponse(new UnRAVL(runtime, gzipScript()).runAsync().get(30,
+                TimeUnit.SECONDS));
+    }
+
+    private ObjectNode gzipScript() throws Exception {
+        return (ObjectNode) mockJson("{ 'GET' : '{server}/gzip/items',"
+                + " 'bind' : { 'json' : 'result' } }");
+    }
+
+    private void gzipResponse(ApiCall call) {
+        assertEquals(200, call.getHttpStatus());
+        assertEquals("gzip", call.getResponseEncoding());
+        assertNull(call.getResponseHeader("Content-Encoding"));
+        assertEquals(call.getResponseBody().size(), call.getResponseLength());
+        assertTrue(call.getResponseWireLength() > 0);
+        assertTrue(call.getResponseWireLength() != call.getResponseLength());
+        ObjectNode result = (ObjectNode) runtime.binding("result");
+        assertEquals("/gzip/items", result.get("path").textValue());
+    }
+
+    @Test
+    public void decoder() throws Exception {
+        byte text[] = "{\"items\":[1,2,3,4,5,6,7,8,9,10]}".getBytes("UTF-8");
+        byte raw[] = deflate(text, true);
+        CRC32 crc = new CRC32();
+        crc.update(text);
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        // a header with FEXTRA and FNAME fields, then the trailer
+        gzip.write(new byte[] { 0x1f, (byte) 0x8b, 8, 12, 0, 0, 0, 0, 0, -1,
+                3, 0, 'a', 'b', 'c', 'n', 'a', 'm', 'e', 0 });
+        gzip.write(raw);
+        for (long v : new long[] { crc.getValue(), text.length })
+            for (int i = 0; i < 4; i++)
+                gzip.write((int) (v >> (8 * i)));
+        assertArrayEquals(text, decode("gzip", gzip.toByteArray(), 1));
+        assertArrayEquals(text, decode("deflate", deflate(text, false), 5));
+        assertArrayEquals(new byte[0], decode("gzip", new byte[0], 1));
+        assertArrayEquals(text, decode(null, text, 3));
+        try {
+            byte truncated[] = gzip.toByteArray();
+            decode("gzip", Arrays.copyOf(truncated, truncated.length - 20), 7);
+            fail("Expected a truncated body to fail");
+        } catch (EOFException e) {
+            // expected
+        }
+        byte body[] = gzip.toByteArray();
+        assertArrayEquals(text, decode("gzip", body, body.length));
+        try {
+            decode("gzip", Arrays.copyOf(body, body.length - 3), 1);
+            fail("Expected a truncated trailer to fail");
+        } catch (EOFException e) {
+            // expected
+        }
+        for (int i : new int[] { body.length - 8, body.length - 1 }) {
+            byte corrupt[] = body.clone();
+            corrupt[i] ^= 1; // the CRC-32, then the length
+            try {
+                decode("gzip", corrupt, 4);
+                fail("Expected a corrupt trailer to fail");
+            } catch (ZipException e) {
+                // expected
+            }
+        }
+    }
+
+    // Write a body to a decoder a few bytes at a time
+    private static byte[] decode(String coding, byte body[], int chunk)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream decoder = ContentCoding.decoder(coding, out);
+        for (int i = 0; i < body.length; i += chunk)
+            decoder.write(body, i, Math.min(chunk, body.length - i));
+        decoder.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte text[], boolean nowrap) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+        deflater.setInput(text);
+        deflater.finish();
+        byte out[] = new byte[text.length + 64];
+        int n = deflater.deflate(out);
+        deflater.end();
+        return Arrays.copyOf(out, n);
+    }
+
+    @Test
+    public void compressRequest() throws Exception {
+        String items = "[1,2,3,4,5,6,7,8,9,10,1,2,3,4,5,6,7,8,9,10,1,2,3,4,5,6,7,8,9,10]";
+        ObjectNode root = (ObjectNode) mockJson("{ 'POST' : '{server}/items',"
+                + " 'body' : { 'json' : { 'items' : " + items + " },"
+                + "            'compress' : 'gzip' },"
+                + " 'bind' : { 'json' : 'result' } }");
+        ApiCall call = new ApiCall(new UnRAVL(runtime, root)).run();
+        assertEquals("gzip", call.getRequestEncoding());
+        long length = ("{\"items\":" + items + "}").length();
+        assertEquals(length, call.getRequestLength());
+        assertTrue(call.getRequestWireLength() < length);
+        ObjectNode result = (ObjectNode) runtime.binding("result");
+        assertEquals(length, result.get("length").longValue());
+    }
+
+    @Test
+    public void compressIsJsonField() throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'POST' : '{server}/items',"
+                + " 'body' : { 'compress' : 'gzip', 'id' : 1 },"
+                + " 'bind' : { 'json' : 'result' } }");
+        ApiCall call = new ApiCall(new UnRAVL(runtime, root)).run();
+        assertNull(call.getRequestEncoding());
+        ObjectNode result = (ObjectNode) runtime.binding("result");
+        assertEquals("{\"compress\":\"gzip\",\"id\":1}".length(),
+                result.get("length").intValue());
+    }
+
+    @Test(expected = UnRAVLException.class)
+    public void unsupportedCompression() throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'POST' : '{server}/items',"
+                + " 'body' : { 'json' : { 'id' : 1 }, 'compress' : 'br' } }");
+        new ApiCall(new UnRAVL(runtime, root)).run();
+    }
+}
@@ -0,0 +1,128 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.http.ConnectionPool;
+
+import java.io.IOException;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Verify that a runtime's API calls share one {@link ConnectionPool}, which is
+ * configured from the runtime's variables and released by
+ * {@link UnRAVLRuntime#close()}.
+ */
+public class TestConnectionPool extends TestBase {
+
+    private EchoServer server;
+    private UnRAVLRuntime runtime;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new EchoServer();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", server.url());
+    }
+
+    @After
+    public void stopServer() {
+        runtime.close();
+        server.stop();
+    }
+
+    @Test
+    public void reusesConnection() throws Exception {
+        runtime.execute(
+                mockJson("{ 'name' : 'items.template', 'GET' : '{server}/items' }"),
+                mockJson("{ 'template' : 'items' }"),
+                mockJson("{ 'template' : 'items', 'GET' : '{server}/items/2' }"),
+                mockJson("{ 'POST' : '{server}/items', 'body' : { 'id' : 3 } }"));
+        assertEquals(0, runtime.getFailedAssertionCount());
+        PoolStats stats = stats();
+        // sequential calls to one host lease the same connection
+        assertEquals(0, stats.getLeased());
+        assertEquals(1, stats.getAvailable());
+    }
+
+    @Test
+    public void options() throws Exception {
+        runtime.bind(ConnectionPool.MAX_TOTAL, "7");
+        runtime.bind(ConnectionPool.MAX_PER_ROUTE, 3);
+        PoolingHttpClientConnectionManager manager = runtime
+                .getConnectionPool().getConnectionManager();
+        assertEquals(7, manager.getMaxTotal());
+        assertEquals(3, manager.getDefaultMaxPerRoute());
+    }
+
+    @Test
+    public void defaults() throws Exception {
+        PoolingHttpClientConnectionManager manager = runtime
+                .getConnectionPool().getConnectionManager();
+        assertEquals(50, manager.getMaxTotal());
+        assertEquals(20, manager.getDefaultMaxPerRoute());
+    }
+
+    @Test
+    public void restTemplateUsesPool() throws Exception {
+        RestTemplate template = runtime.getRestTemplate();
+        assertSame(template, runtime.getRestTemplate());
+        template.getForObject(server.url() + "/items", String.class);
+        assertEquals(1, stats().getAvailable());
+    }
+
+    @Test
+    public void closeReleasesPool() throws Exception {
+        runtime.execute(mockJson("{ 'GET' : '{server}/items' }"));
+        ConnectionPool pool = runtime.getConnectionPool();
+        RestTemplate template = runtime.getRestTemplate();
+        HttpClientConnectionManager manager = pool.getConnectionManager();
+        assertEquals(1, stats().getAvailable());
+
+        runtime.close();
+        assertEquals(0, pool.getConnectionManager().getTotalStats()
+                .getAvailable());
+        try {
+            pool.getHttpClient().execute(new HttpGet(server.url() + "/items"));
+            fail("expected the closed pool to reject a request");
+        } catch (IllegalStateException e) {
+            // the connection pool is shut down
+        }
+
+        // the runtime creates a new pool on demand
+        assertNotSame(pool, runtime.getConnectionPool());
+        assertNotSame(manager, runtime.getConnectionPool()
+                .getConnectionManager());
+        assertNotSame(template, runtime.getRestTemplate());
+        runtime.execute(mockJson("{ 'GET' : '{server}/items' }"));
+        assertEquals(0, runtime.getFailedAssertionCount());
+    }
+
+    @Test
+    public void closesIdleConnections() throws Exception {
+        runtime.bind(ConnectionPool.IDLE_TIMEOUT, 200);
+        // the RestTemplate keeps its client, so only the timer evicts
+        RestTemplate template = runtime.getRestTemplate();
+        template.getForObject(server.url() + "/items", String.class);
+        assertEquals(1, stats().getAvailable());
+        for (int i = 0; i < 50 && stats().getAvailable() > 0; i++)
+            Thread.sleep(50);
+        assertEquals(0, stats().getAvailable());
+    }
+
+    private PoolStats stats() {
+        return runtime.getConnectionPool().getConnectionManager()
+                .getTotalStats();
+    }
+}
@@ -0,0 +1,162 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.assertions.DigestAssertion;
+import com.sas.unravl.generators.Binary;
+import com.sas.unravl.http.ResponseBuffer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify that digest assertions compare the digest of the response body,
+ * computed as it is received, with a digest, a checksum file or the digest of
+ * a file.
+ */
+public class TestDigest extends TestBase {
+
+    private static final String BODY = "{\"path\":\"/file\",\"method\":\"GET\",\"length\":0,\"echo\":null}";
+
+    private EchoServer server;
+    private UnRAVLRuntime runtime;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new EchoServer();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", server.url());
+        // keep the response in a temporary file
+        runtime.bind(ResponseBuffer.THRESHOLD, 16);
+    }
+
+    @After
+    public void tearDown() {
+        runtime.close();
+        server.stop();
+    }
+
+    @Test
+    public void buffer() throws Exception {
+        byte data[] = new byte[1000];
+        new Random(1).nextBytes(data);
+        ResponseBuffer buffer = new ResponseBuffer(100);
+        buffer.computeDigests(Arrays.asList("SHA-256", "MD5"));
+        buffer.write(data[0]);
+        buffer.write(data, 1, data.length - 1);
+        buffer.close();
+        assertTrue(buffer.isSpilled());
+        // the computed digest does not read the file again
+        assertTrue(buffer.getFile().delete());
+        assertArrayEquals(digest("SHA-256", data), buffer.getDigest("SHA-256"));
+        assertArrayEquals(digest("MD5", data), buffer.getDigest("MD5"));
+
+        // other digests, and digests after a reset, are computed from the body
+        buffer.reset();
+        buffer.write(data, 0, 50);
+        assertArrayEquals(digest("SHA-1", Arrays.copyOf(data, 50)),
+                buffer.getDigest("SHA-1"));
+        assertArrayEquals(digest("MD5", Arrays.copyOf(data, 50)),
+                buffer.getDigest("MD5"));
+        buffer.dispose();
+    }
+
+    @Test
+    public void mapped() throws Exception {
+        byte data[] = new byte[3 * 1024 * 1024];
+        new Random(2).nextBytes(data);
+        File file = write(".bin", data);
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            Binary.digest(file, sha);
+            assertArrayEquals(digest("SHA-256", data), sha.digest());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void hex() throws Exception {
+        runtime.bind("sum", hex(digest("SHA-256", BODY.getBytes("UTF-8"))));
+        call("{ 'digest' : { 'sha256' : '{sum}', 'md5' : '"
+                + hex(digest("MD5", BODY.getBytes("UTF-8"))) + "' } }");
+        call("{ 'digest' : '{sum}' }");
+        try {
+            call("{ 'digest' : { 'sha1' : '{sum}' } }");
+            fail("Expected the digest assertion to fail");
+        } catch (UnRAVLException e) {
+            assertTrue(e.getMessage().contains("SHA-1"));
+        }
+    }
+
+    @Test
+    public void files() throws Exception {
+        byte body[] = BODY.getBytes("UTF-8");
+        File sum = write(".sha256", (hex(digest("SHA-256", body)) + "  file\n")
+                .getBytes("UTF-8"));
+        File expected = write(".json", body);
+        try {
+            call("{ 'digest' : '@" + sum.getPath() + "' }");
+            call("{ 'digest' : { 'sha512' : '@" + expected.getPath() + "' } }");
+        } finally {
+            sum.delete();
+            expected.delete();
+        }
+    }
+
+    @Test
+    public void algorithms() throws Exception {
+        assertEquals("SHA-256", DigestAssertion.algorithm("sha256"));
+        assertEquals("SHA-1", DigestAssertion.algorithm("SHA1"));
+        assertEquals("SHA-512", DigestAssertion.algorithm("SHA-512"));
+        assertEquals("MD5", DigestAssertion.algorithm("md5"));
+        UnRAVL script = new UnRAVL(runtime, (ObjectNode) mockJson("{ 'assert'"
+                + " : [ { 'digest' : { 'md5' : 'x' } }, { 'digest' : '@a.sha1' },"
+                + " { 'digest' : 'x' }, { 'status' : 200 } ] }"));
+        assertEquals(Arrays.asList("MD5", "SHA-1", "SHA-256"),
+                Arrays.asList(DigestAssertion.algorithms(script).toArray()));
+    }
+
+    private ApiCall call(String assertion) throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'GET' : '{server}/file',"
+                + " 'assert' : " + assertion + " }");
+        return new ApiCall(new UnRAVL(runtime, root)).run();
+    }
+
+    private static byte[] digest(String algorithm, byte[] data)
+            throws Exception {
+        return MessageDigest.getInstance(algorithm).digest(data);
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest)
+            hex.append(String.format("%02x", b & 0xff));
+        return hex.toString();
+    }
+
+    private static File write(String suffix, byte[] data) throws IOException {
+        File file = File.createTempFile("unravl-digest", suffix);
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+}
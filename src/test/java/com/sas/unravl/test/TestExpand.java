@@ -1,9 +1,13 @@
 package com.sas.unravl.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.sas.unravl.UnRAVL;
 import com.sas.unravl.UnRAVLException;
 import com.sas.unravl.UnRAVLRuntime;
@@ -335,4 +339,55 @@ public class TestExpand extends TestBase {
         assertEquals(expected, actual);
 
     }
+
+    @Test
+    public void copyOnWrite() throws UnRAVLException {
+        UnRAVL script = TestBase.scriptFixture();
+        JsonNode in = TestBase.mockJson("{ 'static' : { 'a' : [ 1, 'two', {} ] },"
+                + " 'list' : [ 'x', '{" + WHO_KEY + "}', 'y' ],"
+                + " 'unbound' : '{noSuchVariable}' }");
+        JsonNode out = Json.expand(in, script);
+        assertEquals(WHO_VAL, out.get("list").get(1).textValue());
+        // unchanged subtrees and values are shared
+        assertSame(in.get("static"), out.get("static"));
+        assertSame(in.get("unbound"), out.get("unbound"));
+        assertSame(in.get("list").get(0), out.get("list").get(0));
+        assertNotSame(in.get("list"), out.get("list"));
+        assertEquals("{" + WHO_KEY + "}", in.get("list").get(1).textValue());
+
+        JsonNode fixture = TestBase.mockJson("[ { 'x' : 1 }, [ 'y' ], 'z' ]");
+        assertSame(fixture, Json.expand(fixture, script));
+        assertSame(fixture, Json.expand(fixture, script));
+        assertSame(fixture, Json.expand(fixture, script, false));
+    }
+
+    @Test
+    public void forgetsChangedNodes() throws UnRAVLException {
+        UnRAVL script = TestBase.scriptFixture();
+        ObjectNode value = (ObjectNode) TestBase.mockJson("{ 'x' : [ 1 ] }");
+        assertSame(value, Json.expand(value, script));
+        // the public overload does not remember the node, so a change counts
+        ((ArrayNode) value.get("x")).add("{" + WHO_KEY + "}");
+        assertEquals(WHO_VAL, Json.expand(value, script).get("x").get(1)
+                .textValue());
+    }
+
+    @Test
+    public void envValuesCopyOnlyExpandedParts() throws UnRAVLException,
+            IOException {
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        runtime.bind("x", "y");
+        JsonNode root = TestBase
+                .mockJson("{ 'env' : { 'obj' : { 'a' : [ 1 ] }, 'var' : { 'a' : [ 1 ], 'b' : '{x}' } } }");
+        runtime.execute(root);
+        JsonNode env = root.get("env");
+        assertSame(env.get("obj"), runtime.binding("obj"));
+        ObjectNode var = (ObjectNode) runtime.binding("var");
+        assertNotSame(env.get("var"), var);
+        assertEquals("y", var.get("b").textValue());
+        assertSame(env.get("var").get("a"), var.get("a"));
+        assertEquals("{x}", env.get("var").get("b").textValue());
+        runtime.execute(root);
+        assertSame(env.get("obj"), runtime.binding("obj"));
+    }
 }
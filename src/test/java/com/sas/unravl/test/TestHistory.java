@@ -0,0 +1,127 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify that the unravl.history policies limit the calls a runtime keeps,
+ * while the totals which report() gives stay exact.
+ */
+public class TestHistory extends TestBase {
+
+    private EchoServer server;
+    private UnRAVLRuntime runtime;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new EchoServer();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", server.url());
+    }
+
+    @After
+    public void tearDown() {
+        runtime.close();
+        server.stop();
+    }
+
+    @Test
+    public void all() throws Exception {
+        for (int i = 0; i < 3; i++)
+            call("/items/" + i);
+        failing("/missing");
+        assertEquals(4, runtime.size());
+        assertEquals(4, runtime.getCallCount());
+        assertEquals(0, runtime.getDroppedCallCount());
+        assertEquals(1, runtime.report());
+    }
+
+    @Test
+    public void failures() throws Exception {
+        runtime.bind(UnRAVLRuntime.HISTORY, "failures");
+        for (int i = 0; i < 3; i++)
+            call("/items/" + i);
+        failing("/missing");
+        assertEquals(1, runtime.size());
+        assertTrue(runtime.getApiCalls().get(0).getURI().endsWith("/missing"));
+        assertEquals(4, runtime.getCallCount());
+        assertEquals(3, runtime.getDroppedCallCount());
+        assertEquals(1, runtime.report());
+    }
+
+    @Test
+    public void limit() throws Exception {
+        runtime.bind(UnRAVLRuntime.HISTORY_LIMIT, "2");
+        failing("/missing");
+        for (int i = 0; i < 4; i++)
+            call("/items/" + i);
+        assertEquals(2, runtime.size());
+        assertTrue(runtime.getApiCalls().get(0).getURI().endsWith("/items/2"));
+        assertTrue(runtime.getApiCalls().get(1).getURI().endsWith("/items/3"));
+        assertEquals(5, runtime.getCallCount());
+        assertEquals(3, runtime.getDroppedCallCount());
+        // the failure is counted although its call was removed
+        assertEquals(1, runtime.report());
+        // removed calls release their bodies
+        assertEquals(2, runtime.getBodyStore().count());
+
+        runtime.reset();
+        assertEquals(0, runtime.getCallCount());
+        assertEquals(0, runtime.getDroppedCallCount());
+        assertEquals(0, runtime.getBodyStore().count());
+    }
+
+    @Test
+    public void summaries() throws Exception {
+        runtime.bind(UnRAVLRuntime.HISTORY, "summaries");
+        ApiCall call = call("/items/1");
+        assertEquals(1, runtime.size());
+        assertEquals(200, call.getHttpStatus());
+        assertEquals(1, call.getPassedAssertions().size());
+        assertEquals(0, call.getResponseBody().length());
+        assertEquals(0, runtime.getBodyStore().count());
+        assertEquals(0, runtime.report());
+    }
+
+    @Test
+    public void scripts() throws Exception {
+        call("/items/1");
+        assertEquals(1, runtime.getScripts().size());
+        runtime.bind(UnRAVLRuntime.HISTORY, "failures");
+        call("/items/2");
+        ObjectNode named = (ObjectNode) mockJson("{ 'name' : 'item 3',"
+                + " 'GET' : '{server}/items/3' }");
+        new ApiCall(new UnRAVL(runtime, named)).run();
+        // only named scripts are kept, so they can be referenced by name
+        assertEquals(2, runtime.getScripts().size());
+        assertTrue(runtime.getScripts().containsKey("item 3"));
+    }
+
+    private ApiCall call(String path) throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'GET' : '{server}" + path
+                + "', 'assert' : [ { 'status' : 200 } ] }");
+        return new ApiCall(new UnRAVL(runtime, root)).run();
+    }
+
+    private void failing(String path) throws Exception {
+        try {
+            call(path);
+            fail("Expected the status assertion to fail for " + path);
+        } catch (UnRAVLException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.http.Http2Transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.StringAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.nio.support.BasicResponseProducer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOSession;
+import org.apache.hc.core5.reactor.IOSessionListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Run API calls with the {@link Http2Transport} against a local h2c (HTTP/2
+ * without TLS) server.
+ */
+public class TestHttp2Transport extends TestBase {
+
+    private HttpAsyncServer server;
+    private UnRAVLRuntime runtime;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    @Before
+    public void startServer() throws Exception {
+        server = H2ServerBootstrap.bootstrap()
+                .setVersionPolicy(HttpVersionPolicy.FORCE_HTTP_2)
+                .setIOSessionListener(new IOSessionListener() {
+                    @Override
+                    public void connected(IOSession session) {
+                        connections.incrementAndGet();
+                    }
+
+                    @Override
+                    public void startTls(IOSession session) {
+                    }
+
+                    @Override
+                    public void inputReady(IOSession session) {
+                    }
+
+                    @Override
+                    public void outputReady(IOSession session) {
+                    }
+
+                    @Override
+                    public void timeout(IOSession session) {
+                    }
+
+                    @Override
+                    public void exception(IOSession session, Exception ex) {
+                    }
+
+                    @Override
+                    public void disconnected(IOSession session) {
+                    }
+                }).register("*", new EchoHandler()).create();
+        server.start();
+        InetSocketAddress address = (InetSocketAddress) server
+                .listen(new InetSocketAddress("localhost", 0)).get()
+                .getAddress();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", "http://localhost:" + address.getPort());
+    }
+
+    @After
+    public void stopServer() {
+        runtime.close();
+        server.close(CloseMode.IMMEDIATE);
+    }
+
+    @Test
+    public void registeredWithHttpClient5() throws Exception {
+        // HttpClient 5 is an optional dependency, present for the tests, so
+        // the conditional transport is registered
+        assertEquals(Http2Transport.class, runtime.getPlugins()
+                .getTransports().get(Http2Transport.NAME));
+    }
+
+    @Test
+    public void runtimeTransport() throws Exception {
+        runtime.bind(UnRAVLRuntime.TRANSPORT, Http2Transport.NAME);
+        ObjectNode root = (ObjectNode) mockJson("{ 'POST' : '{server}/items',"
+                + "  'body' : { 'json' : { 'id' : 1 } },"
+                + "  'bind' : { 'json' : 'result' } }");
+        ApiCall call = new ApiCall(new UnRAVL(runtime, root)).run();
+        assertEquals(200, call.getHttpStatus());
+        assertEquals("HTTP/2.0", call.getProtocolVersion());
+        ObjectNode result = (ObjectNode) runtime.binding("result");
+        assertEquals("POST /items {\"id\":1}", result.get("echo").textValue());
+    }
+
+    @Test
+    public void streamedBodies() throws Exception {
+        runtime.bind(UnRAVLRuntime.TRANSPORT, Http2Transport.NAME);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 100000)
+            text.append("line ").append(text.length()).append('\n');
+        File file = File.createTempFile("h2body", ".txt");
+        file.deleteOnExit();
+        Files.write(text, file, Charsets.UTF_8);
+        runtime.bind("file", file.getPath());
+        // one file part is sent from the file; several are a stream
+        runtime.execute(mockJson("[ { 'POST' : '{server}/file',"
+                + "  'body' : { 'binary' : '@{file}' },"
+                + "  'bind' : { 'json' : 'one' } },"
+                + " { 'PUT' : '{server}/parts',"
+                + "  'body' : { 'binary' : [ '@{file}', '@{file}' ] },"
+                + "  'bind' : { 'json' : 'two' } } ]"));
+        assertEquals(0, runtime.getFailedAssertionCount());
+        assertEquals("POST /file " + text, ((ObjectNode) runtime
+                .binding("one")).get("echo").textValue());
+        assertEquals("PUT /parts " + text + text, ((ObjectNode) runtime
+                .binding("two")).get("echo").textValue());
+    }
+
+    @Test
+    public void multiplexed() throws Exception {
+        runtime.setTemplate("h2.template",
+                new UnRAVL(runtime, (ObjectNode) mockJson("{ 'transport' : 'h2c' }")));
+        List<ListenableFuture<ApiCall>> futures = new ArrayList<ListenableFuture<ApiCall>>();
+        for (int i = 0; i < 20; i++) {
+            ObjectNode root = (ObjectNode) mockJson("{ 'template' : 'h2.template',"
+                    + " 'GET' : '{server}/items/" + i + "' }");
+            futures.add(new UnRAVL(runtime, root).runAsync());
+        }
+        for (ApiCall call : Futures.allAsList(futures).get(30,
+                TimeUnit.SECONDS)) {
+            assertEquals(200, call.getHttpStatus());
+            assertEquals("HTTP/2.0", call.getProtocolVersion());
+        }
+        assertEquals(1, connections.get());
+    }
+
+    // Respond with { "echo" : "METHOD path body" }
+    private static class EchoHandler implements
+            AsyncServerRequestHandler<Message<HttpRequest, String>> {
+
+        @Override
+        public AsyncRequestConsumer<Message<HttpRequest, String>> prepare(
+                HttpRequest request, EntityDetails entityDetails,
+                HttpContext context) throws HttpException {
+            return new BasicRequestConsumer<String>(
+                    entityDetails == null ? null
+                            : new StringAsyncEntityConsumer());
+        }
+
+        @Override
+        public void handle(Message<HttpRequest, String> message,
+                ResponseTrigger responseTrigger, HttpContext context)
+                throws HttpException, IOException {
+            HttpRequest request = message.getHead();
+            String body = message.getBody() == null ? "" : " "
+                    + message.getBody();
+            String echo = request.getMethod() + " " + request.getPath() + body;
+            responseTrigger.submitResponse(
+                    new BasicResponseProducer(200, "{\"echo\":"
+                            + new TextNode(echo).toString() + "}",
+                            ContentType.APPLICATION_JSON), context);
+        }
+    }
+}
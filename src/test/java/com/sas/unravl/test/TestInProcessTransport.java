@@ -0,0 +1,107 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.Method;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.generators.ByteArrayBody;
+import com.sas.unravl.http.InProcessHandler;
+import com.sas.unravl.http.InProcessTransport;
+import com.sas.unravl.http.TransportRequest;
+import com.sas.unravl.http.TransportResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.apache.http.Header;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Run API calls with the {@link InProcessTransport}, which passes requests to
+ * {@link InProcessHandler}s instead of a server.
+ */
+public class TestInProcessTransport extends TestBase {
+
+    private static final String BASE = "http://orders.test";
+    private static final String V2 = BASE + "/v2";
+
+    private UnRAVLRuntime runtime;
+
+    @Before
+    public void addHandlers() {
+        runtime = new UnRAVLRuntime();
+        runtime.bind(UnRAVLRuntime.TRANSPORT, InProcessTransport.NAME);
+        runtime.bind("server", BASE);
+        runtime.getPlugins().addInProcessHandler(BASE, EchoServer.handler());
+        runtime.getPlugins().addInProcessHandler(V2, new InProcessHandler() {
+            @Override
+            public TransportResponse handle(TransportRequest request,
+                    ByteBuffer requestBody, OutputStream responseBody)
+                    throws IOException {
+                responseBody.write("\"v2\"".getBytes("UTF-8"));
+                return new TransportResponse(202, new Header[0]);
+            }
+        });
+    }
+
+    @After
+    public void removeHandlers() {
+        runtime.getPlugins().removeInProcessHandler(BASE);
+        runtime.getPlugins().removeInProcessHandler(V2);
+        runtime.close();
+    }
+
+    @Test
+    public void post() throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'POST' : '{server}/items',"
+                + "  'headers' : { 'X-Echo' : 'local' },"
+                + "  'body' : { 'json' : { 'id' : 1 } },"
+                + "  'bind' : { 'json' : 'result' } }");
+        ApiCall call = new ApiCall(new UnRAVL(runtime, root)).run();
+        assertEquals(200, call.getHttpStatus());
+        assertEquals(InProcessTransport.PROTOCOL, call.getProtocolVersion());
+        assertEquals("application/json",
+                call.getResponseHeader("Content-Type").getValue());
+        ObjectNode result = (ObjectNode) runtime.binding("result");
+        assertEquals("/items", result.get("path").textValue());
+        assertEquals("POST", result.get("method").textValue());
+        assertEquals(8, result.get("length").intValue());
+        assertEquals("local", result.get("echo").textValue());
+    }
+
+    @Test
+    public void longestBaseURI() throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'GET' : '{server}/v2/items',"
+                + " 'assert' : { 'status' : 202 } }");
+        ApiCall call = new ApiCall(new UnRAVL(runtime, root)).run();
+        assertEquals("\"v2\"", call.getResponseBody().toString("UTF-8"));
+    }
+
+    @Test
+    public void noHandler() throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'GET' : 'http://unknown.test/items',"
+                + " 'assert' : { 'status' : 501 } }");
+        ApiCall call = new ApiCall(new UnRAVL(runtime, root)).run();
+        assertEquals(0, call.getFailedAssertions().size());
+    }
+
+    @Test
+    public void bodyBufferSharesBytes() throws Exception {
+        byte bytes[] = "{\"id\":1}".getBytes("UTF-8");
+        TransportRequest request = new TransportRequest(Method.POST, BASE,
+                new ArrayList<Header>(), new ByteArrayBody(bytes));
+        ByteBuffer buffer = request.getBodyBuffer();
+        assertTrue(buffer.isReadOnly());
+        assertEquals(bytes.length, buffer.remaining());
+        bytes[0] = '[';
+        assertEquals('[', buffer.get(0));
+    }
+}
@@ -0,0 +1,167 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.generators.Binary;
+import com.sas.unravl.generators.JsonBody;
+import com.sas.unravl.http.ResponseBuffer;
+import com.sas.unravl.util.DeferredValue;
+import com.sas.unravl.util.Json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify that JSON request bodies from files are expanded as they are sent,
+ * the same way JSON trees are expanded.
+ */
+public class TestJsonBody extends TestBase {
+
+    private static final String JSON = "{ '{key}' : 'value of {var}',"
+            + " 'n' : '{@n@}', 'obj' : '{@obj@}',"
+            + " 'price' : 1.5, 'list' : [ 1, true, null, '{var}' ] }";
+
+    private EchoServer server;
+    private UnRAVLRuntime runtime;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException, UnRAVLException {
+        server = new EchoServer();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", server.url());
+        runtime.bind("key", "name");
+        runtime.bind("var", "x");
+        runtime.bind("n", Integer.valueOf(42));
+        runtime.bind("obj", mockJson("{ 'a' : [ 1, 2 ] }"));
+        file = write(mockJson(JSON).toString());
+        runtime.bind("file", file.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        runtime.close();
+        server.stop();
+        file.delete();
+    }
+
+    @Test
+    public void expand() throws IOException, UnRAVLException {
+        UnRAVL script = new UnRAVL(runtime);
+        JsonNode expected = Json.expand(mockJson(JSON), script);
+
+        JsonParser parser = Json.jsonFactory().createParser(
+                mockJson(JSON).toString());
+        StringWriter out = new StringWriter();
+        JsonGenerator generator = Json.jsonFactory().createGenerator(out);
+        Json.expand(parser, generator, script);
+        assertEquals(expected.toString(), out.toString());
+        JsonNode actual = Json.parse(out.toString());
+        assertEquals("value of x", actual.get("name").textValue());
+        assertEquals(42, actual.get("n").intValue());
+        assertEquals(2, actual.get("obj").get("a").get(1).intValue());
+    }
+
+    @Test
+    public void upload() throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'POST' : '{server}/import',"
+                + " 'body' : { 'json' : '@{file}' },"
+                + " 'bind' : { 'json' : 'echo' } }");
+        ApiCall call = new ApiCall(new UnRAVL(runtime, root)).run();
+        assertEquals(0, call.getFailedAssertions().size());
+        assertTrue(call.getRequestStream() instanceof JsonBody);
+
+        assertTrue(runtime.getBindings().get("requestBody") instanceof DeferredValue);
+        Object requestBody = runtime.binding("requestBodyStream");
+        assertTrue(requestBody instanceof JsonBody);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Binary.copy((JsonBody) requestBody, bytes);
+        String expected = Json.expand(mockJson(JSON), new UnRAVL(runtime))
+                .toString();
+        assertEquals(expected, bytes.toString("UTF-8"));
+        assertEquals(bytes.size(), ((JsonNode) runtime.binding("echo")).get(
+                "length").intValue());
+    }
+
+    @Test
+    public void requestBodyIsAsSent() throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'POST' : '{server}/import',"
+                + " 'body' : { 'json' : '@{file}' } }");
+        new ApiCall(new UnRAVL(runtime, root)).run();
+        String sent = Json.expand(mockJson(JSON), new UnRAVL(runtime))
+                .toString();
+        // later bindings do not change the body that was sent
+        runtime.bind("var", "changed");
+        runtime.bind("n", Integer.valueOf(0));
+        JsonNode json = (JsonNode) runtime.binding("requestBody");
+        assertEquals(sent, json.toString());
+        assertEquals(Boolean.TRUE, new UnRAVL(runtime)
+                .eval("requestBody.get('n').intValue() == 42"));
+        JsonBody requestBody = (JsonBody) runtime.binding("requestBodyStream");
+        assertEquals(json, requestBody.toJson());
+        assertEquals("value of x", json.get("name").textValue());
+        assertEquals(42, json.get("n").intValue());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Binary.copy(requestBody, bytes);
+        assertEquals(sent, bytes.toString("UTF-8"));
+    }
+
+    @Test
+    public void readSpills() throws Exception {
+        // a transport which reads the body, rather than having it write
+        // itself, reads it from a temporary file beyond the threshold
+        runtime.bind(ResponseBuffer.THRESHOLD, 16);
+        JsonBody body = new JsonBody(new UnRAVL(runtime), file);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte buf[] = new byte[7];
+        for (int n; (n = body.read(buf)) > 0;)
+            bytes.write(buf, 0, n);
+        body.close();
+        String expected = Json.expand(mockJson(JSON), new UnRAVL(runtime))
+                .toString();
+        assertTrue(expected.length() > 16);
+        assertEquals(expected, bytes.toString("UTF-8"));
+    }
+
+    @Test
+    public void invalid() throws Exception {
+        File invalid = write("{ \"a\" : [ 1, 2 }");
+        try {
+            runtime.bind("file", invalid.getPath());
+            ObjectNode root = (ObjectNode) mockJson("{ 'POST' : '{server}/import',"
+                    + " 'body' : { 'json' : '@{file}' } }");
+            new ApiCall(new UnRAVL(runtime, root)).run();
+            fail("Expected an UnRAVLException for invalid JSON");
+        } catch (UnRAVLException e) {
+            assertTrue(e.getMessage().contains(invalid.getPath()));
+        } finally {
+            invalid.delete();
+        }
+    }
+
+    private static File write(String json) throws IOException {
+        File file = File.createTempFile("unravl-body", ".json");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(json.getBytes("UTF-8"));
+        out.close();
+        return file;
+    }
+}
@@ -0,0 +1,75 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.http.ConnectionPool;
+import com.sas.unravl.http.ConnectionPool.Handshake;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.http.pool.PoolStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify that {@link UnRAVLRuntime#prewarm(List)} opens one pooled connection
+ * per host, which the API calls then reuse.
+ */
+public class TestPrewarm extends TestBase {
+
+    private EchoServer server;
+    private UnRAVLRuntime runtime;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new EchoServer();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", server.url());
+    }
+
+    @After
+    public void stopServer() {
+        runtime.close();
+        server.stop();
+    }
+
+    @Test
+    public void prewarm() throws Exception {
+        List<JsonNode> scripts = Arrays.asList(
+                mockJson("{ 'GET' : '{server}/items/1' }"),
+                mockJson("[ { 'POST' : '{server}/items', 'body' : 'x' },"
+                        + "  { 'GET' : '{unbound}/items' } ]"),
+                mockJson("'@some/other/script.json'"));
+        List<Handshake> handshakes = runtime.prewarm(scripts);
+        assertEquals(1, handshakes.size());
+        assertEquals(server.url(), handshakes.get(0).getHost());
+        assertFalse(handshakes.get(0).isSecure());
+        assertEquals(1, stats().getAvailable());
+        // the pool already has a connection to the host
+        assertNull(runtime.getConnectionPool().prewarm(server.url() + "/x"));
+    }
+
+    @Test
+    public void executeReusesConnection() throws Exception {
+        runtime.bind(ConnectionPool.PREWARM, "true");
+        runtime.execute(mockJson("{ 'name' : 'items.template', 'GET' : '{server}/items' }"),
+                mockJson("{ 'template' : 'items' }"),
+                mockJson("{ 'template' : 'items', 'GET' : '{server}/items/2' }"));
+        assertEquals(1, runtime.getHandshakes().size());
+        assertEquals(0, runtime.getFailedAssertionCount());
+        PoolStats stats = stats();
+        assertEquals(1, stats.getAvailable() + stats.getLeased());
+    }
+
+    private PoolStats stats() {
+        return runtime.getConnectionPool().getConnectionManager()
+                .getTotalStats();
+    }
+}
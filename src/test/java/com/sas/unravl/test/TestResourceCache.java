@@ -0,0 +1,205 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.generators.ResourceCache;
+import com.sas.unravl.generators.Text;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Verify that the resource cache reuses files, classpath resources and URLs
+ * until they change, and stays within its size.
+ */
+public class TestResourceCache extends TestBase {
+
+    @Test
+    public void file() throws IOException {
+        ResourceCache cache = new ResourceCache(1024);
+        File file = write("abc");
+        try {
+            byte[] first = cache.read(file);
+            assertSame(first, cache.read(file));
+            assertSame(first, cache.read(file.getPath()));
+            assertEquals(1, cache.getMisses());
+            assertEquals(2, cache.getHits());
+            assertEquals(3, cache.size());
+
+            // a different size or modification time reads the file again
+            write(file, "abcd");
+            assertArrayEquals("abcd".getBytes("UTF-8"), cache.read(file));
+            write(file, "wxyz");
+            assertTrue(file.setLastModified(file.lastModified() - 10000));
+            assertArrayEquals("wxyz".getBytes("UTF-8"), cache.read(file));
+            assertEquals(3, cache.getMisses());
+            assertEquals(4, cache.size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void evict() throws IOException {
+        ResourceCache cache = new ResourceCache(100);
+        File a = write(repeat('a', 25));
+        File b = write(repeat('b', 25));
+        File c = write(repeat('c', 25));
+        File d = write(repeat('d', 25));
+        File e = write(repeat('e', 25));
+        File big = write(repeat('x', 26));
+        try {
+            cache.read(a);
+            cache.read(b);
+            cache.read(c);
+            cache.read(d);
+            cache.read(a); // now b is the least recently used
+            assertEquals(100, cache.size());
+            cache.read(e);
+            assertEquals(100, cache.size());
+            cache.read(a);
+            cache.read(b);
+            assertEquals(6, cache.getMisses());
+            assertEquals(2, cache.getHits());
+
+            // more than a quarter of the size is not cached
+            cache.read(big);
+            cache.read(big);
+            assertEquals(8, cache.getMisses());
+            assertEquals(100, cache.size());
+
+            cache.clear();
+            assertEquals(0, cache.size());
+        } finally {
+            for (File f : new File[] { a, b, c, d, e, big })
+                f.delete();
+        }
+    }
+
+    @Test
+    public void disabled() throws IOException {
+        ResourceCache cache = new ResourceCache(0);
+        File file = write("abc");
+        try {
+            cache.read(file);
+            cache.read(file);
+            assertEquals(0, cache.getHits());
+            assertEquals(0, cache.size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void resource() throws IOException {
+        ResourceCache cache = new ResourceCache(1024 * 1024);
+        byte[] first = cache.read("/com/sas/unravl/ui/newScript.json");
+        assertTrue(first.length > 0);
+        assertSame(first, cache.read("/com/sas/unravl/ui/newScript.json"));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void url() throws IOException {
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger sent = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(
+                "localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                String path = exchange.getRequestURI().getPath();
+                if (path.equals("/tagged"))
+                    exchange.getResponseHeaders().add("ETag", "\"v1\"");
+                if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst(
+                        "If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    byte body[] = "{\"x\":1}".getBytes("UTF-8");
+                    sent.incrementAndGet();
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            String base = "http://localhost:"
+                    + server.getAddress().getPort();
+            ResourceCache cache = new ResourceCache(1024);
+            byte[] first = cache.read(new URL(base + "/tagged"));
+            assertSame(first, cache.read(new URL(base + "/tagged")));
+            assertEquals(2, requests.get());
+            assertEquals(1, sent.get());
+            assertEquals(1, cache.getHits());
+
+            // without validators, the response is not cached
+            cache.read(new URL(base + "/plain"));
+            cache.read(new URL(base + "/plain"));
+            assertEquals(3, sent.get());
+            assertEquals(1, cache.getHits());
+            assertEquals(first.length, cache.size());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void text() throws IOException, UnRAVLException {
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        File file = write("cached text");
+        try {
+            UnRAVL script = new UnRAVL(runtime);
+            ResourceCache cache = runtime.getResourceCache();
+            for (int i = 0; i < 3; i++)
+                assertEquals("cached text", new Text(script,
+                        mockJson("'@" + file.getPath() + "'")).text());
+            assertEquals(1, cache.getMisses());
+            assertEquals(2, cache.getHits());
+            assertSame(cache, new UnRAVLRuntime(runtime).getResourceCache());
+        } finally {
+            file.delete();
+            runtime.close();
+        }
+    }
+
+    private static String repeat(char c, int n) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < n; i++)
+            s.append(c);
+        return s.toString();
+    }
+
+    private static File write(String text) throws IOException {
+        File file = File.createTempFile("unravl-cache", ".txt");
+        file.deleteOnExit();
+        write(file, text);
+        return file;
+    }
+
+    private static void write(File file, String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(text.getBytes("UTF-8"));
+        out.close();
+    }
+}
@@ -0,0 +1,150 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.http.ResponseBuffer;
+import com.sas.unravl.util.DeferredValue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify that response bodies above the spill threshold are written to a
+ * temporary file and can still be extracted and asserted.
+ */
+public class TestResponseBuffer extends TestBase {
+
+    private EchoServer server;
+    private UnRAVLRuntime runtime;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new EchoServer();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", server.url());
+    }
+
+    @After
+    public void stopServer() {
+        runtime.close();
+        server.stop();
+    }
+
+    @Test
+    public void inMemory() throws Exception {
+        ResponseBuffer buffer = new ResponseBuffer(100);
+        buffer.expect(10);
+        buffer.write("0123456789".getBytes("UTF-8"));
+        buffer.close();
+        assertFalse(buffer.isSpilled());
+        assertNull(buffer.getFile());
+        assertEquals(10, buffer.length());
+        assertEquals("0123456789", buffer.toString("UTF-8"));
+        ByteBuffer bytes = buffer.toByteBuffer();
+        assertTrue(bytes.isReadOnly());
+        assertEquals(10, bytes.remaining());
+        assertEquals('5', bytes.get(5));
+        assertEquals("0123456789", read(buffer.getInputStream()));
+    }
+
+    @Test
+    public void spilled() throws Exception {
+        ResponseBuffer buffer = new ResponseBuffer(4);
+        buffer.write("012".getBytes("UTF-8"));
+        assertFalse(buffer.isSpilled());
+        buffer.write("3456789".getBytes("UTF-8"));
+        buffer.write('!');
+        buffer.close();
+        assertTrue(buffer.isSpilled());
+        File file = buffer.getFile();
+        assertTrue(file.exists());
+        assertEquals(11, buffer.length());
+        assertEquals(11, buffer.size());
+        assertEquals("0123456789!", buffer.toString("UTF-8"));
+        assertEquals("0123456789!", read(buffer.getInputStream()));
+        assertEquals('!', buffer.toByteBuffer().get(10));
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        buffer.writeTo(copy);
+        assertArrayEquals(buffer.toByteArray(), copy.toByteArray());
+
+        buffer.dispose();
+        assertFalse(file.exists());
+        assertEquals(0, buffer.length());
+
+        ResponseBuffer expected = new ResponseBuffer(4);
+        expected.expect(5);
+        assertTrue(expected.isSpilled());
+        expected.dispose();
+    }
+
+    @Test
+    public void spillDirectory() throws Exception {
+        ResponseBuffer one = new ResponseBuffer(1), two = new ResponseBuffer(1);
+        one.write("12".getBytes("UTF-8"));
+        two.write("34".getBytes("UTF-8"));
+        File directory = one.getFile().getParentFile();
+        // all spilled bodies share one directory, which a shutdown hook
+        // deletes, rather than a deleteOnExit entry per file
+        assertEquals(directory, two.getFile().getParentFile());
+        assertTrue(directory.getName().startsWith("unravl-responses"));
+        one.dispose();
+        two.dispose();
+        assertTrue(directory.isDirectory());
+    }
+
+    @Test
+    public void largeResponse() throws Exception {
+        runtime.bind(ResponseBuffer.THRESHOLD, 16);
+        File out = File.createTempFile("unravl-binary", ".json");
+        out.deleteOnExit();
+        runtime.bind("out", out.getPath());
+        ObjectNode root = (ObjectNode) mockJson("{ 'GET' : '{server}/items/1',"
+                + " 'bind' : { 'binary' : '@{out}' },"
+                + " 'assert' : [ { 'binary' : '@{out}' },"
+                + "              { 'json' : { 'path' : '/items/1', 'method' : 'GET',"
+                + "                           'length' : 0, 'echo' : null } } ] }");
+        ApiCall call = new ApiCall(new UnRAVL(runtime, root)).run();
+        assertEquals(0, call.getFailedAssertions().size());
+        ResponseBuffer body = call.getResponseBody();
+        assertTrue(body.isSpilled());
+        assertSame(body, runtime.binding("responseBodyBuffer"));
+        // a spilled body is read into responseBody only when it is used
+        assertTrue(runtime.getBindings().get("responseBody") instanceof DeferredValue);
+        assertArrayEquals(body.toByteArray(),
+                (byte[]) runtime.binding("responseBody"));
+        assertEquals(body.length(), out.length());
+        assertEquals(body.length(), call.getResponseLength());
+        assertArrayEquals(Files.readAllBytes(out.toPath()), body.toByteArray());
+
+        File spilled = body.getFile();
+        runtime.getApiCalls().add(call);
+        runtime.reset();
+        assertFalse(spilled.exists());
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte buf[] = new byte[3];
+        for (int n; (n = in.read(buf)) > 0;)
+            bytes.write(buf, 0, n);
+        in.close();
+        return bytes.toString("UTF-8");
+    }
+}
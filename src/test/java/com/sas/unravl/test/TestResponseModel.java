@@ -0,0 +1,133 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.http.ResponseModel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify that the {@link ResponseModel} of an API call is shared by its
+ * extractors and assertions, so the body is parsed only once.
+ */
+public class TestResponseModel extends TestBase {
+
+    private EchoServer server;
+    private UnRAVLRuntime runtime;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new EchoServer();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", server.url());
+    }
+
+    @After
+    public void stopServer() {
+        runtime.close();
+        server.stop();
+    }
+
+    @Test
+    public void parsedOnce() throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'GET' : '{server}/items/1',"
+                + " 'bind' : [ { 'json' : 'item' },"
+                + "            { 'json' : 'map', 'unwrap' : true },"
+                + "            { 'jsonPath' : { 'method' : '$.method' } },"
+                + "            { 'headers' : { 'type' : 'Content-Type' } },"
+                + "            { 'text' : 'text' } ],"
+                + " 'assert' : [ { 'schema' : { 'type' : 'object' } },"
+                + "              { 'json' : { 'path' : '/items/1', 'method' : 'GET',"
+                + "                           'length' : 0, 'echo' : null } },"
+                + "              { 'headers' : { 'content-type' : 'application/json' } } ] }");
+        ApiCall call = new ApiCall(new UnRAVL(runtime, root)).run();
+        assertEquals(0, call.getFailedAssertions().size());
+        assertEquals(1, call.getResponse().getParseCount());
+        // bound values are copies of the shared views
+        assertEquals(call.getResponse().getJson(), runtime.binding("item"));
+        assertNotSame(call.getResponse().getJson(), runtime.binding("item"));
+        assertSame(call.getResponse().getText(), runtime.binding("text"));
+        assertEquals("GET", runtime.binding("method"));
+        assertEquals("/items/1", ((Map<?, ?>) runtime.binding("map")).get("path"));
+        assertEquals("application/json", runtime.binding("type"));
+    }
+
+    @Test
+    public void boundValuesAreCopies() throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'GET' : '{server}/items/1',"
+                + " 'bind' : [ { 'json' : 'item' },"
+                + "            { 'groovy' : { 'x' : 'item.put(\\\"path\\\", \\\"changed\\\")' } },"
+                + "            { 'json' : 'map', 'unwrap' : true },"
+                + "            { 'groovy' : { 'y' : 'map.path = \\\"changed\\\"' } },"
+                + "            { 'jsonPath' : { 'whole' : '$' } },"
+                + "            { 'groovy' : { 'z' : 'whole.path = \\\"changed\\\"' } } ],"
+                + " 'assert' : [ { 'json' : { 'path' : '/items/1', 'method' : 'GET',"
+                + "                           'length' : 0, 'echo' : null } },"
+                + "              '\\\"/items/1\\\" == responseBody.get(\\\"path\\\").textValue()' ] }");
+        ApiCall call = new ApiCall(new UnRAVL(runtime, root)).run();
+        assertEquals(0, call.getFailedAssertions().size());
+        assertEquals("/items/1", call.getResponse().getJson().get("path")
+                .textValue());
+        assertEquals("/items/1", ((Map<?, ?>) call.getResponse()
+                .getJavaObject()).get("path"));
+        assertEquals("changed", ((Map<?, ?>) runtime.binding("whole"))
+                .get("path"));
+    }
+
+    @Test
+    public void model() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write("[1, \"two\", {\"three\": 3}]".getBytes("UTF-8"));
+        ResponseModel model = new ResponseModel(body, new Header[] {
+                new BasicHeader("Set-Cookie", "a=1"),
+                new BasicHeader("Content-Type", "application/json"),
+                new BasicHeader("set-cookie", "b=2") });
+        assertEquals(0, model.getParseCount());
+        List<?> list = (List<?>) model.getJavaObject();
+        assertEquals(3, list.size());
+        assertEquals("two", list.get(1));
+        JsonNode json = model.getJson();
+        assertSame(json, model.getJson());
+        assertEquals(1, model.getParseCount());
+        assertEquals(2, model.getHeaders("SET-COOKIE").size());
+        assertEquals("a=1", model.getHeader("set-cookie").getValue());
+        assertNull(model.getHeader("Location"));
+    }
+
+    @Test
+    public void invalidJsonParsedOnce() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write("not json".getBytes("UTF-8"));
+        ResponseModel model = new ResponseModel(body, null);
+        for (int i = 0; i < 2; i++) {
+            try {
+                model.getJson();
+                fail("expected a parse failure");
+            } catch (UnRAVLException e) {
+                assertTrue(e.getMessage().length() > 0);
+            }
+        }
+        assertEquals(1, model.getParseCount());
+        assertEquals("not json", model.getText());
+    }
+}
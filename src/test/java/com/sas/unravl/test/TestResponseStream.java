@@ -0,0 +1,258 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.http.ResponseStream;
+import com.sas.unravl.http.Timings;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify that NDJSON and Server-Sent Events responses are split into
+ * elements as they arrive, also on the asynchronous path, and that the
+ * "stream" element runs its extractors and assertions on each one.
+ */
+public class TestResponseStream extends TestBase {
+
+    private static final int DELAY = 50;
+
+    private HttpServer server;
+    private UnRAVLRuntime runtime;
+
+    @Before
+    public void setUp() throws IOException {
+        // write each element after a delay, flushing it
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                boolean sse = path.startsWith("/events");
+                boolean gzip = path.startsWith("/gzip");
+                exchange.getResponseHeaders().add("Content-Type",
+                        sse ? "text/event-stream" : "application/x-ndjson");
+                if (gzip)
+                    exchange.getResponseHeaders().add("Content-Encoding",
+                            "gzip");
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                if (gzip)
+                    out = new GZIPOutputStream(out, true);
+                try {
+                    for (int i = 0; i < 3; i++) {
+                        Thread.sleep(DELAY);
+                        String element = sse ? "event: tick\nid: " + i
+                                + "\ndata: {\"n\":" + i + "}\n\n" : "{\"id\":"
+                                + i + ",\"name\":\"item " + i + "\"}\n";
+                        out.write(element.getBytes("UTF-8"));
+                        out.flush();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                out.close();
+            }
+        });
+        server.start();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", "http://localhost:"
+                + server.getAddress().getPort());
+    }
+
+    @After
+    public void tearDown() {
+        runtime.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void ndjson() throws Exception {
+        Elements elements = new Elements();
+        ResponseStream stream = new ResponseStream(
+                ResponseStream.Format.NDJSON, 100, elements);
+        write(stream, "{\"a\":1}\n\n  \n{\"a\"");
+        write(stream, ":2}\r\n{\"a\":3}\r");
+        write(stream, "\n{\"a\":4}");
+        assertEquals(3, stream.getCount());
+        stream.close();
+        assertEquals(4, stream.getCount());
+        assertEquals("{\"a\":2}", elements.texts.get(1));
+        assertEquals("{\"a\":4}", elements.texts.get(3));
+        assertNull(elements.events.get(0));
+        assertEquals(0, stream.getFailures());
+        assertTrue(stream.getFirstElementMillis() >= 0);
+        assertTrue(stream.getMinIntervalMillis() <= stream
+                .getMeanIntervalMillis());
+        assertTrue(stream.getMeanIntervalMillis() <= stream
+                .getMaxIntervalMillis());
+    }
+
+    @Test
+    public void tooLarge() throws Exception {
+        Elements elements = new Elements();
+        ResponseStream stream = new ResponseStream(
+                ResponseStream.Format.NDJSON, 10, elements);
+        write(stream, "[1]\n[1,2,3,4,5,6,7,8,9]\n[3]\n");
+        stream.close();
+        assertEquals(3, stream.getCount());
+        assertEquals(2, elements.texts.size());
+        assertEquals(1, stream.getFailures());
+        assertTrue(stream.getFirstFailure().getMessage()
+                .contains("element 1 is larger than 10 bytes"));
+    }
+
+    @Test
+    public void sse() throws Exception {
+        Elements elements = new Elements();
+        ResponseStream stream = new ResponseStream(ResponseStream.Format.SSE,
+                1000, elements);
+        write(stream, ": a comment\r\nid: 7\r\ndata: first\r\n");
+        write(stream, "data:second\r\n\r\nevent: update\n");
+        write(stream, "data: {\"x\":1}\n\nevent: empty\n\ndata: last");
+        stream.close();
+        assertEquals(3, stream.getCount());
+        assertEquals("first\nsecond", elements.texts.get(0));
+        assertEquals("message", elements.events.get(0));
+        assertEquals("update", elements.events.get(1));
+        assertEquals("{\"x\":1}", elements.texts.get(1));
+        // the last event id carries over
+        assertEquals("7", elements.ids.get(2));
+        assertEquals("last", elements.texts.get(2));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void streamNdjson() throws Exception {
+        ApiCall call = call("{ 'GET' : '{server}/items',"
+                + " 'stream' : { 'ndjson' : 'item', 'unwrap' : true,"
+                + "   'bind' : { 'jsonPath' : { 'name' : '$.name' } },"
+                + "   'assert' : [ { 'groovy' : 'item.id == unravlStream.count - 1' },"
+                + "                { 'groovy' : 'name == \\\"item \\\" + item.id' } ] },"
+                + " 'assert' : { 'groovy' : 'unravlStream.count == 3' } }");
+        ResponseStream stream = call.getResponseStream();
+        assertEquals(3, stream.getCount());
+        assertEquals(0, stream.getFailures());
+        // the elements arrived as they were written, and were not kept
+        assertTrue(stream.getFirstElementMillis() >= DELAY / 2);
+        assertTrue(stream.getMinIntervalMillis() >= DELAY / 2);
+        assertEquals(0, call.getResponseBody().length());
+        assertTrue(stream.getBytes() > 0);
+        assertEquals("item 2", runtime.binding("name"));
+        assertEquals(2, ((Map<String, Object>) runtime.binding("item"))
+                .get("id"));
+        // passes for each element are not recorded
+        assertEquals(1, call.getPassedAssertions().size());
+    }
+
+    @Test
+    public void streamSse() throws Exception {
+        ApiCall call = call("{ 'GET' : '{server}/events',"
+                + " 'stream' : { 'sse' : 'event', 'unwrap' : true,"
+                + "   'bind' : { 'json' : 'data', 'unwrap' : true },"
+                + "   'assert' : [ { 'groovy' : 'event.event == \\\"tick\\\"' },"
+                + "                { 'groovy' : 'data.n == event.data.n' },"
+                + "                { 'groovy' : 'event.id == data.n.toString()' } ] } }");
+        assertEquals(3, call.getResponseStream().getCount());
+        assertEquals(0, call.getResponseStream().getFailures());
+    }
+
+    @Test
+    public void streamAsync() throws Exception {
+        for (String path : new String[] { "/items", "/gzip/items" }) {
+            ApiCall call = callAsync("{ 'GET' : '{server}" + path + "',"
+                    + " 'stream' : { 'ndjson' : 'item' } }");
+            ResponseStream stream = call.getResponseStream();
+            assertEquals(path, 3, stream.getCount());
+            // each element was handled as it arrived, timed from the request
+            assertTrue(path, stream.getFirstElementMillis() >= DELAY / 2);
+            assertTrue(path, stream.getMinIntervalMillis() >= DELAY / 2);
+            assertTrue(path, stream.getFirstElementMillis() <= Timings
+                    .millis(call.getTimings().getTotal()));
+        }
+        // the scriptlets run on the completion executor, holding the
+        // runtime's lock, not on the I/O thread; a queue of one element
+        // pauses reading after each element
+        runtime.bind(ResponseStream.QUEUE_SIZE, 1);
+        ApiCall call = callAsync("{ 'GET' : '{server}/items',"
+                + " 'stream' : { 'ndjson' : 'item', 'unwrap' : true,"
+                + "   'assert' : { 'groovy' : 'com.sas.unravl.test.TestResponseStream.completing(unravlScript.runtime)' } } }");
+        assertEquals(3, call.getResponseStream().getCount());
+        assertEquals(0, call.getResponseStream().getFailures());
+        assertEquals(2, ((Map<?, ?>) runtime.binding("item")).get("id"));
+    }
+
+    @Test
+    public void elementFails() throws Exception {
+        try {
+            call("{ 'GET' : '{server}/items',"
+                    + " 'stream' : { 'ndjson' : 'item', 'unwrap' : true,"
+                    + "   'assert' : { 'groovy' : 'item.id != 1' } } }");
+            fail("Expected an element to fail");
+        } catch (UnRAVLException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(
+                    "1 of 3 stream elements failed. Stream element 1:"));
+        }
+        ApiCall call = runtime.getApiCalls().get(0);
+        assertEquals(3, call.getResponseStream().getCount());
+        assertEquals(1, call.getFailedAssertions().size());
+    }
+
+    // true if the element's scriptlets run on the completion executor,
+    // holding the runtime's lock
+    public static boolean completing(UnRAVLRuntime runtime) {
+        return Thread.holdsLock(runtime)
+                && Thread.currentThread().getName()
+                        .startsWith("unravl-completion");
+    }
+
+    private ApiCall callAsync(String script) throws Exception {
+        ObjectNode root = (ObjectNode) mockJson(script);
+        return new UnRAVL(runtime, root).runAsync().get(30, TimeUnit.SECONDS);
+    }
+
+    private ApiCall call(String script) throws Exception {
+        ObjectNode root = (ObjectNode) mockJson(script);
+        return new ApiCall(new UnRAVL(runtime, root)).run();
+    }
+
+    private static void write(ResponseStream stream, String text)
+            throws IOException {
+        stream.write(text.getBytes("UTF-8"));
+    }
+
+    private static class Elements implements ResponseStream.Listener {
+        final List<String> texts = new ArrayList<String>();
+        final List<String> events = new ArrayList<String>();
+        final List<String> ids = new ArrayList<String>();
+
+        @Override
+        public void element(ResponseStream stream,
+                ResponseStream.Element element) {
+            texts.add(element.getText());
+            events.add(element.getEvent());
+            ids.add(element.getId());
+        }
+    }
+}
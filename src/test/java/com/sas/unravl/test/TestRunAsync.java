@@ -0,0 +1,98 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.assertions.UnRAVLAssertionException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Run API calls with {@link ApiCall#runAsync()} against an {@link EchoServer}.
+ */
+public class TestRunAsync extends TestBase {
+
+    private EchoServer server;
+    private UnRAVLRuntime runtime;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new EchoServer();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", server.url());
+    }
+
+    @After
+    public void stopServer() {
+        runtime.close();
+        server.stop();
+    }
+
+    @Test
+    public void manyCallsInFlight() throws Exception {
+        List<ListenableFuture<ApiCall>> futures = new ArrayList<ListenableFuture<ApiCall>>();
+        for (int i = 0; i < 20; i++) {
+            ObjectNode root = (ObjectNode) mockJson("{ 'name' : 'call" + i
+                    + "', 'POST' : '{server}/items/" + i + "',"
+                    + "  'body' : { 'json' : { 'id' : " + i + " } },"
+                    + "  'bind' : { 'json' : 'result" + i + "' },"
+                    + "  'assert' : 'result" + i
+                    + ".length.intValue() > 0' }");
+            futures.add(new UnRAVL(runtime, root).runAsync());
+        }
+        List<ApiCall> calls = Futures.allAsList(futures).get(30,
+                TimeUnit.SECONDS);
+        assertEquals(20, calls.size());
+        for (int i = 0; i < 20; i++) {
+            ApiCall call = calls.get(i);
+            assertEquals(200, call.getHttpStatus());
+            assertEquals(1, call.getPassedAssertions().size());
+            assertEquals(0, call.getFailedAssertions().size());
+            ObjectNode result = (ObjectNode) runtime.binding("result" + i);
+            assertEquals("/items/" + i, result.get("path").textValue());
+            assertEquals("POST", result.get("method").textValue());
+        }
+        assertEquals(0, runtime.getFailedAssertionCount());
+    }
+
+    @Test
+    public void statusFailure() throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'GET' : '{server}/missing' }");
+        ListenableFuture<ApiCall> future = new UnRAVL(runtime, root)
+                .runAsync();
+        try {
+            future.get(30, TimeUnit.SECONDS);
+            fail("expected an assertion failure for HTTP 404");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UnRAVLAssertionException);
+        }
+        assertEquals(404, runtime.getApiCalls().get(0).getHttpStatus());
+        assertEquals(1, runtime.getFailedAssertionCount());
+    }
+
+    @Test
+    public void expectedStatus() throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'GET' : '{server}/missing',"
+                + " 'assert' : { 'status' : 404 } }");
+        ApiCall call = new UnRAVL(runtime, root).runAsync().get(30,
+                TimeUnit.SECONDS);
+        assertEquals(404, call.getHttpStatus());
+        assertEquals("application/json",
+                call.getResponseHeader("Content-Type").getValue());
+    }
+}
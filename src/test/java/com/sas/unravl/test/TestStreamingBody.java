@@ -0,0 +1,139 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.generators.Binary;
+import com.sas.unravl.generators.FileBody;
+import com.sas.unravl.generators.StreamingBody;
+import com.sas.unravl.http.TransportRequest;
+import com.sas.unravl.util.DeferredValue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.Header;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify that binary request bodies from files are sent from the file rather
+ * than from a copy in memory.
+ */
+public class TestStreamingBody extends TestBase {
+
+    private static final int SIZE = 200 * 1024;
+
+    private EchoServer server;
+    private UnRAVLRuntime runtime;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new EchoServer();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", server.url());
+        file = File.createTempFile("unravl-upload", ".bin");
+        file.deleteOnExit();
+        byte bytes[] = new byte[SIZE];
+        for (int i = 0; i < SIZE; i++)
+            bytes[i] = (byte) i;
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes);
+        out.close();
+        runtime.bind("file", file.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        runtime.close();
+        server.stop();
+        file.delete();
+    }
+
+    @Test
+    public void upload() throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'POST' : '{server}/upload',"
+                + " 'body' : { 'binary' : '@{file}' },"
+                + " 'bind' : { 'json' : 'echo' } }");
+        ApiCall call = new ApiCall(new UnRAVL(runtime, root)).run();
+        assertEquals(0, call.getFailedAssertions().size());
+        assertTrue(call.getRequestStream() instanceof FileBody);
+        assertEquals(SIZE, call.getRequestLength());
+        assertEquals(SIZE, ((JsonNode) runtime.binding("echo")).get("length")
+                .intValue());
+        // the file is read into requestBody only when it is used
+        assertTrue(runtime.getBindings().get("requestBody") instanceof DeferredValue);
+        assertTrue(runtime.binding("requestBodyStream") instanceof StreamingBody);
+        assertEquals(SIZE, ((byte[]) runtime.binding("requestBody")).length);
+        assertTrue(runtime.getBindings().get("requestBody") instanceof byte[]);
+        assertNull(header(call, TransportRequest.EXPECT));
+    }
+
+    @Test
+    public void expectContinue() throws Exception {
+        runtime.bind(TransportRequest.EXPECT_CONTINUE, SIZE);
+        ObjectNode root = (ObjectNode) mockJson("{ 'PUT' : '{server}/upload',"
+                + " 'body' : { 'binary' : [ [ 1, 2 ], '@{file}', [ 3 ] ] },"
+                + " 'bind' : { 'json' : 'echo' } }");
+        ApiCall call = new ApiCall(new UnRAVL(runtime, root)).run();
+        assertEquals(0, call.getFailedAssertions().size());
+        assertEquals(SIZE + 3, call.getRequestLength());
+        assertEquals(SIZE + 3, ((JsonNode) runtime.binding("echo")).get(
+                "length").intValue());
+        assertEquals("100-continue", header(call, TransportRequest.EXPECT));
+        assertEquals(Boolean.TRUE, new UnRAVL(runtime)
+                .eval("requestBody instanceof byte[] && requestBody.length == "
+                        + (SIZE + 3)));
+    }
+
+    @Test
+    public void parts() throws Exception {
+        UnRAVL script = new UnRAVL(runtime);
+        Binary binary = new Binary(script, mockJson("[ [ 1, 2 ], '@"
+                + file.getPath() + "', [ 3 ] ]"));
+        assertTrue(binary.isStreaming());
+        assertEquals(SIZE + 3, binary.length());
+        byte bytes[] = binary.bytes();
+        assertEquals(SIZE + 3, bytes.length);
+        assertEquals(1, bytes[0]);
+        assertEquals(0, bytes[2]);
+        assertEquals((byte) (SIZE - 1), bytes[SIZE + 1]);
+        assertEquals(3, bytes[SIZE + 2]);
+
+        StreamingBody body = (StreamingBody) binary.stream();
+        assertEquals(0, body.available());
+        assertArrayEquals(bytes, read(body.duplicate()));
+        assertArrayEquals(bytes, read(body));
+
+        Binary memory = new Binary(script, mockJson("[ 1, 2, 3 ]"));
+        assertFalse(memory.isStreaming());
+        assertEquals(3, memory.length());
+    }
+
+    private static String header(ApiCall call, String name) {
+        for (Header h : call.getRequestHeaders()) {
+            if (h.getName().equalsIgnoreCase(name))
+                return h.getValue();
+        }
+        return null;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Binary.copy(in, bytes);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,122 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.jayway.jsonpath.JsonPath;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.util.StreamingJsonPath;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Verify that {@link StreamingJsonPath} gives the same results as Jayway
+ * JsonPath for the subset it supports.
+ */
+public class TestStreamingJsonPath extends TestBase {
+
+    private static final String DOCUMENT = "{ \"store\" : { \"book\" : ["
+            + " { \"title\" : \"Sayings\", \"price\" : 8.95, \"tags\" : [\"a\", \"b\"] },"
+            + " { \"title\" : \"Sword\", \"price\" : 12.99, \"isbn\" : \"0-553\" },"
+            + " { \"title\" : \"Moby Dick\", \"price\" : 8, \"isbn\" : \"0-395\" } ],"
+            + " \"bicycle\" : { \"color\" : \"red\", \"price\" : 19.95 } },"
+            + " \"empty\" : null, \"count\" : 3 }";
+
+    private static final List<String> PATHS = Arrays.asList("$.count",
+            "store.bicycle", "$['store']['bicycle']['color']",
+            "$.store.book[1].title", "$.store.book[*].title",
+            "$.store.book[0].tags.*", "$.store.*.price",
+            "$.store.book[?(@.isbn)].title",
+            "$.store.book[?(@.price < 10)].title",
+            "$.store.book[?(@.price >= 12.99)].price",
+            "$.store.book[?(@.title == 'Sword')].isbn",
+            "$.store.book[?(@.title != \"Sword\")].title",
+            "$.store.bicycle[?(@.color == 'red')].price", "$.empty");
+
+    @Test
+    public void sameAsJayway() throws Exception {
+        StreamingJsonPath stream = new StreamingJsonPath(PATHS);
+        List<Object> values = stream.read(new ByteArrayInputStream(DOCUMENT
+                .getBytes("UTF-8")));
+        Object document = new ObjectMapper().readValue(DOCUMENT, Object.class);
+        for (int i = 0; i < PATHS.size(); i++) {
+            Object expected = JsonPath.read(document, PATHS.get(i));
+            assertEquals(PATHS.get(i), json(expected), json(values.get(i)));
+        }
+        assertTrue(stream.isDefinite(0));
+        assertTrue(!stream.isDefinite(4));
+        assertNull(values.get(PATHS.size() - 1));
+        assertTrue(stream.getPeakMemory() >= 0);
+    }
+
+    @Test
+    public void unsupported() {
+        for (String path : new String[] { "$..price", "$.store.book[-1]",
+                "$.store.book[0:2]", "$.store.book[0,1]",
+                "$.store.book[?(@.price < 10 && @.isbn)]", "$.store.book.length()" }) {
+            try {
+                new StreamingJsonPath(Arrays.asList(path));
+                fail("Expected " + path + " to be rejected");
+            } catch (UnRAVLException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(path));
+            }
+        }
+    }
+
+    @Test
+    public void notFound() throws Exception {
+        StreamingJsonPath stream = new StreamingJsonPath(Arrays.asList(
+                "$.store.missing", "$.store.book[*].missing"));
+        try {
+            stream.read(new ByteArrayInputStream(DOCUMENT.getBytes("UTF-8")));
+            fail("Expected a missing definite path to fail");
+        } catch (UnRAVLException e) {
+            assertTrue(e.getMessage().contains("$.store.missing"));
+        }
+    }
+
+    @Test
+    public void extractor() throws Exception {
+        EchoServer server = new EchoServer();
+        UnRAVLRuntime runtime = new UnRAVLRuntime();
+        try {
+            runtime.bind("server", server.url());
+            ObjectNode root = (ObjectNode) mockJson("{ 'GET' : '{server}/items/1',"
+                    + " 'bind' : [ { 'jsonPath' : { 'path' : '$.path', 'all' : '$.*' },"
+                    + "              'stream' : true },"
+                    + "            { 'jsonPath' : { 'method' : '$.method' },"
+                    + "              'stream' : true, 'wrap' : true } ] }");
+            ApiCall call = new ApiCall(new UnRAVL(runtime, root)).run();
+            assertEquals(0, call.getFailedAssertions().size());
+            assertEquals("/items/1", runtime.binding("path"));
+            assertEquals(4, ((List<?>) runtime.binding("all")).size());
+            assertEquals("GET", ((JsonNode) runtime.binding("method"))
+                    .textValue());
+            assertNull(runtime.binding("responseBody"));
+            assertEquals(0, call.getResponse().getParseCount());
+        } finally {
+            runtime.close();
+            server.stop();
+        }
+    }
+
+    private static String json(Object value) throws IOException {
+        // compare through JSON, since Jayway returns its own List class
+        ObjectMapper mapper = new ObjectMapper();
+        return mapper.writeValueAsString(mapper.readValue(
+                mapper.writeValueAsString(value), Object.class));
+    }
+}
@@ -0,0 +1,156 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.assertions.UnRAVLAssertionException;
+import com.sas.unravl.generators.Binary;
+import com.sas.unravl.generators.Text;
+import com.sas.unravl.generators.TextBody;
+import com.sas.unravl.http.ResponseBuffer;
+import com.sas.unravl.util.DeferredValue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify that text request bodies and expected text from files are expanded
+ * as they are read, the same way text in memory is expanded.
+ */
+public class TestTextBody extends TestBase {
+
+    private static final String CSV = "id,name,price\n"
+            + "{id},{product|unnamed},{U+0024}1.50\n";
+
+    private EchoServer server;
+    private UnRAVLRuntime runtime;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new EchoServer();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", server.url());
+        runtime.bind("id", Integer.valueOf(7));
+        file = write(CSV);
+        runtime.bind("file", file.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        runtime.close();
+        server.stop();
+        file.delete();
+    }
+
+    @Test
+    public void reader() throws IOException, UnRAVLException {
+        UnRAVL script = new UnRAVL(runtime);
+        Text text = new Text(script, mockJson("[ 'header {id}', '@"
+                + file.getPath() + "', 'trailer' ]"));
+        assertTrue(text.isStreaming());
+        StringWriter out = new StringWriter();
+        script.expand(text.reader(), out);
+        String expected = script.expand("header {id}\n" + CSV + "\ntrailer");
+        assertEquals(expected, out.toString());
+        assertEquals("header 7\nid,name,price\n7,unnamed,$1.50\n\ntrailer",
+                expected);
+        // the CharSequence methods read the file
+        assertEquals("header {id}\n" + CSV + "\ntrailer", text.text());
+        assertFalse(text.isStreaming());
+    }
+
+    @Test
+    public void upload() throws Exception {
+        File expected = write("{\"path\":\"/import\",\"method\":\"POST\","
+                + "\"length\":{length},\"echo\":null}");
+        try {
+            String body = runtime.expand(CSV);
+            runtime.bind("length", Integer.valueOf(body.length()));
+            runtime.bind("expected", expected.getPath());
+            ObjectNode root = (ObjectNode) mockJson("{ 'POST' : '{server}/import',"
+                    + " 'body' : { 'text' : '@{file}' },"
+                    + " 'assert' : { 'text' : '@{expected}' } }");
+            ApiCall call = new ApiCall(new UnRAVL(runtime, root)).run();
+            assertEquals(0, call.getFailedAssertions().size());
+            assertTrue(call.getRequestStream() instanceof TextBody);
+
+            assertTrue(runtime.getBindings().get("requestBody") instanceof DeferredValue);
+            Object requestBody = runtime.binding("requestBodyStream");
+            assertTrue(requestBody instanceof TextBody);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Binary.copy((TextBody) requestBody, bytes);
+            assertEquals(body, bytes.toString("UTF-8"));
+
+            // a different length fails the assertion
+            runtime.bind("length", Integer.valueOf(body.length() + 1));
+            try {
+                new ApiCall(new UnRAVL(runtime, root)).run();
+                fail("Expected the text assertion to fail");
+            } catch (UnRAVLAssertionException e) {
+                assertTrue(e.getMessage().startsWith(
+                        "binary array contents not equal at byte"));
+            }
+        } finally {
+            expected.delete();
+        }
+    }
+
+    @Test
+    public void requestBodyIsAsSent() throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'POST' : '{server}/import',"
+                + " 'body' : { 'text' : '@{file}' } }");
+        new ApiCall(new UnRAVL(runtime, root)).run();
+        String sent = runtime.expand(CSV);
+        // later bindings do not change the body that was sent
+        runtime.bind("id", Integer.valueOf(8));
+        runtime.bind("product", "widget");
+        assertEquals(sent, runtime.expand("{requestBody}"));
+        assertEquals("id,name,price\n7,unnamed,$1.50\n",
+                runtime.binding("requestBody"));
+        TextBody requestBody = (TextBody) runtime.binding("requestBodyStream");
+        assertEquals(sent, requestBody.text());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Binary.copy(requestBody, bytes);
+        assertEquals(sent, bytes.toString("UTF-8"));
+    }
+
+    @Test
+    public void readSpills() throws Exception {
+        runtime.bind(ResponseBuffer.THRESHOLD, 16);
+        UnRAVL script = new UnRAVL(runtime);
+        TextBody body = new TextBody(script, new Text(script,
+                mockJson("'@{file}'")));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte buf[] = new byte[5];
+        for (int n; (n = body.read(buf)) > 0;)
+            bytes.write(buf, 0, n);
+        body.close();
+        String expected = runtime.expand(CSV);
+        assertTrue(expected.length() > 16);
+        assertEquals(expected, bytes.toString("UTF-8"));
+    }
+
+    private static File write(String text) throws IOException {
+        File file = File.createTempFile("unravl-text", ".txt");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(text.getBytes("UTF-8"));
+        out.close();
+        return file;
+    }
+}
@@ -0,0 +1,103 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.assertions.UnRAVLAssertionException;
+import com.sas.unravl.http.Timeouts;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify per-call {@link Timeouts} and the runtime's deadline, against the
+ * slow responses of an {@link EchoServer}.
+ */
+public class TestTimeouts extends TestBase {
+
+    private EchoServer server;
+    private UnRAVLRuntime runtime;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new EchoServer();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", server.url());
+    }
+
+    @After
+    public void stopServer() {
+        runtime.close();
+        server.stop();
+    }
+
+    @Test
+    public void readTimeout() throws Exception {
+        runtime.bind(Timeouts.READ, "200");
+        long start = System.currentTimeMillis();
+        runtime.execute(mockJson("{ 'GET' : '{server}/slow/3000' }"));
+        assertTrue(System.currentTimeMillis() - start < 2500);
+        ApiCall call = runtime.getApiCalls().get(0);
+        assertTrue(call.wasTimedOut());
+        assertEquals(Timeouts.Phase.READ, call.getTimeoutPhase());
+        assertEquals(501, call.getHttpStatus());
+        assertEquals(1, runtime.getFailedAssertionCount());
+    }
+
+    @Test
+    public void scriptOverridesTemplate() throws Exception {
+        runtime.bind(Timeouts.CONNECT, 100);
+        runtime.execute(
+                mockJson("{ 'name' : 'slow.template', 'timeout' : { 'read' : 5000, 'call' : 5000 } }"),
+                mockJson("{ 'template' : 'slow', 'GET' : '{server}/slow/3000',"
+                        + " 'timeout' : { 'call' : 300 } }"));
+        ApiCall call = runtime.getApiCalls().get(1);
+        assertEquals(100, call.getTimeouts().getConnect());
+        assertEquals(5000, call.getTimeouts().getRead());
+        assertEquals(300, call.getTimeouts().getCall());
+        assertEquals(Timeouts.Phase.CALL, call.getTimeoutPhase());
+    }
+
+    @Test
+    public void asyncCallTimeout() throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'GET' : '{server}/slow/3000',"
+                + " 'timeout' : { 'call' : 300 } }");
+        try {
+            new UnRAVL(runtime, root).runAsync().get(2, TimeUnit.SECONDS);
+            fail("expected the call to time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UnRAVLAssertionException);
+        }
+        ApiCall call = runtime.getApiCalls().get(0);
+        assertEquals(Timeouts.Phase.CALL, call.getTimeoutPhase());
+    }
+
+    @Test
+    public void deadlineCancelsRemainingCalls() throws Exception {
+        runtime.bind(UnRAVLRuntime.DEADLINE, 500);
+        runtime.execute(mockJson("{ 'GET' : '{server}/items/1' }"),
+                mockJson("{ 'GET' : '{server}/slow/3000' }"),
+                mockJson("{ 'GET' : '{server}/items/2' }"));
+        assertTrue(runtime.isCanceled());
+        List<ApiCall> calls = runtime.getApiCalls();
+        assertFalse(calls.get(0).wasTimedOut());
+        assertEquals(200, calls.get(0).getHttpStatus());
+        assertEquals(Timeouts.Phase.DEADLINE, calls.get(1).getTimeoutPhase());
+        assertTrue(calls.get(1).wasCancelled());
+        if (calls.size() > 2)
+            assertTrue(calls.get(2).wasCancelled());
+        assertEquals(0, runtime.getFailedAssertionCount());
+    }
+}
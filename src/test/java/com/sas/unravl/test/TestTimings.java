@@ -0,0 +1,109 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.http.Har;
+import com.sas.unravl.http.Timings;
+import com.sas.unravl.http.Timings.Phase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify the per-phase {@link Timings} of API calls to an {@link EchoServer},
+ * and their {@link Har} export.
+ */
+public class TestTimings extends TestBase {
+
+    private EchoServer server;
+    private UnRAVLRuntime runtime;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new EchoServer();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", server.url());
+    }
+
+    @After
+    public void stopServer() {
+        runtime.close();
+        server.stop();
+    }
+
+    private ApiCall call(String path) throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'GET' : '{server}" + path
+                + "' }");
+        return new ApiCall(new UnRAVL(runtime, root)).run();
+    }
+
+    @Test
+    public void phases() throws Exception {
+        Timings first = call("/slow/200").getTimings();
+        for (Phase p : Phase.values()) {
+            if (p != Phase.SSL)
+                assertTrue(p + " " + first, first.get(p) >= 0);
+        }
+        assertEquals(-1, first.get(Phase.SSL));
+        assertTrue(first.toString(),
+                first.get(Phase.WAIT) >= TimeUnit.MILLISECONDS.toNanos(200));
+        long sum = 0;
+        for (Phase p : Phase.values())
+            sum += p == Phase.SSL ? 0 : first.get(p);
+        assertTrue(sum <= first.getTotal());
+
+        // the second call reuses the pooled connection
+        Timings second = call("/items").getTimings();
+        assertEquals(-1, second.get(Phase.CONNECT));
+        assertEquals(-1, second.get(Phase.DNS));
+        assertTrue(second.get(Phase.WAIT) >= 0);
+    }
+
+    @Test
+    public void async() throws Exception {
+        ObjectNode root = (ObjectNode) mockJson("{ 'GET' : '{server}/slow/100' }");
+        Timings timings = new UnRAVL(runtime, root).runAsync()
+                .get(30, TimeUnit.SECONDS).getTimings();
+        assertTrue(timings.toString(),
+                timings.get(Phase.WAIT) >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(timings.get(Phase.RECEIVE) >= 0);
+        assertEquals(-1, timings.get(Phase.CONNECT));
+    }
+
+    @Test
+    public void harExport() throws Exception {
+        File file = File.createTempFile("unravl", ".har");
+        file.deleteOnExit();
+        runtime.bind(Har.FILE, file.getPath());
+        runtime.execute(mockJson("[ { 'GET' : '{server}/items?id=1' },"
+                + " { 'GET' : '{server}/missing', 'assert' : { 'status' : 404 } } ]"));
+        JsonNode log = new ObjectMapper().readTree(file).get("log");
+        file.delete();
+        assertEquals("1.2", log.get("version").textValue());
+        JsonNode entries = log.get("entries");
+        assertEquals(2, entries.size());
+        JsonNode entry = entries.get(0);
+        assertEquals("GET", entry.at("/request/method").textValue());
+        assertEquals("id", entry.at("/request/queryString/0/name").textValue());
+        assertEquals(200, entry.at("/response/status").intValue());
+        assertEquals("application/json",
+                entry.at("/response/content/mimeType").textValue());
+        assertTrue(entry.at("/response/content/text").textValue()
+                .contains("/items"));
+        assertTrue(entry.at("/timings/wait").doubleValue() >= 0);
+        assertTrue(entry.at("/time").doubleValue() > 0);
+        assertEquals(404, entries.get(1).at("/response/status").intValue());
+    }
+}
@@ -0,0 +1,86 @@
+package com.sas.unravl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sas.unravl.ApiCall;
+import com.sas.unravl.UnRAVL;
+import com.sas.unravl.UnRAVLException;
+import com.sas.unravl.UnRAVLRuntime;
+import com.sas.unravl.http.HttpClientTransport;
+import com.sas.unravl.http.RestTemplateTransport;
+import com.sas.unravl.http.UnRAVLTransport;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verify that each built-in {@link UnRAVLTransport} sends the same request
+ * and fills in the same response.
+ */
+public class TestTransports extends TestBase {
+
+    private EchoServer server;
+    private UnRAVLRuntime runtime;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new EchoServer();
+        runtime = new UnRAVLRuntime();
+        runtime.bind("server", server.url());
+    }
+
+    @After
+    public void stopServer() {
+        runtime.close();
+        server.stop();
+    }
+
+    @Test
+    public void defaultTransport() throws UnRAVLException {
+        assertTrue(runtime.getTransport() instanceof HttpClientTransport);
+        runtime.bind(UnRAVLRuntime.TRANSPORT, RestTemplateTransport.NAME);
+        assertTrue(runtime.getTransport() instanceof RestTemplateTransport);
+        assertTrue(runtime.getTransport() == runtime
+                .getTransport(RestTemplateTransport.NAME));
+    }
+
+    @Test(expected = UnRAVLException.class)
+    public void noSuchTransport() throws UnRAVLException {
+        runtime.getTransport("no-such-transport");
+    }
+
+    @Test
+    public void httpclient() throws Exception {
+        post(HttpClientTransport.NAME);
+    }
+
+    @Test
+    public void resttemplate() throws Exception {
+        post(RestTemplateTransport.NAME);
+    }
+
+    private void post(String transport) throws Exception {
+        runtime.bind(UnRAVLRuntime.TRANSPORT, transport);
+        runtime.bind("echo", transport);
+        ObjectNode root = (ObjectNode) mockJson("{ 'POST' : '{server}/items',"
+                + "  'headers' : { 'X-Echo' : '{echo}', 'Content-Length' : '999' },"
+                + "  'body' : { 'json' : { 'id' : 1 } },"
+                + "  'bind' : { 'json' : 'result' } }");
+        ApiCall call = new ApiCall(new UnRAVL(runtime, root)).run();
+        assertEquals(200, call.getHttpStatus());
+        assertEquals("application/json",
+                call.getResponseHeader("content-type").getValue());
+        ObjectNode result = (ObjectNode) runtime.binding("result");
+        assertEquals("/items", result.get("path").textValue());
+        assertEquals("POST", result.get("method").textValue());
+        assertEquals(transport, result.get("echo").textValue());
+        assertEquals("{\"id\":1}".length(), result.get("length").intValue());
+        assertEquals(call.getResponseBody().size(), Integer.parseInt(call
+                .getResponseHeader("Content-Length").getValue()));
+    }
+}
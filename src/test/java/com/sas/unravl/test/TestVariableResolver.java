@@ -2,9 +2,13 @@ package com.sas.unravl.test;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -35,7 +39,18 @@ public class TestVariableResolver {
         VariableResolver newInstance = new VariableResolver(environmentMap);
         actual = newInstance.expand(input);
         assertEquals(expected, actual);
+        assertEquals(expected, expandStream(input));
+    }
 
+    // expand with VariableResolver.expand(Reader, Writer)
+    private static String expandStream(String input) {
+        StringWriter out = new StringWriter();
+        try {
+            reusableResolver.expand(new StringReader(input), out);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return out.toString();
     }
 
     private void assertResolveVarValue(Object expected, String input) {
@@ -49,6 +64,32 @@ public class TestVariableResolver {
     private void assertNoResolve(String input) {
         String actual = reusableResolver.expand(input);
         assertEquals(input, actual);
+        assertEquals(input, expandStream(input));
+    }
+
+    @Test
+    public void streamMatchesString() {
+        // random strings of braces, delimiters, names and code points
+        String pieces[] = { "{", "}", "|", "var1", "var5", "unbound", "U+0041",
+                " ", "x", "{var1}", "{var6|alt}", "\n" };
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder input = new StringBuilder();
+            for (int n = random.nextInt(12); n > 0; n--)
+                input.append(pieces[random.nextInt(pieces.length)]);
+            String text = input.toString();
+            assertEquals(text, reusableResolver.expand(text),
+                    expandStream(text));
+        }
+    }
+
+    @Test
+    public void streamLongText() {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 20000; i++)
+            input.append("{var1} {noSuchVar|{var5}} {U+007B}{ {\n");
+        String text = input.toString();
+        assertEquals(reusableResolver.expand(text), expandStream(text));
     }
 
     @Test